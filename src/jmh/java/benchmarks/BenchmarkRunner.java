@@ -0,0 +1,48 @@
+package benchmarks;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks once per thread count, in throughput and average time mode and with the gc profiler (allocation rate).
+ * The results of every thread count are written as json to jmh.resultDir/results-{threads}-threads.json so they can be diffed across commits.
+ * <p>
+ * System properties: jmh.threads (comma separated thread counts, default 1,2,4,8,16), jmh.include (benchmark regexp), jmh.resultDir.
+ * Program arguments are passed to JMH as regular command line options, for example "-wi 1 -i 1 -f 1" for a quick run.
+ * */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String include = System.getProperty("jmh.include", ".*");
+        File resultDir = new File(System.getProperty("jmh.resultDir", "target/jmh"));
+        resultDir.mkdirs();
+        CommandLineOptions commandLineOptions = new CommandLineOptions(String.join(" ", args).trim().split("\\s+"));
+
+        for (String threads : System.getProperty("jmh.threads", "1,2,4,8,16").split(",")) {
+            Options options = new OptionsBuilder()
+                    .parent(commandLineOptions)
+                    .include(include)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .mode(Mode.Throughput)
+                    .mode(Mode.AverageTime)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "results-" + threads.trim() + "-threads.json").getPath())
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package benchmarks;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.TimeServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full scan of an event history with {@link StatisticsService#calculateStatistics}. Half of the history is in the window.
+ * The largest history needs a big heap, hence the forked jvm arguments.
+ * */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CalculateStatisticsBenchmark {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    private int historySize;
+
+    private List<TimedEvent<Transaction>> history;
+    private StatisticsService statisticsService;
+    private long now;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        now = System.currentTimeMillis();
+        history = new ArrayList<>(historySize);
+        for (int i = 0; i < historySize; i++) {
+            history.add(new TimedEvent<>(i, new Transaction(random.nextDouble() * 1000, now - random.nextInt(120_000))));
+        }
+        statisticsService = new StatisticsService(new TimeServiceImpl(), new TransactionMadeEventHandler(), new AggregateStatistics(), new AtomicLongWrapper());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        history = null;
+    }
+
+    @Benchmark
+    public AggregateStatistics calculateStatistics() {
+        return statisticsService.calculateStatistics(history, now - 60_000, now);
+    }
+}
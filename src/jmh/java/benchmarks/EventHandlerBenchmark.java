@@ -0,0 +1,40 @@
+package benchmarks;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.TimedEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing a transaction: logical time, history (bounded so the benchmark doesn't run out of memory) and a no-op listener.
+ * */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventHandlerBenchmark {
+    private InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> eventHandler;
+    private Transaction transaction;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        eventHandler = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.byCount(100_000));
+        eventHandler.subscribe(x -> { });
+        transaction = new Transaction(12.5, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    public TimedEvent<Transaction> publishUnsafely() {
+        return eventHandler.publishUnsafely(transaction);
+    }
+}
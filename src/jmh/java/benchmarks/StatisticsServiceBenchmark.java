@@ -0,0 +1,67 @@
+package benchmarks;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.TimeServiceImpl;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingestion (onTransactionMade) and read (getStatistics) paths of the statistics service, on a window that is full of transactions.
+ * The transactions are stamped with the current time so they stay in the window for the whole measurement.
+ * */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatisticsServiceBenchmark {
+    private StatisticsService statisticsService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        statisticsService = new StatisticsService(new TimeServiceImpl(), new TransactionMadeEventHandler(), new AggregateStatistics(), new AtomicLongWrapper());
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100_000; i++) {
+            statisticsService.onTransactionMade(new TimedEvent<>(i, new Transaction(i, now - i % 60_000)));
+        }
+    }
+
+    @Benchmark
+    public long onTransactionMade() {
+        return statisticsService.onTransactionMade(newEvent());
+    }
+
+    /**
+     * Read without changes since the previous read, the common case for a read heavy load.
+     * */
+    @Benchmark
+    public AggregateStatistics getStatistics() {
+        return statisticsService.getStatistics();
+    }
+
+    /**
+     * Every read follows a write, so every read merges the window.
+     * */
+    @Benchmark
+    public AggregateStatistics onTransactionMadeThenGetStatistics() {
+        statisticsService.onTransactionMade(newEvent());
+        return statisticsService.getStatistics();
+    }
+
+    private static TimedEvent<Transaction> newEvent() {
+        return new TimedEvent<>(0, new Transaction(ThreadLocalRandom.current().nextDouble(1000), System.currentTimeMillis()));
+    }
+}
@@ -6,12 +6,35 @@ package com.n26.atrposki;
  *
  */
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.endpoints.NioApiHandler;
+import com.n26.atrposki.endpoints.TransactionDTOHttpMessageConverter;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.transactions.TransactionsService;
+import com.n26.atrposki.utils.events.IEventLog;
+import com.n26.atrposki.utils.events.LogSyncPolicy;
+import com.n26.atrposki.utils.events.MappedEventLog;
+import com.n26.atrposki.utils.http.NioHttpServer;
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
 import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
 import com.n26.atrposki.utils.testableAtomics.IAtomicLong;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @SpringBootApplication
 public class Application {
 
@@ -24,4 +47,122 @@ public class Application {
         return new AtomicLongWrapper();
     }
 
+    /**
+     * Spring boot puts the converter beans before the default ones, so single transactions skip the jackson databinding.
+     * */
+    @Bean
+    TransactionDTOHttpMessageConverter transactionDTOHttpMessageConverter(ObjectMapper objectMapper) {
+        return new TransactionDTOHttpMessageConverter(objectMapper);
+    }
+
+    @Bean
+    MetricsRegistry metricsRegistry() {
+        return new MetricsRegistry();
+    }
+
+    @Bean
+    HashedTimingWheel expiryTimingWheel(ITimeService timeService,
+                                        @Value("${statistics.expiry.tickMillis:100}") long tickMillis,
+                                        @Value("${statistics.expiry.wheelSize:1024}") int wheelSize,
+                                        @Value("${statistics.expiry.threadName:statistics-expiry}") String threadName) {
+        HashedTimingWheel timingWheel = new HashedTimingWheel(tickMillis, wheelSize, timeService);
+        timingWheel.start(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        return timingWheel;
+    }
+
+    /**
+     * The write ahead log of the transactions. Without transactions.log.enabled the transactions are not logged at all.
+     * */
+    @Bean
+    IEventLog<Transaction> transactionLog(ITimeService timeService,
+                                          @Value("${transactions.log.enabled:false}") boolean isEnabled,
+                                          @Value("${transactions.log.directory:data/transactions}") String directory,
+                                          @Value("${transactions.log.segmentRecords:1048576}") int segmentRecords,
+                                          @Value("${transactions.log.sync:PERIODIC}") LogSyncPolicy syncPolicy,
+                                          @Value("${transactions.log.syncMillis:100}") long syncMillis,
+                                          @Value("${transactions.log.retentionMillis:3600000}") long retentionMillis) {
+        if (!isEnabled) {
+            return IEventLog.none();
+        }
+        MappedEventLog<Transaction> log = new MappedEventLog<>(Paths.get(directory), segmentRecords, Transaction::getTimestamp, Transaction::getAmount,
+                syncPolicy, syncMillis, retentionMillis, timeService::getUtcNow);
+        log.start(runnable -> {
+            Thread thread = new Thread(runnable, "transactions-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return log;
+    }
+
+    /**
+     * The admission control of POST /api/transactions/, see {@link AdaptiveConcurrencyLimiter}.
+     * */
+    @Bean
+    AdaptiveConcurrencyLimiter transactionAdmissionLimiter(MetricsRegistry metricsRegistry,
+                                                           @Value("${transactions.admission.initialLimit:64}") int initialLimit,
+                                                           @Value("${transactions.admission.minLimit:4}") int minLimit,
+                                                           @Value("${transactions.admission.maxLimit:1024}") int maxLimit,
+                                                           @Value("${transactions.admission.targetLatencyMillis:20}") long targetLatencyMillis,
+                                                           @Value("${transactions.admission.backoffRatio:0.9}") double backoffRatio,
+                                                           @Value("${transactions.admission.maxQueued:256}") int maxQueued,
+                                                           @Value("${transactions.admission.maxWaitMillis:100}") long maxWaitMillis,
+                                                           @Value("${transactions.admission.retryAfterMillis:1000}") long retryAfterMillis) {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit, targetLatencyMillis, backoffRatio,
+                maxQueued, maxWaitMillis, retryAfterMillis);
+        metricsRegistry.counter("transactions_admitted_total", "Number of transaction requests admitted", limiter::getAdmittedCount);
+        metricsRegistry.counter("transactions_shed_over_limit_total", "Number of transaction requests rejected over the concurrency limit with a full queue",
+                () -> limiter.getRejectedCount(AdaptiveConcurrencyLimiter.Rejection.OVER_LIMIT));
+        metricsRegistry.counter("transactions_shed_timed_out_total", "Number of transaction requests rejected after waiting in the queue",
+                () -> limiter.getRejectedCount(AdaptiveConcurrencyLimiter.Rejection.TIMED_OUT));
+        metricsRegistry.gauge("transactions_admission_limit", "Current adaptive concurrency limit of the transaction requests", limiter::getLimit);
+        metricsRegistry.gauge("transactions_in_flight", "Number of admitted transaction requests in progress", limiter::getInFlight);
+        metricsRegistry.gauge("transactions_admission_queued", "Number of transaction requests waiting for admission", limiter::getQueued);
+        return limiter;
+    }
+
+    /**
+     * The workers of the non blocking front end, they call the handler so publishing a transaction does not block an event loop.
+     * */
+    @Bean(destroyMethod = "shutdownNow")
+    @ConditionalOnProperty(name = "http.nio.enabled", havingValue = "true")
+    ExecutorService nioHttpWorkers(@Value("${http.nio.workerThreads:16}") int workerThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(workerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "http-nio-worker-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The non blocking front end for the hot endpoints (see {@link NioApiHandler}), only with http.nio.enabled.
+     * It listens on its own port next to the servlet container, which keeps serving every endpoint.
+     * The event loops only read and write, the handler runs on the http.nio.workerThreads workers since publishing a transaction can block.
+     * */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "http.nio.enabled", havingValue = "true")
+    NioHttpServer nioHttpServer(TransactionsService transactionsService, StatisticsService statisticsService, ObjectMapper objectMapper, MetricsRegistry metricsRegistry,
+                                AdaptiveConcurrencyLimiter transactionAdmissionLimiter,
+                                @Value("${http.nio.port:8084}") int port,
+                                @Value("${http.nio.eventLoops:2}") int eventLoops,
+                                @Value("${http.nio.maxConnections:65536}") int maxConnections,
+                                @Value("${http.nio.maxRequestBytes:65536}") int maxRequestBytes,
+                                @Value("${http.nio.idleTimeoutMillis:60000}") long idleTimeoutMillis,
+                                ExecutorService nioHttpWorkers) throws IOException {
+        NioHttpServer server = new NioHttpServer(new InetSocketAddress(port), eventLoops, maxConnections, maxRequestBytes, idleTimeoutMillis,
+                new NioApiHandler(transactionsService, statisticsService, objectMapper, transactionAdmissionLimiter), nioHttpWorkers);
+        metricsRegistry.gauge("http_nio_connections", "Number of open connections of the non blocking front end", server::getConnectionCount);
+        metricsRegistry.counter("http_nio_requests_total", "Number of requests handled by the non blocking front end", server::getRequestCount);
+        AtomicInteger threadCount = new AtomicInteger();
+        server.start(runnable -> {
+            Thread thread = new Thread(runnable, "http-nio-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return server;
+    }
 }
@@ -0,0 +1,218 @@
+package com.n26.atrposki.cluster;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.SlidingWindowStatistics;
+import com.n26.atrposki.statistics.StatisticsCheckpoint;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+/**
+ * Statistics of the whole cluster: every node aggregates the transactions it received, the statistics of all of them are merged from their window buckets.
+ * <p>
+ * The buckets are mergeable (sum, count, min, max and the histogram of a period, see {@link StatisticsCheckpoint}) and the periods are aligned on the epoch,
+ * so merging the buckets of the nodes gives the same statistics as a single node that received every transaction, percentiles included.
+ * <p>
+ * The buckets of every peer (cluster.peers) are fetched in parallel and kept for cluster.refreshMillis, so reads do not fan out on every request.
+ * Concurrent reads share the running fetches, so however many readers there are a read waits at most cluster.timeoutMillis for a peer.
+ * A peer that fails keeps contributing its last buckets until they are older than cluster.maxStalenessMillis, then it is left out
+ * and the result says how many nodes it merged. The staleness of the global statistics is hence bounded by maxStalenessMillis plus the peer timeout.
+ * */
+@Service
+public class ClusterStatisticsService {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterStatisticsService.class);
+
+    private final StatisticsService statisticsService;
+    private final ITimeService timeService;
+    private final IPeerClient peerClient;
+    private final List<String> peers;
+    private final long refreshMillis;
+    private final long maxStalenessMillis;
+    private final long timeoutMillis;
+    private final Map<String, StatisticsCheckpoint> peerBuckets = new ConcurrentHashMap<>();
+    private final Map<String, PeerFetch> inFlight = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param peers              base urls of the other nodes
+     * @param refreshMillis      how long fetched buckets are used before they are fetched again
+     * @param maxStalenessMillis buckets older than this are not merged anymore
+     * @param timeoutMillis      how long to wait for the peers
+     * */
+    public ClusterStatisticsService(StatisticsService statisticsService, ITimeService timeService, IPeerClient peerClient, List<String> peers,
+                                    long refreshMillis, long maxStalenessMillis, long timeoutMillis) {
+        this.statisticsService = statisticsService;
+        this.timeService = timeService;
+        this.peerClient = peerClient;
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        this.refreshMillis = refreshMillis;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, peers.size()), runnable -> {
+            Thread thread = new Thread(runnable, "cluster-peers");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Autowired
+    public ClusterStatisticsService(StatisticsService statisticsService,
+                                    ITimeService timeService,
+                                    @Value("${cluster.peers:}") String peers,
+                                    @Value("${cluster.refreshMillis:250}") long refreshMillis,
+                                    @Value("${cluster.maxStalenessMillis:2000}") long maxStalenessMillis,
+                                    @Value("${cluster.timeoutMillis:500}") int timeoutMillis) {
+        this(statisticsService, timeService, new HttpPeerClient(timeoutMillis), parsePeers(peers), refreshMillis, maxStalenessMillis, timeoutMillis);
+    }
+
+    /**
+     * @return the statistics of the window merged from this node and every peer whose buckets are not too stale
+     * @throws IllegalArgumentException if the window is longer than the window of this node or not a multiple of its bucket length
+     * */
+    public GlobalStatistics getStatistics(StatisticsWindow window) throws IllegalArgumentException {
+        StatisticsCheckpoint local = statisticsService.exportBuckets();
+        long now = local.getCreatedAt();
+        SlidingWindowStatistics merged = new SlidingWindowStatistics((int) (statisticsService.getMaxWindowLength() / local.getBucketLength()), local.getBucketLength());
+        addAll(merged, local, now);
+        int mergedNodes = 1;
+        long staleness = 0;
+        for (StatisticsCheckpoint buckets : refreshPeers(now)) {
+            if (buckets.getBucketLength() != local.getBucketLength()) {
+                LOG.warn("Skipping peer buckets of {}ms, this node has buckets of {}ms", buckets.getBucketLength(), local.getBucketLength());
+                continue;
+            }
+            addAll(merged, buckets, now);
+            mergedNodes++;
+            staleness = Math.max(staleness, now - buckets.getCreatedAt());
+        }
+        return new GlobalStatistics(merged.getStatistics(now, window.getLength()), mergedNodes, peers.size() + 1, staleness);
+    }
+
+    public List<String> getPeers() {
+        return peers;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Fetches the buckets of the peers whose buckets are older than the refresh interval, in parallel, and waits for them at most the timeout from the start of the fetch.
+     * There is at most one fetch per peer at a time (single flight): the readers that find a fetch of a peer running wait for that one instead of starting another,
+     * so concurrent readers wait for the same fetches, a slow peer is never fetched twice at once and the pool never queues more than a fetch per peer.
+     * @return the buckets of the peers that are within the staleness bound
+     * */
+    private List<StatisticsCheckpoint> refreshPeers(long now) {
+        List<PeerFetch> fetches = new ArrayList<>();
+        for (String peer : peers) {
+            if (isOlderThan(peerBuckets.get(peer), now, refreshMillis)) {
+                fetches.add(fetch(peer));
+            }
+        }
+        if (!fetches.isEmpty()) {
+            long deadlineNanos = fetches.stream().mapToLong(x -> x.deadlineNanos).max().getAsLong();
+            CompletableFuture<?>[] done = fetches.stream().map(x -> x.done).toArray(CompletableFuture<?>[]::new);
+            try {
+                CompletableFuture.allOf(done).get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                //a peer that did not answer in time is merged with its previous buckets, if they are recent enough
+                LOG.debug("Not all peers answered within {}ms", timeoutMillis);
+            }
+        }
+        List<StatisticsCheckpoint> fresh = new ArrayList<>();
+        for (String peer : peers) {
+            StatisticsCheckpoint buckets = peerBuckets.get(peer);
+            if (!isOlderThan(buckets, timeService.getUtcNow(), maxStalenessMillis)) {
+                fresh.add(buckets);
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * @return the running fetch of the peer, or a new one if none is running
+     * */
+    private PeerFetch fetch(String peer) {
+        PeerFetch fetch = new PeerFetch(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        PeerFetch running = inFlight.putIfAbsent(peer, fetch);
+        if (running != null) {
+            return running;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    peerBuckets.put(peer, peerClient.fetchBuckets(peer));
+                } catch (Exception e) {
+                    LOG.warn("Could not fetch the statistics buckets of {}: {}", peer, e.getMessage());
+                } finally {
+                    inFlight.remove(peer, fetch);
+                    fetch.done.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //shut down
+            inFlight.remove(peer, fetch);
+            fetch.done.complete(null);
+        }
+        return fetch;
+    }
+
+    /**
+     * The age is measured by the clock of the peer that exported the buckets, so the nodes are expected to have synchronized clocks.
+     * */
+    private static boolean isOlderThan(StatisticsCheckpoint buckets, long now, long age) {
+        return buckets == null || now - buckets.getCreatedAt() > age;
+    }
+
+    private static void addAll(SlidingWindowStatistics window, StatisticsCheckpoint buckets, long now) {
+        for (StatisticsCheckpoint.Bucket bucket : buckets.getBuckets()) {
+            window.addBucket(bucket.getPeriod(), bucket.getStatistics(), bucket.getHistogram(), now);
+        }
+    }
+
+    private static class PeerFetch {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long deadlineNanos;
+
+        PeerFetch(long deadlineNanos) {
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private static List<String> parsePeers(String peers) {
+        return Arrays.stream(peers.split(","))
+                .map(String::trim)
+                .filter(peer -> !peer.isEmpty())
+                .map(peer -> peer.endsWith("/") ? peer.substring(0, peer.length() - 1) : peer)
+                .collect(Collectors.toList());
+    }
+}
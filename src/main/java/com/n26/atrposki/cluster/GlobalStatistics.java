@@ -0,0 +1,24 @@
+package com.n26.atrposki.cluster;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import lombok.Value;
+
+/**
+ * The statistics of all the nodes of the cluster that could be merged, and how complete and fresh they are.
+ * */
+@Value
+public class GlobalStatistics {
+    private final AggregateStatistics statistics;
+    /** number of nodes, including this one, whose buckets are in the statistics */
+    private final int mergedNodes;
+    /** number of nodes in the cluster, including this one */
+    private final int totalNodes;
+    /** age in miliseconds of the oldest merged buckets */
+    private final long staleness;
+}
@@ -0,0 +1,48 @@
+package com.n26.atrposki.cluster;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.StatisticsCheckpoint;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Fetches the buckets of a peer from its internal endpoint (GET /internal/statistics/buckets) over plain http.
+ * */
+public class HttpPeerClient implements IPeerClient {
+    public static final String BUCKETS_PATH = "/internal/statistics/buckets";
+
+    private final RestTemplate restTemplate;
+
+    /**
+     * @param timeoutMillis the connect and the read timeout of a single request
+     * */
+    public HttpPeerClient(int timeoutMillis) {
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeoutMillis);
+        requestFactory.setReadTimeout(timeoutMillis);
+        this.restTemplate = new RestTemplate(requestFactory);
+    }
+
+    @Override
+    public StatisticsCheckpoint fetchBuckets(String peer) throws IOException {
+        byte[] body;
+        try {
+            body = restTemplate.getForObject(peer + BUCKETS_PATH, byte[].class);
+        } catch (RestClientException e) {
+            throw new IOException("The peer " + peer + " did not answer", e);
+        }
+        if (body == null) {
+            throw new IOException("The peer " + peer + " answered without a body");
+        }
+        return StatisticsCheckpoint.readFrom(new ByteArrayInputStream(body));
+    }
+}
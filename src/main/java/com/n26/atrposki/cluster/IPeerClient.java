@@ -0,0 +1,25 @@
+package com.n26.atrposki.cluster;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.StatisticsCheckpoint;
+
+import java.io.IOException;
+
+/**
+ * Fetches the window buckets of another node of the cluster.
+ * */
+@FunctionalInterface
+public interface IPeerClient {
+
+    /**
+     * @param peer the base url of the peer, for example http://localhost:8084
+     * @return the buckets the peer exported (see {@link com.n26.atrposki.statistics.StatisticsService#exportBuckets()})
+     * @throws IOException if the peer did not answer in time or its answer can not be read
+     * */
+    StatisticsCheckpoint fetchBuckets(String peer) throws IOException;
+}
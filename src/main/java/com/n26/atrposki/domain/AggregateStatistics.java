@@ -6,10 +6,12 @@ package com.n26.atrposki.domain;
  *
  */
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Value;
 
 /**
  * Immutable class that holds aggregated statistics: avg, min, max, sum, count.
+ * Statistics read from the sliding window also hold the {@link Percentiles} of the amounts, the ones calculated by a full scan don't (null, omitted from the json).
  * */
 @Value
 public class AggregateStatistics {
@@ -18,16 +20,23 @@ public class AggregateStatistics {
     private final double min;
     private final long count;
     private final double average;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Percentiles percentiles;
 
     public AggregateStatistics() {
         this(0.0, 0.0, 0.0, 0.0, 0l);
     }
 
     public AggregateStatistics(Double sum, Double avg, Double max, Double min, Long count) {
+        this(sum, avg, max, min, count, null);
+    }
+
+    public AggregateStatistics(Double sum, Double avg, Double max, Double min, Long count, Percentiles percentiles) {
         this.sum = sum == null ? 0 : sum;
         this.max = max == null ? 0 : max;
         this.average = avg == null ? 0 : avg;
         this.min = min == null ? 0 : min;
         this.count = count == null ? 0 : count;
+        this.percentiles = percentiles;
     }
 }
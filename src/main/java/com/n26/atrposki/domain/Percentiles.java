@@ -0,0 +1,20 @@
+package com.n26.atrposki.domain;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import lombok.Value;
+
+/**
+ * Immutable class that holds the median, 95th and 99th percentile of the transaction amounts.
+ * The values are approximate, see {@link com.n26.atrposki.utils.sketch.LogHistogram} for the error bound.
+ * */
+@Value
+public class Percentiles {
+    private final double p50;
+    private final double p95;
+    private final double p99;
+}
@@ -13,10 +13,29 @@ import lombok.RequiredArgsConstructor;
 import lombok.Value;
 
 /**
- * Immutable class that contains the information about a transaction
+ * Immutable class that contains the information about a transaction.
+ * The key optionally names the account or merchant of the transaction, keyed transactions are also aggregated per key.
+ * Keys are non negative, {@link #NO_KEY} is a transaction without one.
  * */
 @Value
 public class Transaction {
+    public static final long NO_KEY = -1;
+
     private final double amount;
     private final long timestamp;
+    private final long key;
+
+    public Transaction(double amount, long timestamp) {
+        this(amount, timestamp, NO_KEY);
+    }
+
+    public Transaction(double amount, long timestamp, long key) {
+        this.amount = amount;
+        this.timestamp = timestamp;
+        this.key = key < 0 ? NO_KEY : key;
+    }
+
+    public boolean hasKey() {
+        return key != NO_KEY;
+    }
 }
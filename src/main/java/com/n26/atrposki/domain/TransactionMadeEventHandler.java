@@ -6,29 +6,71 @@ package com.n26.atrposki.domain;
  *
  */
 
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.EventDispatchMode;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.IEventDispatcher;
+import com.n26.atrposki.utils.events.IEventLog;
 import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
 import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler;
+import com.n26.atrposki.utils.events.ParallelEventDispatcher;
+import com.n26.atrposki.utils.events.RingBufferEventDispatcher;
+import com.n26.atrposki.utils.events.SynchronousEventDispatcher;
 import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import java.util.List;
 
 /**
  * In memory transaction made event handler.
  * Components are by default in singleton scope  and this implementation depends heavily on it.
+ * The history retention is configured by transactions.history.maxAge (miliseconds, by transaction timestamp) and transactions.history.maxSize.
+ * The way listeners are called is configured by transactions.dispatch.mode ({@link EventDispatchMode}) and, for the ASYNC mode, transactions.dispatch.ringSize.
+ * The PARALLEL mode is tuned by transactions.dispatch.parallelism, listenerTimeoutMillis, breakerFailures, breakerOpenMillis and maxPending (see {@link ParallelEventDispatcher}).
+ * The history is kept as primitive columns (see {@link ColumnarEventHistory}) and can be scanned without creating objects via {@link #openHistoryCursor()}.
+ * Every transaction is also appended to the transaction log bean (see {@link IEventLog}), which is a no-op unless transactions.log.enabled is set.
  * */
 @Component
 public class TransactionMadeEventHandler implements ILogicalyTimedEventHandler<Transaction> {
     private InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> eventHandlingImpl;
+    private ColumnarEventHistory<Transaction> history;
 
     public TransactionMadeEventHandler() {
-        this(new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>());
+        this(EventRetentionPolicy.unbounded(), new SynchronousEventDispatcher<>(), createHistory(), IEventLog.none());
+    }
+
+    @Autowired
+    public TransactionMadeEventHandler(ITimeService timeService,
+                                       @Value("${transactions.history.maxAge:60000}") long maxAge,
+                                       @Value("${transactions.history.maxSize:1000000}") long maxSize,
+                                       @Value("${transactions.dispatch.mode:SYNC}") EventDispatchMode dispatchMode,
+                                       @Value("${transactions.dispatch.ringSize:4096}") int ringSize,
+                                       @Value("${transactions.dispatch.parallelism:4}") int parallelism,
+                                       @Value("${transactions.dispatch.listenerTimeoutMillis:1000}") long listenerTimeoutMillis,
+                                       @Value("${transactions.dispatch.breakerFailures:5}") int breakerFailures,
+                                       @Value("${transactions.dispatch.breakerOpenMillis:5000}") long breakerOpenMillis,
+                                       @Value("${transactions.dispatch.maxPending:65536}") int maxPending,
+                                       MetricsRegistry metricsRegistry,
+                                       IEventLog<Transaction> transactionLog) {
+        this(new EventRetentionPolicy<>(maxSize, maxAge, Transaction::getTimestamp, timeService::getUtcNow), createDispatcher(dispatchMode, ringSize, parallelism, listenerTimeoutMillis, breakerFailures, breakerOpenMillis, maxPending, metricsRegistry), createHistory(), transactionLog);
+        eventHandlingImpl.registerMetrics(metricsRegistry, "transactions");
     }
 
     public TransactionMadeEventHandler(InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> eventHandlingImpl) {
         this.eventHandlingImpl = eventHandlingImpl;
     }
 
+    private TransactionMadeEventHandler(EventRetentionPolicy<Transaction> retentionPolicy, IEventDispatcher<Transaction> dispatcher,
+                                        ColumnarEventHistory<Transaction> history, IEventLog<Transaction> transactionLog) {
+        this(new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(retentionPolicy, dispatcher, history, transactionLog));
+        this.history = history;
+    }
+
     /**
      * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#subscribe(CheckedConsumer)}
      * */
@@ -45,6 +87,14 @@ public class TransactionMadeEventHandler implements ILogicalyTimedEventHandler<T
         eventHandlingImpl.publish(transaction);
     }
 
+    /**
+     * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#publishAll(List)}
+     * */
+    @Override
+    public void publishAll(List<Transaction> transactions) {
+        eventHandlingImpl.publishAll(transactions);
+    }
+
     /**
      * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#getHistory()}
      * */
@@ -53,6 +103,17 @@ public class TransactionMadeEventHandler implements ILogicalyTimedEventHandler<T
         return eventHandlingImpl.getHistory();
     }
 
+    /**
+     * @return a cursor over the retained transactions that reads them in place, without creating objects. See {@link ColumnarEventHistory.Cursor}.
+     * @throws IllegalStateException if this handler was created with an event handling implementation that does not keep a columnar history
+     * */
+    public ColumnarEventHistory.Cursor openHistoryCursor() throws IllegalStateException {
+        if (history == null) {
+            throw new IllegalStateException("The transaction history is not columnar");
+        }
+        return history.cursor();
+    }
+
     /**
      * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#getLogicalTime()}
      * */
@@ -60,4 +121,46 @@ public class TransactionMadeEventHandler implements ILogicalyTimedEventHandler<T
     public long getLogicalTime() {
         return eventHandlingImpl.getLogicalTime();
     }
+
+    /**
+     * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#shutdown(long)}, draining the published transactions before the application stops.
+     * */
+    @PreDestroy
+    public boolean shutdown() {
+        return eventHandlingImpl.shutdown(InMemmoryThreadSafeLogicalyTimedEventHandlerImpl.DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#getRetainedCount()}
+     * */
+    @Override
+    public long getRetainedCount() {
+        return eventHandlingImpl.getRetainedCount();
+    }
+
+    /**
+     * Propagates calls to {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#getEvictedCount()}
+     * */
+    @Override
+    public long getEvictedCount() {
+        return eventHandlingImpl.getEvictedCount();
+    }
+
+    private static ColumnarEventHistory<Transaction> createHistory() {
+        return new ColumnarEventHistory<>(Transaction::getTimestamp, Transaction::getAmount, Transaction::new);
+    }
+
+    private static IEventDispatcher<Transaction> createDispatcher(EventDispatchMode dispatchMode, int ringSize, int parallelism, long listenerTimeoutMillis,
+                                                                  int breakerFailures, long breakerOpenMillis, int maxPending, MetricsRegistry metricsRegistry) {
+        switch (dispatchMode) {
+            case ASYNC:
+                return new RingBufferEventDispatcher<>(ringSize);
+            case PARALLEL:
+                ParallelEventDispatcher<Transaction> dispatcher = new ParallelEventDispatcher<>(parallelism, listenerTimeoutMillis, breakerFailures, breakerOpenMillis, maxPending);
+                dispatcher.registerMetrics(metricsRegistry, "transactions");
+                return dispatcher;
+            default:
+                return new SynchronousEventDispatcher<>();
+        }
+    }
 }
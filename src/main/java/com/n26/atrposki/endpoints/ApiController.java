@@ -6,18 +6,45 @@ package com.n26.atrposki.endpoints;
  *
  */
 
+import com.n26.atrposki.cluster.ClusterStatisticsService;
+import com.n26.atrposki.cluster.GlobalStatistics;
 import com.n26.atrposki.domain.AggregateStatistics;
 import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.statistics.KeyedStatisticsService;
+import com.n26.atrposki.statistics.RangeStatistics;
+import com.n26.atrposki.statistics.RangeStatisticsService;
 import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsSnapshot;
+import com.n26.atrposki.statistics.StatisticsStreamService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.transactions.TransactionBatchResultDTO;
 import com.n26.atrposki.transactions.TransactionDTO;
 import com.n26.atrposki.transactions.TransactionsService;
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Optional;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
 import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
 import static org.springframework.http.HttpStatus.NO_CONTENT;
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.HttpStatus.TOO_MANY_REQUESTS;
 import static org.springframework.http.ResponseEntity.status;
 import static org.springframework.web.bind.annotation.RequestMethod.GET;
 import static org.springframework.web.bind.annotation.RequestMethod.POST;
@@ -29,28 +56,220 @@ import static org.springframework.web.bind.annotation.RequestMethod.POST;
 @RestController
 @RequestMapping("/api")
 public class ApiController {
+    public static final MediaType STATISTICS_BINARY = MediaType.valueOf("application/x-statistics-binary");
+
+    public static final String NODES_HEADER = "X-Statistics-Nodes";
+    public static final String STALENESS_HEADER = "X-Statistics-Staleness";
+    public static final String RANGE_FROM_HEADER = "X-Statistics-From";
+    public static final String RANGE_TO_HEADER = "X-Statistics-To";
+    public static final String RESOLUTION_HEADER = "X-Statistics-Resolution";
 
     private StatisticsService statisticsService;
     private TransactionsService transactionService;
+    private ClusterStatisticsService clusterStatisticsService;
+    private KeyedStatisticsService keyedStatisticsService;
+    private StatisticsStreamService statisticsStreamService;
+    private RangeStatisticsService rangeStatisticsService;
+    private AdaptiveConcurrencyLimiter transactionAdmissionLimiter;
+    private long streamTimeoutMillis;
 
     @Autowired
-    public ApiController(StatisticsService statisticsService, TransactionsService transactionService) {
+    public ApiController(StatisticsService statisticsService, TransactionsService transactionService, ClusterStatisticsService clusterStatisticsService,
+                         KeyedStatisticsService keyedStatisticsService, StatisticsStreamService statisticsStreamService, RangeStatisticsService rangeStatisticsService,
+                         AdaptiveConcurrencyLimiter transactionAdmissionLimiter,
+                         @Value("${statistics.stream.timeoutMillis:1800000}") long streamTimeoutMillis) {
         this.statisticsService = statisticsService;
         this.transactionService = transactionService;
+        this.clusterStatisticsService = clusterStatisticsService;
+        this.keyedStatisticsService = keyedStatisticsService;
+        this.statisticsStreamService = statisticsStreamService;
+        this.rangeStatisticsService = rangeStatisticsService;
+        this.transactionAdmissionLimiter = transactionAdmissionLimiter;
+        this.streamTimeoutMillis = streamTimeoutMillis;
     }
 
+    /**
+     * Returns the pre-encoded payload of the published statistics snapshot: json by default or the compact binary format of {@link StatisticsSnapshot}
+     * if the Accept header prefers application/x-statistics-binary.
+     * Every version of the statistics has its own ETag, a request whose If-None-Match has the current one gets a 304 without a body.
+     * */
     @RequestMapping(method = GET, value = "/statistics/latest")
-    public AggregateStatistics getStatisticsForLastMin() {
-        return statisticsService.getStatistics();
+    public ResponseEntity<byte[]> getStatisticsForLastMin(@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                                          @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        StatisticsSnapshot snapshot = statisticsService.getSnapshot();
+        boolean isBinary = prefersBinary(accept);
+        String eTag = snapshot.getETag(isBinary);
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(eTag))) {
+            return status(NOT_MODIFIED).eTag(eTag).cacheControl(CacheControl.noCache()).build();
+        }
+        ResponseEntity.BodyBuilder response = status(OK).eTag(eTag).cacheControl(CacheControl.noCache());
+        if (isBinary) {
+            return response.contentType(STATISTICS_BINARY).body(snapshot.getBinary());
+        }
+        return response.contentType(MediaType.APPLICATION_JSON_UTF8).body(snapshot.getJson());
+    }
+
+    /**
+     * Streams the statistics as server sent events (text/event-stream): an event whenever the published statistics change,
+     * at most one every statistics.stream.intervalMillis, see {@link StatisticsStreamService}. The id of an event is the version of the statistics.
+     * The stream ends after statistics.stream.timeoutMillis and the client is expected to reconnect. 503 if there are too many subscribers.
+     * @param intervalMillis the shortest time between two events the client wants, the configured interval if shorter
+     * */
+    @RequestMapping(method = GET, value = "/statistics/stream")
+    public ResponseEntity<ResponseBodyEmitter> streamStatistics(@RequestParam(value = "intervalMillis", defaultValue = "0") long intervalMillis) {
+        EventStreamEmitter emitter = new EventStreamEmitter(streamTimeoutMillis);
+        if (!statisticsStreamService.subscribe(emitter, intervalMillis)) {
+            return status(SERVICE_UNAVAILABLE).body(null);
+        }
+        emitter.onCompletion(() -> statisticsStreamService.unsubscribe(emitter));
+        emitter.onTimeout(() -> statisticsStreamService.unsubscribe(emitter));
+        return status(OK).body(emitter);
+    }
+
+    /**
+     * @param window one of the configured windows (statistics.windows), for example 10s, 1m, 5m or 1h. Unknown windows are a bad request.
+     * */
+    @RequestMapping(method = GET, value = "/statistics")
+    public ResponseEntity<AggregateStatistics> getStatistics(@RequestParam(value = "window", defaultValue = "1m") String window) {
+        Optional<StatisticsWindow> statisticsWindow = statisticsService.findWindow(window);
+        if (!statisticsWindow.isPresent()) {
+            return status(BAD_REQUEST).body(null);
+        }
+        return status(OK).body(statisticsService.getStatistics(statisticsWindow.get()));
+    }
+
+    /**
+     * The statistics of the window merged over every node of the cluster (cluster.peers).
+     * The X-Statistics-Nodes header says how many of the nodes are merged (merged/total), X-Statistics-Staleness the age of the oldest merged buckets in miliseconds.
+     * @param window one of the configured windows, as for /statistics
+     * */
+    @RequestMapping(method = GET, value = "/statistics/global")
+    public ResponseEntity<AggregateStatistics> getGlobalStatistics(@RequestParam(value = "window", defaultValue = "1m") String window) {
+        Optional<StatisticsWindow> statisticsWindow = statisticsService.findWindow(window);
+        if (!statisticsWindow.isPresent()) {
+            return status(BAD_REQUEST).body(null);
+        }
+        GlobalStatistics statistics = clusterStatisticsService.getStatistics(statisticsWindow.get());
+        return status(OK)
+                .header(NODES_HEADER, statistics.getMergedNodes() + "/" + statistics.getTotalNodes())
+                .header(STALENESS_HEADER, Long.toString(statistics.getStaleness()))
+                .body(statistics.getStatistics());
+    }
+
+    /**
+     * The statistics of the transactions between from and to, both included, within the retention of the range statistics (statistics.range.tiers), without percentiles.
+     * The range is aligned to whole buckets and clipped to the retention, the X-Statistics-From and X-Statistics-To headers have the range that is covered
+     * and X-Statistics-Resolution the length in miliseconds of the coarsest buckets used.
+     * @param from epoch miliseconds or an ISO-8601 instant, for example 2018-05-05T14:02:10Z
+     * @param to   epoch miliseconds or an ISO-8601 instant
+     * */
+    @RequestMapping(method = GET, value = "/statistics/range")
+    public ResponseEntity<AggregateStatistics> getRangeStatistics(@RequestParam("from") String from, @RequestParam("to") String to) {
+        Optional<Long> fromTimestamp = parseTimestamp(from);
+        Optional<Long> toTimestamp = parseTimestamp(to);
+        if (!fromTimestamp.isPresent() || !toTimestamp.isPresent() || fromTimestamp.get() > toTimestamp.get()) {
+            return status(BAD_REQUEST).body(null);
+        }
+        RangeStatistics statistics = rangeStatisticsService.getStatistics(fromTimestamp.get(), toTimestamp.get());
+        return status(OK)
+                .header(RANGE_FROM_HEADER, Long.toString(statistics.getFrom()))
+                .header(RANGE_TO_HEADER, Long.toString(statistics.getTo()))
+                .header(RESOLUTION_HEADER, Long.toString(statistics.getResolution()))
+                .body(statistics.getStatistics());
+    }
+
+    /**
+     * The statistics of the transactions with the given key in the window of the keyed statistics (statistics.keyed), without percentiles.
+     * A key without transactions in the window has empty statistics. Keys that are not a non negative long are a bad request.
+     * */
+    @RequestMapping(method = GET, value = "/statistics/{key:[0-9]+}")
+    public ResponseEntity<AggregateStatistics> getKeyStatistics(@PathVariable("key") String key) {
+        long parsedKey;
+        try {
+            parsedKey = Long.parseLong(key);
+        } catch (NumberFormatException e) {
+            return status(BAD_REQUEST).body(null);
+        }
+        return status(OK).body(keyedStatisticsService.getStatistics(parsedKey));
     }
 
+    /**
+     * Admitted by the {@link AdaptiveConcurrencyLimiter} (transactions.admission): when saturated it answers 429 if the queue is full
+     * or 503 if the request waited in the queue too long, both with a Retry-After header.
+     * */
     @RequestMapping(method = POST, value = "/transactions/")
     public ResponseEntity createTransaction(@RequestBody TransactionDTO transaction) {
-        boolean isInWindowOfInterest = transactionService.createTransaction(transaction);
+        AdaptiveConcurrencyLimiter.Permit permit = transactionAdmissionLimiter.acquire();
+        if (!permit.isAdmitted()) {
+            return status(shedStatus(permit.getRejection()))
+                    .header(HttpHeaders.RETRY_AFTER, Long.toString(transactionAdmissionLimiter.getRetryAfterSeconds()))
+                    .body(null);
+        }
+        boolean isInWindowOfInterest;
+        try {
+            isInWindowOfInterest = transactionService.createTransaction(transaction);
+        } finally {
+            permit.release();
+        }
         if(isInWindowOfInterest){
             return status(CREATED).body(null);
         }else{
             return status(NO_CONTENT).body(null);
         }
     }
+
+    /**
+     * Accepts a json array (application/json) or a newline delimited json (application/x-ndjson) body of transactions.
+     * The body is streamed, never buffered as a whole.
+     * */
+    @RequestMapping(method = POST, value = "/transactions/batch")
+    public TransactionBatchResultDTO createTransactions(HttpServletRequest request) throws IOException {
+        return transactionService.createTransactions(request.getInputStream());
+    }
+
+    private static Optional<Long> parseTimestamp(String timestamp) {
+        try {
+            return Optional.of(Long.parseLong(timestamp));
+        } catch (NumberFormatException e) {
+            //not epoch miliseconds, maybe an instant
+        }
+        try {
+            return Optional.of(Instant.parse(timestamp).toEpochMilli());
+        } catch (DateTimeParseException | ArithmeticException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return 429 for a request over the limit with no room in the queue, 503 for one that waited in the queue too long
+     * */
+    static HttpStatus shedStatus(AdaptiveConcurrencyLimiter.Rejection rejection) {
+        return rejection == AdaptiveConcurrencyLimiter.Rejection.OVER_LIMIT ? TOO_MANY_REQUESTS : SERVICE_UNAVAILABLE;
+    }
+
+    static boolean prefersBinary(String accept) {
+        if (accept == null) {
+            return false;
+        }
+        List<MediaType> mediaTypes;
+        try {
+            mediaTypes = MediaType.parseMediaTypes(accept);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        MediaType.sortBySpecificityAndQuality(mediaTypes);
+        for (MediaType mediaType : mediaTypes) {
+            if (mediaType.getQualityValue() == 0) {
+                continue;
+            }
+            if (mediaType.getType().equals(STATISTICS_BINARY.getType()) && mediaType.getSubtype().equals(STATISTICS_BINARY.getSubtype())) {
+                return true;
+            }
+            //wildcards included, json is the default
+            if (mediaType.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return false;
+            }
+        }
+        return false;
+    }
 }
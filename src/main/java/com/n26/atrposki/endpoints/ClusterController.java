@@ -0,0 +1,46 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.cluster.HttpPeerClient;
+import com.n26.atrposki.statistics.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.ResponseEntity.status;
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * Endpoints the nodes of a cluster call on each other. Only the local state is returned, never the merged one, so the calls do not fan out further.
+ * */
+@RestController
+public class ClusterController {
+    private StatisticsService statisticsService;
+
+    @Autowired
+    public ClusterController(StatisticsService statisticsService) {
+        this.statisticsService = statisticsService;
+    }
+
+    /**
+     * @return the buckets of the statistics window of this node, in the binary format of {@link com.n26.atrposki.statistics.StatisticsCheckpoint}
+     * */
+    @RequestMapping(method = GET, value = HttpPeerClient.BUCKETS_PATH)
+    public ResponseEntity<byte[]> getBuckets() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        statisticsService.exportBuckets().writeTo(body);
+        return status(OK).cacheControl(CacheControl.noStore()).contentType(MediaType.APPLICATION_OCTET_STREAM).body(body.toByteArray());
+    }
+}
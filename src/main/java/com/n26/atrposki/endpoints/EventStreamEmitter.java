@@ -0,0 +1,51 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.IStatisticsStreamSink;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A text/event-stream response that writes frames which are already encoded as server sent events, byte for byte.
+ * Unlike {@link org.springframework.web.servlet.mvc.method.annotation.SseEmitter} it does not serialize the data for every response,
+ * so all the subscribers share the same encoded frame.
+ * */
+public class EventStreamEmitter extends ResponseBodyEmitter implements IStatisticsStreamSink {
+
+    /**
+     * @param timeoutMillis time after which the stream is ended, the client is expected to reconnect
+     * */
+    public EventStreamEmitter(long timeoutMillis) {
+        super(timeoutMillis);
+    }
+
+    @Override
+    protected void extendResponse(ServerHttpResponse outputMessage) {
+        super.extendResponse(outputMessage);
+        outputMessage.getHeaders().setContentType(new MediaType(MediaType.TEXT_EVENT_STREAM, StandardCharsets.UTF_8));
+        outputMessage.getHeaders().setCacheControl("no-cache");
+    }
+
+    @Override
+    public void send(byte[] frame) throws IOException {
+        send(frame, MediaType.APPLICATION_OCTET_STREAM);
+    }
+
+    @Override
+    public void close() {
+        try {
+            complete();
+        } catch (IllegalStateException e) {
+            //already completed, for example by a timeout
+        }
+    }
+}
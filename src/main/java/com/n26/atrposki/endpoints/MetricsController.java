@@ -0,0 +1,36 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.ResponseEntity.status;
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * Exposes the metrics of the application in the Prometheus text format, to be scraped directly.
+ * */
+@RestController
+public class MetricsController {
+    private MetricsRegistry metricsRegistry;
+
+    @Autowired
+    public MetricsController(MetricsRegistry metricsRegistry) {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @RequestMapping(method = GET, value = "/metrics")
+    public ResponseEntity<String> getMetrics() {
+        return status(OK).header(HttpHeaders.CONTENT_TYPE, MetricsRegistry.CONTENT_TYPE).body(metricsRegistry.scrape());
+    }
+}
@@ -0,0 +1,117 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsSnapshot;
+import com.n26.atrposki.transactions.TransactionDTO;
+import com.n26.atrposki.transactions.TransactionJsonParser;
+import com.n26.atrposki.transactions.TransactionsService;
+import com.n26.atrposki.utils.http.HttpRequest;
+import com.n26.atrposki.utils.http.HttpResponse;
+import com.n26.atrposki.utils.http.IHttpHandler;
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.springframework.http.HttpStatus.BAD_REQUEST;
+import static org.springframework.http.HttpStatus.CREATED;
+import static org.springframework.http.HttpStatus.METHOD_NOT_ALLOWED;
+import static org.springframework.http.HttpStatus.NOT_FOUND;
+import static org.springframework.http.HttpStatus.NOT_MODIFIED;
+import static org.springframework.http.HttpStatus.NO_CONTENT;
+import static org.springframework.http.HttpStatus.OK;
+
+/**
+ * The hot endpoints of {@link ApiController} on the {@link com.n26.atrposki.utils.http.NioHttpServer}: POST /api/transactions/ and GET /api/statistics/latest.
+ * They call the same services and answer with the same status codes, headers and payloads, the request body is read with the same parsers.
+ * Both can block: publishing a transaction calls the listeners in the SYNC dispatch mode, appends to the log (and forces it with the ALWAYS sync policy)
+ * and waits for a full dispatcher, and the latest statistics may be rebuilt and encoded. The server has to call the handler on its workers, not on the event loops.
+ * The transactions are admitted without waiting all the same, over the admission limit they get a 429 right away instead of holding a worker.
+ * */
+public class NioApiHandler implements IHttpHandler {
+    static final String TRANSACTIONS_PATH = "/api/transactions/";
+    static final String LATEST_STATISTICS_PATH = "/api/statistics/latest";
+
+    private final TransactionsService transactionsService;
+    private final StatisticsService statisticsService;
+    private final ObjectMapper objectMapper;
+    private final AdaptiveConcurrencyLimiter transactionAdmissionLimiter;
+
+    public NioApiHandler(TransactionsService transactionsService, StatisticsService statisticsService, ObjectMapper objectMapper) {
+        this(transactionsService, statisticsService, objectMapper, AdaptiveConcurrencyLimiter.unlimited());
+    }
+
+    public NioApiHandler(TransactionsService transactionsService, StatisticsService statisticsService, ObjectMapper objectMapper,
+                         AdaptiveConcurrencyLimiter transactionAdmissionLimiter) {
+        this.transactionsService = transactionsService;
+        this.statisticsService = statisticsService;
+        this.objectMapper = objectMapper;
+        this.transactionAdmissionLimiter = transactionAdmissionLimiter;
+    }
+
+    @Override
+    public HttpResponse handle(HttpRequest request) {
+        switch (request.getPath()) {
+            case TRANSACTIONS_PATH:
+                return "POST".equals(request.getMethod()) ? createTransaction(request) : HttpResponse.of(METHOD_NOT_ALLOWED.value());
+            case LATEST_STATISTICS_PATH:
+                return "GET".equals(request.getMethod()) ? getLatestStatistics(request) : HttpResponse.of(METHOD_NOT_ALLOWED.value());
+            default:
+                return HttpResponse.of(NOT_FOUND.value());
+        }
+    }
+
+    private HttpResponse createTransaction(HttpRequest request) {
+        byte[] body = request.getBody();
+        TransactionDTO transaction = new TransactionDTO();
+        if (!TransactionJsonParser.parse(body, 0, body.length, transaction)) {
+            try {
+                transaction = objectMapper.readValue(body, TransactionDTO.class);
+            } catch (IOException e) {
+                return HttpResponse.of(BAD_REQUEST.value());
+            }
+        }
+        AdaptiveConcurrencyLimiter.Permit permit = transactionAdmissionLimiter.tryAcquire();
+        if (!permit.isAdmitted()) {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put(HttpHeaders.RETRY_AFTER, Long.toString(transactionAdmissionLimiter.getRetryAfterSeconds()));
+            return new HttpResponse(ApiController.shedStatus(permit.getRejection()).value(), headers, null);
+        }
+        boolean isInWindowOfInterest;
+        try {
+            isInWindowOfInterest = transactionsService.createTransaction(transaction);
+        } finally {
+            permit.release();
+        }
+        return HttpResponse.of(isInWindowOfInterest ? CREATED.value() : NO_CONTENT.value());
+    }
+
+    private HttpResponse getLatestStatistics(HttpRequest request) {
+        StatisticsSnapshot snapshot = statisticsService.getSnapshot();
+        boolean isBinary = ApiController.prefersBinary(request.getHeader("accept"));
+        String eTag = snapshot.getETag(isBinary);
+        String ifNoneMatch = request.getHeader("if-none-match");
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put(HttpHeaders.ETAG, eTag);
+        headers.put(HttpHeaders.CACHE_CONTROL, "no-cache");
+        if (ifNoneMatch != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(eTag))) {
+            return new HttpResponse(NOT_MODIFIED.value(), headers, null);
+        }
+        if (isBinary) {
+            headers.put(HttpHeaders.CONTENT_TYPE, ApiController.STATISTICS_BINARY.toString());
+            return new HttpResponse(OK.value(), headers, snapshot.getBinary());
+        }
+        headers.put(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_UTF8_VALUE);
+        return new HttpResponse(OK.value(), headers, snapshot.getJson());
+    }
+}
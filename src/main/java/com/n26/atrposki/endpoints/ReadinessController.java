@@ -0,0 +1,39 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.StatisticsRecoveryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import static org.springframework.http.HttpStatus.OK;
+import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
+import static org.springframework.http.ResponseEntity.status;
+import static org.springframework.web.bind.annotation.RequestMethod.GET;
+
+/**
+ * Readiness probe: 503 while the statistics are being recovered after a start, 200 afterwards.
+ * */
+@RestController
+public class ReadinessController {
+    private StatisticsRecoveryService statisticsRecoveryService;
+
+    @Autowired
+    public ReadinessController(StatisticsRecoveryService statisticsRecoveryService) {
+        this.statisticsRecoveryService = statisticsRecoveryService;
+    }
+
+    @RequestMapping(method = GET, value = "/ready")
+    public ResponseEntity<String> getReadiness() {
+        if (statisticsRecoveryService.isReady()) {
+            return status(OK).body("READY");
+        }
+        return status(SERVICE_UNAVAILABLE).body("RECOVERING");
+    }
+}
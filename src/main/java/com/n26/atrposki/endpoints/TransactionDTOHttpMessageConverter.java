@@ -0,0 +1,96 @@
+package com.n26.atrposki.endpoints;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.transactions.TransactionDTO;
+import com.n26.atrposki.transactions.TransactionJsonParser;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.HttpMessageNotWritableException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+
+/**
+ * Reads the json body of a single transaction with the {@link TransactionJsonParser} instead of Jackson databinding.
+ * <p>
+ * The body is read into a per thread buffer that is reused across requests (bodies up to {@value #MAX_BUFFER_SIZE} bytes keep it, bigger ones are not buffered whole).
+ * If the specialized parser does not accept the body, it is handed to Jackson together with the rest of the stream,
+ * so unknown shapes still work and malformed bodies get the usual Jackson error and 400 response.
+ * <p>
+ * The converter only reads, responses are still written by the default converters.
+ * */
+public class TransactionDTOHttpMessageConverter extends AbstractHttpMessageConverter<TransactionDTO> {
+    static final int INITIAL_BUFFER_SIZE = 256;
+    static final int MAX_BUFFER_SIZE = 8 * 1024;
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    private final ObjectMapper objectMapper;
+
+    public TransactionDTOHttpMessageConverter(ObjectMapper objectMapper) {
+        super(MediaType.APPLICATION_JSON, new MediaType("application", "*+json"));
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return TransactionDTO.class == clazz;
+    }
+
+    @Override
+    protected boolean canWrite(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected TransactionDTO readInternal(Class<? extends TransactionDTO> clazz, HttpInputMessage inputMessage) throws IOException, HttpMessageNotReadableException {
+        InputStream body = inputMessage.getBody();
+        byte[] buffer = BUFFER.get();
+        int length = 0;
+        while (true) {
+            if (length == buffer.length) {
+                if (buffer.length == MAX_BUFFER_SIZE) {
+                    //too big for the common shape anyway, let jackson read what is buffered and the rest of the stream
+                    return readWithJackson(new SequenceInputStream(new ByteArrayInputStream(buffer, 0, length), body));
+                }
+                byte[] grown = new byte[Math.min(buffer.length * 2, MAX_BUFFER_SIZE)];
+                System.arraycopy(buffer, 0, grown, 0, length);
+                buffer = grown;
+                BUFFER.set(buffer);
+            }
+            int read = body.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        TransactionDTO transaction = new TransactionDTO();
+        if (TransactionJsonParser.parse(buffer, 0, length, transaction)) {
+            return transaction;
+        }
+        return readWithJackson(new ByteArrayInputStream(buffer, 0, length));
+    }
+
+    @Override
+    protected void writeInternal(TransactionDTO transaction, HttpOutputMessage outputMessage) throws IOException, HttpMessageNotWritableException {
+        throw new HttpMessageNotWritableException("TransactionDTOHttpMessageConverter only reads transactions");
+    }
+
+    private TransactionDTO readWithJackson(InputStream body) throws HttpMessageNotReadableException {
+        try {
+            return objectMapper.readValue(body, TransactionDTO.class);
+        } catch (IOException e) {
+            throw new HttpMessageNotReadableException("Could not read the transaction: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+
+import java.util.function.DoubleConsumer;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collector;
+
+/**
+ * Single pass aggregation kernel: compensated sum, count, min and max of primitive doubles.
+ * <p>
+ * The sum is compensated (Neumaier's variant of the Kahan summation), so the error does not grow with the number of values.
+ * The kernel is also its own partial result: kernels that aggregated disjoint chunks can be combined in any order,
+ * which is what {@link #summarizing(ToDoubleFunction)} does when a stream is run in parallel.
+ * <p>
+ * It is a mutable accumulator and is not thread safe, every thread (chunk) should use its own and combine them at the end.
+ * The immutable {@link PartialStatistics} is used where the result has to be shared.
+ * */
+public class CompensatedStatistics implements DoubleConsumer {
+    private double sum;
+    private double compensation;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @return a collector that aggregates the values extracted by valueOf. It can be run in parallel.
+     * */
+    public static <T> Collector<T, CompensatedStatistics, CompensatedStatistics> summarizing(ToDoubleFunction<T> valueOf) {
+        return Collector.of(CompensatedStatistics::new,
+                (statistics, x) -> statistics.accept(valueOf.applyAsDouble(x)),
+                CompensatedStatistics::combine,
+                Collector.Characteristics.IDENTITY_FINISH, Collector.Characteristics.UNORDERED);
+    }
+
+    @Override
+    public void accept(double value) {
+        addToSum(value);
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Aggregates the values between from (included) and to (excluded) in a single pass.
+     * */
+    public void acceptAll(double[] values, int from, int to) {
+        for (int i = from; i < to; i++) {
+            accept(values[i]);
+        }
+    }
+
+    /**
+     * Adds the aggregates of the other kernel to this one.
+     * @return this kernel
+     * */
+    public CompensatedStatistics combine(CompensatedStatistics other) {
+        addToSum(other.sum);
+        compensation += other.compensation;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    /**
+     * @return the compensated sum of the values
+     * */
+    public double getSum() {
+        double compensated = sum + compensation;
+        //the compensation of an infinite sum is NaN, the plain sum is the right answer then
+        if (Double.isNaN(compensated) && Double.isInfinite(sum)) {
+            return sum;
+        }
+        return compensated;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public PartialStatistics toPartialStatistics() {
+        return count == 0 ? PartialStatistics.EMPTY : new PartialStatistics(getSum(), count, min, max);
+    }
+
+    public AggregateStatistics toAggregateStatistics() {
+        return toPartialStatistics().toAggregateStatistics();
+    }
+
+    private void addToSum(double value) {
+        double total = sum + value;
+        if (Math.abs(sum) >= Math.abs(value)) {
+            compensation += (sum - total) + value;
+        } else {
+            compensation += (value - total) + sum;
+        }
+        sum = total;
+    }
+}
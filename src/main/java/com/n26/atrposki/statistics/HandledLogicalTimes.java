@@ -0,0 +1,102 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The logical times a listener handled, as the highest logical time up to which all of them were handled plus the handled ones after it.
+ * <p>
+ * Normally the logical times arrive in order and a handled logical time only moves the contiguous one forward with a single compare and set.
+ * Listeners can be called out of logical time order (the synchronous dispatcher calls them on the publishers threads), so a logical time after a gap waits in a set
+ * until the gap is filled, and whoever fills it moves the contiguous logical time over the set. Nothing takes a lock.
+ * <p>
+ * A logical time that never comes would stop the contiguous logical time for good, so the waiters can give up on the logical times up to a point ({@link #skipTo(long)}),
+ * and a logical time that is still missing after maxAhead later ones were handled is given up as well, which bounds the set.
+ * */
+class HandledLogicalTimes {
+    static final long DEFAULT_MAX_AHEAD = 1 << 16;
+
+    private final ConcurrentSkipListSet<Long> afterGap = new ConcurrentSkipListSet<>();
+    private final AtomicLong contiguous;
+    private final long maxAhead;
+
+    HandledLogicalTimes(long contiguous) {
+        this(contiguous, DEFAULT_MAX_AHEAD);
+    }
+
+    /**
+     * @param contiguous the logical time up to which everything counts as handled, the one before the first expected logical time
+     * @param maxAhead   how many logical times may be handled after a missing one before it is given up
+     * */
+    HandledLogicalTimes(long contiguous, long maxAhead) {
+        this.contiguous = new AtomicLong(contiguous);
+        this.maxAhead = maxAhead;
+    }
+
+    void add(long logicalTime) {
+        if (contiguous.compareAndSet(logicalTime - 1, logicalTime)) {
+            if (!afterGap.isEmpty()) {
+                advance();
+            }
+            return;
+        }
+        if (logicalTime <= contiguous.get()) {
+            return;
+        }
+        afterGap.add(logicalTime);
+        if (logicalTime - contiguous.get() > maxAhead) {
+            skipTo(logicalTime - maxAhead);
+        }
+        //the one filling the gap may have looked at the set before this logical time was in it
+        advance();
+    }
+
+    /**
+     * @return the number of logical times up to the given one that were not handled yet
+     * */
+    long countMissingUpTo(long logicalTime) {
+        advance();
+        long handled = contiguous.get();
+        if (logicalTime <= handled) {
+            return 0;
+        }
+        return logicalTime - handled - afterGap.subSet(handled + 1, true, logicalTime, true).size();
+    }
+
+    /**
+     * Counts every logical time up to the given one as handled, also the ones that never came.
+     * */
+    void skipTo(long logicalTime) {
+        long handled;
+        do {
+            handled = contiguous.get();
+        } while (handled < logicalTime && !contiguous.compareAndSet(handled, logicalTime));
+        advance();
+    }
+
+    /**
+     * Moves the contiguous logical time over the handled ones after it and forgets the ones it passed.
+     * */
+    private void advance() {
+        while (true) {
+            long handled = contiguous.get();
+            Long first = afterGap.ceiling(Long.MIN_VALUE);
+            if (first == null || first > handled + 1) {
+                return;
+            }
+            if (first == handled + 1) {
+                contiguous.compareAndSet(handled, first);
+            }
+            //passed by the contiguous logical time, skipped or just moved over
+            if (first <= contiguous.get()) {
+                afterGap.remove(first);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * A subscriber of the statistics stream, for example an open text/event-stream response. See {@link StatisticsStreamService}.
+ * */
+public interface IStatisticsStreamSink {
+    /**
+     * Writes and flushes a complete frame. It may block while the client is slow, the stream does not send the sink anything else meanwhile.
+     * @param frame a shared, pre-encoded frame that must not be modified
+     * @throws IOException if the client is gone
+     * */
+    void send(byte[] frame) throws IOException;
+
+    /**
+     * Ends the stream, called once the sink is unsubscribed because it failed or the stream stopped.
+     * */
+    void close();
+}
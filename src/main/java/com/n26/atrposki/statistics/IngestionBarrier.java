@@ -0,0 +1,69 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A barrier that briefly stops the ingestion into the window, so the window can be copied at an exact cut of the applied transactions.
+ * <p>
+ * Writers announce themselves on a striped in flight counter (one padded counter per stripe, picked by thread) and then check the closed flag.
+ * The closing thread sets the flag and then waits for every stripe to drain. Since both sides write before they read (a Dekker handshake on volatiles),
+ * either the writer sees the flag and backs off or the closing thread sees the writer and waits for it.
+ * While the barrier is open a writer pays two uncontended atomic increments and a volatile read.
+ * */
+class IngestionBarrier {
+    private static final int PADDING = 16;
+    private static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+
+    private final AtomicLongArray inFlight = new AtomicLongArray(STRIPES * PADDING);
+    private volatile boolean isClosed;
+
+    /**
+     * Waits while the barrier is closed and then announces the writer.
+     * @return the stripe to pass to {@link #exit(int)}
+     * */
+    int enter() {
+        int stripe = stripeOfCurrentThread();
+        while (true) {
+            inFlight.incrementAndGet(stripe);
+            if (!isClosed) {
+                return stripe;
+            }
+            inFlight.decrementAndGet(stripe);
+            while (isClosed) {
+                Thread.yield();
+            }
+        }
+    }
+
+    void exit(int stripe) {
+        inFlight.decrementAndGet(stripe);
+    }
+
+    /**
+     * Closes the barrier and waits until the writers that already entered exit. Only one thread may close the barrier at a time.
+     * */
+    void close() {
+        isClosed = true;
+        for (int stripe = 0; stripe < inFlight.length(); stripe += PADDING) {
+            while (inFlight.get(stripe) != 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    void open() {
+        isClosed = false;
+    }
+
+    private static int stripeOfCurrentThread() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return (hash & (STRIPES - 1)) * PADDING;
+    }
+}
@@ -0,0 +1,98 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Statistics of the transactions of a single key (account or merchant) in a sliding window, for example for per account velocity limits.
+ * <p>
+ * Every transaction with a key is added to the ring of its key in a {@link KeyedWindowStatistics}, transactions without a key are only in the global statistics.
+ * The window is statistics.keyed.bucketCount buckets of statistics.keyed.bucketMillis. Once per bucket length the keys whose window emptied
+ * are evicted, on the same {@link HashedTimingWheel} that expires the global buckets, so only the keys active in the last window take memory.
+ * <p>
+ * The keys are not in the transaction log, so the statistics per key start empty after a restart.
+ * */
+@Service
+public class KeyedStatisticsService {
+    private final ITimeService timeService;
+    private final KeyedWindowStatistics statistics;
+    private Counter evictedKeys = new Counter("keyed_evicted_total", "");
+
+    public KeyedStatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, KeyedWindowStatistics statistics) {
+        this.timeService = timeService;
+        this.statistics = statistics;
+        transactionMadeEventHandler.subscribe(this::onTransactionMade);
+    }
+
+    @Autowired
+    public KeyedStatisticsService(ITimeService timeService,
+                                  TransactionMadeEventHandler transactionMadeEventHandler,
+                                  HashedTimingWheel expiryTimingWheel,
+                                  @Value("${statistics.keyed.bucketCount:60}") int bucketCount,
+                                  @Value("${statistics.keyed.bucketMillis:1000}") long bucketMillis,
+                                  MetricsRegistry metricsRegistry) {
+        this(timeService, transactionMadeEventHandler, new KeyedWindowStatistics(bucketCount, bucketMillis));
+        evictedKeys = metricsRegistry.counter("statistics_keyed_evicted_total", "Number of keys evicted after their window emptied");
+        metricsRegistry.gauge("statistics_keyed_keys", "Number of keys with statistics", statistics::size);
+        scheduleEviction(expiryTimingWheel, bucketMillis);
+    }
+
+    /**
+     * Adds a keyed transaction to the window of its key.
+     * */
+    public void onTransactionMade(TimedEvent<Transaction> transaction) {
+        Transaction event = transaction.getEvent();
+        if (event.hasKey()) {
+            statistics.add(event.getKey(), event.getTimestamp(), event.getAmount(), timeService.getUtcNow());
+        }
+    }
+
+    /**
+     * @return the statistics of the key in the window that ends now, empty statistics if the key had no transactions in it
+     * */
+    public AggregateStatistics getStatistics(long key) {
+        return statistics.getPartialStatistics(key, timeService.getUtcNow()).toAggregateStatistics();
+    }
+
+    /**
+     * Evicts the keys whose window is empty. Called once per bucket length, public for tests.
+     * @return the number of evicted keys
+     * */
+    public int evictIdleKeys() {
+        int evicted = statistics.evictIdle(timeService.getUtcNow());
+        evictedKeys.add(evicted);
+        return evicted;
+    }
+
+    /**
+     * @return the length of the window of a key in miliseconds
+     * */
+    public long getWindowLength() {
+        return statistics.getWindowLength();
+    }
+
+    private void scheduleEviction(HashedTimingWheel timingWheel, long intervalMillis) {
+        timingWheel.schedule(timeService.getUtcNow() + intervalMillis, () -> {
+            try {
+                evictIdleKeys();
+            } finally {
+                scheduleEviction(timingWheel, intervalMillis);
+            }
+        });
+    }
+}
@@ -0,0 +1,296 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Sliding window statistics per key (account, merchant...), for many keys at once.
+ * <p>
+ * The keys are non negative longs kept in an open addressing hash map with linear probing: a primitive key array, no boxing and no entry objects.
+ * Every key owns a compact ring of bucketCount buckets of (period, sum, min, max, count) in two primitive arrays,
+ * so an active key always takes the same memory: 40 bytes a bucket plus about 100 bytes of headers and table slots, 2.5kb for a minute of one second buckets.
+ * Unlike the global {@link SlidingWindowStatistics} the buckets have no histograms, the statistics of a key have no percentiles.
+ * <p>
+ * The map is split in segments by the hash of the key, each segment is a table of its own with its own lock and grows on its own,
+ * so writers to different segments never contend and a lookup or an update is O(1) under a single uncontended lock.
+ * Keys whose window is empty are removed by {@link #evictIdle(long)}, with backward shift deletion so the tables never fill up with tombstones.
+ * */
+public class KeyedWindowStatistics {
+    private static final long EMPTY = -1;
+    private static final int DEFAULT_SEGMENT_COUNT = 64;
+    private static final int INITIAL_SEGMENT_CAPACITY = 16;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final int bucketCount;
+    private final long bucketLength;
+
+    public KeyedWindowStatistics(int bucketCount, long bucketLength) throws IllegalArgumentException {
+        this(bucketCount, bucketLength, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param bucketCount  number of buckets in the ring of a key. The window length is bucketCount*bucketLength
+     * @param bucketLength length of a single bucket in miliseconds
+     * @param segmentCount number of independently locked segments, rounded up to a power of two
+     * @throws IllegalArgumentException if any of the arguments is not positive
+     * */
+    public KeyedWindowStatistics(int bucketCount, long bucketLength, int segmentCount) throws IllegalArgumentException {
+        if (bucketCount <= 0 || bucketLength <= 0 || segmentCount <= 0) {
+            throw new IllegalArgumentException("bucketCount, bucketLength and segmentCount must be positive");
+        }
+        int segmentsPowerOfTwo = Integer.highestOneBit(Math.max(1, segmentCount - 1) << 1);
+        this.segments = new Segment[segmentsPowerOfTwo];
+        for (int i = 0; i < segmentsPowerOfTwo; i++) {
+            segments[i] = new Segment();
+        }
+        this.segmentShift = 64 - Integer.numberOfTrailingZeros(segmentsPowerOfTwo);
+        this.bucketCount = bucketCount;
+        this.bucketLength = bucketLength;
+    }
+
+    /**
+     * Adds the amount to the bucket of its period in the ring of the key. Amounts that are not in the window that ends at nowTimestamp are ignored.
+     * @param key          a non negative key
+     * @return true if the amount was added
+     * @throws IllegalArgumentException if the key is negative
+     * */
+    public boolean add(long key, long timestamp, double amount, long nowTimestamp) throws IllegalArgumentException {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key " + key);
+        }
+        long period = Math.floorDiv(timestamp, bucketLength);
+        if (!isInWindow(period, nowTimestamp)) {
+            return false;
+        }
+        long hash = hash(key);
+        segmentOf(hash).add(key, hash, period, amount);
+        return true;
+    }
+
+    /**
+     * @return the statistics of the key in the window that ends at nowTimestamp, empty for an unknown key
+     * */
+    public PartialStatistics getPartialStatistics(long key, long nowTimestamp) {
+        if (key < 0) {
+            return PartialStatistics.EMPTY;
+        }
+        long hash = hash(key);
+        return segmentOf(hash).get(key, hash, Math.floorDiv(nowTimestamp, bucketLength));
+    }
+
+    /**
+     * Removes every key that has nothing in the window that ends at nowTimestamp. Locks one segment at a time.
+     * @return the number of removed keys
+     * */
+    public int evictIdle(long nowTimestamp) {
+        long oldestPeriod = Math.floorDiv(nowTimestamp, bucketLength) - bucketCount + 1;
+        int evicted = 0;
+        for (Segment segment : segments) {
+            evicted += segment.evictOlderThan(oldestPeriod);
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of keys in the map, idle keys that were not evicted yet included
+     * */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the length of the window in miliseconds
+     * */
+    public long getWindowLength() {
+        return bucketCount * bucketLength;
+    }
+
+    private boolean isInWindow(long period, long nowTimestamp) {
+        long nowPeriod = Math.floorDiv(nowTimestamp, bucketLength);
+        return period <= nowPeriod && period > nowPeriod - bucketCount;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * The murmur3 finalizer, so sequential keys spread over the segments (high bits) and the slots (low bits).
+     * */
+    private static long hash(long key) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * The buckets of a single key. The slot of a period is period mod bucketCount and it is reset when a newer period reuses it.
+     * The aggregates of a bucket are stored at 4*slot in the values array as sum, min, max and count.
+     * */
+    private final class Ring {
+        final long[] periods = new long[bucketCount];
+        final double[] values = new double[bucketCount * 4];
+        long newestPeriod = Long.MIN_VALUE;
+
+        Ring() {
+            Arrays.fill(periods, Long.MIN_VALUE);
+        }
+
+        void add(long period, double amount) {
+            int slot = (int) Math.floorMod(period, (long) bucketCount);
+            int offset = slot * 4;
+            if (periods[slot] != period) {
+                if (periods[slot] > period) {
+                    //the slot already moved on to a newer period, the amount is out of the window of that period
+                    return;
+                }
+                periods[slot] = period;
+                values[offset] = 0;
+                values[offset + 1] = Double.POSITIVE_INFINITY;
+                values[offset + 2] = Double.NEGATIVE_INFINITY;
+                values[offset + 3] = 0;
+            }
+            values[offset] += amount;
+            values[offset + 1] = Math.min(values[offset + 1], amount);
+            values[offset + 2] = Math.max(values[offset + 2], amount);
+            values[offset + 3]++;
+            newestPeriod = Math.max(newestPeriod, period);
+        }
+
+        PartialStatistics get(long nowPeriod) {
+            double sum = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            long count = 0;
+            for (int slot = 0; slot < bucketCount; slot++) {
+                long period = periods[slot];
+                if (period <= nowPeriod && period > nowPeriod - bucketCount) {
+                    int offset = slot * 4;
+                    sum += values[offset];
+                    min = Math.min(min, values[offset + 1]);
+                    max = Math.max(max, values[offset + 2]);
+                    count += (long) values[offset + 3];
+                }
+            }
+            return count == 0 ? PartialStatistics.EMPTY : new PartialStatistics(sum, count, min, max);
+        }
+    }
+
+    /**
+     * An open addressing table with linear probing, at most half full. All the methods lock the segment.
+     * */
+    private final class Segment {
+        private long[] keys = newKeys(INITIAL_SEGMENT_CAPACITY);
+        private Ring[] rings = new Ring[INITIAL_SEGMENT_CAPACITY];
+        private int size;
+
+        synchronized void add(long key, long hash, long period, double amount) {
+            int slot = find(key, hash);
+            if (keys[slot] == EMPTY) {
+                if ((size + 1) * 2 > keys.length) {
+                    grow();
+                    slot = find(key, hash);
+                }
+                keys[slot] = key;
+                rings[slot] = new Ring();
+                size++;
+            }
+            rings[slot].add(period, amount);
+        }
+
+        synchronized PartialStatistics get(long key, long hash, long nowPeriod) {
+            int slot = find(key, hash);
+            return keys[slot] == EMPTY ? PartialStatistics.EMPTY : rings[slot].get(nowPeriod);
+        }
+
+        synchronized int getSize() {
+            return size;
+        }
+
+        synchronized int evictOlderThan(long oldestPeriod) {
+            int evicted = 0;
+            int slot = 0;
+            while (slot < keys.length) {
+                if (keys[slot] != EMPTY && rings[slot].newestPeriod < oldestPeriod) {
+                    //the slot is checked again, a later key may have been shifted into it
+                    removeAt(slot);
+                    evicted++;
+                } else {
+                    slot++;
+                }
+            }
+            return evicted;
+        }
+
+        /**
+         * @return the slot of the key, or the empty slot where it belongs
+         * */
+        private int find(long key, long hash) {
+            int mask = keys.length - 1;
+            int slot = (int) hash & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Backward shift deletion: the keys after the removed one move back into the gap if the gap is between their home slot and their slot,
+         * so every key stays reachable from its home slot without tombstones.
+         * */
+        private void removeAt(int removed) {
+            int mask = keys.length - 1;
+            int gap = removed;
+            int slot = removed;
+            while (true) {
+                slot = (slot + 1) & mask;
+                if (keys[slot] == EMPTY) {
+                    break;
+                }
+                int home = (int) hash(keys[slot]) & mask;
+                if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                    keys[gap] = keys[slot];
+                    rings[gap] = rings[slot];
+                    gap = slot;
+                }
+            }
+            keys[gap] = EMPTY;
+            rings[gap] = null;
+            size--;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            Ring[] oldRings = rings;
+            keys = newKeys(oldKeys.length * 2);
+            rings = new Ring[oldKeys.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = find(oldKeys[i], hash(oldKeys[i]));
+                    keys[slot] = oldKeys[i];
+                    rings[slot] = oldRings[i];
+                }
+            }
+        }
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
@@ -0,0 +1,78 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Percentiles;
+import com.n26.atrposki.utils.sketch.LogHistogram;
+import lombok.Value;
+
+/**
+ * Immutable, mergeable partial aggregate of transaction amounts: sum, count, min and max.
+ * Partial statistics of disjoint sets of transactions can be merged in any order, which is what allows a window to be split in buckets.
+ * The average is not kept since it can not be merged, it is derived when converting to {@link AggregateStatistics}.
+ * */
+@Value
+public class PartialStatistics {
+    public static final PartialStatistics EMPTY = new PartialStatistics(0.0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+
+    private final double sum;
+    private final long count;
+    private final double min;
+    private final double max;
+
+    public static PartialStatistics of(double amount) {
+        return new PartialStatistics(amount, 1, amount, amount);
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return new partial statistics that contain the transactions of both this and the other partial statistics
+     * */
+    public PartialStatistics merge(PartialStatistics other) {
+        if (other.isEmpty()) {
+            return this;
+        }
+        if (isEmpty()) {
+            return other;
+        }
+        return new PartialStatistics(sum + other.sum, count + other.count, Math.min(min, other.min), Math.max(max, other.max));
+    }
+
+    /**
+     * @return the aggregate statistics exposed by the api. Empty partial statistics are converted to the all zero {@link AggregateStatistics}.
+     * */
+    public AggregateStatistics toAggregateStatistics() {
+        if (isEmpty()) {
+            return new AggregateStatistics();
+        }
+        return new AggregateStatistics(sum, sum / count, max, min, count);
+    }
+
+    /**
+     * @param histogram the histogram of the same transactions as this partial statistics
+     * @return the aggregate statistics with the percentiles of the histogram. The percentiles are clamped to min and max, which are exact.
+     * */
+    public AggregateStatistics toAggregateStatistics(LogHistogram histogram) {
+        if (isEmpty()) {
+            return new AggregateStatistics();
+        }
+        Percentiles percentiles = new Percentiles(percentile(histogram, 0.5), percentile(histogram, 0.95), percentile(histogram, 0.99));
+        return new AggregateStatistics(sum, sum / count, max, min, count, percentiles);
+    }
+
+    private double percentile(LogHistogram histogram, double quantile) {
+        double value = histogram.getValueAtQuantile(quantile);
+        if (Double.isNaN(value)) {
+            return 0;
+        }
+        return Math.min(max, Math.max(min, value));
+    }
+}
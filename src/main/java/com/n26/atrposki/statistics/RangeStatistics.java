@@ -0,0 +1,25 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import lombok.Value;
+
+/**
+ * The statistics of a time range and the range they actually cover: the requested range aligned to whole buckets and clipped to the retention.
+ * The older part of a range may come from coarser buckets than the recent part, the resolution is the length of the coarsest buckets used.
+ * */
+@Value
+public class RangeStatistics {
+    private final AggregateStatistics statistics;
+    /** first timestamp of the covered range */
+    private final long from;
+    /** last timestamp of the covered range, before from if nothing of the requested range is retained */
+    private final long to;
+    /** length in miliseconds of the coarsest buckets in the statistics */
+    private final long resolution;
+}
@@ -0,0 +1,205 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.Arrays;
+
+/**
+ * Statistics of arbitrary time ranges within a retention: a segment tree over a ring of fine grained buckets.
+ * <p>
+ * The retention is bucketCount buckets of bucketLength miliseconds aligned on the epoch, the bucket of a period is in slot period mod bucketCount.
+ * Every leaf of the tree holds the sum, count, min and max of a slot and every inner node the merge of its two children,
+ * so adding an amount updates a leaf and its ancestors and the statistics of any range of buckets are merged from at most 2*log(bucketCount) nodes.
+ * A Fenwick tree would do for sum and count, but min and max can not be subtracted, hence the segment tree.
+ * <p>
+ * When the time moves on, the slots of the periods that left the retention are cleared before they are reused, so every slot holds exactly one period of the retention.
+ * The tree is in four primitive arrays (no node objects) of 32 bytes a node and two nodes a leaf, 8mb for a day of one second buckets.
+ * All the methods lock the index, an update or a query is O(log bucketCount) under the lock.
+ * */
+public class RangeStatisticsIndex {
+    private final int bucketCount;
+    private final long bucketLength;
+    private final int leaves;
+    private final double[] sums;
+    private final long[] counts;
+    private final double[] mins;
+    private final double[] maxs;
+    private long newestPeriod = Long.MIN_VALUE;
+
+    /**
+     * @param bucketCount  number of retained buckets. The retention is bucketCount*bucketLength
+     * @param bucketLength length of a single bucket in miliseconds, the resolution of the ranges
+     * @throws IllegalArgumentException if any of the arguments is not positive or bucketCount is over 2^29
+     * */
+    public RangeStatisticsIndex(int bucketCount, long bucketLength) throws IllegalArgumentException {
+        if (bucketCount <= 0 || bucketLength <= 0 || bucketCount > (1 << 29)) {
+            throw new IllegalArgumentException("bucketCount and bucketLength must be positive");
+        }
+        this.bucketCount = bucketCount;
+        this.bucketLength = bucketLength;
+        this.leaves = Integer.highestOneBit(Math.max(1, bucketCount - 1) << 1);
+        this.sums = new double[2 * leaves];
+        this.counts = new long[2 * leaves];
+        this.mins = new double[2 * leaves];
+        this.maxs = new double[2 * leaves];
+        clearAll();
+    }
+
+    /**
+     * Adds the amount to the bucket of its period. Amounts that are not in the retention that ends at nowTimestamp are ignored.
+     * @return true if the amount was added
+     * */
+    public synchronized boolean add(long timestamp, double amount, long nowTimestamp) {
+        return add(timestamp, amount, 1, amount, amount, nowTimestamp);
+    }
+
+    /**
+     * Merges the statistics into the bucket of the timestamp, for example the statistics of a bucket of a finer index.
+     * Statistics that are not in the retention that ends at nowTimestamp are ignored.
+     * @return true if the statistics were merged
+     * */
+    public synchronized boolean merge(long timestamp, PartialStatistics statistics, long nowTimestamp) {
+        if (statistics.isEmpty()) {
+            return false;
+        }
+        return add(timestamp, statistics.getSum(), statistics.getCount(), statistics.getMin(), statistics.getMax(), nowTimestamp);
+    }
+
+    /**
+     * @return the statistics of the buckets from the bucket of fromTimestamp to the bucket of toTimestamp, both included.
+     *         The range is clipped to the retention that ends at nowTimestamp, empty statistics if nothing of it is retained
+     * */
+    public synchronized PartialStatistics getPartialStatistics(long fromTimestamp, long toTimestamp, long nowTimestamp) {
+        advance(Math.floorDiv(nowTimestamp, bucketLength));
+        long fromPeriod = Math.max(Math.floorDiv(fromTimestamp, bucketLength), getOldestPeriod());
+        long toPeriod = Math.min(Math.floorDiv(toTimestamp, bucketLength), newestPeriod);
+        if (fromPeriod > toPeriod) {
+            return PartialStatistics.EMPTY;
+        }
+        int fromSlot = slotOf(fromPeriod);
+        int toSlot = slotOf(toPeriod);
+        if (fromSlot <= toSlot) {
+            return query(fromSlot, toSlot);
+        }
+        //the range wraps around the ring
+        return query(fromSlot, bucketCount - 1).merge(query(0, toSlot));
+    }
+
+    /**
+     * @return the first timestamp of the oldest retained bucket at nowTimestamp
+     * */
+    public long getRetainedFrom(long nowTimestamp) {
+        return (Math.floorDiv(nowTimestamp, bucketLength) - bucketCount + 1) * bucketLength;
+    }
+
+    public long getBucketLength() {
+        return bucketLength;
+    }
+
+    /**
+     * @return the retention in miliseconds
+     * */
+    public long getRetention() {
+        return bucketCount * bucketLength;
+    }
+
+    /**
+     * Clears the slots of the periods after the newest one up to nowPeriod, they held periods that left the retention.
+     * A clock that goes back does not move the retention back.
+     * */
+    private void advance(long nowPeriod) {
+        if (nowPeriod <= newestPeriod) {
+            return;
+        }
+        if (newestPeriod == Long.MIN_VALUE || nowPeriod - newestPeriod >= bucketCount) {
+            clearAll();
+        } else {
+            for (long period = newestPeriod + 1; period <= nowPeriod; period++) {
+                int node = leaves + slotOf(period);
+                clear(node);
+                updateAncestors(node);
+            }
+        }
+        newestPeriod = nowPeriod;
+    }
+
+    private boolean add(long timestamp, double sum, long count, double min, double max, long nowTimestamp) {
+        advance(Math.floorDiv(nowTimestamp, bucketLength));
+        long period = Math.floorDiv(timestamp, bucketLength);
+        if (period > newestPeriod || period <= newestPeriod - bucketCount) {
+            return false;
+        }
+        int node = leaves + slotOf(period);
+        sums[node] += sum;
+        counts[node] += count;
+        mins[node] = Math.min(mins[node], min);
+        maxs[node] = Math.max(maxs[node], max);
+        updateAncestors(node);
+        return true;
+    }
+
+    private long getOldestPeriod() {
+        return newestPeriod - bucketCount + 1;
+    }
+
+    private int slotOf(long period) {
+        return (int) Math.floorMod(period, (long) bucketCount);
+    }
+
+    private PartialStatistics query(int fromSlot, int toSlot) {
+        double sum = 0;
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int from = fromSlot + leaves;
+        int to = toSlot + leaves + 1;
+        while (from < to) {
+            if ((from & 1) == 1) {
+                sum += sums[from];
+                count += counts[from];
+                min = Math.min(min, mins[from]);
+                max = Math.max(max, maxs[from]);
+                from++;
+            }
+            if ((to & 1) == 1) {
+                to--;
+                sum += sums[to];
+                count += counts[to];
+                min = Math.min(min, mins[to]);
+                max = Math.max(max, maxs[to]);
+            }
+            from >>= 1;
+            to >>= 1;
+        }
+        return count == 0 ? PartialStatistics.EMPTY : new PartialStatistics(sum, count, min, max);
+    }
+
+    private void updateAncestors(int node) {
+        for (int parent = node >> 1; parent >= 1; parent >>= 1) {
+            int left = parent << 1;
+            int right = left + 1;
+            sums[parent] = sums[left] + sums[right];
+            counts[parent] = counts[left] + counts[right];
+            mins[parent] = Math.min(mins[left], mins[right]);
+            maxs[parent] = Math.max(maxs[left], maxs[right]);
+        }
+    }
+
+    private void clear(int node) {
+        sums[node] = 0;
+        counts[node] = 0;
+        mins[node] = Double.POSITIVE_INFINITY;
+        maxs[node] = Double.NEGATIVE_INFINITY;
+    }
+
+    private void clearAll() {
+        Arrays.fill(sums, 0);
+        Arrays.fill(counts, 0);
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+}
@@ -0,0 +1,106 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Statistics of any time range within the retention of the coarsest tier (statistics.range.tiers), for example "between 14:02:10 and 14:07:45" when looking into an incident.
+ * <p>
+ * Every transaction is added to the finest tier of a {@link TieredStatistics}, each tier is a {@link RangeStatisticsIndex}, so a range query takes logarithmic time
+ * instead of a scan of the transactions, and the transactions do not have to be kept for the whole retention.
+A transaction of a bucket that is not compacted yet is added without a lock, only the queries, the compaction and the late transactions lock the tiers.
+ * Once per bucket of the finest tier the closed buckets are compacted into the coarser tiers, on the same {@link HashedTimingWheel} that expires the window buckets.
+ * The ranges are aligned to whole buckets, report the resolution they were answered with and have no percentiles.
+ * <p>
+ * The tiers are not in the checkpoints, they are filled from the transactions published since the start.
+ * */
+@Service
+public class RangeStatisticsService {
+    private final ITimeService timeService;
+    private final TieredStatistics statistics;
+    private Counter compactedBuckets = new Counter("compacted_total", "");
+
+    public RangeStatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, TieredStatistics statistics) {
+        this.timeService = timeService;
+        this.statistics = statistics;
+        transactionMadeEventHandler.subscribe(this::onTransactionMade);
+    }
+
+    /**
+     * @param tiers                 comma separated bucket length and retention of every tier, from the finest, see {@link TieredStatistics#parseTiers(String)}
+     * @param compactionDelayMillis how long after its end a bucket is compacted into the next tier
+     * */
+    @Autowired
+    public RangeStatisticsService(ITimeService timeService,
+                                  TransactionMadeEventHandler transactionMadeEventHandler,
+                                  HashedTimingWheel expiryTimingWheel,
+                                  @Value("${statistics.range.tiers:1s:10m,1m:24h,1h:30d}") String tiers,
+                                  @Value("${statistics.range.compactionDelayMillis:5000}") long compactionDelayMillis,
+                                  MetricsRegistry metricsRegistry) {
+        this(timeService, transactionMadeEventHandler, new TieredStatistics(TieredStatistics.parseTiers(tiers), compactionDelayMillis));
+        compactedBuckets = metricsRegistry.counter("statistics_range_compacted_total", "Number of range statistics buckets rolled up into a coarser tier");
+        scheduleCompaction(expiryTimingWheel, statistics.getFinestBucketLength());
+    }
+
+    /**
+     * Adds the transaction to the bucket of its timestamp, without a lock unless it is late.
+     * */
+    public void onTransactionMade(TimedEvent<Transaction> transaction) {
+        Transaction event = transaction.getEvent();
+        statistics.add(event.getTimestamp(), event.getAmount(), timeService.getUtcNow());
+    }
+
+    /**
+     * @param fromTimestamp first timestamp of the range, included
+     * @param toTimestamp   last timestamp of the range, included
+     * @return the statistics of the buckets that overlap the range and are retained
+     * @throws IllegalArgumentException if fromTimestamp is after toTimestamp
+     * */
+    public RangeStatistics getStatistics(long fromTimestamp, long toTimestamp) throws IllegalArgumentException {
+        if (fromTimestamp > toTimestamp) {
+            throw new IllegalArgumentException("The range ends before it starts");
+        }
+        return statistics.getStatistics(fromTimestamp, toTimestamp, timeService.getUtcNow());
+    }
+
+    /**
+     * Compacts the buckets that closed since the previous compaction. Called once per bucket of the finest tier, public for tests.
+     * @return the number of compacted buckets
+     * */
+    public int compact() {
+        int compacted = statistics.compact(timeService.getUtcNow());
+        compactedBuckets.add(compacted);
+        return compacted;
+    }
+
+    /**
+     * @return how far back the ranges go, in miliseconds
+     * */
+    public long getRetention() {
+        return statistics.getRetention();
+    }
+
+    private void scheduleCompaction(HashedTimingWheel timingWheel, long intervalMillis) {
+        timingWheel.schedule(timeService.getUtcNow() + intervalMillis, () -> {
+            try {
+                compact();
+            } finally {
+                scheduleCompaction(timingWheel, intervalMillis);
+            }
+        });
+    }
+}
@@ -0,0 +1,364 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.utils.sketch.LogHistogram;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+import static com.n26.atrposki.utils.time.ITimeService.MILISECONDS_IN_MINUTE;
+
+/**
+ * A fixed ring of buckets (60 one second buckets by default) that together hold the aggregates of the transactions in the sliding window.
+ * <p>
+ * An insert only touches the bucket of the transactions period, so it is O(1) in time.
+ * Reading the statistics merges all the buckets that are still in the window, which is O(number of buckets) regardless of how many transactions happened.
+ * Memory is O(number of buckets) as well, the transactions themselves are not kept.
+ * <p>
+ * The window is aligned to bucket boundaries. With one second buckets it contains the current second and the 59 before it,
+ * so the statistics can be up to one bucket length (a second) shorter than an exact 60 second window.
+ * <p>
+ * Writers never lock or CAS on shared state, see {@link StatisticsBucket}.
+ * Instead of a shared version counter the window keeps a dirty flag: a writer sets it after its bucket is updated (only if it is not already set)
+ * and a reader that consumes it via {@link #consumeChanges()} before merging is guaranteed to see all the writes that set or observed the flag.
+ * <p>
+ * The first transaction of a period notifies the period started listener, which is used to schedule the expiry of the bucket (see {@link #getExpiryTimestamp(long)}).
+ * <p>
+ * Any window up to the length of the ring can be read from the same buckets (see {@link #getPartialStatistics(long, long)}).
+ * To keep the long windows cheap, the buckets are also grouped in aligned roll-ups (a minute of buckets by default) whose merged value is cached.
+ * A roll-up that is completely in the window is taken from the cache and only the buckets at the edges of the window are merged one by one,
+ * so an hour of one second buckets is read as at most 59 roll-ups and 119 buckets instead of 3600 buckets.
+ * The roll-up caches are invalidated with a dirty flag per roll-up, the same way the window is, so an insert stays O(1) whatever the windows that are read.
+ * <p>
+ * Every bucket (and roll-up) also keeps a {@link LogHistogram} of its amounts. They are merged only by {@link #getStatistics(long, long)}, which adds the percentiles to the statistics.
+ * <p>
+ * The buckets can be exported with {@link #forEachBucket(long, BucketVisitor)} and added back with {@link #addBucket(long, PartialStatistics, LogHistogram, long)},
+ * which is how the window is checkpointed and restored.
+ * */
+public class SlidingWindowStatistics {
+    public static final long DEFAULT_BUCKET_LENGTH = 1000;
+    public static final int DEFAULT_BUCKET_COUNT = (int) (MILISECONDS_IN_MINUTE / DEFAULT_BUCKET_LENGTH);
+    public static final int DEFAULT_ROLLUP_LENGTH = DEFAULT_BUCKET_COUNT;
+
+    /**
+     * Visits the aggregates of a single bucket.
+     * */
+    @FunctionalInterface
+    public interface BucketVisitor {
+        void visit(long period, PartialStatistics statistics, LogHistogram histogram);
+    }
+
+    private final StatisticsBucket[] buckets;
+    private final long bucketLength;
+    private final int rollupLength;
+    private final long[] rollupIds;
+    private final PartialStatistics[] rollups;
+    private final LogHistogram[] rollupHistograms;
+    private final AtomicIntegerArray dirtyRollups;
+    private final LongAdder appliedCount = new LongAdder();
+    private volatile boolean isDirty;
+    private volatile LongConsumer periodStartedListener = period -> {};
+
+    public SlidingWindowStatistics() {
+        this(DEFAULT_BUCKET_COUNT, DEFAULT_BUCKET_LENGTH);
+    }
+
+    /**
+     * @param bucketCount  number of buckets in the ring. The window length is bucketCount*bucketLength
+     * @param bucketLength length of a single bucket in miliseconds
+     * @throws IllegalArgumentException if any of the arguments is not positive
+     * */
+    public SlidingWindowStatistics(int bucketCount, long bucketLength) throws IllegalArgumentException {
+        this(bucketCount, bucketLength, DEFAULT_ROLLUP_LENGTH);
+    }
+
+    /**
+     * @param bucketCount  number of buckets in the ring. The longest window is bucketCount*bucketLength
+     * @param bucketLength length of a single bucket in miliseconds
+     * @param rollupLength number of buckets in a roll-up
+     * @throws IllegalArgumentException if any of the arguments is not positive
+     * */
+    public SlidingWindowStatistics(int bucketCount, long bucketLength, int rollupLength) throws IllegalArgumentException {
+        if (bucketCount <= 0 || bucketLength <= 0 || rollupLength <= 0) {
+            throw new IllegalArgumentException("bucketCount, bucketLength and rollupLength must be positive");
+        }
+        this.bucketLength = bucketLength;
+        this.buckets = new StatisticsBucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new StatisticsBucket();
+        }
+        //enough roll-ups that the ones overlapping the ring never share a slot
+        int rollupCount = bucketCount / rollupLength + 2;
+        this.rollupLength = rollupLength;
+        this.rollupIds = new long[rollupCount];
+        this.rollups = new PartialStatistics[rollupCount];
+        this.rollupHistograms = new LogHistogram[rollupCount];
+        this.dirtyRollups = new AtomicIntegerArray(rollupCount);
+        for (int i = 0; i < rollupCount; i++) {
+            rollupIds[i] = Long.MIN_VALUE;
+            rollups[i] = PartialStatistics.EMPTY;
+            rollupHistograms[i] = new LogHistogram();
+        }
+    }
+
+    /**
+     * Adds the transaction to the bucket of its period. Transactions that are not in the window that ends at nowTimestamp
+     * (too old or in the future) are ignored since their bucket slot either already moved on or still holds live data.
+     * @param transaction  the transaction to be aggregated
+     * @param nowTimestamp utc now in miliseconds
+     * @return true if the transaction was added to the window
+     * */
+    public boolean add(Transaction transaction, long nowTimestamp) {
+        return add(transaction.getTimestamp(), transaction.getAmount(), nowTimestamp);
+    }
+
+    /**
+     * Same as {@link #add(Transaction, long)} for a transaction given by its timestamp and amount.
+     * */
+    public boolean add(long timestamp, double amount, long nowTimestamp) {
+        long period = toPeriod(timestamp);
+        if (!isInWindow(period, nowTimestamp)) {
+            return false;
+        }
+        StatisticsBucket.AddResult result = bucketOf(period).add(period, amount);
+        return onAdded(period, result, 1);
+    }
+
+    /**
+     * Adds the aggregates of a whole bucket, for example one exported by {@link #forEachBucket(long, BucketVisitor)}.
+     * They are merged with whatever the bucket of the period already holds. Like single transactions, buckets out of the window are ignored.
+     * @param period       the bucket period (timestamp divided by the bucket length)
+     * @param statistics   the aggregates of the transactions of the period
+     * @param histogram    the histogram of the same transactions
+     * @param nowTimestamp utc now in miliseconds
+     * @return true if the bucket was added to the window
+     * */
+    public boolean addBucket(long period, PartialStatistics statistics, LogHistogram histogram, long nowTimestamp) {
+        if (statistics.isEmpty() || !isInWindow(period, nowTimestamp)) {
+            return false;
+        }
+        StatisticsBucket.AddResult result = bucketOf(period).add(period, statistics, histogram);
+        return onAdded(period, result, statistics.getCount());
+    }
+
+    /**
+     * Visits every non empty bucket of the window that ends at nowTimestamp, oldest first.
+     * The histograms are copies, the visitor may keep them.
+     * */
+    public void forEachBucket(long nowTimestamp, BucketVisitor visitor) {
+        long nowPeriod = toPeriod(nowTimestamp);
+        for (long period = nowPeriod - buckets.length + 1; period <= nowPeriod; period++) {
+            StatisticsBucket bucket = bucketOf(period);
+            PartialStatistics statistics = bucket.snapshot(period, period);
+            if (!statistics.isEmpty()) {
+                visitor.visit(period, statistics, bucket.copyHistogram(period, period));
+            }
+        }
+    }
+
+    public long getBucketLength() {
+        return bucketLength;
+    }
+
+    /**
+     * @param nowTimestamp utc now in miliseconds
+     * @return the merged statistics of all the buckets in the window that ends at nowTimestamp
+     * */
+    public PartialStatistics getPartialStatistics(long nowTimestamp) {
+        long nowPeriod = toPeriod(nowTimestamp);
+        long fromPeriod = nowPeriod - buckets.length + 1;
+        PartialStatistics merged = PartialStatistics.EMPTY;
+        for (StatisticsBucket bucket : buckets) {
+            merged = merged.merge(bucket.snapshot(fromPeriod, nowPeriod));
+        }
+        return merged;
+    }
+
+    /**
+     * @param nowTimestamp utc now in miliseconds
+     * @param windowLength length of the window in miliseconds
+     * @return the merged statistics of the buckets in the window of windowLength that ends at nowTimestamp. Complete roll-ups are taken from their cache.
+     * @throws IllegalArgumentException if the windowLength is not a positive multiple of the bucket length or is longer than the ring
+     * */
+    public PartialStatistics getPartialStatistics(long nowTimestamp, long windowLength) throws IllegalArgumentException {
+        return collect(nowTimestamp, windowLength, null);
+    }
+
+    /**
+     * @param nowTimestamp utc now in miliseconds
+     * @return the aggregate statistics, including the percentiles, of the whole ring that ends at nowTimestamp
+     * */
+    public AggregateStatistics getStatistics(long nowTimestamp) {
+        return getStatistics(nowTimestamp, getMaxWindowLength());
+    }
+
+    /**
+     * @param nowTimestamp utc now in miliseconds
+     * @param windowLength length of the window in miliseconds
+     * @return the aggregate statistics, including the percentiles, of the window of windowLength that ends at nowTimestamp
+     * @throws IllegalArgumentException if the windowLength is not a positive multiple of the bucket length or is longer than the ring
+     * */
+    public AggregateStatistics getStatistics(long nowTimestamp, long windowLength) throws IllegalArgumentException {
+        LogHistogram histogram = new LogHistogram();
+        return collect(nowTimestamp, windowLength, histogram).toAggregateStatistics(histogram);
+    }
+
+    /**
+     * Merges the window walking it from its oldest bucket: complete roll-ups from their cache, the rest bucket by bucket.
+     * The histograms are merged into the histogram only if it is not null.
+     * */
+    private PartialStatistics collect(long nowTimestamp, long windowLength, LogHistogram histogram) throws IllegalArgumentException {
+        long nowPeriod = toPeriod(nowTimestamp);
+        long period = nowPeriod - toBucketCount(windowLength) + 1;
+        PartialStatistics merged = PartialStatistics.EMPTY;
+        while (period <= nowPeriod) {
+            long rollupId = rollupIdOf(period);
+            long rollupEnd = (rollupId + 1) * rollupLength - 1;
+            if (period == rollupId * rollupLength && rollupEnd <= nowPeriod) {
+                merged = merged.merge(mergeRollup(rollupId, histogram));
+                period = rollupEnd + 1;
+            } else {
+                StatisticsBucket bucket = bucketOf(period);
+                merged = merged.merge(bucket.snapshot(period, period));
+                if (histogram != null) {
+                    bucket.mergeHistogramInto(histogram, period, period);
+                }
+                period++;
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return the length of the longest window this ring can serve, in miliseconds
+     * */
+    public long getMaxWindowLength() {
+        return buckets.length * bucketLength;
+    }
+
+    /**
+     * @return the number of transactions applied to this window so far.
+     * */
+    public long getAppliedCount() {
+        return appliedCount.sum();
+    }
+
+    /**
+     * Clears the dirty flag. Statistics merged after this call contain every transaction applied before it.
+     * @return true if transactions were applied since the last call
+     * */
+    public boolean consumeChanges() {
+        if (!isDirty) {
+            return false;
+        }
+        isDirty = false;
+        return true;
+    }
+
+    /**
+     * Registers the listener called with the period of a bucket whenever a transaction starts a new period in it. There is only one listener, the last one registered.
+     * The listener runs on the thread of the transaction, so it should be as cheap as scheduling a timeout.
+     * */
+    public void subscribeToPeriodStart(LongConsumer listener) {
+        this.periodStartedListener = listener;
+    }
+
+    /**
+     * @return the utc timestamp in miliseconds at which the bucket of the period leaves the window
+     * */
+    public long getExpiryTimestamp(long period) {
+        return (period + buckets.length) * bucketLength;
+    }
+
+    /**
+     * @return the utc timestamp in miliseconds at which the bucket of the period leaves the window of windowLength (in miliseconds)
+     * @throws IllegalArgumentException if the windowLength is not a positive multiple of the bucket length or is longer than the ring
+     * */
+    public long getExpiryTimestamp(long period, long windowLength) throws IllegalArgumentException {
+        return (period + toBucketCount(windowLength)) * bucketLength;
+    }
+
+    /**
+     * Merges the buckets of the roll-up again only if it is not cached or was written to since it was cached.
+     * The dirty flag is cleared before merging, so a write that races with the merge leaves the roll-up dirty for the next read.
+     * Only readers synchronize, writers never wait for the roll-ups.
+     * @param histogram if not null, the histogram of the roll-up is merged into it
+     * @return the statistics of the roll-up
+     * */
+    private synchronized PartialStatistics mergeRollup(long rollupId, LogHistogram histogram) {
+        int slot = rollupSlotOf(rollupId);
+        boolean isDirty = dirtyRollups.get(slot) != 0 && dirtyRollups.getAndSet(slot, 0) != 0;
+        if (isDirty || rollupIds[slot] != rollupId) {
+            long fromPeriod = rollupId * rollupLength;
+            long toPeriod = fromPeriod + rollupLength - 1;
+            PartialStatistics merged = PartialStatistics.EMPTY;
+            LogHistogram mergedHistogram = new LogHistogram();
+            for (long period = fromPeriod; period <= toPeriod; period++) {
+                StatisticsBucket bucket = bucketOf(period);
+                merged = merged.merge(bucket.snapshot(period, period));
+                bucket.mergeHistogramInto(mergedHistogram, period, period);
+            }
+            rollupIds[slot] = rollupId;
+            rollups[slot] = merged;
+            rollupHistograms[slot] = mergedHistogram;
+        }
+        if (histogram != null) {
+            histogram.merge(rollupHistograms[slot]);
+        }
+        return rollups[slot];
+    }
+
+    private boolean isInWindow(long period, long nowTimestamp) {
+        long nowPeriod = toPeriod(nowTimestamp);
+        return period <= nowPeriod && period > nowPeriod - buckets.length;
+    }
+
+    private boolean onAdded(long period, StatisticsBucket.AddResult result, long count) {
+        if (result == StatisticsBucket.AddResult.TOO_OLD) {
+            return false;
+        }
+        appliedCount.add(count);
+        int rollupSlot = rollupSlotOf(rollupIdOf(period));
+        if (dirtyRollups.get(rollupSlot) == 0) {
+            dirtyRollups.set(rollupSlot, 1);
+        }
+        if (!isDirty) { //read before write, so a busy window does not keep invalidating the cache line of the flag
+            isDirty = true;
+        }
+        if (result == StatisticsBucket.AddResult.STARTED_PERIOD) {
+            periodStartedListener.accept(period);
+        }
+        return true;
+    }
+
+    private long toBucketCount(long windowLength) throws IllegalArgumentException {
+        if (windowLength <= 0 || windowLength % bucketLength != 0 || windowLength / bucketLength > buckets.length) {
+            throw new IllegalArgumentException("The window must be a positive multiple of " + bucketLength + "ms and at most " + getMaxWindowLength() + "ms long");
+        }
+        return windowLength / bucketLength;
+    }
+
+    private long toPeriod(long timestamp) {
+        return Math.floorDiv(timestamp, bucketLength);
+    }
+
+    private long rollupIdOf(long period) {
+        return Math.floorDiv(period, (long) rollupLength);
+    }
+
+    private int rollupSlotOf(long rollupId) {
+        return (int) Math.floorMod(rollupId, (long) rollups.length);
+    }
+
+    private StatisticsBucket bucketOf(long period) {
+        return buckets[(int) Math.floorMod(period, (long) buckets.length)];
+    }
+}
@@ -0,0 +1,121 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.sketch.LogHistogram;
+import com.n26.atrposki.utils.striped.StripedStatisticsAccumulator;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single slot of the {@link SlidingWindowStatistics} ring. It holds the sum, count, min and max of the transactions that happened in one bucket period (a second by default).
+ * The slot is reused: when a transaction of a newer period lands in it, a fresh accumulator is swapped in since the old values already left the window.
+ * <p>
+ * The bucket is lock free. The period and its accumulator are swapped together by CAS and the accumulator itself is striped,
+ * so concurrent inserts in the same period do not contend on a single memory location.
+ * A writer that still holds the accumulator of a period that was just swapped out writes into the old accumulator,
+ * which is correct since its transaction is from the old period and hence already out of the window.
+ * <p>
+ * Next to the accumulator every period has a {@link LogHistogram} of the amounts, which is merged at read time for the percentiles.
+ * */
+class StatisticsBucket {
+    enum AddResult {ADDED, STARTED_PERIOD, TOO_OLD}
+
+    private static final Slot UNUSED = new Slot(Long.MIN_VALUE, null, null);
+
+    //buckets that were never written share the UNUSED slot, so a long ring only costs memory for the periods that had transactions
+    private final AtomicReference<Slot> slot = new AtomicReference<>(UNUSED);
+
+    /**
+     * @param period the bucket period (timestamp divided by the bucket length) of the transaction
+     * @param amount the transaction amount
+     * @return TOO_OLD if the bucket already holds a newer period, STARTED_PERIOD if this call swapped the period in and ADDED otherwise
+     * */
+    AddResult add(long period, double amount) {
+        boolean isStarted = false;
+        while (true) {
+            Slot current = slot.get();
+            if (current.period == period) {
+                current.accumulator.add(amount);
+                current.histogram.record(amount);
+                return isStarted ? AddResult.STARTED_PERIOD : AddResult.ADDED;
+            }
+            if (current.period > period) {
+                return AddResult.TOO_OLD;
+            }
+            isStarted = startPeriod(current, period);
+        }
+    }
+
+    /**
+     * Adds the aggregate of several transactions of the period at once, for example the ones restored from a checkpoint.
+     * @return the same as {@link #add(long, double)}
+     * */
+    AddResult add(long period, PartialStatistics statistics, LogHistogram histogram) {
+        boolean isStarted = false;
+        while (true) {
+            Slot current = slot.get();
+            if (current.period == period) {
+                current.accumulator.add(statistics.getSum(), statistics.getCount(), statistics.getMin(), statistics.getMax());
+                current.histogram.merge(histogram);
+                return isStarted ? AddResult.STARTED_PERIOD : AddResult.ADDED;
+            }
+            if (current.period > period) {
+                return AddResult.TOO_OLD;
+            }
+            isStarted = startPeriod(current, period);
+        }
+    }
+
+    /**
+     * @return the statistics of this bucket if its period is between fromPeriod and toPeriod (both included) or {@link PartialStatistics#EMPTY} otherwise
+     * */
+    PartialStatistics snapshot(long fromPeriod, long toPeriod) {
+        Slot current = slot.get();
+        if (current.period < fromPeriod || current.period > toPeriod) {
+            return PartialStatistics.EMPTY;
+        }
+        PartialStatistics[] merged = {PartialStatistics.EMPTY};
+        current.accumulator.forEachCell((sum, count, min, max) -> merged[0] = merged[0].merge(new PartialStatistics(sum, count, min, max)));
+        return merged[0];
+    }
+
+    /**
+     * Merges the histogram of this bucket into the target if its period is between fromPeriod and toPeriod (both included).
+     * */
+    void mergeHistogramInto(LogHistogram target, long fromPeriod, long toPeriod) {
+        Slot current = slot.get();
+        if (current.period >= fromPeriod && current.period <= toPeriod) {
+            target.merge(current.histogram);
+        }
+    }
+
+    /**
+     * @return a copy of the histogram of this bucket if its period is between fromPeriod and toPeriod (both included), an empty histogram otherwise
+     * */
+    LogHistogram copyHistogram(long fromPeriod, long toPeriod) {
+        LogHistogram copy = new LogHistogram();
+        mergeHistogramInto(copy, fromPeriod, toPeriod);
+        return copy;
+    }
+
+    private boolean startPeriod(Slot current, long period) {
+        return slot.compareAndSet(current, new Slot(period, new StripedStatisticsAccumulator(), new LogHistogram()));
+    }
+
+    private static class Slot {
+        final long period;
+        final StripedStatisticsAccumulator accumulator;
+        final LogHistogram histogram;
+
+        Slot(long period, StripedStatisticsAccumulator accumulator, LogHistogram histogram) {
+            this.period = period;
+            this.accumulator = accumulator;
+            this.histogram = histogram;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.sketch.LogHistogram;
+import lombok.Value;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Immutable, compact image of the aggregation state of the {@link StatisticsService}: the non empty buckets of the window
+ * and the logical time of the last transaction they contain. Every transaction up to that logical time is in the buckets and none after it,
+ * so a restored window only needs the transactions logged after it (see {@link StatisticsService#createCheckpoint(long)}).
+ * <p>
+ * The same format carries the buckets of a node to the other nodes of a cluster (see {@link StatisticsService#exportBuckets()}), they are not an exact cut then.
+ * <p>
+ * The binary format is big endian: int magic, int format version, long last logical time, long bucket length, long created at, int bucket count,
+ * then for every bucket long period, double sum, long count, double min, double max and the histogram (see {@link LogHistogram#writeTo(java.io.DataOutput)}),
+ * and at last the CRC32 of everything before it.
+ * */
+@Value
+public class StatisticsCheckpoint {
+    private static final int MAGIC = 0x53544350;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The aggregates of the transactions of a single bucket period.
+     * */
+    @Value
+    public static class Bucket {
+        private final long period;
+        private final PartialStatistics statistics;
+        private final LogHistogram histogram;
+    }
+
+    private final long lastLogicalTime;
+    private final long bucketLength;
+    private final long createdAt;
+    private final List<Bucket> buckets;
+
+    public StatisticsCheckpoint(long lastLogicalTime, long bucketLength, long createdAt, List<Bucket> buckets) {
+        this.lastLogicalTime = lastLogicalTime;
+        this.bucketLength = bucketLength;
+        this.createdAt = createdAt;
+        this.buckets = Collections.unmodifiableList(new ArrayList<>(buckets));
+    }
+
+    /**
+     * @return the number of transactions in the checkpoint
+     * */
+    public long getTransactionCount() {
+        long count = 0;
+        for (Bucket bucket : buckets) {
+            count += bucket.getStatistics().getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Writes the checkpoint in the binary format of the class documentation. The stream is not closed.
+     * */
+    public void writeTo(OutputStream stream) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(stream, new CRC32());
+        DataOutputStream output = new DataOutputStream(checked);
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeLong(lastLogicalTime);
+        output.writeLong(bucketLength);
+        output.writeLong(createdAt);
+        output.writeInt(buckets.size());
+        for (Bucket bucket : buckets) {
+            PartialStatistics statistics = bucket.getStatistics();
+            output.writeLong(bucket.getPeriod());
+            output.writeDouble(statistics.getSum());
+            output.writeLong(statistics.getCount());
+            output.writeDouble(statistics.getMin());
+            output.writeDouble(statistics.getMax());
+            bucket.getHistogram().writeTo(output);
+        }
+        output.flush();
+        new DataOutputStream(stream).writeLong(checked.getChecksum().getValue());
+    }
+
+    /**
+     * @return the checkpoint read from the binary format of the class documentation
+     * @throws IOException if the stream can not be read, is not a checkpoint or fails the checksum
+     * */
+    public static StatisticsCheckpoint readFrom(InputStream stream) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(stream, new CRC32());
+        DataInputStream input = new DataInputStream(checked);
+        if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+            throw new IOException("Not a statistics checkpoint of format version " + FORMAT_VERSION);
+        }
+        long lastLogicalTime = input.readLong();
+        long bucketLength = input.readLong();
+        long createdAt = input.readLong();
+        int bucketCount = input.readInt();
+        if (bucketCount < 0) {
+            throw new IOException("Negative bucket count " + bucketCount);
+        }
+        List<Bucket> buckets = new ArrayList<>(Math.min(bucketCount, 4096));
+        for (int i = 0; i < bucketCount; i++) {
+            long period = input.readLong();
+            PartialStatistics statistics = new PartialStatistics(input.readDouble(), input.readLong(), input.readDouble(), input.readDouble());
+            buckets.add(new Bucket(period, statistics, LogHistogram.readFrom(input)));
+        }
+        long checksum = checked.getChecksum().getValue();
+        if (new DataInputStream(stream).readLong() != checksum) {
+            throw new IOException("The checksum of the statistics checkpoint does not match");
+        }
+        return new StatisticsCheckpoint(lastLogicalTime, bucketLength, createdAt, buckets);
+    }
+}
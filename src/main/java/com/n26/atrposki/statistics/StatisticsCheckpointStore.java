@@ -0,0 +1,107 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Keeps the newest {@link StatisticsCheckpoint}s in a local directory, one file per checkpoint named after its logical time.
+ * <p>
+ * A checkpoint is written to a temporary file, forced to the disk and then atomically renamed, so a crash leaves either the whole new checkpoint or none.
+ * A checkpoint that can not be read anyway (for example a disk error) is skipped and the next older one is loaded instead.
+ * */
+public class StatisticsCheckpointStore {
+    private static final Logger LOG = LoggerFactory.getLogger(StatisticsCheckpointStore.class);
+    private static final String PREFIX = "checkpoint-";
+    private static final String SUFFIX = ".bin";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final int retainedCount;
+
+    /**
+     * @param retainedCount number of checkpoints kept, the older ones are deleted when a new one is saved
+     * @throws IllegalArgumentException if retainedCount is not positive
+     * */
+    public StatisticsCheckpointStore(Path directory, int retainedCount) throws IllegalArgumentException {
+        if (retainedCount <= 0) {
+            throw new IllegalArgumentException("retainedCount must be positive");
+        }
+        this.directory = directory;
+        this.retainedCount = retainedCount;
+    }
+
+    /**
+     * Writes the checkpoint atomically and deletes the checkpoints that are no longer retained.
+     * @return the path of the written checkpoint
+     * */
+    public synchronized Path save(StatisticsCheckpoint checkpoint) throws IOException {
+        Files.createDirectories(directory);
+        //logical times start at -1, shifted so the names sort
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, checkpoint.getLastLogicalTime() + 1, SUFFIX));
+        Path temporary = directory.resolve(path.getFileName() + TEMPORARY_SUFFIX);
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            OutputStream output = new BufferedOutputStream(file);
+            checkpoint.writeTo(output);
+            output.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        List<Path> checkpoints = list();
+        for (int i = retainedCount; i < checkpoints.size(); i++) {
+            Files.deleteIfExists(checkpoints.get(i));
+        }
+        return path;
+    }
+
+    /**
+     * @return the newest checkpoint that can be read, if any
+     * */
+    public synchronized Optional<StatisticsCheckpoint> loadLatest() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return Optional.empty();
+        }
+        for (Path path : list()) {
+            try (InputStream input = new BufferedInputStream(Files.newInputStream(path))) {
+                return Optional.of(StatisticsCheckpoint.readFrom(input));
+            } catch (IOException e) {
+                LOG.warn("skipping the statistics checkpoint " + path + " that can not be read", e);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the checkpoint files, newest first
+     * */
+    private List<Path> list() throws IOException {
+        List<Path> checkpoints = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : files) {
+                checkpoints.add(path);
+            }
+        }
+        Collections.sort(checkpoints, Collections.reverseOrder());
+        return checkpoints;
+    }
+}
@@ -0,0 +1,193 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.utils.events.IEventLog;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.LatencyHistogram;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Optional;
+
+/**
+ * Restores the statistics after a restart and keeps checkpointing them.
+ * <p>
+ * On start a background thread loads the newest {@link StatisticsCheckpoint} and replays only the transactions logged after it from the transaction log,
+ * the service is ready ({@link #isReady()}) once that is done. Transactions published meanwhile are aggregated as usual, the replay leaves them out by their logical time.
+ * Afterwards the same thread checkpoints the statistics every statistics.checkpoint.intervalMillis, and a last checkpoint is written on shutdown,
+ * so a restart after a clean shutdown has nothing to replay.
+ * <p>
+ * Checkpoints are written only with statistics.checkpoint.enabled, without them the recovery replays the whole retained log.
+ * */
+@Service
+public class StatisticsRecoveryService {
+    private static final Logger LOG = LoggerFactory.getLogger(StatisticsRecoveryService.class);
+
+    private final StatisticsService statisticsService;
+    private final IEventLog<Transaction> transactionLog;
+    private final StatisticsCheckpointStore checkpointStore;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private volatile boolean isReady;
+    private volatile boolean isRunning;
+    private volatile double recoveryDuration;
+    private Thread worker;
+    private Counter restoredTransactions = new Counter("recovery_restored_total", "");
+    private Counter replayedTransactions = new Counter("recovery_replayed_total", "");
+    private Counter checkpoints = new Counter("checkpoints_total", "");
+    private Counter failedCheckpoints = new Counter("checkpoints_failed_total", "");
+    private LatencyHistogram checkpointDuration = new LatencyHistogram("checkpoint_duration_seconds", "");
+
+    /**
+     * @param checkpointStore where the checkpoints are kept, null to recover from the log only and never checkpoint
+     * @param intervalMillis  time between two checkpoints
+     * @param timeoutMillis   see {@link StatisticsService#createCheckpoint(long)}
+     * */
+    public StatisticsRecoveryService(StatisticsService statisticsService, IEventLog<Transaction> transactionLog, StatisticsCheckpointStore checkpointStore,
+                                     long intervalMillis, long timeoutMillis) {
+        this.statisticsService = statisticsService;
+        this.transactionLog = transactionLog;
+        this.checkpointStore = checkpointStore;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    @Autowired
+    public StatisticsRecoveryService(StatisticsService statisticsService,
+                                     IEventLog<Transaction> transactionLog,
+                                     @Value("${statistics.checkpoint.enabled:false}") boolean isEnabled,
+                                     @Value("${statistics.checkpoint.directory:data/checkpoints}") String directory,
+                                     @Value("${statistics.checkpoint.retained:2}") int retained,
+                                     @Value("${statistics.checkpoint.intervalMillis:10000}") long intervalMillis,
+                                     @Value("${statistics.checkpoint.timeoutMillis:1000}") long timeoutMillis,
+                                     MetricsRegistry metricsRegistry) {
+        this(statisticsService, transactionLog, isEnabled ? new StatisticsCheckpointStore(Paths.get(directory), retained) : null, intervalMillis, timeoutMillis);
+        registerMetrics(metricsRegistry);
+    }
+
+    /**
+     * Starts the recovery (and then the checkpoints) on a background thread.
+     * */
+    @PostConstruct
+    public void start() {
+        isRunning = true;
+        worker = new Thread(this::run, "statistics-recovery");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the checkpoints and writes the last one.
+     * */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        isRunning = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker.join(timeoutMillis + intervalMillis);
+        }
+        if (checkpointStore != null && isReady) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * @return true once the statistics were recovered
+     * */
+    public boolean isReady() {
+        return isReady;
+    }
+
+    /**
+     * Restores the newest checkpoint and replays the log after it. Called by the background thread, public for tests.
+     * @return the number of replayed transactions
+     * */
+    public long recover() {
+        long start = System.nanoTime();
+        long afterLogicalTime = -1;
+        if (checkpointStore != null) {
+            try {
+                Optional<StatisticsCheckpoint> checkpoint = checkpointStore.loadLatest();
+                if (checkpoint.isPresent()) {
+                    restoredTransactions.add(statisticsService.restore(checkpoint.get()));
+                    afterLogicalTime = checkpoint.get().getLastLogicalTime();
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                LOG.warn("The statistics checkpoint can not be restored, replaying the whole log", e);
+            }
+        }
+        long replayed = statisticsService.replay(transactionLog, afterLogicalTime, transactionLog.getLastLogicalTime());
+        replayedTransactions.add(replayed);
+        recoveryDuration = (System.nanoTime() - start) / 1e9;
+        LOG.info("Statistics recovered in {}s: {} transactions restored from the checkpoint, {} replayed from the log",
+                recoveryDuration, restoredTransactions.get(), replayed);
+        return replayed;
+    }
+
+    /**
+     * Creates a checkpoint and saves it.
+     * @return true if the checkpoint was saved
+     * */
+    public boolean checkpoint() {
+        long start = System.nanoTime();
+        try {
+            Optional<StatisticsCheckpoint> checkpoint = statisticsService.createCheckpoint(timeoutMillis);
+            if (checkpoint.isPresent()) {
+                checkpointStore.save(checkpoint.get());
+                checkpoints.increment();
+                return true;
+            }
+        } catch (IOException e) {
+            LOG.error("The statistics checkpoint could not be saved", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            checkpointDuration.recordSince(start);
+        }
+        failedCheckpoints.increment();
+        return false;
+    }
+
+    private void run() {
+        try {
+            recover();
+        } catch (RuntimeException e) {
+            //the service still works with the transactions published from now on
+            LOG.error("The statistics could not be recovered", e);
+        } finally {
+            isReady = true;
+        }
+        while (isRunning && checkpointStore != null) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            checkpoint();
+        }
+    }
+
+    private void registerMetrics(MetricsRegistry registry) {
+        restoredTransactions = registry.counter("statistics_recovery_restored_total", "Number of transactions restored from the checkpoint on start");
+        replayedTransactions = registry.counter("statistics_recovery_replayed_total", "Number of transactions replayed from the log on start");
+        checkpoints = registry.counter("statistics_checkpoints_total", "Number of saved statistics checkpoints");
+        failedCheckpoints = registry.counter("statistics_checkpoints_failed_total", "Number of statistics checkpoints that timed out or could not be saved");
+        checkpointDuration = registry.latencyHistogram("statistics_checkpoint_duration_seconds", "Duration of creating and saving a statistics checkpoint");
+        registry.gauge("statistics_recovery_duration_seconds", "Duration of the recovery on start", () -> recoveryDuration);
+        registry.gauge("statistics_ready", "1 once the statistics are recovered", () -> isReady ? 1 : 0);
+    }
+}
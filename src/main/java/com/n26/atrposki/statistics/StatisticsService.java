@@ -6,107 +6,353 @@ package com.n26.atrposki.statistics;
  *
  */
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.n26.atrposki.domain.AggregateStatistics;
 import com.n26.atrposki.domain.Transaction;
 import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.IEventLog;
 import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.LatencyHistogram;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
 import com.n26.atrposki.utils.testableAtomics.IAtomicLong;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
 import com.n26.atrposki.utils.time.ITimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collector;
-
-import static com.n26.atrposki.utils.time.ITimeService.MILISECONDS_IN_MINUTE;
-import static java.util.stream.Collectors.*;
 
 /**
  * A service that gets the aggregated statistics for the transactions in the last 60 seconds.
- * It gets the value from an inmemory (heap).
- * It keeps the value up to date on every transaction event.
- * Right now the underlying mechanism implemented is simply the most naive impleentation of a "in memory materialzied" view.
- * Every time a transaction hapenes the aggregated statistics are updated.
- * 2 giant assumptions:
- * a) This will not go into production and hence no memory overflow will happen due to the ineficient way the statistics are calculated on every insert
- * b) There will be much more reads then writes. (if nothing happenes in 60 seconds, no updates will occur making the statistics stale).
+ * It gets the value from an inmemory (heap) "materialized" view.
+ * <p>
+ * The transactions are aggregated in a {@link SlidingWindowStatistics}: a fixed ring of 60 one second buckets made of lock free striped accumulators.
+ * Ingestion only writes to the bucket of the transaction and never locks, the buckets are merged on demand when the statistics are read
+ * and only if something changed since the last merge. Both the update and the memory are O(1).
+ * <p>
+ * To keep the statistics fresh without new transactions, every bucket schedules its own expiry on a {@link HashedTimingWheel} when its period starts.
+ * When the bucket leaves the window the buckets are merged again (O(60), never a scan of the transactions) and republished.
+ * The statistics can hence be stale for at most one tick of the wheel.
+ * <p>
+ * Besides the materialized 60 second window, the windows configured by statistics.windows (10s,1m,5m,1h by default) can be read via {@link #getStatistics(StatisticsWindow)}.
+ * They are all served by the same ring, which is as long as the longest window, so an insert costs the same however many windows there are.
+ * The other windows are merged when they are read, the long ones mostly from cached per minute roll-ups (see {@link SlidingWindowStatistics#getPartialStatistics(long, long)}).
  * <p>
- * A simple way to fight this is to:
- * a) Keep only a sliding widnow of relevant events having O(1) update sliding window time and O(n) memory complexity
- * b) Schedule transaction expired events, or regular updates in a resonable interval.
+ * The materialized statistics are published as a {@link StatisticsSnapshot} versioned by the logical time of the update,
+ * which caches their encoded payloads so a read of unchanged statistics does not serialize them again.
  * <p>
- * If breaking the O(1) memory constrain is a possibility we can keep min/max predecessors so each insert/update/read will be O(1) however we will need O(n) memory.
- * Where N is not from the begining of time, but the number of transactions in a 60  sec window.
+ * The window can be checkpointed ({@link #createCheckpoint(long)}) and restored ({@link #restore(StatisticsCheckpoint)}, {@link #replay(IEventLog, long, long)}),
+ * see {@link StatisticsRecoveryService}.
  */
 @Service
 public class StatisticsService {
     private static final Logger LOG = LoggerFactory.getLogger(StatisticsService.class);
     private ITimeService timeService;
     private TransactionMadeEventHandler transactionMadeEventHandler;
-    private AggregateStatistics statistics;
+    private SlidingWindowStatistics window;
+    private List<StatisticsWindow> windows;
+    private final ObjectMapper objectMapper;
+    private volatile StatisticsSnapshot snapshot;
     private IAtomicLong lastUpdateLogicalTime;
+    private AtomicLong refreshSequence;
+    private volatile long publishedAt;
+    private final IngestionBarrier ingestionBarrier = new IngestionBarrier();
+    private HandledLogicalTimes handledLogicalTimes;
+    private final Object checkpointLock = new Object();
+    private volatile LateTransactions lateTransactions;
+    private Counter refreshesStarted = new Counter("refreshes_started_total", "");
+    private Counter refreshesSkipped = new Counter("refreshes_skipped_total", "");
+    private Counter updatesLost = new Counter("updates_lost_total", "");
+    private LatencyHistogram updateLockWait = new LatencyHistogram("update_lock_wait_seconds", "");
+
+    public StatisticsService(ITimeService timeService,
+                             TransactionMadeEventHandler transactionMadeEventHandler,
+                             IAtomicLong atomicLong,
+                             HashedTimingWheel expiryTimingWheel,
+                             String windows) {
+        this(timeService, transactionMadeEventHandler, atomicLong, expiryTimingWheel, windows, true, new MetricsRegistry(), new ObjectMapper());
+    }
+
+    /**
+     * @param isCheckpointEnabled without checkpoints the service does not keep track of the logical times it handled, and {@link #createCheckpoint(long)} can not be used
+     * */
 
     @Autowired
+    public StatisticsService(ITimeService timeService,
+                             TransactionMadeEventHandler transactionMadeEventHandler,
+                             IAtomicLong atomicLong,
+                             HashedTimingWheel expiryTimingWheel,
+                             @Value("${statistics.windows:10s,1m,5m,1h}") String windows,
+                             @Value("${statistics.checkpoint.enabled:false}") boolean isCheckpointEnabled,
+                             MetricsRegistry metricsRegistry,
+                             ObjectMapper objectMapper) {
+        this(timeService, transactionMadeEventHandler, StatisticsWindow.parseAll(windows), atomicLong, objectMapper);
+        if (!isCheckpointEnabled) {
+            //no events are published before the beans are created
+            handledLogicalTimes = null;
+        }
+        long materializedWindowLength = StatisticsWindow.ONE_MINUTE.getLength();
+        window.subscribeToPeriodStart(period -> expiryTimingWheel.schedule(window.getExpiryTimestamp(period, materializedWindowLength), this::onBucketExpired));
+        registerMetrics(metricsRegistry);
+    }
+
     public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, IAtomicLong atomicLong) {
-        atomicLong.forceSet(0l);
-        this.timeService = timeService;
-        this.transactionMadeEventHandler = transactionMadeEventHandler;
-        lastUpdateLogicalTime = atomicLong;
-        statistics = new AggregateStatistics();
+        this(timeService, transactionMadeEventHandler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), atomicLong);
+    }
+
+    public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, List<StatisticsWindow> windows, IAtomicLong atomicLong) {
+        this(timeService, transactionMadeEventHandler, windows, atomicLong, new ObjectMapper());
+    }
+
+    public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, List<StatisticsWindow> windows, IAtomicLong atomicLong, ObjectMapper objectMapper) {
+        this(timeService, transactionMadeEventHandler, windows, createRing(windows), new AggregateStatistics(), forceReset(atomicLong), objectMapper);
         transactionMadeEventHandler.subscribe(this::onTransactionMade);
     }
 
     public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, AggregateStatistics statistics, IAtomicLong lastUpdateLogicalTime) {
+        this(timeService, transactionMadeEventHandler, new SlidingWindowStatistics(), statistics, lastUpdateLogicalTime);
+    }
+
+    public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, SlidingWindowStatistics window, AggregateStatistics statistics, IAtomicLong lastUpdateLogicalTime) {
+        this(timeService, transactionMadeEventHandler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), window, statistics, lastUpdateLogicalTime);
+    }
+
+    public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, List<StatisticsWindow> windows, SlidingWindowStatistics window, AggregateStatistics statistics, IAtomicLong lastUpdateLogicalTime) {
+        this(timeService, transactionMadeEventHandler, windows, window, statistics, lastUpdateLogicalTime, new ObjectMapper());
+    }
+
+    /**
+     * @param objectMapper encodes the json payloads of the published snapshots, the mapper of the application so they are the same json the other endpoints write
+     * */
+    public StatisticsService(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, List<StatisticsWindow> windows, SlidingWindowStatistics window, AggregateStatistics statistics, IAtomicLong lastUpdateLogicalTime, ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
         this.timeService = timeService;
         this.transactionMadeEventHandler = transactionMadeEventHandler;
-        this.statistics = statistics;
+        this.windows = Collections.unmodifiableList(new ArrayList<>(windows));
+        this.window = window;
         this.lastUpdateLogicalTime = lastUpdateLogicalTime;
+        this.snapshot = new StatisticsSnapshot(lastUpdateLogicalTime.get(), statistics, objectMapper);
+        this.publishedAt = timeService.getUtcNow();
+        this.refreshSequence = new AtomicLong(lastUpdateLogicalTime.get());
+        this.handledLogicalTimes = new HandledLogicalTimes(transactionMadeEventHandler.getLogicalTime());
     }
 
+    /**
+     * @return the statistics of the window, merged again only if transactions were applied since the last merge.
+     * */
     public AggregateStatistics getStatistics() {
-        return statistics;
+        return getSnapshot().getStatistics();
     }
 
     /**
-     * This method is envoked on every transaction event an updates the AggregationStatistics if needed by recalculating them from the history of events (from the begining of time).
-     * It handles concurency by only recalculating the events if they happened (in logical time) after the last update and no other thread  was quicker.
-     * Start of a rant unimportant for the javadoc:
-     * a) We can safelly assume that the transactionMadeEventHandlers logical time is only going to increment.
-     * However we cannot safelly assume that from the line where we read the time, to the line where we get the events it hasnt changed.
-     * Hence the two similar fail fast ifs. If we have a stale time when we are getting the logical time of the event handler, we don't need to even get the events.
-     * BUT, if we did need to read the event history and we realized that we are looking at a stale history snapshot then we don't need to run the calculations.
-     * Only after we ran the calculation can we go into the syncronized partts that will be kept as lean as possible to avoid performance issues.
-     * b) There are more efficient ways of doing the calculation (example keeping a smaller window ordered by timestampd transactions instead of using all of them since the begining of time).
-     * c) A giant assumption is that we get a constant bussy stream of transactions. This class doesn't update anything unless there is a transaction. We can tackle this by scheduled forced updates
-     * or scheduling a TransactionExpiredEvent 60 seconds after recieving a transaction made event.
+     * @return the published snapshot of the window, merged again only if transactions were applied since the last merge.
+     * */
+    public StatisticsSnapshot getSnapshot() {
+        if (window.consumeChanges()) {
+            refreshStatistics();
+        } else {
+            refreshesSkipped.increment();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the statistics of the window that ends now. The materialized 60 second window is returned as is, any other window is merged on demand.
+     * @throws IllegalArgumentException if the window is longer than the ring or not a multiple of its bucket length
+     * */
+    public AggregateStatistics getStatistics(StatisticsWindow statisticsWindow) throws IllegalArgumentException {
+        if (statisticsWindow.getLength() == StatisticsWindow.ONE_MINUTE.getLength()) {
+            return getStatistics();
+        }
+        return window.getStatistics(timeService.getUtcNow(), statisticsWindow.getLength());
+    }
+
+    /**
+     * @return the configured windows
+     * */
+    public List<StatisticsWindow> getWindows() {
+        return windows;
+    }
+
+    /**
+     * @return the configured window with the given name (for example 5m) if there is one
+     * */
+    public Optional<StatisticsWindow> findWindow(String name) {
+        return windows.stream().filter(x -> x.getName().equals(name)).findFirst();
+    }
+
+    /**
+     * This method is envoked on every transaction event. It only adds the transaction to its bucket in the sliding window.
+     * It takes no locks and does no merging, the merge is deferred to the next read (see {@link #getStatistics()}).
      * @param transaction a timed event
-     * @return the new logical time for the last update of the AggregateStatistics value.
+     * @return the logical time of the currently published AggregateStatistics value.
      */
     public long onTransactionMade(TimedEvent<Transaction> transaction) {
-        LOG.info("registered event"+transaction);
-        long utcNowTimestamp = timeService.getUtcNow();
-        long currentEventsTime = transactionMadeEventHandler.getLogicalTime();
-        if(currentEventsTime<lastUpdateLogicalTime.get()){ //avoid heavy calculation if it is already too late.
-            return lastUpdateLogicalTime.get();
+        LOG.debug("registered event {}", transaction);
+        int stripe = ingestionBarrier.enter();
+        boolean isApplied = false;
+        try {
+            window.add(transaction.getEvent(), timeService.getUtcNow());
+            isApplied = true;
+        } finally {
+            //a transaction that failed is not coming again either, so the checkpoints must not wait for it
+            HandledLogicalTimes handled = handledLogicalTimes;
+            if (handled != null) {
+                handled.add(transaction.getLogicalTime());
+            }
+            LateTransactions late = lateTransactions;
+            if (late != null) {
+                late.offer(transaction, isApplied);
+            }
+            ingestionBarrier.exit(stripe);
+        }
+        return lastUpdateLogicalTime.get();
+    }
+
+    /**
+     * Copies the window at an exact cut: the checkpoint contains every transaction up to the logical time of the handler at the cut and none after it.
+     * <p>
+     * The ingestion is stopped while the buckets are copied (see {@link IngestionBarrier}), which takes a pause in the order of a millisecond for an hour of buckets.
+     * Transactions that already had their logical time at the cut but were not applied yet (they were still on the way to the listener)
+     * are collected after the ingestion resumed and added to the copy, so the checkpoint does not wait for the ingestion.
+     * Which ones those are is known from the logical times the service handled (see {@link HandledLogicalTimes}). If some do not arrive before the timeout
+     * the checkpoint is abandoned and they are not waited for anymore, so a transaction that never arrives only costs the checkpoints taken while it is missing.
+     * Only one checkpoint is created at a time, and never on a thread that publishes transactions.
+     * @param timeoutMillis how long to wait for the transactions that were on the way at the cut
+     * @return the checkpoint or empty if some of those transactions did not arrive before the timeout
+     * @throws InterruptedException if the thread is interrupted while waiting for them
+     * @throws IllegalStateException if the service was created without checkpoints
+     * */
+    public Optional<StatisticsCheckpoint> createCheckpoint(long timeoutMillis) throws InterruptedException, IllegalStateException {
+        if (handledLogicalTimes == null) {
+            throw new IllegalStateException("The statistics service was created without checkpoints");
+        }
+        synchronized (checkpointLock) {
+            long bucketLength = window.getBucketLength();
+            SlidingWindowStatistics copy = new SlidingWindowStatistics((int) (window.getMaxWindowLength() / bucketLength), bucketLength);
+            long cutLogicalTime;
+            LateTransactions late;
+            ingestionBarrier.close();
+            try {
+                cutLogicalTime = transactionMadeEventHandler.getLogicalTime();
+                long cutTimestamp = timeService.getUtcNow();
+                window.forEachBucket(cutTimestamp, (period, statistics, histogram) -> copy.addBucket(period, statistics, histogram, cutTimestamp));
+                late = new LateTransactions(cutLogicalTime, handledLogicalTimes.countMissingUpTo(cutLogicalTime));
+                lateTransactions = late;
+            } finally {
+                ingestionBarrier.open();
+            }
+            try {
+                if (!late.await(timeoutMillis)) {
+                    handledLogicalTimes.skipTo(cutLogicalTime);
+                    LOG.warn("Statistics checkpoint at logical time {} abandoned, transactions published before it did not arrive within {}ms", cutLogicalTime, timeoutMillis);
+                    return Optional.empty();
+                }
+            } finally {
+                lateTransactions = null;
+            }
+            long now = timeService.getUtcNow();
+            for (Transaction transaction : late.transactions) {
+                copy.add(transaction, now);
+            }
+            List<StatisticsCheckpoint.Bucket> buckets = new ArrayList<>();
+            copy.forEachBucket(now, (period, statistics, histogram) -> buckets.add(new StatisticsCheckpoint.Bucket(period, statistics, histogram)));
+            return Optional.of(new StatisticsCheckpoint(cutLogicalTime, bucketLength, now, buckets));
         }
+    }
+
+    /**
+     * @return the buckets of the window as they are now, in the same mergeable form as a checkpoint but without stopping the ingestion,
+     * so the buckets are not an exact cut at the logical time. Meant to be merged with the buckets of other nodes.
+     * */
+    public StatisticsCheckpoint exportBuckets() {
+        long now = timeService.getUtcNow();
+        long logicalTime = transactionMadeEventHandler.getLogicalTime();
+        List<StatisticsCheckpoint.Bucket> buckets = new ArrayList<>();
+        window.forEachBucket(now, (period, statistics, histogram) -> buckets.add(new StatisticsCheckpoint.Bucket(period, statistics, histogram)));
+        return new StatisticsCheckpoint(logicalTime, window.getBucketLength(), now, buckets);
+    }
+
+    /**
+     * @return the length of the longest window the service keeps, in miliseconds
+     * */
+    public long getMaxWindowLength() {
+        return window.getMaxWindowLength();
+    }
 
-        List<TimedEvent<Transaction>> eventHistorySnapshot = transactionMadeEventHandler.getHistory();
-        long timeAfterUpdate = getLastEventTimeOr(eventHistorySnapshot, 0);
-        if(timeAfterUpdate < lastUpdateLogicalTime.get()){ //avoid heavy calculation if it is already too late. Note, the
-            return lastUpdateLogicalTime.get();
+    /**
+     * Adds the buckets of the checkpoint that are still in the window to it. Meant for recovery, before any other checkpoint is created.
+     * @return the number of restored transactions
+     * @throws IllegalArgumentException if the checkpoint was created with a different bucket length
+     * */
+    public long restore(StatisticsCheckpoint checkpoint) throws IllegalArgumentException {
+        if (checkpoint.getBucketLength() != window.getBucketLength()) {
+            throw new IllegalArgumentException("The checkpoint has buckets of " + checkpoint.getBucketLength() + "ms instead of " + window.getBucketLength() + "ms");
         }
-        AggregateStatistics updatedStatistics = calculateStatistics(eventHistorySnapshot, utcNowTimestamp - MILISECONDS_IN_MINUTE, utcNowTimestamp);
-        return tryUpdateStatistics(timeAfterUpdate, updatedStatistics);
+        long now = timeService.getUtcNow();
+        long restored = 0;
+        for (StatisticsCheckpoint.Bucket bucket : checkpoint.getBuckets()) {
+            if (window.addBucket(bucket.getPeriod(), bucket.getStatistics(), bucket.getHistogram(), now)) {
+                restored += bucket.getStatistics().getCount();
+            }
+        }
+        return restored;
+    }
+
+    /**
+     * Adds the logged transactions with a logical time in (afterLogicalTime, toLogicalTime] to the window.
+     * The upper bound keeps out the transactions published since the start, which the window already got as events.
+     * @return the number of replayed transactions
+     * */
+    public long replay(IEventLog<Transaction> transactionLog, long afterLogicalTime, long toLogicalTime) {
+        long now = timeService.getUtcNow();
+        long[] replayed = {0};
+        transactionLog.replay(afterLogicalTime, (logicalTime, timestamp, amount) -> {
+            if (logicalTime <= toLogicalTime) {
+                window.add(timestamp, amount, now);
+                replayed[0]++;
+            }
+        });
+        return replayed[0];
+    }
+
+    /**
+     * Invoked (by the expiry timing wheel) when a bucket leaves the window. Republishes the statistics without the expired bucket.
+     * @return the logical time of the published statistics
+     * */
+    public long onBucketExpired() {
+        return refreshStatistics();
+    }
+
+    /**
+     * Merges the buckets of the window and publishes them.
+     * Every refresh takes a ticket (logical time) before merging, so a slow refresh can never overwrite the statistics of a refresh that started after it.
+     * @return the logical time of the published statistics
+     * */
+    public long refreshStatistics() {
+        refreshesStarted.increment();
+        long refreshLogicalTime = refreshSequence.incrementAndGet();
+        AggregateStatistics updatedStatistics = window.getStatistics(timeService.getUtcNow(), StatisticsWindow.ONE_MINUTE.getLength());
+        return tryUpdateStatistics(refreshLogicalTime, updatedStatistics);
     }
 
     /**
      * Tries to update the statistics with the newStatistics.
      * The update will only happen if the newUpdateLogical time is not stale (newUpdateLogicalTime > lastUpdatedTime).
-     * This method is synchronized.
+     * This method is synchronized, the time spent waiting for the lock is recorded in the statistics_update_lock_wait_seconds metric.
      * Start of a rant unimportant for the javadoc:
      * The use of the atomic long may come as surprizing here since this is the only method with sidefects ti this classes fields (in theory) and that means
      * that (in theory) the lastUpdateLogicalTime will never be modified during this methods execution. This is true (again in theory), and the need for atomic long
@@ -115,57 +361,89 @@ public class StatisticsService {
      * @param newUpdateLogicalTime the logical time for which the aggregatestatistic is calculated
      *                             @param newStatistics the new aggregate statistics that need to be set
      * */
-    public synchronized long tryUpdateStatistics(long newUpdateLogicalTime, AggregateStatistics newStatistics) {
-        long timeBforeUpdate = lastUpdateLogicalTime.get();
-        if(timeBforeUpdate > newUpdateLogicalTime){
-            return timeBforeUpdate;
-        }
+    public long tryUpdateStatistics(long newUpdateLogicalTime, AggregateStatistics newStatistics) {
+        long lockRequestedAt = System.nanoTime();
+        synchronized (this) {
+            updateLockWait.recordSince(lockRequestedAt);
+            long timeBforeUpdate = lastUpdateLogicalTime.get();
+            if(timeBforeUpdate > newUpdateLogicalTime){
+                updatesLost.increment();
+                return timeBforeUpdate;
+            }
+
+            if (lastUpdateLogicalTime.compareAndSet(timeBforeUpdate, newUpdateLogicalTime)) {
+                this.snapshot = new StatisticsSnapshot(newUpdateLogicalTime, newStatistics, objectMapper);
+                this.publishedAt = timeService.getUtcNow();
+                LOG.debug("Statistics updated for logical event time: {} : {}", newUpdateLogicalTime, newStatistics);
+                return newUpdateLogicalTime;
+            }
 
-        if (lastUpdateLogicalTime.compareAndSet(timeBforeUpdate, newUpdateLogicalTime)) {
-            this.statistics = newStatistics;
-            LOG.info("Statistics updated for logical event time:"+newUpdateLogicalTime+" : "+newStatistics);
-            return newUpdateLogicalTime;
+            updatesLost.increment();
+            return timeBforeUpdate;
         }
+    }
 
-        return timeBforeUpdate;
+    /**
+     * Registers the metrics of the service: refreshes started, refreshes skipped since nothing changed, updates lost to a newer refresh,
+     * the wait for the update lock, the number of transactions in the window and the age and version of the published statistics.
+     * */
+    private void registerMetrics(MetricsRegistry registry) {
+        refreshesStarted = registry.counter("statistics_refreshes_started_total", "Number of merges of the window started");
+        refreshesSkipped = registry.counter("statistics_refreshes_skipped_total", "Number of reads served without a merge since no transaction was applied");
+        updatesLost = registry.counter("statistics_updates_lost_total", "Number of merged statistics not published since a newer refresh was already published");
+        updateLockWait = registry.latencyHistogram("statistics_update_lock_wait_seconds", "Time spent waiting for the statistics update lock");
+        registry.counter("statistics_transactions_applied_total", "Number of transactions applied to the sliding window", window::getAppliedCount);
+        registry.gauge("statistics_version", "Logical time of the published statistics", () -> snapshot.getVersion());
+        registry.gauge("statistics_age_seconds", "Time since the statistics were last published", () -> (timeService.getUtcNow() - publishedAt) / 1000.0);
     }
 
 
     /**
+     * Full scan over a collection of transaction events. It is not used on the hot path anymore (see {@link SlidingWindowStatistics}) but is still handy for ad-hoc calculations over an event history.
      * @param transactions  list of transaction events
      * @param fromTimestamp the begining utc timestamp of the transaction window of interest in miliseconds since utc time 0
      * @param toTimestamp   the end utc timestamp of the transaction window of interest in miliseconds since utc time 0
      * @return Aggregated statistics for the events of the colletion passed as a parameter whose transactions happened between fromTimestamp and toTimestamp (from and to included).
-     * It uses a lot of fancy words whilst calculating it like: kahan summation/ compensation sumation.
-     * This was (generously) provided by the java.util.stream.collectors implementation and simply means better floating point precission errors.
+     * It is a single pass of the {@link CompensatedStatistics} kernel: no intermediate collections, no boxing and a compensated (kahan) sum.
      * @throws IllegalArgumentException if toTimestamp is befor fromTimestamp
      */
     public AggregateStatistics calculateStatistics(Collection<TimedEvent<Transaction>> transactions, long fromTimestamp, long toTimestamp) throws IllegalArgumentException {
-        LOG.info("Calculating statistigs from "+fromTimestamp +" to:"+ toTimestamp);
+        LOG.debug("Calculating statistigs from {} to: {}", fromTimestamp, toTimestamp);
         if (toTimestamp < fromTimestamp) {
             throw new IllegalArgumentException("toTimestamp is befor fromTimestamp");
         }
 
-        //Get snapshot of transactions in window of interest
-        List<Double> recentTransactions = transactions
-                .stream()
-                .filter(x -> x.getEvent().getTimestamp() >= fromTimestamp)
-                .filter(x -> x.getEvent().getTimestamp() <= toTimestamp)
-                .map(TimedEvent::getEvent)
-                .map(Transaction::getAmount)
-                .collect(toList());
-
-        //The following sums can be generated by at least one fewer call to the stream.collect(). (avg = sum/count) however it might cause some integer overflow issues if the list is really long
-        Double avg = aggregate(recentTransactions, averagingDouble(x -> x));
-        Double sum = aggregate(recentTransactions, summingDouble(x -> x));
-        Double min = aggregate(recentTransactions, minBy(Double::compare)).orElse(0.0);
-        Double max = aggregate(recentTransactions, maxBy(Double::compare)).orElse(0.0);
-        Long count = aggregate(recentTransactions, counting());
-        return new AggregateStatistics(sum, avg, max, min, count);
+        CompensatedStatistics statistics = new CompensatedStatistics();
+        for (TimedEvent<Transaction> timedEvent : transactions) {
+            Transaction transaction = timedEvent.getEvent();
+            if (transaction.getTimestamp() >= fromTimestamp && transaction.getTimestamp() <= toTimestamp) {
+                statistics.accept(transaction.getAmount());
+            }
+        }
+        return statistics.toAggregateStatistics();
     }
 
-     private <TaggregateRez, Telems> TaggregateRez aggregate(List<Telems> lst, Collector<Telems, ?, TaggregateRez> collector) {
-        return lst.stream().collect(collector);
+    /**
+     * Full scan over a columnar transaction history (see {@link TransactionMadeEventHandler#openHistoryCursor()}).
+     * Like {@link #calculateStatistics(Collection, long, long)} it is a single pass of the {@link CompensatedStatistics} kernel, but it creates no objects per transaction.
+     * @param transactions  cursor over the transaction history, positioned before its first transaction
+     * @param fromTimestamp the begining utc timestamp of the transaction window of interest in miliseconds since utc time 0
+     * @param toTimestamp   the end utc timestamp of the transaction window of interest in miliseconds since utc time 0
+     * @return Aggregated statistics of the transactions that happened between fromTimestamp and toTimestamp (from and to included)
+     * @throws IllegalArgumentException if toTimestamp is befor fromTimestamp
+     * */
+    public AggregateStatistics scanStatistics(ColumnarEventHistory.Cursor transactions, long fromTimestamp, long toTimestamp) throws IllegalArgumentException {
+        if (toTimestamp < fromTimestamp) {
+            throw new IllegalArgumentException("toTimestamp is befor fromTimestamp");
+        }
+        CompensatedStatistics statistics = new CompensatedStatistics();
+        while (transactions.next()) {
+            long timestamp = transactions.getTimestamp();
+            if (timestamp >= fromTimestamp && timestamp <= toTimestamp) {
+                statistics.accept(transactions.getValue());
+            }
+        }
+        return statistics.toAggregateStatistics();
     }
 
     /**
@@ -183,4 +461,51 @@ public class StatisticsService {
 
         return eventHistorySnapshot.get(eventHistorySnapshot.size() - 1).getLogicalTime();
     }
+
+    /**
+     * @return a ring of one second buckets long enough for the longest of the windows and the materialized 60 second window
+     * @throws IllegalArgumentException if any of the windows is not a whole number of seconds
+     * */
+    private static SlidingWindowStatistics createRing(List<StatisticsWindow> windows) throws IllegalArgumentException {
+        long longest = StatisticsWindow.ONE_MINUTE.getLength();
+        for (StatisticsWindow statisticsWindow : windows) {
+            if (statisticsWindow.getLength() % SlidingWindowStatistics.DEFAULT_BUCKET_LENGTH != 0) {
+                throw new IllegalArgumentException("The window " + statisticsWindow.getName() + " is not a whole number of seconds");
+            }
+            longest = Math.max(longest, statisticsWindow.getLength());
+        }
+        return new SlidingWindowStatistics((int) (longest / SlidingWindowStatistics.DEFAULT_BUCKET_LENGTH), SlidingWindowStatistics.DEFAULT_BUCKET_LENGTH);
+    }
+
+    /**
+     * The transactions of a checkpoint that had their logical time at the cut but were applied after it.
+     * */
+    private static class LateTransactions {
+        final long cutLogicalTime;
+        final ConcurrentLinkedQueue<Transaction> transactions = new ConcurrentLinkedQueue<>();
+        final CountDownLatch missing;
+
+        LateTransactions(long cutLogicalTime, long missingCount) {
+            this.cutLogicalTime = cutLogicalTime;
+            this.missing = new CountDownLatch((int) Math.max(0, Math.min(missingCount, Integer.MAX_VALUE)));
+        }
+
+        void offer(TimedEvent<Transaction> transaction, boolean isApplied) {
+            if (transaction.getLogicalTime() <= cutLogicalTime) {
+                if (isApplied) {
+                    transactions.add(transaction.getEvent());
+                }
+                missing.countDown();
+            }
+        }
+
+        boolean await(long timeoutMillis) throws InterruptedException {
+            return missing.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static IAtomicLong forceReset(IAtomicLong atomicLong) {
+        atomicLong.forceSet(0l);
+        return atomicLong;
+    }
 }
@@ -0,0 +1,127 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Percentiles;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable published value of the materialized statistics: the statistics, the logical time (version) they were published at
+ * and their encoded payloads, so the readers don't serialize the same statistics over and over.
+ * <p>
+ * The payloads are encoded lazily, at most once per snapshot (two readers racing on the first read may both encode it, which is harmless),
+ * hence the statistics are only encoded again when a new version is published.
+ * The returned byte arrays are shared and must not be modified.
+ * <p>
+ * The binary payload is big endian: long version, double sum, double average, double max, double min, long count,
+ * byte 1 if percentiles follow (0 otherwise) and then double p50, double p95, double p99.
+ * <p>
+ * The server sent event frame is "id: version", "event: statistics" and "data: " followed by the json payload, each on a line, and an empty line.
+ * */
+public class StatisticsSnapshot {
+    //versions start over on every start of the application, the epoch keeps the etags of different runs apart
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+    private static final int BINARY_LENGTH = 6 * 8 + 1;
+    private static final int PERCENTILES_LENGTH = 3 * 8;
+
+    private final long version;
+    private final AggregateStatistics statistics;
+    private final ObjectMapper objectMapper;
+    private volatile byte[] json;
+    private volatile byte[] binary;
+    private volatile byte[] eventStreamFrame;
+
+    /**
+     * @param objectMapper the mapper of the application, so the json payload is the same json the other endpoints write
+     * */
+    public StatisticsSnapshot(long version, AggregateStatistics statistics, ObjectMapper objectMapper) {
+        this.version = version;
+        this.statistics = statistics;
+        this.objectMapper = objectMapper;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public AggregateStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return a strong entity tag (quoted) that changes with the version. Different representations get different tags.
+     * @param isBinary true for the tag of the binary payload
+     * */
+    public String getETag(boolean isBinary) {
+        return "\"" + EPOCH + "-" + version + (isBinary ? "-b\"" : "\"");
+    }
+
+    /**
+     * @return the statistics encoded as json, the same json the given mapper writes for {@link AggregateStatistics}
+     * */
+    public byte[] getJson() {
+        byte[] encoded = json;
+        if (encoded == null) {
+            try {
+                encoded = objectMapper.writeValueAsBytes(statistics);
+            } catch (JsonProcessingException e) {
+                throw new IllegalStateException("AggregateStatistics can not be encoded as json", e);
+            }
+            json = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the statistics in the compact binary format described in the class documentation
+     * */
+    public byte[] getBinary() {
+        byte[] encoded = binary;
+        if (encoded == null) {
+            Percentiles percentiles = statistics.getPercentiles();
+            ByteBuffer buffer = ByteBuffer.allocate(BINARY_LENGTH + (percentiles == null ? 0 : PERCENTILES_LENGTH));
+            buffer.putLong(version)
+                    .putDouble(statistics.getSum())
+                    .putDouble(statistics.getAverage())
+                    .putDouble(statistics.getMax())
+                    .putDouble(statistics.getMin())
+                    .putLong(statistics.getCount())
+                    .put((byte) (percentiles == null ? 0 : 1));
+            if (percentiles != null) {
+                buffer.putDouble(percentiles.getP50()).putDouble(percentiles.getP95()).putDouble(percentiles.getP99());
+            }
+            encoded = buffer.array();
+            binary = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the statistics as a complete server sent event (text/event-stream) frame, see the class documentation. Shared by every subscriber of the stream.
+     * */
+    public byte[] getEventStreamFrame() {
+        byte[] encoded = eventStreamFrame;
+        if (encoded == null) {
+            byte[] json = getJson();
+            byte[] header = ("id: " + version + "\nevent: statistics\ndata: ").getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(header.length + json.length + 2);
+            frame.write(header, 0, header.length);
+            frame.write(json, 0, json.length);
+            frame.write('\n');
+            frame.write('\n');
+            encoded = frame.toByteArray();
+            eventStreamFrame = encoded;
+        }
+        return encoded;
+    }
+}
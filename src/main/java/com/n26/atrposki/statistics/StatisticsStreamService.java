@@ -0,0 +1,275 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the published statistics to the subscribed sinks (GET /api/statistics/stream) whenever their version changes.
+ * <p>
+ * A single thread checks the {@link StatisticsSnapshot} every statistics.stream.intervalMillis, so the updates are coalesced to at most one per interval,
+ * and a subscriber may ask for a longer interval of its own. The frame of a snapshot is encoded once ({@link StatisticsSnapshot#getEventStreamFrame()})
+ * and the same bytes are written to every subscriber.
+ * <p>
+ * Nothing is ever queued for a subscriber: on every check a subscriber that is idle, due and behind gets the frame of the current snapshot,
+ * a subscriber that is still writing an older frame is skipped and gets the latest snapshot once it is done.
+ * So a slow client receives fewer updates but never a growing backlog. The writes happen on a small pool and block while the socket buffer of the client is full,
+ * so a subscriber whose write takes longer than statistics.stream.writeTimeoutMillis is unsubscribed and gets nothing anymore.
+ * Closing a response waits for the write in progress (the emitter synchronizes both), so the publisher never closes a sink that is written to:
+ * the sender closes it once its write returns. The sender is also interrupted, but a blocking servlet write may ignore that and keep its thread until the container gives up the write.
+ * Subscribers without updates get a comment line every statistics.stream.heartbeatMillis, which also finds the clients that went away.
+ * */
+@Service
+public class StatisticsStreamService {
+    private static final Logger LOG = LoggerFactory.getLogger(StatisticsStreamService.class);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long NONE = Long.MIN_VALUE;
+    public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 5000;
+
+    private final StatisticsService statisticsService;
+    private final Executor sender;
+    private final long intervalMillis;
+    private final long heartbeatMillis;
+    private final int maxSubscribers;
+    private final long writeTimeoutNanos;
+    private final Map<IStatisticsStreamSink, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private ScheduledExecutorService publisher;
+    private Counter sentFrames = new Counter("stream_frames_total", "");
+    private Counter coalescedFrames = new Counter("stream_coalesced_total", "");
+    private Counter timedOutWrites = new Counter("stream_write_timeouts_total", "");
+
+    public StatisticsStreamService(StatisticsService statisticsService, Executor sender, long intervalMillis, long heartbeatMillis, int maxSubscribers) {
+        this(statisticsService, sender, intervalMillis, heartbeatMillis, maxSubscribers, DEFAULT_WRITE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param sender            runs the writes to the sinks
+     * @param intervalMillis    the shortest time between two frames to a subscriber
+     * @param heartbeatMillis   the longest time without any write to a subscriber
+     * @param maxSubscribers    subscriptions beyond it are refused
+     * @param writeTimeoutMillis a subscriber whose write takes longer is closed
+     * */
+    public StatisticsStreamService(StatisticsService statisticsService, Executor sender, long intervalMillis, long heartbeatMillis, int maxSubscribers, long writeTimeoutMillis) {
+        this.statisticsService = statisticsService;
+        this.sender = sender;
+        this.intervalMillis = intervalMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        this.maxSubscribers = maxSubscribers;
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMillis);
+    }
+
+    @Autowired
+    public StatisticsStreamService(StatisticsService statisticsService,
+                                   @Value("${statistics.stream.intervalMillis:200}") long intervalMillis,
+                                   @Value("${statistics.stream.heartbeatMillis:15000}") long heartbeatMillis,
+                                   @Value("${statistics.stream.maxSubscribers:1000}") int maxSubscribers,
+                                   @Value("${statistics.stream.senderThreads:4}") int senderThreads,
+                                   @Value("${statistics.stream.writeTimeoutMillis:5000}") long writeTimeoutMillis,
+                                   MetricsRegistry metricsRegistry) {
+        this(statisticsService, Executors.newFixedThreadPool(senderThreads, daemon("statistics-stream-sender")), intervalMillis, heartbeatMillis, maxSubscribers, writeTimeoutMillis);
+        sentFrames = metricsRegistry.counter("statistics_stream_frames_total", "Number of statistics frames written to stream subscribers");
+        coalescedFrames = metricsRegistry.counter("statistics_stream_coalesced_total", "Number of times a stream subscriber was behind but busy or not due, so its update was coalesced");
+        timedOutWrites = metricsRegistry.counter("statistics_stream_write_timeouts_total", "Number of stream subscribers closed since a write to them took longer than the write timeout");
+        metricsRegistry.gauge("statistics_stream_subscribers", "Number of stream subscribers", subscribers::size);
+    }
+
+    /**
+     * Starts checking the snapshot every interval on a background thread.
+     * */
+    @PostConstruct
+    public void start() {
+        publisher = Executors.newSingleThreadScheduledExecutor(daemon("statistics-stream"));
+        publisher.scheduleWithFixedDelay(this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (publisher != null) {
+            publisher.shutdownNow();
+        }
+        if (sender instanceof ExecutorService) {
+            ((ExecutorService) sender).shutdownNow();
+        }
+        subscribers.values().forEach(this::unsubscribeAndClose);
+    }
+
+    /**
+     * Subscribes the sink, it gets the current statistics on the next check.
+     * @param minIntervalMillis the shortest time between two frames the subscriber wants, at least the interval of the stream
+     * @return false if there are already maxSubscribers subscribers
+     * */
+    public boolean subscribe(IStatisticsStreamSink sink, long minIntervalMillis) {
+        if (subscribers.size() >= maxSubscribers) {
+            return false;
+        }
+        subscribers.put(sink, new Subscriber(sink, TimeUnit.MILLISECONDS.toNanos(Math.max(intervalMillis, minIntervalMillis))));
+        return true;
+    }
+
+    /**
+     * Removes the sink, it gets nothing after the write in progress if there is one.
+     * */
+    public void unsubscribe(IStatisticsStreamSink sink) {
+        subscribers.remove(sink);
+    }
+
+    /**
+     * @return the number of subscribers
+     * */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Hands the frame of the current snapshot to every subscriber that is idle, due and behind, and a heartbeat to the ones that were quiet for too long.
+     * Closes the subscribers whose write takes longer than the write timeout. Called every interval by the background thread, public for tests.
+     * */
+    public void publish() {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        try {
+            StatisticsSnapshot snapshot = statisticsService.getSnapshot();
+            long now = System.nanoTime();
+            for (Subscriber subscriber : subscribers.values()) {
+                if (closeIfWriteTimedOut(subscriber, now)) {
+                    continue;
+                }
+                boolean isBehind = subscriber.sentVersion != snapshot.getVersion();
+                boolean isQuiet = now - subscriber.sentAt >= TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+                boolean isDue = now - subscriber.sentAt >= subscriber.intervalNanos || subscriber.sentVersion == NONE;
+                if ((isBehind && isDue || isQuiet) && subscriber.isSending.compareAndSet(false, true)) {
+                    sender.execute(() -> send(subscriber, isBehind ? snapshot : null));
+                } else if (isBehind) {
+                    coalescedFrames.increment();
+                }
+            }
+        } catch (RuntimeException e) {
+            //the publisher must keep running, the next check publishes the statistics again
+            LOG.error("The statistics could not be published to the stream", e);
+        }
+    }
+
+    /**
+     * Unsubscribes the subscriber whose write in progress took too long, its sender closes the sink once the write returns.
+     * @return true if the subscriber was unsubscribed
+     * */
+    private boolean closeIfWriteTimedOut(Subscriber subscriber, long now) {
+        //the lock makes sure the sender is still writing to this subscriber, so it is the one that closes it
+        synchronized (subscriber) {
+            if (subscriber.writer == null || now - subscriber.writeStartedAt <= writeTimeoutNanos) {
+                return false;
+            }
+            subscriber.isClosed = true;
+            subscriber.writer.interrupt();
+        }
+        subscribers.remove(subscriber.sink);
+        timedOutWrites.increment();
+        LOG.debug("Statistics stream subscriber did not accept a write within {}ms, closing it", TimeUnit.NANOSECONDS.toMillis(writeTimeoutNanos));
+        return true;
+    }
+
+    private void send(Subscriber subscriber, StatisticsSnapshot snapshot) {
+        synchronized (subscriber) {
+            if (subscriber.isClosed) {
+                subscriber.isSending.set(false);
+                return;
+            }
+            subscriber.writer = Thread.currentThread();
+            subscriber.writeStartedAt = System.nanoTime();
+        }
+        try {
+            subscriber.sink.send(snapshot == null ? HEARTBEAT : snapshot.getEventStreamFrame());
+            subscriber.sentAt = System.nanoTime();
+            if (snapshot != null) {
+                subscriber.sentVersion = snapshot.getVersion();
+                sentFrames.increment();
+            }
+        } catch (Exception e) {
+            LOG.debug("Statistics stream subscriber is gone: {}", e.getMessage());
+            unsubscribeAndClose(subscriber);
+        } finally {
+            boolean isClosed;
+            synchronized (subscriber) {
+                subscriber.writer = null;
+                isClosed = subscriber.isClosed;
+            }
+            //an interrupt of a write that timed out must not hit the next write of the thread
+            Thread.interrupted();
+            subscriber.isSending.set(false);
+            if (isClosed) {
+                //it was closed during the write, which left the sink to this thread
+                subscriber.sink.close();
+            }
+        }
+    }
+
+    /**
+     * Unsubscribes the subscriber and closes its sink, unless a write to it is in progress: then its sender closes it once the write returns.
+     * */
+    private void unsubscribeAndClose(Subscriber subscriber) {
+        boolean isWriting;
+        synchronized (subscriber) {
+            if (subscriber.isClosed) {
+                return;
+            }
+            subscriber.isClosed = true;
+            isWriting = subscriber.writer != null;
+        }
+        subscribers.remove(subscriber.sink);
+        if (!isWriting) {
+            subscriber.sink.close();
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The state of a subscription. Only the sender that set isSending writes sentVersion and sentAt, the publisher reads them after it.
+     * The writer, the start of its write and isClosed are guarded by the subscriber.
+     * */
+    private static class Subscriber {
+        final IStatisticsStreamSink sink;
+        final long intervalNanos;
+        final AtomicBoolean isSending = new AtomicBoolean();
+        volatile long sentVersion = NONE;
+        volatile long sentAt = System.nanoTime();
+        Thread writer;
+        long writeStartedAt;
+        boolean isClosed;
+
+        Subscriber(IStatisticsStreamSink sink, long intervalNanos) {
+            this.sink = sink;
+            this.intervalNanos = intervalNanos;
+        }
+    }
+}
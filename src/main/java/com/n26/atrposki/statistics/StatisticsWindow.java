@@ -0,0 +1,80 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import lombok.Value;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named sliding window length, like 10s, 1m, 5m or 1h.
+ * The name is the one used in the api and the configuration (statistics.windows), the length is in miliseconds.
+ * */
+@Value
+public class StatisticsWindow {
+    public static final StatisticsWindow ONE_MINUTE = parse("1m");
+
+    private final String name;
+    private final long length;
+
+    /**
+     * @param name a positive whole number followed by one of the units ms, s, m, h or d. For example 10s or 5m
+     * @throws IllegalArgumentException if the name is not a valid window length
+     * */
+    public static StatisticsWindow parse(String name) throws IllegalArgumentException {
+        String trimmed = name == null ? "" : name.trim();
+        int unitStart = 0;
+        while (unitStart < trimmed.length() && Character.isDigit(trimmed.charAt(unitStart))) {
+            unitStart++;
+        }
+        if (unitStart == 0 || unitStart > 12) {
+            throw new IllegalArgumentException("Invalid window: " + name);
+        }
+        long amount = Long.parseLong(trimmed.substring(0, unitStart));
+        long length = amount * unitLength(trimmed.substring(unitStart), name);
+        if (length <= 0) {
+            throw new IllegalArgumentException("Invalid window: " + name);
+        }
+        return new StatisticsWindow(trimmed, length);
+    }
+
+    /**
+     * @param names comma separated window names, for example "10s,1m,5m,1h"
+     * @return the windows, in the order of the names
+     * @throws IllegalArgumentException if any of the names is not a valid window length or there are no names
+     * */
+    public static List<StatisticsWindow> parseAll(String names) throws IllegalArgumentException {
+        List<StatisticsWindow> windows = new ArrayList<>();
+        for (String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                windows.add(parse(name));
+            }
+        }
+        if (windows.isEmpty()) {
+            throw new IllegalArgumentException("At least one window is needed");
+        }
+        return windows;
+    }
+
+    private static long unitLength(String unit, String name) {
+        switch (unit) {
+            case "ms":
+                return 1;
+            case "s":
+                return 1000;
+            case "m":
+                return 60 * 1000;
+            case "h":
+                return 60 * 60 * 1000;
+            case "d":
+                return 24 * 60 * 60 * 1000;
+            default:
+                throw new IllegalArgumentException("Invalid window unit: " + name);
+        }
+    }
+}
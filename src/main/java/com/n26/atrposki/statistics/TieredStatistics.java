@@ -0,0 +1,300 @@
+package com.n26.atrposki.statistics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.striped.StripedStatisticsAccumulator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Range statistics in tiers of ever coarser buckets, each with its own retention, for example seconds for ten minutes, minutes for a day and hours for a month.
+ * <p>
+ * Transactions are added to the finest tier only. {@link #compact(long)} rolls the buckets of a tier that closed, compactionDelay after their end,
+ * into the bucket of the next tier that contains them, tier by tier from the finest, and every run compacts only the buckets that closed since the previous one.
+ * A late transaction whose bucket was compacted already is added to the next tiers as well, so the tiers never disagree.
+ * <p>
+ * A range is answered by the finest tier that retains its part: the finest tier answers the recent part, the next tier the part before the retention of the finest tier
+ * (from a boundary of its own buckets, so no bucket is counted twice) and so on. The statistics say the covered range and the coarsest resolution used.
+ * For that to be exact every tier has to retain a bucket of the next tier, plus the compaction delay and two of the finest buckets, beyond the buckets it compacted.
+ * <p>
+ * The finest buckets that are not compacted yet are open: a transaction of an open bucket is added to a {@link StripedStatisticsAccumulator} of its period, without a lock,
+ * and the open buckets are folded into the finest tier by the queries and the compaction, which are the only ones that lock the statistics.
+ * The compaction locks them for one bucket at a time, so catching up after a pause does not hold up the queries for long.
+ * Every fold merges what was added to an open bucket since the previous fold, so a bucket can be folded any number of times.
+ * The compaction retires the open buckets that closed. A writer that added to a bucket just retired folds it once more itself, the rest of the transactions
+ * (late ones and those of a bucket that can not be opened) are added to the tiers under the lock.
+ * */
+public class TieredStatistics {
+    private final RangeStatisticsIndex[] tiers;
+    private final long[] compactedPeriods;
+    private final long compactionDelay;
+    private final AtomicReferenceArray<OpenBucket> openBuckets;
+    //the open buckets up to this period are retired, a transaction of one of them is added under the lock
+    private volatile long retiredPeriod = Long.MIN_VALUE;
+
+    /**
+     * @param tiers           the tiers from the finest to the coarsest
+     * @param compactionDelay how long after its end a bucket is compacted, in miliseconds. Transactions that are later than that are added to several tiers
+     * @throws IllegalArgumentException if there are no tiers, a bucket length is not a multiple of the previous one, a retention is not longer than the previous one
+     *                                  or a tier does not retain its buckets long enough for the compaction
+     * */
+    public TieredStatistics(List<RangeStatisticsIndex> tiers, long compactionDelay) throws IllegalArgumentException {
+        if (tiers.isEmpty() || compactionDelay < 0) {
+            throw new IllegalArgumentException("At least one tier and a non negative compaction delay are needed");
+        }
+        this.tiers = tiers.toArray(new RangeStatisticsIndex[0]);
+        for (int i = 1; i < this.tiers.length; i++) {
+            RangeStatisticsIndex finer = this.tiers[i - 1];
+            RangeStatisticsIndex coarser = this.tiers[i];
+            if (coarser.getBucketLength() % finer.getBucketLength() != 0 || coarser.getRetention() <= finer.getRetention()) {
+                throw new IllegalArgumentException("Every tier needs buckets that are a multiple of the previous tier and a longer retention");
+            }
+            if (finer.getRetention() < coarser.getBucketLength() + compactionDelay + 2 * this.tiers[0].getBucketLength()) {
+                throw new IllegalArgumentException("A tier has to retain a bucket of the next tier plus the compaction delay");
+            }
+        }
+        this.compactedPeriods = new long[this.tiers.length - 1];
+        Arrays.fill(compactedPeriods, Long.MIN_VALUE);
+        this.compactionDelay = compactionDelay;
+        //the buckets that are not compacted yet: the current one, the ones in the compaction delay and one for a compaction that is late
+        long openBucketCount = compactionDelay / this.tiers[0].getBucketLength() + 3;
+        this.openBuckets = new AtomicReferenceArray<>((int) Math.min(openBucketCount, this.tiers[0].getRetention() / this.tiers[0].getBucketLength()));
+    }
+
+    /**
+     * @param tiers comma separated tiers of bucket length and retention, for example "1s:10m,1m:24h,1h:30d". See {@link StatisticsWindow#parse(String)} for the lengths
+     * @return the tiers, not validated against each other
+     * @throws IllegalArgumentException if a tier is not a bucket length and a retention that is a multiple of it
+     * */
+    public static List<RangeStatisticsIndex> parseTiers(String tiers) throws IllegalArgumentException {
+        List<RangeStatisticsIndex> parsed = new ArrayList<>();
+        for (String tier : tiers.split(",")) {
+            if (tier.trim().isEmpty()) {
+                continue;
+            }
+            String[] lengths = tier.split(":");
+            if (lengths.length != 2) {
+                throw new IllegalArgumentException("Invalid tier, expected bucket:retention: " + tier);
+            }
+            long bucketLength = StatisticsWindow.parse(lengths[0]).getLength();
+            long retention = StatisticsWindow.parse(lengths[1]).getLength();
+            if (retention % bucketLength != 0) {
+                throw new IllegalArgumentException("The retention of a tier must be a multiple of its buckets: " + tier);
+            }
+            parsed.add(new RangeStatisticsIndex((int) (retention / bucketLength), bucketLength));
+        }
+        return parsed;
+    }
+
+    /**
+     * Adds the amount to the finest tier, and to every coarser tier whose finer bucket was compacted already.
+     * An amount of an open bucket is added without a lock.
+     * @return true if the amount was added to any tier
+     * */
+    public boolean add(long timestamp, double amount, long nowTimestamp) {
+        long bucketLength = tiers[0].getBucketLength();
+        long period = Math.floorDiv(timestamp, bucketLength);
+        long nowPeriod = Math.floorDiv(nowTimestamp, bucketLength);
+        if (period <= nowPeriod && period > nowPeriod - openBuckets.length()) {
+            OpenBucket bucket = open(period, nowTimestamp);
+            if (bucket != null) {
+                bucket.accumulator.add(amount);
+                if (bucket.isRetired) {
+                    //the compaction may have folded it before the amount was in, folding again adds just what it missed
+                    synchronized (this) {
+                        fold(bucket, nowTimestamp);
+                    }
+                }
+                return true;
+            }
+        }
+        synchronized (this) {
+            return merge(timestamp, PartialStatistics.of(amount), nowTimestamp);
+        }
+    }
+
+    /**
+     * Retires the open buckets that closed and rolls the buckets that closed since the previous compaction into the next tier, from the finest tier to the coarsest.
+     * The lock is taken for one bucket at a time, the adds of the open buckets do not wait for the compaction at all.
+     * @return the number of compacted buckets
+     * */
+    public int compact(long nowTimestamp) {
+        synchronized (this) {
+            retire(Math.floorDiv(nowTimestamp - compactionDelay, tiers[0].getBucketLength()) - 1, nowTimestamp);
+        }
+        int compacted = 0;
+        for (int i = 0; i < compactedPeriods.length; i++) {
+            RangeStatisticsIndex tier = tiers[i];
+            long bucketLength = tier.getBucketLength();
+            long closedPeriod = Math.floorDiv(nowTimestamp - compactionDelay, bucketLength) - 1;
+            long oldestPeriod = Math.floorDiv(tier.getRetainedFrom(nowTimestamp), bucketLength);
+            while (compactNext(i, oldestPeriod, closedPeriod, nowTimestamp)) {
+                compacted++;
+            }
+        }
+        return compacted;
+    }
+
+    /**
+     * @param fromTimestamp first timestamp of the range, included
+     * @param toTimestamp   last timestamp of the range, included
+     * @return the statistics of the range from the finest tiers that retain its parts
+     * */
+    public synchronized RangeStatistics getStatistics(long fromTimestamp, long toTimestamp, long nowTimestamp) {
+        for (int slot = 0; slot < openBuckets.length(); slot++) {
+            OpenBucket bucket = openBuckets.get(slot);
+            if (bucket != null) {
+                fold(bucket, nowTimestamp);
+            }
+        }
+        PartialStatistics statistics = PartialStatistics.EMPTY;
+        boolean isCovered = false;
+        long coveredFrom = fromTimestamp;
+        long coveredTo = fromTimestamp - 1;
+        long resolution = tiers[0].getBucketLength();
+        long newest = nowTimestamp;
+        for (int i = 0; i < tiers.length; i++) {
+            RangeStatisticsIndex tier = tiers[i];
+            long bucketLength = tier.getBucketLength();
+            long oldest = i == tiers.length - 1 ? tier.getRetainedFrom(nowTimestamp) : ceil(tier.getRetainedFrom(nowTimestamp), tiers[i + 1].getBucketLength());
+            long partFrom = Math.max(fromTimestamp, oldest);
+            long partTo = Math.min(toTimestamp, newest);
+            if (partFrom <= partTo) {
+                statistics = tier.getPartialStatistics(partFrom, partTo, nowTimestamp).merge(statistics);
+                if (!isCovered) {
+                    //the first tier used has the newest part of the range
+                    coveredTo = (Math.floorDiv(partTo, bucketLength) + 1) * bucketLength - 1;
+                    isCovered = true;
+                }
+                coveredFrom = Math.floorDiv(partFrom, bucketLength) * bucketLength;
+                resolution = bucketLength;
+            }
+            newest = oldest - 1;
+        }
+        return new RangeStatistics(statistics.toAggregateStatistics(), coveredFrom, coveredTo, resolution);
+    }
+
+    /**
+     * @return how far back the coarsest tier goes, in miliseconds
+     * */
+    public long getRetention() {
+        return tiers[tiers.length - 1].getRetention();
+    }
+
+    /**
+     * @return the bucket length of the finest tier in miliseconds, the interval of the compaction
+     * */
+    public long getFinestBucketLength() {
+        return tiers[0].getBucketLength();
+    }
+
+    /**
+     * Rolls the oldest bucket of the tier that closed and is not compacted yet into the next tier.
+     * @return false if there was none
+     * */
+    private synchronized boolean compactNext(int tier, long oldestPeriod, long closedPeriod, long nowTimestamp) {
+        long period = Math.max(compactedPeriods[tier] + 1, oldestPeriod);
+        if (period > closedPeriod) {
+            compactedPeriods[tier] = Math.max(compactedPeriods[tier], closedPeriod);
+            return false;
+        }
+        long timestamp = period * tiers[tier].getBucketLength();
+        tiers[tier + 1].merge(timestamp, tiers[tier].getPartialStatistics(timestamp, timestamp, nowTimestamp), nowTimestamp);
+        compactedPeriods[tier] = period;
+        return true;
+    }
+
+    /**
+     * @return the open bucket of the period, opened if its slot holds an older period, or null if the period is retired or its slot holds a newer one
+     * */
+    private OpenBucket open(long period, long nowTimestamp) {
+        int slot = (int) Math.floorMod(period, (long) openBuckets.length());
+        while (true) {
+            OpenBucket bucket = openBuckets.get(slot);
+            if (bucket != null && bucket.period >= period) {
+                return bucket.period == period && !bucket.isRetired ? bucket : null;
+            }
+            if (period <= retiredPeriod) {
+                return null;
+            }
+            OpenBucket opened = new OpenBucket(period);
+            if (openBuckets.compareAndSet(slot, bucket, opened)) {
+                if (bucket != null && !bucket.isRetired) {
+                    //the compaction is late, the older period would be lost with the slot
+                    synchronized (this) {
+                        bucket.isRetired = true;
+                        fold(bucket, nowTimestamp);
+                    }
+                }
+                return opened;
+            }
+        }
+    }
+
+    /**
+     * Folds the open buckets up to the period for the last time and takes them out of their slots.
+     * */
+    private void retire(long closedPeriod, long nowTimestamp) {
+        retiredPeriod = Math.max(retiredPeriod, closedPeriod);
+        for (int slot = 0; slot < openBuckets.length(); slot++) {
+            OpenBucket bucket = openBuckets.get(slot);
+            if (bucket != null && bucket.period <= retiredPeriod) {
+                //retired before the fold, a writer that misses the fold sees it and folds again
+                bucket.isRetired = true;
+                fold(bucket, nowTimestamp);
+                openBuckets.compareAndSet(slot, bucket, null);
+            }
+        }
+    }
+
+    /**
+     * Merges what was added to the open bucket since it was folded the last time. An amount of a write in flight that is in the sum but not yet in the count is counted by the next fold.
+     * */
+    private void fold(OpenBucket bucket, long nowTimestamp) {
+        PartialStatistics[] added = {PartialStatistics.EMPTY};
+        bucket.accumulator.forEachCell((sum, count, min, max) -> added[0] = added[0].merge(new PartialStatistics(sum, count, min, max)));
+        PartialStatistics statistics = added[0];
+        if (statistics.getCount() > bucket.folded.getCount()) {
+            PartialStatistics unfolded = new PartialStatistics(statistics.getSum() - bucket.folded.getSum(), statistics.getCount() - bucket.folded.getCount(),
+                    statistics.getMin(), statistics.getMax());
+            merge(bucket.period * tiers[0].getBucketLength(), unfolded, nowTimestamp);
+            bucket.folded = statistics;
+        }
+    }
+
+    /**
+     * Merges the statistics into the finest tier, and into every coarser tier whose finer bucket was compacted already.
+     * */
+    private boolean merge(long timestamp, PartialStatistics statistics, long nowTimestamp) {
+        boolean isMerged = tiers[0].merge(timestamp, statistics, nowTimestamp);
+        for (int i = 0; i < compactedPeriods.length && Math.floorDiv(timestamp, tiers[i].getBucketLength()) <= compactedPeriods[i]; i++) {
+            isMerged |= tiers[i + 1].merge(timestamp, statistics, nowTimestamp);
+        }
+        return isMerged;
+    }
+
+    private static long ceil(long timestamp, long bucketLength) {
+        return Math.floorDiv(timestamp + bucketLength - 1, bucketLength) * bucketLength;
+    }
+
+    /**
+     * A finest bucket that is not compacted yet. The folded statistics are guarded by the statistics lock.
+     * */
+    private static class OpenBucket {
+        private final long period;
+        private final StripedStatisticsAccumulator accumulator = new StripedStatisticsAccumulator();
+        private volatile boolean isRetired;
+        private PartialStatistics folded = PartialStatistics.EMPTY;
+
+        private OpenBucket(long period) {
+            this.period = period;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.n26.atrposki.transactions;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ingestion stage in front of the {@link TransactionMadeEventHandler}: it decides by the timestamp whether a transaction is published now, later or never.
+ * <p>
+ * The watermark is now minus transactions.watermark.allowedLatenessMillis and it never moves back, even if the clock does.
+ * Transactions older than the watermark are expired: no statistics window can contain them anymore, so they are dropped before they reach the handler (and its history and log).
+ * Transactions stamped in the future (more than futureToleranceMillis ahead, to allow for clock skew) are parked in a buffer ordered by timestamp
+ * and published once their time comes, on the expiry {@link HashedTimingWheel}, so they are counted when they are current and not before.
+ * Transactions more than maxFutureMillis ahead, or arriving while maxParked transactions are parked, are dropped.
+ * <p>
+ * Parked transactions are only in memory, they are logged when they are promoted.
+ * */
+@Component
+public class IngestionWatermark {
+    private static final IngestionWatermark NONE = new IngestionWatermark();
+
+    /**
+     * What happened to an admitted transaction.
+     * */
+    public enum Admission {
+        /** current, to be published right away */
+        CURRENT,
+        /** in the future, parked until it is current */
+        PARKED,
+        /** expired or too far in the future */
+        DROPPED
+    }
+
+    private final boolean isEnabled;
+    private final ITimeService timeService;
+    private final TransactionMadeEventHandler transactionMadeEventHandler;
+    private final HashedTimingWheel timingWheel;
+    private final long allowedLatenessMillis;
+    private final long futureToleranceMillis;
+    private final long maxFutureMillis;
+    private final int maxParked;
+    private final AtomicLong watermark = new AtomicLong(Long.MIN_VALUE);
+    private final PriorityQueue<Transaction> parked = new PriorityQueue<>(Comparator.comparingLong(Transaction::getTimestamp));
+    private Counter droppedTransactions = new Counter("dropped_total", "");
+    private Counter parkedTransactions = new Counter("parked_total", "");
+    private Counter promotedTransactions = new Counter("promoted_total", "");
+
+    /**
+     * @param timingWheel           promotes the parked transactions when they are due, null to promote only by {@link #promoteDue()}
+     * @param allowedLatenessMillis how old a transaction may be before it is dropped
+     * @param futureToleranceMillis how far in the future a transaction may be and still be published right away
+     * @param maxFutureMillis       how far in the future a transaction may be and still be parked
+     * @param maxParked             the most transactions parked at a time
+     * */
+    public IngestionWatermark(ITimeService timeService, TransactionMadeEventHandler transactionMadeEventHandler, HashedTimingWheel timingWheel,
+                              long allowedLatenessMillis, long futureToleranceMillis, long maxFutureMillis, int maxParked) {
+        this.isEnabled = true;
+        this.timeService = timeService;
+        this.transactionMadeEventHandler = transactionMadeEventHandler;
+        this.timingWheel = timingWheel;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+        this.futureToleranceMillis = futureToleranceMillis;
+        this.maxFutureMillis = maxFutureMillis;
+        this.maxParked = maxParked;
+    }
+
+    @Autowired
+    public IngestionWatermark(ITimeService timeService,
+                              TransactionMadeEventHandler transactionMadeEventHandler,
+                              HashedTimingWheel expiryTimingWheel,
+                              @Value("${transactions.watermark.allowedLatenessMillis:3600000}") long allowedLatenessMillis,
+                              @Value("${transactions.watermark.futureToleranceMillis:0}") long futureToleranceMillis,
+                              @Value("${transactions.watermark.maxFutureMillis:60000}") long maxFutureMillis,
+                              @Value("${transactions.watermark.maxParked:100000}") int maxParked,
+                              MetricsRegistry metricsRegistry) {
+        this(timeService, transactionMadeEventHandler, expiryTimingWheel, allowedLatenessMillis, futureToleranceMillis, maxFutureMillis, maxParked);
+        registerMetrics(metricsRegistry);
+    }
+
+    private IngestionWatermark() {
+        this.isEnabled = false;
+        this.timeService = null;
+        this.transactionMadeEventHandler = null;
+        this.timingWheel = null;
+        this.allowedLatenessMillis = Long.MAX_VALUE;
+        this.futureToleranceMillis = Long.MAX_VALUE;
+        this.maxFutureMillis = Long.MAX_VALUE;
+        this.maxParked = 0;
+    }
+
+    /**
+     * @return a watermark that lets every transaction through as current
+     * */
+    public static IngestionWatermark none() {
+        return NONE;
+    }
+
+    /**
+     * Drops or parks the transaction if it is not current.
+     * @return CURRENT if the caller is to publish the transaction
+     * */
+    public Admission admit(Transaction transaction) {
+        if (!isEnabled) {
+            return Admission.CURRENT;
+        }
+        long now = timeService.getUtcNow();
+        long timestamp = transaction.getTimestamp();
+        if (timestamp < advanceWatermark(now - allowedLatenessMillis) || timestamp - now > maxFutureMillis) {
+            droppedTransactions.increment();
+            return Admission.DROPPED;
+        }
+        if (timestamp - now <= futureToleranceMillis) {
+            return Admission.CURRENT;
+        }
+        synchronized (parked) {
+            if (parked.size() >= maxParked) {
+                droppedTransactions.increment();
+                return Admission.DROPPED;
+            }
+            parked.add(transaction);
+        }
+        parkedTransactions.increment();
+        if (timingWheel != null) {
+            //the wheel runs a task on the tick of its deadline, which may start before the deadline itself
+            timingWheel.schedule(timestamp - futureToleranceMillis + timingWheel.getTickDuration(), this::promoteDue);
+        }
+        return Admission.PARKED;
+    }
+
+    /**
+     * Publishes the parked transactions that became current, oldest first. Called by the timing wheel, public for tests.
+     * @return the number of promoted transactions
+     * */
+    public int promoteDue() {
+        if (!isEnabled) {
+            return 0;
+        }
+        long now = timeService.getUtcNow();
+        List<Transaction> due = new ArrayList<>();
+        synchronized (parked) {
+            while (!parked.isEmpty() && parked.peek().getTimestamp() - now <= futureToleranceMillis) {
+                due.add(parked.poll());
+            }
+        }
+        if (!due.isEmpty()) {
+            transactionMadeEventHandler.publishAll(due);
+            promotedTransactions.add(due.size());
+        }
+        return due.size();
+    }
+
+    /**
+     * @return the timestamp below which transactions are dropped, Long.MIN_VALUE before the first admission
+     * */
+    public long getWatermark() {
+        return watermark.get();
+    }
+
+    /**
+     * @return the number of parked transactions
+     * */
+    public int getParkedCount() {
+        synchronized (parked) {
+            return parked.size();
+        }
+    }
+
+    private long advanceWatermark(long candidate) {
+        return watermark.accumulateAndGet(candidate, Math::max);
+    }
+
+    private void registerMetrics(MetricsRegistry registry) {
+        droppedTransactions = registry.counter("transactions_dropped_total", "Number of transactions dropped as expired, too far in the future or with a full parking buffer");
+        parkedTransactions = registry.counter("transactions_parked_total", "Number of future dated transactions parked until they are current");
+        promotedTransactions = registry.counter("transactions_promoted_total", "Number of parked transactions published once they became current");
+        registry.gauge("transactions_parked", "Number of transactions parked right now", this::getParkedCount);
+        registry.gauge("transactions_watermark_lag_seconds", "Distance of the watermark from now", () -> (timeService.getUtcNow() - watermark.get()) / 1000.0);
+    }
+}
@@ -0,0 +1,107 @@
+package com.n26.atrposki.transactions;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.n26.atrposki.domain.Transaction;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Incremental reader of a batch of transactions. The body can either be a json array of transactions or newline delimited json (one transaction object per line).
+ * <p>
+ * It uses the Jackson streaming parser directly, so the body is never buffered as a whole and no intermediate DTOs or trees are created:
+ * the amount, the timestamp and the optional key are read into primitives and a {@link Transaction} is created right away.
+ * A record is rejected if it is not an object, if it doesn't have a numeric amount and an integer timestamp or if it has a key that is not an integer. Unknown fields are ignored.
+ * Syntax errors can not be recovered from, hence they end the batch.
+ * */
+public class TransactionBatchReader implements Closeable {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+    private long rejectedCount;
+    private boolean isInArray;
+
+    public TransactionBatchReader(InputStream body) throws IOException {
+        this.parser = JSON_FACTORY.createParser(body);
+    }
+
+    /**
+     * Reads up to maxCount valid transactions into the chunk.
+     * @return false if the end of the body was reached
+     * @throws IOException on syntax errors or if the body can not be read
+     * */
+    public boolean readChunk(List<Transaction> chunk, int maxCount) throws IOException {
+        while (chunk.size() < maxCount) {
+            JsonToken token = parser.nextToken();
+            if (token == null) {
+                return false;
+            }
+            if (token == JsonToken.START_ARRAY && !isInArray) {
+                isInArray = true;
+            } else if (token == JsonToken.END_ARRAY && isInArray) {
+                isInArray = false;
+            } else if (token == JsonToken.START_OBJECT) {
+                Transaction transaction = readTransaction();
+                if (transaction == null) {
+                    rejectedCount++;
+                } else {
+                    chunk.add(transaction);
+                }
+            } else {
+                parser.skipChildren();
+                rejectedCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of records rejected so far
+     * */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+    private Transaction readTransaction() throws IOException {
+        boolean hasAmount = false;
+        boolean hasTimestamp = false;
+        double amount = 0;
+        long timestamp = 0;
+        long key = Transaction.NO_KEY;
+        boolean isValid = true;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("amount".equals(field)) {
+                hasAmount = value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT;
+                amount = hasAmount ? parser.getDoubleValue() : 0;
+                isValid &= hasAmount;
+            } else if ("timestamp".equals(field)) {
+                hasTimestamp = value == JsonToken.VALUE_NUMBER_INT;
+                timestamp = hasTimestamp ? parser.getLongValue() : 0;
+                isValid &= hasTimestamp;
+            } else if ("key".equals(field)) {
+                boolean hasKey = value == JsonToken.VALUE_NUMBER_INT;
+                key = hasKey ? parser.getLongValue() : Transaction.NO_KEY;
+                isValid &= hasKey || value == JsonToken.VALUE_NULL;
+            }
+            parser.skipChildren();
+        }
+        return isValid && hasAmount && hasTimestamp ? new Transaction(amount, timestamp, key) : null;
+    }
+}
@@ -0,0 +1,34 @@
+package com.n26.atrposki.transactions;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import lombok.Data;
+
+/**
+ * Outcome of a batch of transactions: how many were accepted (published or parked until they are current), how many of the accepted are in the window of interest,
+ * how many were rejected as malformed and how many were dropped by the ingestion watermark (expired or too far in the future).
+ * */
+@Data
+public class TransactionBatchResultDTO {
+    long accepted;
+    long inWindow;
+    long rejected;
+    long dropped;
+
+    public TransactionBatchResultDTO(){}
+
+    public TransactionBatchResultDTO(long accepted, long inWindow, long rejected) {
+        this(accepted, inWindow, rejected, 0);
+    }
+
+    public TransactionBatchResultDTO(long accepted, long inWindow, long rejected, long dropped) {
+        this.accepted = accepted;
+        this.inWindow = inWindow;
+        this.rejected = rejected;
+        this.dropped = dropped;
+    }
+}
@@ -6,6 +6,7 @@ package com.n26.atrposki.transactions;
  *
  */
 
+import com.n26.atrposki.domain.Transaction;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.RequiredArgsConstructor;
@@ -14,6 +15,8 @@ import lombok.RequiredArgsConstructor;
 public class TransactionDTO {
     double amount;
     long timestamp;
+    /** optional account or merchant of the transaction, see {@link Transaction#getKey()} */
+    long key = Transaction.NO_KEY;
 
     public TransactionDTO(){}
 
@@ -22,4 +25,16 @@ public class TransactionDTO {
         this.timestamp = timestamp;
     }
 
+    public TransactionDTO(double amount, long timestamp, long key) {
+        this(amount, timestamp);
+        this.key = key;
+    }
+
+    /**
+     * A missing or null key is a transaction without a key. Jackson would set a null into the primitive as 0, which is a valid key.
+     * */
+    public void setKey(Long key) {
+        this.key = key == null ? Transaction.NO_KEY : key;
+    }
+
 }
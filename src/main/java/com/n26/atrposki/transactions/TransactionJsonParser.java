@@ -0,0 +1,261 @@
+package com.n26.atrposki.transactions;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+/**
+ * A specialized parser for the single transaction payload: a json object with exactly the fields amount and timestamp and optionally the integer key, in any order.
+ * It reads the bytes in place into the primitive fields of a {@link TransactionDTO}: no tokens, strings or boxed numbers are created.
+ * <p>
+ * The parser only handles the common shape. Anything else (unknown or duplicated fields, escapes, numbers as strings, a timestamp that is not an integer,
+ * an amount that can not be converted exactly by the fast path below or plain malformed json) makes it return false without throwing,
+ * and the caller is expected to fall back to a general json parser, which then also produces the error for input that is really malformed.
+ * <p>
+ * The amount is converted with the classic fast path for decimal to double conversion: a decimal mantissa of up to 2^53 scaled by a power of ten
+ * of at most 22 is exact in double arithmetic, so the result is correctly rounded, exactly as Jackson would parse it.
+ * */
+public class TransactionJsonParser {
+    private static final byte[] AMOUNT = "amount".getBytes();
+    private static final byte[] TIMESTAMP = "timestamp".getBytes();
+    private static final byte[] KEY = "key".getBytes();
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final int AMOUNT_FIELD = 1;
+    private static final int TIMESTAMP_FIELD = 2;
+    private static final int KEY_FIELD = 4;
+
+    private TransactionJsonParser() {
+    }
+
+    /**
+     * @param buffer the bytes of the payload (utf-8)
+     * @param offset index of the first byte of the payload
+     * @param length number of bytes of the payload
+     * @param target receives the amount, the timestamp and the key if there is one. It may be partially written if the parsing fails
+     * @return true if the payload had the expected shape and was parsed into the target
+     * */
+    public static boolean parse(byte[] buffer, int offset, int length, TransactionDTO target) {
+        Cursor cursor = new Cursor(buffer, offset, offset + length);
+        if (!cursor.skipWhitespaceAndExpect('{')) {
+            return false;
+        }
+        int parsedFields = 0;
+        while (true) {
+            int field = cursor.readFieldName();
+            if (field == 0 || (parsedFields & field) != 0 || !cursor.skipWhitespaceAndExpect(':')) {
+                return false;
+            }
+            cursor.skipWhitespace();
+            if (field == AMOUNT_FIELD) {
+                if (!cursor.readDouble()) {
+                    return false;
+                }
+                target.setAmount(cursor.doubleValue);
+            } else {
+                if (!cursor.readLong()) {
+                    return false;
+                }
+                if (field == TIMESTAMP_FIELD) {
+                    target.setTimestamp(cursor.longValue);
+                } else {
+                    target.setKey(cursor.longValue);
+                }
+            }
+            parsedFields |= field;
+            cursor.skipWhitespace();
+            if (cursor.peek() == ',') {
+                cursor.position++;
+                continue;
+            }
+            if (!cursor.skipWhitespaceAndExpect('}')) {
+                return false;
+            }
+            cursor.skipWhitespace();
+            return (parsedFields & (AMOUNT_FIELD | TIMESTAMP_FIELD)) == (AMOUNT_FIELD | TIMESTAMP_FIELD) && cursor.position == cursor.end;
+        }
+    }
+
+    /**
+     * The position in the payload and the last parsed number. It never escapes {@link #parse(byte[], int, int, TransactionDTO)},
+     * so the JIT can keep it in registers.
+     * */
+    private static class Cursor {
+        final byte[] buffer;
+        final int end;
+        int position;
+        long longValue;
+        double doubleValue;
+
+        Cursor(byte[] buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int peek() {
+            return position < end ? buffer[position] : -1;
+        }
+
+        void skipWhitespace() {
+            while (position < end) {
+                byte b = buffer[position];
+                if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                    return;
+                }
+                position++;
+            }
+        }
+
+        boolean skipWhitespaceAndExpect(char expected) {
+            skipWhitespace();
+            if (peek() != expected) {
+                return false;
+            }
+            position++;
+            return true;
+        }
+
+        /**
+         * @return AMOUNT_FIELD, TIMESTAMP_FIELD, KEY_FIELD or 0 for any other (or malformed) field name
+         * */
+        int readFieldName() {
+            if (!skipWhitespaceAndExpect('"')) {
+                return 0;
+            }
+            if (matches(AMOUNT)) {
+                return AMOUNT_FIELD;
+            }
+            if (matches(TIMESTAMP)) {
+                return TIMESTAMP_FIELD;
+            }
+            if (matches(KEY)) {
+                return KEY_FIELD;
+            }
+            return 0;
+        }
+
+        private boolean matches(byte[] name) {
+            int closingQuote = position + name.length;
+            if (closingQuote >= end || buffer[closingQuote] != '"') {
+                return false;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (buffer[position + i] != name[i]) {
+                    return false;
+                }
+            }
+            position = closingQuote + 1;
+            return true;
+        }
+
+        /**
+         * Reads a json integer into longValue.
+         * @return false if it is not an integer that fits in a long
+         * */
+        boolean readLong() {
+            boolean isNegative = peek() == '-';
+            if (isNegative) {
+                position++;
+            }
+            int start = position;
+            long value = 0;
+            while (position < end && isDigit(buffer[position])) {
+                int digit = buffer[position] - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    return false;
+                }
+                value = value * 10 + digit;
+                position++;
+            }
+            if (!isValidIntegerPart(start) || isNumberContinuation()) {
+                return false;
+            }
+            longValue = isNegative ? -value : value;
+            return true;
+        }
+
+        /**
+         * Reads a json number into doubleValue.
+         * @return false if it is not a json number or can not be converted exactly by the fast path
+         * */
+        boolean readDouble() {
+            boolean isNegative = peek() == '-';
+            if (isNegative) {
+                position++;
+            }
+            int start = position;
+            long mantissa = 0;
+            int exponent = 0;
+            while (position < end && isDigit(buffer[position])) {
+                mantissa = mantissa * 10 + (buffer[position] - '0');
+                if (mantissa > MAX_EXACT_MANTISSA) {
+                    return false;
+                }
+                position++;
+            }
+            if (!isValidIntegerPart(start)) {
+                return false;
+            }
+            if (peek() == '.') {
+                position++;
+                int fractionStart = position;
+                while (position < end && isDigit(buffer[position])) {
+                    mantissa = mantissa * 10 + (buffer[position] - '0');
+                    if (mantissa > MAX_EXACT_MANTISSA) {
+                        return false;
+                    }
+                    exponent--;
+                    position++;
+                }
+                if (position == fractionStart) {
+                    return false;
+                }
+            }
+            if (peek() == 'e' || peek() == 'E') {
+                position++;
+                boolean isExponentNegative = peek() == '-';
+                if (isExponentNegative || peek() == '+') {
+                    position++;
+                }
+                int exponentStart = position;
+                int explicitExponent = 0;
+                while (position < end && isDigit(buffer[position]) && explicitExponent < 1000) {
+                    explicitExponent = explicitExponent * 10 + (buffer[position] - '0');
+                    position++;
+                }
+                if (position == exponentStart) {
+                    return false;
+                }
+                exponent += isExponentNegative ? -explicitExponent : explicitExponent;
+            }
+            if (isNumberContinuation() || exponent < -22 || exponent > 22) {
+                return false;
+            }
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            doubleValue = isNegative ? -value : value;
+            return true;
+        }
+
+        /**
+         * Json integer parts are at least one digit and have no leading zeros.
+         * */
+        private boolean isValidIntegerPart(int start) {
+            int digits = position - start;
+            return digits > 0 && !(digits > 1 && buffer[start] == '0');
+        }
+
+        private boolean isNumberContinuation() {
+            int next = peek();
+            return next == '.' || next == 'e' || next == 'E' || isDigit(next);
+        }
+
+        private static boolean isDigit(int b) {
+            return b >= '0' && b <= '9';
+        }
+    }
+}
@@ -6,6 +6,7 @@ package com.n26.atrposki.transactions;
  *
  */
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.n26.atrposki.domain.Transaction;
 import com.n26.atrposki.domain.TransactionMadeEventHandler;
 import com.n26.atrposki.statistics.StatisticsService;
@@ -13,8 +14,14 @@ import com.n26.atrposki.utils.time.ITimeService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static com.n26.atrposki.utils.time.ITimeService.MILISECONDS_IN_MINUTE;
 
@@ -22,20 +29,105 @@ import static com.n26.atrposki.utils.time.ITimeService.MILISECONDS_IN_MINUTE;
 public class TransactionsService {
     private static final Logger LOG = LoggerFactory.getLogger(TransactionsService.class);
 
+    public static final int DEFAULT_BATCH_CHUNK_SIZE = 1000;
+
     TransactionMadeEventHandler transactionMadeEventHandler;
     ITimeService timeService;
+    int batchChunkSize;
+    IngestionWatermark watermark;
 
-    @Autowired
     public TransactionsService(TransactionMadeEventHandler transactionMadeEventHandler, ITimeService timeService) {
+        this(transactionMadeEventHandler, timeService, DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    public TransactionsService(TransactionMadeEventHandler transactionMadeEventHandler, ITimeService timeService, int batchChunkSize) {
+        this(transactionMadeEventHandler, timeService, batchChunkSize, IngestionWatermark.none());
+    }
+
+    /**
+     * @param watermark decides which transactions are published right away, the others are parked or dropped by it
+     * */
+    @Autowired
+    public TransactionsService(TransactionMadeEventHandler transactionMadeEventHandler,
+                               ITimeService timeService,
+                               @Value("${transactions.batch.chunkSize:1000}") int batchChunkSize,
+                               IngestionWatermark watermark) {
         this.transactionMadeEventHandler = transactionMadeEventHandler;
         this.timeService = timeService;
+        this.batchChunkSize = batchChunkSize;
+        this.watermark = watermark;
     }
 
+    /**
+     * @return true if the transaction was accepted and is in the window of interest, false if it is older or the watermark dropped it
+     * */
     public boolean createTransaction(TransactionDTO transaction) {
-        LOG.info("creating transaction"+transaction);
+        LOG.debug("creating transaction {}", transaction);
+        long now = timeService.getUtcNow();
+        Transaction transactionEvent = new Transaction(transaction.getAmount(), transaction.getTimestamp(), transaction.getKey());
+        IngestionWatermark.Admission admission = watermark.admit(transactionEvent);
+        if (admission == IngestionWatermark.Admission.CURRENT) {
+            transactionMadeEventHandler.publish(transactionEvent);
+        }
+        return admission != IngestionWatermark.Admission.DROPPED && isInWindowOfInterest(transactionEvent, now);
+    }
+
+    /**
+     * Reads a json array or newline delimited json body of transactions incrementally and publishes them in chunks of batchChunkSize transactions,
+     * each chunk with a single {@link TransactionMadeEventHandler#publishAll(List)}. Only one chunk is in memory at a time.
+     * Every transaction goes through the {@link IngestionWatermark}, only the current ones are published with the chunk. The dropped ones are not accepted.
+     * A syntax error ends the batch, the transactions published before it stay published and the error counts as one rejected record.
+     * A transaction that a listener failed on is published all the same (the failure is logged), so it is counted as accepted, like the single transaction endpoint answers 201 for it.
+     * @param body the request body
+     * @return the number of accepted, in window, rejected and dropped transactions
+     * */
+    public TransactionBatchResultDTO createTransactions(InputStream body) {
         long now = timeService.getUtcNow();
-        Transaction transactionEvent = new Transaction(transaction.getAmount(),transaction.getTimestamp());
-        transactionMadeEventHandler.publish(transactionEvent);
-        return transactionEvent.getTimestamp() > now - MILISECONDS_IN_MINUTE;
+        long accepted = 0;
+        long inWindow = 0;
+        long rejected = 0;
+        long dropped = 0;
+        List<Transaction> chunk = new ArrayList<>(batchChunkSize);
+        try (TransactionBatchReader reader = new TransactionBatchReader(body)) {
+            boolean hasMore = true;
+            while (hasMore) {
+                try {
+                    hasMore = reader.readChunk(chunk, batchChunkSize);
+                } catch (JsonProcessingException e) {
+                    LOG.warn("malformed transaction batch, ignoring the rest of it", e);
+                    hasMore = false;
+                    rejected++;
+                }
+                if (!chunk.isEmpty()) {
+                    List<Transaction> current = new ArrayList<>(chunk.size());
+                    for (Transaction transaction : chunk) {
+                        IngestionWatermark.Admission admission = watermark.admit(transaction);
+                        if (admission == IngestionWatermark.Admission.DROPPED) {
+                            dropped++;
+                            continue;
+                        }
+                        if (admission == IngestionWatermark.Admission.CURRENT) {
+                            current.add(transaction);
+                        }
+                        accepted++;
+                        if (isInWindowOfInterest(transaction, now)) {
+                            inWindow++;
+                        }
+                    }
+                    if (!current.isEmpty()) {
+                        transactionMadeEventHandler.publishAll(current);
+                    }
+                    chunk.clear();
+                }
+            }
+            rejected += reader.getRejectedCount();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new TransactionBatchResultDTO(accepted, inWindow, rejected, dropped);
+    }
+
+    private boolean isInWindowOfInterest(Transaction transaction, long now) {
+        return transaction.getTimestamp() > now - MILISECONDS_IN_MINUTE;
     }
 }
@@ -0,0 +1,241 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Event history for events that are a (timestamp, value) pair, like transactions. Instead of the event objects it keeps
+ * the logical time, timestamp and value of every event in parallel primitive arrays, 24 bytes per event.
+ * <p>
+ * The arrays are split in fixed size segments linked from the oldest to the newest one. A publisher reserves a slot with a single atomic increment,
+ * writes the timestamp and the value and then publishes the slot by an ordered write of its logical time, so appending is lock free.
+ * Eviction moves the head forward and drops a segment once it is fully evicted.
+ * <p>
+ * The history is read through a {@link Cursor}, which does not allocate per event. The cursor is weakly consistent:
+ * it sees the events published before it was opened, skips the ones that are still being written
+ * and may still return events that were evicted while it was iterating.
+ * {@link #toList()} materializes the events again, through the event factory, for the consumers that need objects.
+ * */
+public class ColumnarEventHistory<TMsg> implements IEventHistory<TMsg> {
+    public static final int DEFAULT_SEGMENT_SIZE = 4096;
+    private static final AtomicReferenceFieldUpdater<Segment, Segment> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+    @FunctionalInterface
+    public interface EventFactory<TMsg> {
+        TMsg create(double value, long timestamp);
+    }
+
+    private final int segmentSize;
+    private final ToLongFunction<TMsg> timestampOf;
+    private final ToDoubleFunction<TMsg> valueOf;
+    private final EventFactory<TMsg> eventFactory;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Segment headSegment;
+    private volatile Segment tailSegment;
+    private volatile long head;
+
+    public ColumnarEventHistory(ToLongFunction<TMsg> timestampOf, ToDoubleFunction<TMsg> valueOf, EventFactory<TMsg> eventFactory) {
+        this(DEFAULT_SEGMENT_SIZE, timestampOf, valueOf, eventFactory);
+    }
+
+    /**
+     * @param segmentSize  number of events in a segment
+     * @param timestampOf  extracts the timestamp column from the event
+     * @param valueOf      extracts the value column from the event
+     * @param eventFactory creates an event from its value and timestamp, used by {@link #toList()}
+     * @throws IllegalArgumentException if the segment size is not positive
+     * */
+    public ColumnarEventHistory(int segmentSize, ToLongFunction<TMsg> timestampOf, ToDoubleFunction<TMsg> valueOf, EventFactory<TMsg> eventFactory) throws IllegalArgumentException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize must be positive");
+        }
+        this.segmentSize = segmentSize;
+        this.timestampOf = timestampOf;
+        this.valueOf = valueOf;
+        this.eventFactory = eventFactory;
+        this.headSegment = new Segment(0, segmentSize);
+        this.tailSegment = headSegment;
+    }
+
+    @Override
+    public void add(TimedEvent<TMsg> event) {
+        write(tail.getAndIncrement(), event);
+    }
+
+    @Override
+    public void addAll(List<TimedEvent<TMsg>> events) {
+        long index = tail.getAndAdd(events.size());
+        for (TimedEvent<TMsg> event : events) {
+            write(index++, event);
+        }
+    }
+
+    /**
+     * Only evicts published events, the eviction stops at the first event that is still being written.
+     * */
+    @Override
+    public boolean evictOldestIf(EventRetentionPolicy<TMsg> retentionPolicy, long retainedCount, long oldestTimestamp) {
+        long index = head;
+        if (index >= tail.get()) {
+            return false;
+        }
+        Segment segment = headSegment;
+        while (index >= segment.firstIndex + segmentSize) {
+            Segment next = segment.next;
+            if (next == null) {
+                return false;
+            }
+            headSegment = next;
+            segment = next;
+        }
+        int offset = (int) (index - segment.firstIndex);
+        if (segment.logicalTimes.get(offset) == 0) {
+            return false;
+        }
+        if (!retentionPolicy.shouldEvict(segment.timestamps[offset], retainedCount, oldestTimestamp)) {
+            return false;
+        }
+        head = index + 1;
+        return true;
+    }
+
+    @Override
+    public List<TimedEvent<TMsg>> toList() {
+        List<TimedEvent<TMsg>> events = new ArrayList<>();
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            events.add(new TimedEvent<>(cursor.getLogicalTime(), eventFactory.create(cursor.getValue(), cursor.getTimestamp())));
+        }
+        return events;
+    }
+
+    @Override
+    public long size() {
+        return tail.get() - head;
+    }
+
+    /**
+     * @return a cursor positioned before the oldest retained event
+     * */
+    public Cursor cursor() {
+        //the segment is read before the head, the evicting thread writes them in the opposite order
+        Segment segment = headSegment;
+        return new Cursor(segment, head, tail.get());
+    }
+
+    private void write(long index, TimedEvent<TMsg> event) {
+        Segment segment = segmentOf(index);
+        int offset = (int) (index - segment.firstIndex);
+        TMsg msg = event.getEvent();
+        segment.timestamps[offset] = timestampOf.applyAsLong(msg);
+        segment.values[offset] = valueOf.applyAsDouble(msg);
+        //logical times are stored +1, 0 marks a slot that is reserved but not yet written
+        segment.logicalTimes.lazySet(offset, event.getLogicalTime() + 1);
+    }
+
+    private Segment segmentOf(long index) {
+        Segment segment = tailSegment;
+        if (index < segment.firstIndex) {
+            //a reserved slot is never evicted before it is written, so its segment is still reachable from the head
+            segment = headSegment;
+        }
+        while (index >= segment.firstIndex + segmentSize) {
+            Segment next = segment.next;
+            if (next == null) {
+                //losing the race is fine, the winners segment is used
+                NEXT.compareAndSet(segment, null, new Segment(segment.firstIndex + segmentSize, segmentSize));
+                next = segment.next;
+            }
+            segment = next;
+        }
+        if (segment.firstIndex > tailSegment.firstIndex) {
+            tailSegment = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * Forward only cursor over the retained events. It reads the columns in place and allocates nothing per event.
+     * A cursor is not thread safe, every reader should open its own.
+     * */
+    public static class Cursor {
+        private final int segmentSize;
+        private final long end;
+        private Segment segment;
+        private long index;
+        private long logicalTime;
+        private long timestamp;
+        private double value;
+
+        private Cursor(Segment segment, long start, long end) {
+            this.segment = segment;
+            this.segmentSize = segment.timestamps.length;
+            this.index = start;
+            this.end = end;
+        }
+
+        /**
+         * Moves to the next published event.
+         * @return false if there are no more events
+         * */
+        public boolean next() {
+            while (index < end) {
+                while (index >= segment.firstIndex + segmentSize) {
+                    if (segment.next == null) {
+                        return false;
+                    }
+                    segment = segment.next;
+                }
+                int offset = (int) (index - segment.firstIndex);
+                index++;
+                long storedLogicalTime = segment.logicalTimes.get(offset);
+                if (storedLogicalTime != 0) {
+                    logicalTime = storedLogicalTime - 1;
+                    timestamp = segment.timestamps[offset];
+                    value = segment.values[offset];
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public long getLogicalTime() {
+            return logicalTime;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public double getValue() {
+            return value;
+        }
+    }
+
+    private static class Segment {
+        final long firstIndex;
+        final AtomicLongArray logicalTimes;
+        final long[] timestamps;
+        final double[] values;
+        volatile Segment next;
+
+        Segment(long firstIndex, int size) {
+            this.firstIndex = firstIndex;
+            this.logicalTimes = new AtomicLongArray(size);
+            this.timestamps = new long[size];
+            this.values = new double[size];
+        }
+    }
+}
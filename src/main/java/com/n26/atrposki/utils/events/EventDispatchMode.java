@@ -0,0 +1,19 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+/**
+ * The available {@link IEventDispatcher} implementations.
+ * */
+public enum EventDispatchMode {
+    /** {@link SynchronousEventDispatcher} */
+    SYNC,
+    /** {@link RingBufferEventDispatcher} */
+    ASYNC,
+    /** {@link ParallelEventDispatcher} */
+    PARALLEL
+}
@@ -0,0 +1,88 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Describes how much event history an {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl} keeps.
+ * An event is evicted when there are more than maxCount events retained or when it is older than maxAge.
+ * The age of an event is calculated from the timestamp extracted from the event load, relative to the clock.
+ * */
+public class EventRetentionPolicy<TMsg> {
+    public static final long UNBOUNDED = Long.MAX_VALUE;
+
+    private final long maxCount;
+    private final long maxAge;
+    private final ToLongFunction<TMsg> timestampOf;
+    private final LongSupplier clock;
+
+    /**
+     * @param maxCount    maximum number of events retained, or {@link #UNBOUNDED}
+     * @param maxAge      maximum age of a retained event in miliseconds, or {@link #UNBOUNDED}
+     * @param timestampOf extracts the timestamp in miliseconds from an event load. Only used if maxAge is bounded
+     * @param clock       supplies utc now in miliseconds. Only used if maxAge is bounded
+     * @throws IllegalArgumentException if maxCount or maxAge are negative, or if the age is bounded without a timestamp extractor and clock
+     * */
+    public EventRetentionPolicy(long maxCount, long maxAge, ToLongFunction<TMsg> timestampOf, LongSupplier clock) throws IllegalArgumentException {
+        if (maxCount < 0 || maxAge < 0) {
+            throw new IllegalArgumentException("maxCount and maxAge can not be negative");
+        }
+        if (maxAge != UNBOUNDED && (timestampOf == null || clock == null)) {
+            throw new IllegalArgumentException("age based retention needs a timestamp extractor and a clock");
+        }
+        this.maxCount = maxCount;
+        this.maxAge = maxAge;
+        this.timestampOf = timestampOf;
+        this.clock = clock;
+    }
+
+    public static <TMsg> EventRetentionPolicy<TMsg> unbounded() {
+        return new EventRetentionPolicy<>(UNBOUNDED, UNBOUNDED, null, null);
+    }
+
+    public static <TMsg> EventRetentionPolicy<TMsg> byCount(long maxCount) {
+        return new EventRetentionPolicy<>(maxCount, UNBOUNDED, null, null);
+    }
+
+    public boolean isUnbounded() {
+        return maxCount == UNBOUNDED && maxAge == UNBOUNDED;
+    }
+
+    /**
+     * @return the oldest timestamp an event can have and still be retained, or Long.MIN_VALUE if the age is not bounded.
+     * The value is meant to be read once per eviction round.
+     * */
+    long getOldestRetainedTimestamp() {
+        return maxAge == UNBOUNDED ? Long.MIN_VALUE : clock.getAsLong() - maxAge;
+    }
+
+    /**
+     * @return true if the event should be evicted
+     * @param event           the oldest retained event
+     * @param retainedCount   number of events retained, including this one
+     * @param oldestTimestamp the value of {@link #getOldestRetainedTimestamp()} for this eviction round
+     * */
+    boolean shouldEvict(TimedEvent<TMsg> event, long retainedCount, long oldestTimestamp) {
+        if (retainedCount > maxCount) {
+            return true;
+        }
+        return maxAge != UNBOUNDED && timestampOf.applyAsLong(event.getEvent()) < oldestTimestamp;
+    }
+
+    /**
+     * Same as {@link #shouldEvict(TimedEvent, long, long)} for histories that keep the timestamp of the event instead of the event itself.
+     * @param timestamp the timestamp of the oldest retained event
+     * */
+    boolean shouldEvict(long timestamp, long retainedCount, long oldestTimestamp) {
+        if (retainedCount > maxCount) {
+            return true;
+        }
+        return maxAge != UNBOUNDED && timestamp < oldestTimestamp;
+    }
+}
@@ -0,0 +1,39 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ * The strategy an {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl} uses to deliver the timed events to the listeners.
+ * The event handler owns the logical time and the history, the dispatcher only decides on which thread and when the listeners are called.
+ */
+
+import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler.CheckedConsumer;
+
+public interface IEventDispatcher<TMsg> {
+    /**
+     * Registers a listener.
+     * @param listener        the listener to call for every dispatched event
+     * @param fromLogicalTime the logical time of the first event the listener is interested in
+     * */
+    void subscribe(CheckedConsumer<TMsg, Exception> listener, long fromLogicalTime);
+
+    /**
+     * Gives the dispatcher read access to the retained events, for dispatchers that deliver events again from the history. Called by the event handler before any event is dispatched.
+     * */
+    default void setHistory(IEventHistory<TMsg> history) {
+    }
+
+    /**
+     * Delivers the event to all the listeners. Events are dispatched with unique, gapless logical times.
+     * @throws AggregateException if the dispatcher calls the listeners on the callers thread and some of them raised exceptions
+     * */
+    void dispatch(TimedEvent<TMsg> event) throws AggregateException;
+
+    /**
+     * Stops the dispatcher after the listeners handled every event up to lastLogicalTime, or after the timeout.
+     * @param lastLogicalTime the logical time of the last published event
+     * @param timeoutMillis   the maximum time to wait for the listeners to drain
+     * @return true if everything was drained before the timeout
+     * */
+    boolean shutdown(long lastLogicalTime, long timeoutMillis);
+}
@@ -0,0 +1,44 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.List;
+
+/**
+ * The storage of the event history of an {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl}.
+ * Events are appended concurrently by the publishers and evicted from the oldest end by a single thread at a time.
+ * */
+public interface IEventHistory<TMsg> {
+
+    /**
+     * Appends the event. This method is thread safe.
+     * */
+    void add(TimedEvent<TMsg> event);
+
+    /**
+     * Appends the events, in the order of the list. This method is thread safe.
+     * */
+    void addAll(List<TimedEvent<TMsg>> events);
+
+    /**
+     * Evicts the oldest event if the policy says so. Only one thread at a time may evict.
+     * @param retainedCount   number of events retained, including the oldest one
+     * @param oldestTimestamp the oldest retained timestamp of this eviction round, see {@link EventRetentionPolicy#getOldestRetainedTimestamp()}
+     * @return true if the oldest event was evicted
+     * */
+    boolean evictOldestIf(EventRetentionPolicy<TMsg> retentionPolicy, long retainedCount, long oldestTimestamp);
+
+    /**
+     * @return a copy of the retained events
+     * */
+    List<TimedEvent<TMsg>> toList();
+
+    /**
+     * @return the number of retained events. Only meant for initializing counters, it may be O(n).
+     * */
+    long size();
+}
@@ -0,0 +1,82 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.io.Closeable;
+import java.util.List;
+
+/**
+ * Durable append only log of the published events of an {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl}.
+ * The events are appended on the publish path, after they got their logical time and before they are dispatched.
+ * */
+public interface IEventLog<TMsg> extends Closeable {
+
+    /**
+     * Visits a logged event without creating an object for it.
+     * */
+    @FunctionalInterface
+    interface RecordVisitor {
+        void visit(long logicalTime, long timestamp, double value);
+    }
+
+    /**
+     * Appends the event. This method is thread safe.
+     * */
+    void append(TimedEvent<TMsg> event);
+
+    /**
+     * Appends the events, in the order of the list. This method is thread safe.
+     * */
+    void appendAll(List<TimedEvent<TMsg>> events);
+
+    /**
+     * @return the highest logical time found in the log when it was opened, -1 if it was empty.
+     * The handler continues from it, so the logical times stay unique across restarts.
+     * */
+    long getLastLogicalTime();
+
+    /**
+     * Visits the retained events with a logical time after the given one, in the order they were appended.
+     * @return the number of visited events
+     * */
+    long replay(long afterLogicalTime, RecordVisitor visitor);
+
+    /**
+     * Flushes the appended events and releases the log. Nothing can be appended afterwards.
+     * */
+    @Override
+    void close();
+
+    /**
+     * @return a log that keeps nothing, used when durability is not needed
+     * */
+    static <TMsg> IEventLog<TMsg> none() {
+        return new IEventLog<TMsg>() {
+            @Override
+            public void append(TimedEvent<TMsg> event) {
+            }
+
+            @Override
+            public void appendAll(List<TimedEvent<TMsg>> events) {
+            }
+
+            @Override
+            public long getLastLogicalTime() {
+                return -1;
+            }
+
+            @Override
+            public long replay(long afterLogicalTime, RecordVisitor visitor) {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
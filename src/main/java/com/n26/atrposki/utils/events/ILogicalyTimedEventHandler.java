@@ -35,9 +35,26 @@ public interface ILogicalyTimedEventHandler<TMsg> {
     void publish(TMsg msg);
 
     /**
-     * @return All event history sofar.
+     * Publishes the messages as one batch: they get consecutive logical times, in the order of the list, and are added to the history at once.
+     * Listeners are still called once per message.
+     * @param msgs the event loads to be published to all listeners
+     */
+    void publishAll(List<TMsg> msgs);
+
+    /**
+     * @return All retained event history sofar.
      * */
     List<TimedEvent<TMsg>> getHistory();
 
     long getLogicalTime();
+
+    /**
+     * @return the number of events currently retained in the history
+     * */
+    long getRetainedCount();
+
+    /**
+     * @return the number of events evicted from the history since the inception of this handler
+     * */
+    long getEvictedCount();
 }
@@ -6,35 +6,105 @@ package com.n26.atrposki.utils.events;
  *
  */
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import com.n26.atrposki.utils.metrics.LatencyHistogram;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
-
-import static java.util.stream.Collectors.toList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Core implementation of the Event interface /Observer pattern.
  * <p>
- * It has pessimistic expectations about the listeners methods raising exceptions and is made deliberetly robust against exceptions.
- * It has however, optimistic expectations about listeners not halting, since it is executed on the callers thread.
- * This naive implementation keeps infinite event history which might prove to be an issue in busy systems. A sliding window solution may be more appropriate with high throughput systems.
+ * The handler owns the logical time and the event history, delivering the events to the listeners is delegated to an {@link IEventDispatcher}.
+ * By default it is the {@link SynchronousEventDispatcher}, which calls the listeners on the callers thread.
+ * The {@link RingBufferEventDispatcher} can be used instead to return to the caller as soon as the event is sequenced.
+ * The {@link ParallelEventDispatcher} also returns right away and isolates the listeners from each other, with a timeout and a circuit breaker per listener.
+ * <p>
+ * The event history is bounded by an {@link EventRetentionPolicy} (unbounded by default).
+ * Eviction is amortized on publish: after an event is added, the publisher evicts the oldest events that are out of the retention.
+ * Only one publisher evicts at a time, the others simply skip it since the next publish will catch up.
+ * Eviction is done from the head of the history, which is ordered by logical time and not by the events timestamp,
+ * so an event published late with an old timestamp is only evicted once it reaches the head.
+ * The count bound is respected up to the number of concurrent publishers: a publisher that adds its event after the evicting one stopped
+ * and skips the eviction leaves one event too many until the next publish.
+ * <p>
+ * How the history is stored is up to the {@link IEventHistory}: by default the {@link TimedEvent} objects are kept in a {@link QueueEventHistory},
+ * events that are a timestamp and a value can be kept as primitives in a {@link ColumnarEventHistory}.
+ * <p>
+ * The events can also be appended to a durable {@link IEventLog} (none by default). It is written after the history and before the event is dispatched.
+ * Logging is best effort: once an event has its logical time it is always kept and dispatched, so an append that fails (a full disk, a closed log)
+ * is logged and counted but does not fail the publish, and a client never retries a transaction that was already counted.
+ * Shutting down waits for the publishes in progress before the log is closed. A handler with a log continues the logical time from the last logged event.
+ * <p>
+ * The duration of every publish and of every listener call is always recorded, {@link #registerMetrics(MetricsRegistry, String)} exposes them.
  */
 public class InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<TMsg> implements ILogicalyTimedEventHandler<TMsg> {
-    Set<CheckedConsumer<TMsg, Exception>> listeners = ConcurrentHashMap.newKeySet();
-    ConcurrentLinkedQueue eventHistory = new ConcurrentLinkedQueue();
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+    private static final Logger LOG = LoggerFactory.getLogger(InMemmoryThreadSafeLogicalyTimedEventHandlerImpl.class);
+
+    IEventDispatcher<TMsg> dispatcher;
+    IEventHistory<TMsg> eventHistory;
+    IEventLog<TMsg> eventLog = IEventLog.none();
     AtomicLong logicalTime = new AtomicLong(-1);
+    EventRetentionPolicy<TMsg> retentionPolicy;
+    AtomicLong retainedCount = new AtomicLong(0);
+    AtomicLong evictedCount = new AtomicLong(0);
+    AtomicBoolean isEvicting = new AtomicBoolean(false);
+    volatile boolean isShutdown;
+    LongAdder publishesInProgress = new LongAdder();
+    LongAdder failedAppends = new LongAdder();
+    LatencyHistogram publishDuration = new LatencyHistogram("publish_duration_seconds", "");
+    LatencyHistogram listenerDuration = new LatencyHistogram("listener_duration_seconds", "");
 
     public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl() {
-        this.listeners = ConcurrentHashMap.newKeySet();
-        this.eventHistory = new ConcurrentLinkedQueue();
-        this.logicalTime = new AtomicLong(-1);
+        this(EventRetentionPolicy.unbounded());
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(EventRetentionPolicy<TMsg> retentionPolicy) {
+        this(retentionPolicy, new SynchronousEventDispatcher<>());
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(EventRetentionPolicy<TMsg> retentionPolicy, IEventDispatcher<TMsg> dispatcher) {
+        this(retentionPolicy, dispatcher, new QueueEventHistory<>());
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(EventRetentionPolicy<TMsg> retentionPolicy, IEventDispatcher<TMsg> dispatcher, IEventHistory<TMsg> eventHistory) {
+        this(dispatcher, eventHistory, new AtomicLong(-1), retentionPolicy);
     }
 
     public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(Set<CheckedConsumer<TMsg, Exception>> listeners, ConcurrentLinkedQueue eventHistory, AtomicLong logicalTime) {
-        this.listeners = listeners;
+        this(listeners, eventHistory, logicalTime, EventRetentionPolicy.unbounded());
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(Set<CheckedConsumer<TMsg, Exception>> listeners, ConcurrentLinkedQueue eventHistory, AtomicLong logicalTime, EventRetentionPolicy<TMsg> retentionPolicy) {
+        this(new SynchronousEventDispatcher<>(listeners), eventHistory, logicalTime, retentionPolicy);
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(IEventDispatcher<TMsg> dispatcher, ConcurrentLinkedQueue eventHistory, AtomicLong logicalTime, EventRetentionPolicy<TMsg> retentionPolicy) {
+        this(dispatcher, new QueueEventHistory<>(eventHistory), logicalTime, retentionPolicy);
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(IEventDispatcher<TMsg> dispatcher, IEventHistory<TMsg> eventHistory, AtomicLong logicalTime, EventRetentionPolicy<TMsg> retentionPolicy) {
+        this.dispatcher = dispatcher;
         this.eventHistory = eventHistory;
         this.logicalTime = logicalTime;
+        this.retentionPolicy = retentionPolicy;
+        this.retainedCount.set(eventHistory.size());
+        dispatcher.setHistory(eventHistory);
+    }
+
+    public InMemmoryThreadSafeLogicalyTimedEventHandlerImpl(EventRetentionPolicy<TMsg> retentionPolicy, IEventDispatcher<TMsg> dispatcher, IEventHistory<TMsg> eventHistory, IEventLog<TMsg> eventLog) {
+        this(dispatcher, eventHistory, new AtomicLong(eventLog.getLastLogicalTime()), retentionPolicy);
+        this.eventLog = eventLog;
     }
 
     /**
@@ -44,7 +114,28 @@ public class InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<TMsg> implements I
      */
     @Override
     public <TEx extends Exception> void subscribe(CheckedConsumer<TMsg, TEx> handler) {
-        listeners.add(handler::apply);
+        dispatcher.subscribe(event -> {
+            long start = System.nanoTime();
+            try {
+                handler.apply(event);
+            } finally {
+                listenerDuration.recordSince(start);
+            }
+        }, logicalTime.get() + 1);
+    }
+
+    /**
+     * Registers the metrics of this handler: the publish and listener durations, the retained history size, the evicted count and the failed log appends.
+     * Meant to be called once, before the handler is used.
+     * @param prefix prefix of the metric names, for example transactions
+     * */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        publishDuration = registry.latencyHistogram(prefix + "_publish_duration_seconds", "Duration of publishing an event, including the synchronous listeners");
+        listenerDuration = registry.latencyHistogram(prefix + "_listener_duration_seconds", "Duration of a single listener call");
+        registry.gauge(prefix + "_history_retained", "Number of events retained in the history", retainedCount::get);
+        registry.counter(prefix + "_history_evicted_total", "Number of events evicted from the history", evictedCount::get);
+        registry.counter(prefix + "_published_total", "Number of published events", () -> logicalTime.get() + 1);
+        registry.counter(prefix + "_log_failed_total", "Number of published events that could not be appended to the event log", failedAppends::sum);
     }
 
     /**
@@ -65,11 +156,26 @@ public class InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<TMsg> implements I
     }
 
     /**
-     * @returns a copy of the history of events since the inception of this object. This method is thread safe.
+     * Calls {@link InMemmoryThreadSafeLogicalyTimedEventHandlerImpl#publishAllUnsafely(List)} and logs any Aggregate exceptions but doesn't propagate them.
+     * The events stay published: they are in the history and the log and the other listeners got them.
+     *
+     * @param msgs messages to be passed to all the event handlers that are subscribed
+     */
+    @Override
+    public void publishAll(List<TMsg> msgs) {
+        try {
+            publishAllUnsafely(msgs);
+        } catch (AggregateException a) {
+            LOG.error("{} listener calls failed while publishing {} events, the events stay published", a.getInnerThrowables().size(), msgs.size(), a);
+        }
+    }
+
+    /**
+     * @returns a copy of the retained history of events. This method is thread safe.
      */
     @Override
     public List<TimedEvent<TMsg>> getHistory() {
-        return new ArrayList<TimedEvent<TMsg>>(eventHistory);
+        return eventHistory.toList();
     }
 
     @Override
@@ -77,47 +183,169 @@ public class InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<TMsg> implements I
         return logicalTime.get();
     }
 
+    @Override
+    public long getRetainedCount() {
+        return retainedCount.get();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    /**
+     * @return the number of published events that could not be appended to the event log
+     * */
+    public long getFailedAppendCount() {
+        return failedAppends.sum();
+    }
+
 
     /**
      * Calls all the handlers with a timed event as a parameter. It will consist of the msg as the body field and autoincremented logical time as the logical time field.
      * This method is thread safe.
      * Every event has an unique eventLogicalTime which is sequentially updated starting from 0.
-     * It expects none of the handlers to halt, however they are allowed to raise errors.
+     * The event is added to the history and appended to the event log before it is dispatched. A failed append is logged and counted, the event is still dispatched.
+     * With the synchronous dispatcher it expects none of the handlers to halt, however they are allowed to raise errors.
      * If any handlers raise errors they will be agregated into an  {@link AggregateException} that will be thrown
      *
      * @param msg the message passed to all the handlers
-     * @return a timed event that was handled by all the handlers
+     * @return a timed event that was handled (or with an asynchronous dispatcher sequenced to be handled) by all the handlers
+     * @throws AggregateException an aggregate exception of all the event handlers invocations
+     * @throws IllegalStateException if the handler is shut down, then the message gets no logical time
+     */
+    public TimedEvent<TMsg> publishUnsafely(TMsg msg) throws AggregateException, IllegalStateException {
+        publishesInProgress.increment();
+        try {
+            if (isShutdown) {
+                throw new IllegalStateException("The event handler is shut down");
+            }
+            long start = System.nanoTime();
+            long currentLogicalTime = logicalTime.incrementAndGet();
+            TimedEvent<TMsg> timedEvent = new TimedEvent<>(currentLogicalTime, msg);
+            eventHistory.add(timedEvent);
+            retainedCount.incrementAndGet();
+            try {
+                eventLog.append(timedEvent);
+            } catch (RuntimeException e) {
+                onAppendFailed(e, 1);
+            }
+            try {
+                evictOutOfRetention();
+            } finally {
+                //the logical time is already taken, an asynchronous dispatcher would wait for it forever if it was skipped
+                try {
+                    dispatcher.dispatch(timedEvent);
+                } finally {
+                    publishDuration.recordSince(start);
+                }
+            }
+            return timedEvent;
+        } finally {
+            publishesInProgress.decrement();
+        }
+    }
+
+    /**
+     * Batch version of {@link #publishUnsafely(Object)}. The whole batch takes a single range of consecutive logical times (one atomic increment)
+     * and is added to the history at once, then the events are dispatched in logical time order.
+     * Exceptions of all the handlers for all the events are agregated into a single {@link AggregateException}.
+     *
+     * @param msgs the messages passed to all the handlers
+     * @return the timed events, in logical time order
      * @throws AggregateException an aggregate exception of all the event handlers invocations
+     * @throws IllegalStateException if the handler is shut down, then the messages get no logical times
      */
-    public TimedEvent<TMsg> publishUnsafely(TMsg msg) throws AggregateException {
-        Long currentLogicalTime = logicalTime.incrementAndGet();
-        TimedEvent<TMsg> timedEvent = new TimedEvent<>(currentLogicalTime, msg);
-        eventHistory.add(timedEvent);
-
-        //Create snapshot of the collection to avoid concurency issues
-        List<CheckedConsumer<TMsg, Exception>> handlersSnapshot = new ArrayList<>(listeners);
-
-        List<Exception> exceptions = handlersSnapshot.stream()
-                .map(x -> tryApply(x, timedEvent))
-                .filter(Objects::nonNull)
-                .collect(toList());
-
-        //This is best resolved by getting another publishingStrategy parameter
-        //We don't need to set in stone that every listener will be called but an agregate exception will be thrown.
-        //Maybe we need to notiffy only listeners up until the first exception
-        if (!exceptions.isEmpty()) {
-            throw new AggregateException("Exceptions occured while publishing event", exceptions);
+    public List<TimedEvent<TMsg>> publishAllUnsafely(List<TMsg> msgs) throws AggregateException, IllegalStateException {
+        publishesInProgress.increment();
+        try {
+            if (isShutdown) {
+                throw new IllegalStateException("The event handler is shut down");
+            }
+            if (msgs.isEmpty()) {
+                return new ArrayList<>();
+            }
+            long firstLogicalTime = logicalTime.addAndGet(msgs.size()) - msgs.size() + 1;
+            List<TimedEvent<TMsg>> timedEvents = new ArrayList<>(msgs.size());
+            for (int i = 0; i < msgs.size(); i++) {
+                timedEvents.add(new TimedEvent<>(firstLogicalTime + i, msgs.get(i)));
+            }
+            eventHistory.addAll(timedEvents);
+            retainedCount.addAndGet(timedEvents.size());
+            try {
+                eventLog.appendAll(timedEvents);
+            } catch (RuntimeException e) {
+                onAppendFailed(e, timedEvents.size());
+            }
+            List<Throwable> exceptions = new ArrayList<>();
+            try {
+                evictOutOfRetention();
+            } finally {
+                for (TimedEvent<TMsg> timedEvent : timedEvents) {
+                    try {
+                        dispatcher.dispatch(timedEvent);
+                    } catch (AggregateException e) {
+                        exceptions.addAll(e.getInnerThrowables());
+                    }
+                }
+            }
+            if (!exceptions.isEmpty()) {
+                throw new AggregateException("Exceptions occured while publishing events", exceptions);
+            }
+            return timedEvents;
+        } finally {
+            publishesInProgress.decrement();
         }
+    }
 
-        return timedEvent;
+    /**
+     * Stops accepting new events, waits for the publishes in progress and for the dispatcher to deliver the published events, then closes the event log.
+     * @param timeoutMillis maximum time to wait for the publishes and the listeners to drain
+     * @return true if all the published events were delivered before the timeout
+     * */
+    public boolean shutdown(long timeoutMillis) {
+        isShutdown = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            //a publisher that passed the check before it was shut down still appends to the log, it is closed only after them
+            while (publishesInProgress.sum() > 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(1_000_000);
+            }
+            long remainingMillis = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            return dispatcher.shutdown(logicalTime.get(), remainingMillis) && publishesInProgress.sum() == 0;
+        } finally {
+            eventLog.close();
+        }
     }
 
-    private Exception tryApply(CheckedConsumer<TMsg, Exception> listener, TimedEvent<TMsg> event) {
+    /**
+     * The event already has its logical time and is in the history, so it is still dispatched, only its durability is lost.
+     * */
+    private void onAppendFailed(RuntimeException e, int events) {
+        failedAppends.add(events);
+        LOG.error("Could not append " + events + " event(s) to the event log, they are published but not durable", e);
+    }
+
+    /**
+     * Evicts the oldest events from the history while they are out of the retention policy.
+     * If another thread is already evicting, this method returns immediately.
+     * @return the number of evicted events
+     * */
+    public long evictOutOfRetention() {
+        if (retentionPolicy.isUnbounded() || !isEvicting.compareAndSet(false, true)) {
+            return 0;
+        }
         try {
-            listener.apply(event);
-            return null;
-        } catch (Exception e) {
-            return e;
+            long evicted = 0;
+            long oldestTimestamp = retentionPolicy.getOldestRetainedTimestamp();
+            while (eventHistory.evictOldestIf(retentionPolicy, retainedCount.get(), oldestTimestamp)) {
+                retainedCount.decrementAndGet();
+                evicted++;
+            }
+            evictedCount.addAndGet(evicted);
+            return evicted;
+        } finally {
+            isEvicting.set(false);
         }
     }
 }
@@ -0,0 +1,21 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+/**
+ * When the {@link MappedEventLog} forces the appended records to the disk.
+ * The records are in the page cache as soon as they are appended, so every policy survives a crash of the process,
+ * the policy only decides what survives a crash of the machine.
+ * */
+public enum LogSyncPolicy {
+    /** Never forced by the log, the operating system writes the pages back whenever it decides to */
+    NONE,
+    /** Group commit: a background thread forces everything appended since its last run, once per sync interval */
+    PERIODIC,
+    /** Every append forces its segment before it returns. Durable, but costs a disk flush per event */
+    ALWAYS
+}
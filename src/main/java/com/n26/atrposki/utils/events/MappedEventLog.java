@@ -0,0 +1,407 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Write ahead log for events that are a (timestamp, value) pair, kept in memory mapped segment files.
+ * <p>
+ * Every event is a fixed size record of {@value #RECORD_SIZE} bytes (little endian): logical time + 1, timestamp, value bits and a checksum of the three.
+ * A segment file is mapped (and so pre-allocated) whole when it is created. A publisher reserves a record with a single atomic increment
+ * and writes it straight into the mapped memory, so an append costs no system call and no lock. Only the publisher that finds the segment full
+ * rolls over to a new file, under a lock.
+ * <p>
+ * When the records reach the disk is the {@link LogSyncPolicy}. Segments that were closed before the retention are deleted
+ * by the maintenance thread (see {@link #start(ThreadFactory)}) and on every roll over. A segment is closed after all its records were published,
+ * hence once it is older than the retention so are all of its records.
+ * <p>
+ * Records that were reserved but not written (or torn) when the process died are all zeroes or fail the checksum, they are skipped by {@link #replay(long, RecordVisitor)}.
+ * The log is opened in a new segment every time, existing segments are only read.
+ * The last logical time is found by reading the newest records backwards, not by replaying the log (see {@link #findLastLogicalTime()}).
+ * */
+public class MappedEventLog<TMsg> implements IEventLog<TMsg> {
+    public static final int RECORD_SIZE = 32;
+    public static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+    private static final Logger LOG = LoggerFactory.getLogger(MappedEventLog.class);
+    private static final String SEGMENT_SUFFIX = ".wal";
+    //the most publishers that can reserve their records after the one with the highest logical time
+    private static final int REORDER_WINDOW = 1024;
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final ToLongFunction<TMsg> timestampOf;
+    private final ToDoubleFunction<TMsg> valueOf;
+    private final LogSyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final long retentionMillis;
+    private final LongSupplier clock;
+    private final long lastLogicalTime;
+    private final Deque<Segment> closedSegments = new ArrayDeque<>();
+    private final AtomicReference<Thread> maintainer = new AtomicReference<>();
+    private long nextSequence;
+    private volatile Segment current;
+    private volatile boolean isClosed;
+
+    /**
+     * Opens the log in the directory, creating the directory if needed, and starts a new segment.
+     * @param segmentRecords     number of records in a segment file
+     * @param timestampOf        extracts the timestamp from the event
+     * @param valueOf            extracts the value from the event
+     * @param syncIntervalMillis how often the maintenance thread runs (syncs with the PERIODIC policy and deletes old segments)
+     * @param retentionMillis    how long a closed segment is kept
+     * @param clock              the current time in miliseconds
+     * @throws IllegalArgumentException if the segment size, the interval or the retention are not positive
+     * @throws UncheckedIOException     if the directory or the segments can not be read or the new segment can not be created
+     * */
+    public MappedEventLog(Path directory, int segmentRecords, ToLongFunction<TMsg> timestampOf, ToDoubleFunction<TMsg> valueOf,
+                          LogSyncPolicy syncPolicy, long syncIntervalMillis, long retentionMillis, LongSupplier clock) throws IllegalArgumentException, UncheckedIOException {
+        if (segmentRecords <= 0 || segmentRecords > Integer.MAX_VALUE / RECORD_SIZE) {
+            throw new IllegalArgumentException("segmentRecords must be positive and a segment must fit in 2GB");
+        }
+        if (syncIntervalMillis <= 0 || retentionMillis <= 0) {
+            throw new IllegalArgumentException("syncIntervalMillis and retentionMillis must be positive");
+        }
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.timestampOf = timestampOf;
+        this.valueOf = valueOf;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.retentionMillis = retentionMillis;
+        this.clock = clock;
+        try {
+            Files.createDirectories(directory);
+            for (Segment segment : openSegments(directory)) {
+                closedSegments.addLast(segment);
+                nextSequence = segment.sequence + 1;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the event log in " + directory, e);
+        }
+        this.lastLogicalTime = findLastLogicalTime();
+        this.current = createSegment();
+        deleteOutOfRetention();
+    }
+
+    /**
+     * Starts the maintenance thread, which runs every sync interval.
+     * @throws IllegalStateException if it is already started
+     * */
+    public void start(ThreadFactory threadFactory) throws IllegalStateException {
+        Thread thread = threadFactory.newThread(this::maintain);
+        if (!maintainer.compareAndSet(null, thread)) {
+            throw new IllegalStateException("The event log is already started");
+        }
+        thread.start();
+    }
+
+    @Override
+    public void append(TimedEvent<TMsg> event) {
+        TMsg msg = event.getEvent();
+        write(event.getLogicalTime(), timestampOf.applyAsLong(msg), valueOf.applyAsDouble(msg));
+    }
+
+    @Override
+    public void appendAll(List<TimedEvent<TMsg>> events) {
+        for (TimedEvent<TMsg> event : events) {
+            append(event);
+        }
+    }
+
+    @Override
+    public long getLastLogicalTime() {
+        return lastLogicalTime;
+    }
+
+    /**
+     * Meant for recovery, before the log is appended to: records that are being appended concurrently may or may not be visited.
+     * */
+    @Override
+    public long replay(long afterLogicalTime, RecordVisitor visitor) {
+        long visited = 0;
+        for (Segment segment : getSegments()) {
+            visited += segment.replay(afterLogicalTime, visitor);
+        }
+        return visited;
+    }
+
+    /**
+     * Forces the records of the segments that were not forced since they were last written to.
+     * */
+    public void sync() {
+        List<Segment> segments = getSegments();
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            Segment segment = segments.get(i);
+            boolean isCurrent = i == segments.size() - 1;
+            if (!isCurrent && segment.isSynced) {
+                //older segments were synced after they were closed
+                break;
+            }
+            segment.buffer.force();
+            segment.isSynced = !isCurrent;
+        }
+    }
+
+    /**
+     * Deletes the closed segments that were closed before the retention.
+     * @return the number of deleted segments
+     * */
+    public synchronized int deleteOutOfRetention() {
+        long oldestRetained = clock.getAsLong() - retentionMillis;
+        int deleted = 0;
+        while (!closedSegments.isEmpty() && closedSegments.peekFirst().closedAt < oldestRetained) {
+            Segment segment = closedSegments.removeFirst();
+            try {
+                //the mapping stays valid until the buffer is collected, a concurrent replay still reads it
+                Files.deleteIfExists(segment.path);
+                deleted++;
+            } catch (IOException e) {
+                LOG.warn("could not delete the event log segment " + segment.path, e);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @return the number of segment files, including the current one
+     * */
+    public synchronized int getSegmentCount() {
+        return closedSegments.size() + 1;
+    }
+
+    /**
+     * Stops the maintenance thread and forces the records that are not synced yet, whatever the sync policy. Closing again does nothing.
+     * */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+        }
+        Thread thread = maintainer.get();
+        if (thread != null) {
+            thread.interrupt();
+        }
+        sync();
+    }
+
+    private void write(long logicalTime, long timestamp, double value) throws IllegalStateException, UncheckedIOException {
+        while (true) {
+            if (isClosed) {
+                throw new IllegalStateException("The event log is closed");
+            }
+            Segment segment = current;
+            int index = segment.reserved.getAndIncrement();
+            if (index < segment.capacity) {
+                segment.write(index, logicalTime, timestamp, value);
+                if (syncPolicy == LogSyncPolicy.ALWAYS) {
+                    segment.buffer.force();
+                }
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    private synchronized void roll(Segment full) throws UncheckedIOException {
+        if (current != full || isClosed) {
+            //another publisher already rolled over
+            return;
+        }
+        Segment next = createSegment();
+        full.closedAt = clock.getAsLong();
+        closedSegments.addLast(full);
+        current = next;
+        deleteOutOfRetention();
+    }
+
+    private synchronized List<Segment> getSegments() {
+        List<Segment> segments = new ArrayList<>(closedSegments);
+        segments.add(current);
+        return segments;
+    }
+
+    private void maintain() {
+        while (!isClosed) {
+            try {
+                Thread.sleep(syncIntervalMillis);
+                if (syncPolicy == LogSyncPolicy.PERIODIC) {
+                    sync();
+                }
+                deleteOutOfRetention();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("event log maintenance failed", e);
+            }
+        }
+    }
+
+    /**
+     * A publisher takes its logical time before it reserves its record, so the records are almost in logical time order:
+     * a record after the one with the highest logical time belongs to a publisher that took its logical time before and was still appending.
+     * Hence the highest logical time is among the last {@value #REORDER_WINDOW} valid records, which are read backwards from the end of the newest segment.
+     * @return the highest logical time of those records, -1 if there are none
+     * */
+    private long findLastLogicalTime() {
+        long last = -1;
+        int read = 0;
+        for (Iterator<Segment> segments = closedSegments.descendingIterator(); segments.hasNext() && read < REORDER_WINDOW; ) {
+            Segment segment = segments.next();
+            //the unwritten tail of the segment is all zeroes and skipped
+            for (int index = segment.capacity - 1; index >= 0 && read < REORDER_WINDOW; index--) {
+                long logicalTime = segment.read(index, -1, null);
+                if (logicalTime >= 0) {
+                    last = Math.max(last, logicalTime);
+                    read++;
+                }
+            }
+        }
+        return last;
+    }
+
+    private Segment createSegment() throws UncheckedIOException {
+        long sequence = nextSequence++;
+        Path path = directory.resolve(String.format("%020d%s", sequence, SEGMENT_SUFFIX));
+        //the mapping outlives the channel
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+            return new Segment(sequence, path, buffer, Long.MAX_VALUE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create the event log segment " + path, e);
+        }
+    }
+
+    private static List<Segment> openSegments(Path directory) throws IOException {
+        TreeMap<Long, Path> paths = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : files) {
+                String name = path.getFileName().toString();
+                try {
+                    paths.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    LOG.warn("ignoring " + path + ", it is not an event log segment");
+                }
+            }
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (Long sequence : paths.keySet()) {
+            Path path = paths.get(sequence);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long length = channel.size() - channel.size() % RECORD_SIZE;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, Integer.MAX_VALUE - Integer.MAX_VALUE % RECORD_SIZE));
+                Segment segment = new Segment(sequence, path, buffer, Files.getLastModifiedTime(path).toMillis());
+                //nothing is appended to an existing segment
+                segment.reserved.set(segment.capacity);
+                segment.isSynced = true;
+                segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    private static long checksum(long storedLogicalTime, long timestamp, long valueBits) {
+        long hash = storedLogicalTime * 0x9E3779B97F4A7C15L ^ Long.rotateLeft(timestamp, 21) * 0xC2B2AE3D27D4EB4FL ^ Long.rotateLeft(valueBits, 42);
+        //murmur3 finalizer
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static class Segment {
+        final long sequence;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final AtomicInteger reserved = new AtomicInteger();
+        volatile long closedAt;
+        volatile boolean isSynced;
+
+        Segment(long sequence, Path path, MappedByteBuffer buffer, long closedAt) {
+            this.sequence = sequence;
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity() / RECORD_SIZE;
+            this.closedAt = closedAt;
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Absolute puts only touch the records bytes, so publishers can write different records concurrently.
+         * */
+        void write(int index, long logicalTime, long timestamp, double value) {
+            int position = index * RECORD_SIZE;
+            long storedLogicalTime = logicalTime + 1;
+            long valueBits = Double.doubleToRawLongBits(value);
+            buffer.putLong(position + 8, timestamp);
+            buffer.putLong(position + 16, valueBits);
+            buffer.putLong(position + 24, checksum(storedLogicalTime, timestamp, valueBits));
+            buffer.putLong(position, storedLogicalTime);
+        }
+
+        long replay(long afterLogicalTime, RecordVisitor visitor) {
+            int written = Math.min(reserved.get(), capacity);
+            long visited = 0;
+            for (int index = 0; index < written; index++) {
+                if (read(index, afterLogicalTime, visitor) >= 0) {
+                    visited++;
+                }
+            }
+            return visited;
+        }
+
+        /**
+         * @param visitor called with the record if it is valid and after afterLogicalTime, may be null
+         * @return the logical time of the record, -1 if it was never written, is torn or is not after afterLogicalTime
+         * */
+        long read(int index, long afterLogicalTime, RecordVisitor visitor) {
+            int position = index * RECORD_SIZE;
+            long storedLogicalTime = buffer.getLong(position);
+            if (storedLogicalTime == 0) {
+                return -1;
+            }
+            long timestamp = buffer.getLong(position + 8);
+            long valueBits = buffer.getLong(position + 16);
+            if (buffer.getLong(position + 24) != checksum(storedLogicalTime, timestamp, valueBits) || storedLogicalTime - 1 <= afterLogicalTime) {
+                return -1;
+            }
+            if (visitor != null) {
+                visitor.visit(storedLogicalTime - 1, timestamp, Double.longBitsToDouble(valueBits));
+            }
+            return storedLogicalTime - 1;
+        }
+    }
+}
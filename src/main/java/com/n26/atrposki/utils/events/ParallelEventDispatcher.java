@@ -0,0 +1,504 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler.CheckedConsumer;
+import com.n26.atrposki.utils.limits.CircuitBreaker;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Calls the listeners in parallel on a bounded pool of threads, every listener isolated from the others and from the publisher.
+ * <p>
+ * Every listener has a mailbox: a queue of events drained by one pool thread at a time, so a listener is never called concurrently and sees its events in logical time order.
+ * Publishers can dispatch out of logical time order, so the events go through a reorder buffer first and whoever holds the sequencer moves them to the mailboxes
+ * in logical time order. The publisher returns as soon as its event is in the buffer. A slow listener only delays its own mailbox, the publisher never waits for it.
+ * <p>
+ * A listener call that takes longer than listenerTimeoutMillis is interrupted by a watchdog and counts as failed, as do the calls that throw.
+ * Since a thread can not be stopped, a listener that ignores the interrupt keeps its pool thread, but it does not hold up the other listeners while there are threads left.
+ * The event of a failed call is not delivered again, the listener may have handled part of it.
+ * <p>
+ * Every listener has a {@link CircuitBreaker}: after breakerFailures failures in a row the listener is not called anymore. Its queued events and every event after them
+ * are shed, they are not queued for the listener. The same happens when maxPending events are queued for a listener that can not keep up.
+ * After breakerOpenMillis (right away for a full mailbox) the listener catches up: the shed events are read back from the history of the event handler
+ * (see {@link #setHistory(IEventHistory)}) and delivered in logical time order, the first one being the trial call of the breaker, and only then the listener gets queued events again.
+ * Shed events that were already evicted from the history are lost for the listener, they are counted and logged. The listener gets the events as the history keeps them.
+ * <p>
+ * Listener exceptions can not reach the publisher anymore, they are logged.
+ * */
+public class ParallelEventDispatcher<TMsg> implements IEventDispatcher<TMsg> {
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelEventDispatcher.class);
+    private static final long UNKNOWN_SEQUENCE = Long.MIN_VALUE;
+    private static final int DRAIN_BATCH = 256;
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService watchdog;
+    private final long listenerTimeoutNanos;
+    private final int breakerFailures;
+    private final long breakerOpenMillis;
+    private final int maxPending;
+    private final List<Mailbox> mailboxes = new CopyOnWriteArrayList<>();
+    private final ConcurrentSkipListMap<Long, TimedEvent<TMsg>> reorderBuffer = new ConcurrentSkipListMap<>();
+    private final ReentrantLock sequencer = new ReentrantLock();
+    private final LongAdder shedEvents = new LongAdder();
+    private final LongAdder lostEvents = new LongAdder();
+    private final LongAdder failedCalls = new LongAdder();
+    private final LongAdder timedOutCalls = new LongAdder();
+    private volatile long nextSequence = UNKNOWN_SEQUENCE;
+    private volatile IEventHistory<TMsg> history;
+    private volatile boolean isShutdown;
+
+    public ParallelEventDispatcher(int parallelism, long listenerTimeoutMillis, int breakerFailures, long breakerOpenMillis, int maxPending) {
+        this(parallelism, listenerTimeoutMillis, breakerFailures, breakerOpenMillis, maxPending, daemonThreadFactory("event-listener-"));
+    }
+
+    /**
+     * @param parallelism           number of threads that call the listeners
+     * @param listenerTimeoutMillis how long a single listener call may take before it is interrupted and counts as failed
+     * @param breakerFailures       the number of failed calls in a row that stop the calls to a listener
+     * @param breakerOpenMillis     how long the calls to a listener are paused before a trial call
+     * @param maxPending            the most events waiting in the mailbox of a listener, the events after it are shed until the listener caught up
+     * @param threadFactory         creates the pool threads
+     * @throws IllegalArgumentException if any of the numbers is not positive
+     * */
+    public ParallelEventDispatcher(int parallelism, long listenerTimeoutMillis, int breakerFailures, long breakerOpenMillis, int maxPending,
+                                   ThreadFactory threadFactory) throws IllegalArgumentException {
+        if (parallelism <= 0 || listenerTimeoutMillis <= 0 || breakerFailures <= 0 || breakerOpenMillis <= 0 || maxPending <= 0) {
+            throw new IllegalArgumentException("parallelism, timeouts, breakerFailures and maxPending must be positive");
+        }
+        this.executor = Executors.newFixedThreadPool(parallelism, threadFactory);
+        this.listenerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(listenerTimeoutMillis);
+        this.breakerFailures = breakerFailures;
+        this.breakerOpenMillis = breakerOpenMillis;
+        this.maxPending = maxPending;
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("event-listener-watchdog"));
+        long checkMillis = Math.max(1, listenerTimeoutMillis / 4);
+        watchdog.scheduleWithFixedDelay(this::interruptTimedOutCalls, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the mailbox of the listener. The listener gets the events from fromLogicalTime onwards.
+     * @throws IllegalStateException if the dispatcher is shut down
+     * */
+    @Override
+    public void subscribe(CheckedConsumer<TMsg, Exception> listener, long fromLogicalTime) throws IllegalStateException {
+        if (isShutdown) {
+            throw new IllegalStateException("The dispatcher is shut down");
+        }
+        sequencer.lock();
+        try {
+            mailboxes.add(new Mailbox(listener, fromLogicalTime, mailboxes.size()));
+            if (nextSequence == UNKNOWN_SEQUENCE) {
+                nextSequence = fromLogicalTime;
+            }
+        } finally {
+            sequencer.unlock();
+        }
+    }
+
+    /**
+     * The shed events are read back from the history when a listener catches up. Without a history they are lost.
+     * */
+    @Override
+    public void setHistory(IEventHistory<TMsg> history) {
+        this.history = history;
+    }
+
+    /**
+     * Puts the event in the reorder buffer and moves every event that is next in logical time order to the mailboxes, unless another publisher already does.
+     * */
+    @Override
+    public void dispatch(TimedEvent<TMsg> event) {
+        reorderBuffer.put(event.getLogicalTime(), event);
+        do {
+            if (!sequencer.tryLock()) {
+                //the holder checks the buffer again after it unlocks, so it will see this event
+                return;
+            }
+            try {
+                sequence();
+            } finally {
+                sequencer.unlock();
+            }
+        } while (reorderBuffer.containsKey(nextSequence));
+    }
+
+    @Override
+    public boolean shutdown(long lastLogicalTime, long timeoutMillis) {
+        isShutdown = true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        boolean isDrained = isDrainedUpTo(lastLogicalTime);
+        while (!isDrained && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+            isDrained = isDrainedUpTo(lastLogicalTime);
+        }
+        executor.shutdownNow();
+        watchdog.shutdownNow();
+        return isDrained;
+    }
+
+    /**
+     * Registers the metrics of the dispatcher: the shed and lost events, failed and timed out calls, the listeners with an open breaker and the queued events.
+     * @param prefix prefix of the metric names, for example transactions
+     * */
+    public void registerMetrics(MetricsRegistry registry, String prefix) {
+        registry.counter(prefix + "_listener_shed_total", "Number of events not queued for a listener with an open breaker or a full mailbox", shedEvents::sum);
+        registry.counter(prefix + "_listener_lost_total", "Number of shed events no longer in the history when the listener caught up", lostEvents::sum);
+        registry.counter(prefix + "_listener_failed_total", "Number of listener calls that threw or timed out", failedCalls::sum);
+        registry.counter(prefix + "_listener_timed_out_total", "Number of listener calls interrupted after the listener timeout", timedOutCalls::sum);
+        registry.gauge(prefix + "_listener_breakers_open", "Number of listeners not called because of their circuit breaker", this::getOpenBreakerCount);
+        registry.gauge(prefix + "_listener_pending", "Number of events waiting in the listener mailboxes", this::getPendingCount);
+    }
+
+    /**
+     * @return the number of events that were not queued for a listener, see the class documentation
+     * */
+    public long getShedCount() {
+        return shedEvents.sum();
+    }
+
+    /**
+     * @return the number of shed events that were evicted from the history before the listener caught up
+     * */
+    public long getLostCount() {
+        return lostEvents.sum();
+    }
+
+    public long getFailedCount() {
+        return failedCalls.sum();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCalls.sum();
+    }
+
+    public int getOpenBreakerCount() {
+        int open = 0;
+        for (Mailbox mailbox : mailboxes) {
+            if (mailbox.breaker.getState() != CircuitBreaker.State.CLOSED) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    public int getPendingCount() {
+        int pending = 0;
+        for (Mailbox mailbox : mailboxes) {
+            pending += mailbox.pending.get();
+        }
+        return pending;
+    }
+
+    /**
+     * Moves the events to the mailboxes while the next one in logical time order is in the buffer. Called with the sequencer locked.
+     * Without listeners, or for events before the first listener subscribed, there is no one to deliver to and the events are dropped.
+     * */
+    private void sequence() {
+        if (nextSequence == UNKNOWN_SEQUENCE) {
+            reorderBuffer.clear();
+            return;
+        }
+        reorderBuffer.headMap(nextSequence).clear();
+        TimedEvent<TMsg> event;
+        while ((event = reorderBuffer.remove(nextSequence)) != null) {
+            for (Mailbox mailbox : mailboxes) {
+                mailbox.offer(event);
+            }
+            nextSequence++;
+        }
+    }
+
+    private boolean isDrainedUpTo(long lastLogicalTime) {
+        if (nextSequence != UNKNOWN_SEQUENCE && nextSequence <= lastLogicalTime) {
+            return false;
+        }
+        for (Mailbox mailbox : mailboxes) {
+            if (mailbox.pending.get() > 0 || mailbox.isScheduled.get() || mailbox.hasMissed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void interruptTimedOutCalls() {
+        long now = System.nanoTime();
+        for (Mailbox mailbox : mailboxes) {
+            //the lock makes sure the caller is still in the same call when it is interrupted
+            synchronized (mailbox) {
+                long startedAt = mailbox.callStartedAt;
+                if (mailbox.caller != null && !mailbox.isCallTimedOut && now - startedAt > listenerTimeoutNanos) {
+                    mailbox.isCallTimedOut = true;
+                    timedOutCalls.increment();
+                    LOG.warn("listener {} is still handling an event after {}ms, interrupting it", mailbox.name, TimeUnit.NANOSECONDS.toMillis(now - startedAt));
+                    mailbox.caller.interrupt();
+                }
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name.endsWith("-") ? name + counter.incrementAndGet() : name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class Mailbox {
+        final CheckedConsumer<TMsg, Exception> listener;
+        final long fromSequence;
+        final String name;
+        final CircuitBreaker breaker = new CircuitBreaker(breakerFailures, breakerOpenMillis);
+        final Queue<TimedEvent<TMsg>> events = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pending = new AtomicInteger();
+        final AtomicBoolean isScheduled = new AtomicBoolean();
+        //guards isShedding and the missed logical times, so no event is queued between the shed ones
+        final Object shedLock = new Object();
+        boolean isShedding;
+        long missedFrom = NONE;
+        long missedTo = NONE;
+        Thread caller;
+        long callStartedAt;
+        volatile boolean isCallTimedOut;
+
+        Mailbox(CheckedConsumer<TMsg, Exception> listener, long fromSequence, int index) {
+            this.listener = listener;
+            this.fromSequence = fromSequence;
+            this.name = "listener-" + index;
+        }
+
+        /**
+         * Queues the event if the listener wants it, or sheds it while the listener is shedding or its mailbox is full. Never waits. Called by the sequencer, in logical time order.
+         * */
+        void offer(TimedEvent<TMsg> event) {
+            if (event.getLogicalTime() < fromSequence) {
+                return;
+            }
+            synchronized (shedLock) {
+                if (!isShedding && pending.get() < maxPending) {
+                    events.offer(event);
+                    pending.incrementAndGet();
+                } else {
+                    isShedding = true;
+                    shed(event.getLogicalTime());
+                }
+            }
+            schedule();
+        }
+
+        boolean hasMissed() {
+            synchronized (shedLock) {
+                return missedFrom != NONE;
+            }
+        }
+
+        void schedule() {
+            if (isScheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    //shut down, the remaining events are not delivered
+                    isScheduled.set(false);
+                }
+            }
+        }
+
+        /**
+         * Calls the listener for up to a batch of queued events, then catches up on the shed ones once the queue is empty, then gives the pool thread to the other mailboxes.
+         * While the breaker is open the mailbox stays scheduled, so the offers do not schedule it, and it is resumed after breakerOpenMillis.
+         * */
+        void drain() {
+            boolean isBreakerOpen = false;
+            try {
+                isBreakerOpen = !callQueued() || (events.isEmpty() && !catchUp());
+            } finally {
+                if (!isBreakerOpen) {
+                    isScheduled.set(false);
+                }
+            }
+            if (isBreakerOpen) {
+                resumeLater();
+            } else if (!events.isEmpty() || hasMissed()) {
+                schedule();
+            }
+        }
+
+        /**
+         * @return false if the breaker opened, the queued events are shed then
+         * */
+        private boolean callQueued() {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                TimedEvent<TMsg> event = events.peek();
+                if (event == null) {
+                    return true;
+                }
+                if (!breaker.allowRequest()) {
+                    shedQueued();
+                    return false;
+                }
+                events.poll();
+                pending.decrementAndGet();
+                call(event);
+                if (breaker.getState() == CircuitBreaker.State.OPEN) {
+                    //the events after it are shed at once, not queued while the breaker is open
+                    shedQueued();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Delivers the shed events from the history until nothing is missed anymore, then stops shedding.
+         * @return false if the breaker does not allow the calls, the events that were not delivered stay missed
+         * */
+        private boolean catchUp() {
+            while (true) {
+                long from;
+                long to;
+                synchronized (shedLock) {
+                    if (missedFrom == NONE) {
+                        isShedding = false;
+                        return true;
+                    }
+                    from = missedFrom;
+                    to = missedTo;
+                    missedFrom = NONE;
+                }
+                long notDelivered = replay(from, to);
+                if (notDelivered <= to) {
+                    synchronized (shedLock) {
+                        //the events shed meanwhile all come after the replayed ones
+                        missedFrom = notDelivered;
+                        missedTo = Math.max(missedTo, to);
+                    }
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return the first logical time of the range that was not delivered since the breaker did not allow it, to + 1 if the whole range was delivered
+         * */
+        private long replay(long from, long to) {
+            IEventHistory<TMsg> retained = history;
+            List<TimedEvent<TMsg>> replayed = new ArrayList<>();
+            if (retained != null) {
+                for (TimedEvent<TMsg> event : retained.toList()) {
+                    if (event.getLogicalTime() >= from && event.getLogicalTime() <= to) {
+                        replayed.add(event);
+                    }
+                }
+                replayed.sort(Comparator.comparingLong(TimedEvent::getLogicalTime));
+            }
+            long expected = from;
+            for (TimedEvent<TMsg> event : replayed) {
+                countLost(expected, event.getLogicalTime());
+                if (!breaker.allowRequest()) {
+                    return event.getLogicalTime();
+                }
+                call(event);
+                expected = event.getLogicalTime() + 1;
+            }
+            countLost(expected, to + 1);
+            return to + 1;
+        }
+
+        private void countLost(long from, long to) {
+            if (from < to) {
+                lostEvents.add(to - from);
+                LOG.warn("listener {} missed the events {} to {}, they were evicted from the history before it caught up", name, from, to - 1);
+            }
+        }
+
+        /**
+         * Moves the queued events to the missed ones after the breaker opened.
+         * */
+        private void shedQueued() {
+            synchronized (shedLock) {
+                isShedding = true;
+                TimedEvent<TMsg> event;
+                while ((event = events.poll()) != null) {
+                    pending.decrementAndGet();
+                    shed(event.getLogicalTime());
+                }
+            }
+        }
+
+        /**
+         * Called with the shed lock held, in logical time order.
+         * */
+        private void shed(long logicalTime) {
+            if (missedFrom == NONE) {
+                missedFrom = logicalTime;
+            }
+            missedTo = logicalTime;
+            shedEvents.increment();
+        }
+
+        private void resumeLater() {
+            try {
+                watchdog.schedule(() -> {
+                    isScheduled.set(false);
+                    schedule();
+                }, breakerOpenMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                isScheduled.set(false);
+            }
+        }
+
+        private void call(TimedEvent<TMsg> event) {
+            synchronized (this) {
+                isCallTimedOut = false;
+                callStartedAt = System.nanoTime();
+                caller = Thread.currentThread();
+            }
+            boolean isFailed = false;
+            try {
+                listener.apply(event);
+            } catch (Exception e) {
+                isFailed = true;
+                LOG.error("listener " + name + " failed on event " + event.getLogicalTime(), e);
+            } finally {
+                synchronized (this) {
+                    caller = null;
+                }
+                //an interrupt of the watchdog that the listener did not consume must not hit the next call
+                Thread.interrupted();
+            }
+            if (isFailed || isCallTimedOut) {
+                breaker.onFailure();
+                failedCalls.increment();
+            } else {
+                breaker.onSuccess();
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event history that keeps the {@link TimedEvent} objects in a {@link ConcurrentLinkedQueue}.
+ * It works for any event type, but every event costs a queue node, the timed event and the event load itself.
+ * See {@link ColumnarEventHistory} for events that can be kept as primitives.
+ * */
+public class QueueEventHistory<TMsg> implements IEventHistory<TMsg> {
+    private final ConcurrentLinkedQueue eventHistory;
+
+    public QueueEventHistory() {
+        this(new ConcurrentLinkedQueue());
+    }
+
+    public QueueEventHistory(ConcurrentLinkedQueue eventHistory) {
+        this.eventHistory = eventHistory;
+    }
+
+    @Override
+    public void add(TimedEvent<TMsg> event) {
+        eventHistory.add(event);
+    }
+
+    @Override
+    public void addAll(List<TimedEvent<TMsg>> events) {
+        eventHistory.addAll(events);
+    }
+
+    @Override
+    public boolean evictOldestIf(EventRetentionPolicy<TMsg> retentionPolicy, long retainedCount, long oldestTimestamp) {
+        TimedEvent<TMsg> oldest = (TimedEvent<TMsg>) eventHistory.peek();
+        if (oldest == null || !retentionPolicy.shouldEvict(oldest, retainedCount, oldestTimestamp)) {
+            return false;
+        }
+        eventHistory.poll();
+        return true;
+    }
+
+    @Override
+    public List<TimedEvent<TMsg>> toList() {
+        return new ArrayList<TimedEvent<TMsg>>(eventHistory);
+    }
+
+    @Override
+    public long size() {
+        return eventHistory.size();
+    }
+}
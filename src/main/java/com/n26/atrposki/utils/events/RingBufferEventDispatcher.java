@@ -0,0 +1,208 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler.CheckedConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous, Disruptor style dispatcher. The publisher returns as soon as its event is sequenced into a pre-allocated bounded ring
+ * and every listener is called by its own dedicated consumer thread.
+ * <p>
+ * The ring is indexed by the logical time of the event, which is already unique and gapless, so the sequencing of multiple producers is
+ * the logical time increment of the event handler and needs no additional CAS. A consumer only moves to the next logical time once its event
+ * was written, hence every listener sees the events strictly in logical time order.
+ * <p>
+ * The ring is bounded: a publisher that would overwrite an event a consumer has not handled yet waits (spins, yields and then parks) until the slowest consumer catches up.
+ * Listener exceptions can not reach the publisher anymore, they are logged.
+ * */
+public class RingBufferEventDispatcher<TMsg> implements IEventDispatcher<TMsg> {
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferEventDispatcher.class);
+    private static final long INITIAL_GATING_SEQUENCE = Long.MIN_VALUE;
+
+    private final Object[] entries;
+    private final AtomicLongArray published;
+    private final int mask;
+    private final ThreadFactory threadFactory;
+    private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+    private volatile long cachedGatingSequence = INITIAL_GATING_SEQUENCE;
+    private volatile boolean isShutdown;
+
+    public RingBufferEventDispatcher(int capacity) {
+        this(capacity, daemonThreadFactory());
+    }
+
+    /**
+     * @param capacity      number of slots in the ring, rounded up to a power of two
+     * @param threadFactory creates the consumer threads
+     * @throws IllegalArgumentException if the capacity is not positive
+     * */
+    public RingBufferEventDispatcher(int capacity, ThreadFactory threadFactory) throws IllegalArgumentException {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.entries = new Object[size];
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        this.mask = size - 1;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Starts a dedicated consumer thread for the listener. The listener gets the events from fromLogicalTime onwards.
+     * @throws IllegalStateException if the dispatcher is shut down
+     * */
+    @Override
+    public void subscribe(CheckedConsumer<TMsg, Exception> listener, long fromLogicalTime) throws IllegalStateException {
+        if (isShutdown) {
+            throw new IllegalStateException("The dispatcher is shut down");
+        }
+        Consumer consumer = new Consumer(listener, fromLogicalTime);
+        consumers.add(consumer);
+        cachedGatingSequence = INITIAL_GATING_SEQUENCE;
+        consumer.thread = threadFactory.newThread(consumer::run);
+        consumer.thread.start();
+    }
+
+    /**
+     * Writes the event in its slot and returns, waiting only if the ring is full.
+     * */
+    @Override
+    public void dispatch(TimedEvent<TMsg> event) {
+        long sequence = event.getLogicalTime();
+        awaitCapacity(sequence);
+        int index = (int) (sequence & mask);
+        entries[index] = event;
+        published.set(index, sequence);
+    }
+
+    @Override
+    public boolean shutdown(long lastLogicalTime, long timeoutMillis) {
+        isShutdown = true;
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        boolean isDrained = isDrainedUpTo(lastLogicalTime);
+        while (!isDrained && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(1_000_000);
+            isDrained = isDrainedUpTo(lastLogicalTime);
+        }
+        for (Consumer consumer : consumers) {
+            consumer.isRunning = false;
+            LockSupport.unpark(consumer.thread);
+        }
+        for (Consumer consumer : consumers) {
+            try {
+                consumer.thread.join(Math.max(1, timeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return isDrained;
+    }
+
+    /**
+     * @return number of events published but not yet handled by the slowest consumer
+     * */
+    public long getBacklog(long lastLogicalTime) {
+        long gatingSequence = getMinimumConsumerSequence(lastLogicalTime + 1);
+        return Math.max(0, lastLogicalTime + 1 - gatingSequence);
+    }
+
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    private void awaitCapacity(long sequence) {
+        long wrapPoint = sequence - entries.length;
+        if (wrapPoint < cachedGatingSequence) {
+            return;
+        }
+        int idleCount = 0;
+        long gatingSequence;
+        while (wrapPoint >= (gatingSequence = getMinimumConsumerSequence(sequence))) {
+            idleCount = backOff(idleCount);
+        }
+        cachedGatingSequence = gatingSequence;
+    }
+
+    private long getMinimumConsumerSequence(long defaultValue) {
+        long minimum = defaultValue;
+        for (Consumer consumer : consumers) {
+            minimum = Math.min(minimum, consumer.nextSequence.get());
+        }
+        return minimum;
+    }
+
+    private boolean isDrainedUpTo(long lastLogicalTime) {
+        return getMinimumConsumerSequence(lastLogicalTime + 1) > lastLogicalTime;
+    }
+
+    private static int backOff(int idleCount) {
+        if (idleCount < 100) {
+            //busy spin, the event is most likely only a few nanoseconds away
+        } else if (idleCount < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000);
+        }
+        return idleCount + 1;
+    }
+
+    private static ThreadFactory daemonThreadFactory() {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "event-dispatch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private class Consumer {
+        final CheckedConsumer<TMsg, Exception> listener;
+        final AtomicLong nextSequence;
+        volatile boolean isRunning = true;
+        Thread thread;
+
+        Consumer(CheckedConsumer<TMsg, Exception> listener, long fromSequence) {
+            this.listener = listener;
+            this.nextSequence = new AtomicLong(fromSequence);
+        }
+
+        @SuppressWarnings("unchecked")
+        void run() {
+            int idleCount = 0;
+            while (isRunning) {
+                long sequence = nextSequence.get();
+                int index = (int) (sequence & mask);
+                if (published.get(index) != sequence) {
+                    idleCount = backOff(idleCount);
+                    continue;
+                }
+                idleCount = 0;
+                TimedEvent<TMsg> event = (TimedEvent<TMsg>) entries[index];
+                try {
+                    listener.apply(event);
+                } catch (Exception e) {
+                    LOG.error("listener failed on event " + event.getLogicalTime(), e);
+                }
+                nextSequence.lazySet(sequence + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.n26.atrposki.utils.events;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler.CheckedConsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Calls all the listeners sequentially on the publishers thread.
+ * It has pessimistic expectations about the listeners methods raising exceptions and is made deliberetly robust against exceptions.
+ * It has however, optimistic expectations about listeners not halting, since it is executed on the callers thread.
+ * */
+public class SynchronousEventDispatcher<TMsg> implements IEventDispatcher<TMsg> {
+    Set<CheckedConsumer<TMsg, Exception>> listeners;
+
+    public SynchronousEventDispatcher() {
+        this(ConcurrentHashMap.newKeySet());
+    }
+
+    public SynchronousEventDispatcher(Set<CheckedConsumer<TMsg, Exception>> listeners) {
+        this.listeners = listeners;
+    }
+
+    @Override
+    public void subscribe(CheckedConsumer<TMsg, Exception> listener, long fromLogicalTime) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Calls all the listeners. If any of them raise errors they will be agregated into an  {@link AggregateException} that will be thrown
+     * */
+    @Override
+    public void dispatch(TimedEvent<TMsg> timedEvent) throws AggregateException {
+        //Create snapshot of the collection to avoid concurency issues
+        List<CheckedConsumer<TMsg, Exception>> handlersSnapshot = new ArrayList<>(listeners);
+
+        List<Exception> exceptions = handlersSnapshot.stream()
+                .map(x -> tryApply(x, timedEvent))
+                .filter(Objects::nonNull)
+                .collect(toList());
+
+        //This is best resolved by getting another publishingStrategy parameter
+        //We don't need to set in stone that every listener will be called but an agregate exception will be thrown.
+        //Maybe we need to notiffy only listeners up until the first exception
+        if (!exceptions.isEmpty()) {
+            throw new AggregateException("Exceptions occured while publishing event", exceptions);
+        }
+    }
+
+    /**
+     * Nothing to drain, every event is handled before {@link #dispatch(TimedEvent)} returns.
+     * */
+    @Override
+    public boolean shutdown(long lastLogicalTime, long timeoutMillis) {
+        return true;
+    }
+
+    private Exception tryApply(CheckedConsumer<TMsg, Exception> listener, TimedEvent<TMsg> event) {
+        try {
+            listener.apply(event);
+            return null;
+        } catch (Exception e) {
+            return e;
+        }
+    }
+}
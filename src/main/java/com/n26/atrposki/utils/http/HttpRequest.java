@@ -0,0 +1,33 @@
+package com.n26.atrposki.utils.http;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Immutable request parsed by the {@link NioHttpServer}. The header names are lower case, the path does not contain the query string.
+ * */
+@Value
+public class HttpRequest {
+    private final String method;
+    private final String path;
+    private final String query;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    /** false if the connection is closed after the response, as asked by the client */
+    private final boolean isKeepAlive;
+
+    /**
+     * @param name lower case header name
+     * @return the value of the header, null if the request does not have it
+     * */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+}
@@ -0,0 +1,45 @@
+package com.n26.atrposki.utils.http;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import lombok.Value;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable response written by the {@link NioHttpServer}. The server adds the Content-Length and Connection headers.
+ * */
+@Value
+public class HttpResponse {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int status;
+    private final Map<String, String> headers;
+    private final byte[] body;
+
+    public HttpResponse(int status, Map<String, String> headers, byte[] body) {
+        this.status = status;
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(headers));
+        this.body = body == null ? EMPTY : body;
+    }
+
+    /**
+     * @return a response without headers and body
+     * */
+    public static HttpResponse of(int status) {
+        return new HttpResponse(status, Collections.emptyMap(), EMPTY);
+    }
+
+    /**
+     * @return a response with the body and its content type
+     * */
+    public static HttpResponse of(int status, String contentType, byte[] body) {
+        return new HttpResponse(status, Collections.singletonMap("Content-Type", contentType), body);
+    }
+}
@@ -0,0 +1,19 @@
+package com.n26.atrposki.utils.http;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+/**
+ * Handles the requests of the {@link NioHttpServer}. Without workers it runs on an event loop thread, so it must not block:
+ * a handler that waits stalls every connection of its event loop. A handler that may block needs a server with workers.
+ * */
+@FunctionalInterface
+public interface IHttpHandler {
+    /**
+     * @return the response to the request. An exception is answered with a 500
+     * */
+    HttpResponse handle(HttpRequest request);
+}
@@ -0,0 +1,557 @@
+package com.n26.atrposki.utils.http;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small non blocking HTTP/1.1 server: an acceptor thread and a handful of event loops, each a {@link Selector} that serves many connections on a single thread.
+ * <p>
+ * A connection costs a socket and its buffers, never a thread, so tens of thousands of keep-alive connections are served by as many threads as there are event loops.
+ * Requests are parsed from the read buffer of the connection, pipelined requests one after the other, and handed to the {@link IHttpHandler},
+ * on the event loop or, for a handler that may block, on a pool of workers. A connection has at most one request with the workers and does not read
+ * until its response is back on the event loop, so the requests of a connection are answered in order and the workers never queue more than a request a connection.
+ * While a response can not be written completely the connection stops reading, so a slow reader only holds its own output buffer.
+ * <p>
+ * Only what the hot endpoints need is supported: bodies with a Content-Length (chunked bodies are answered with 501), keep-alive as of HTTP/1.1 and 1.0,
+ * requests of at most maxRequestBytes (413 otherwise). Connections idle for idleTimeoutMillis are closed, connections beyond maxConnections are refused.
+ * */
+public class NioHttpServer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(NioHttpServer.class);
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] eventLoops;
+    private final IHttpHandler handler;
+    private final Executor workers;
+    private final int maxConnections;
+    private final int maxRequestBytes;
+    private final long idleTimeoutMillis;
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final LongAdder requestCount = new LongAdder();
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean isRunning;
+
+    /**
+     * Binds the server socket, the server accepts connections once started.
+     * @param address           where to listen, port 0 for any free port
+     * @param eventLoopCount    number of event loop threads
+     * @param maxConnections    connections beyond it are closed right after they are accepted
+     * @param maxRequestBytes   the longest request, headers and body
+     * @param idleTimeoutMillis time after which a connection without traffic is closed
+     * @param handler           called on the event loops, so it must not block
+     * @throws IOException if the address can not be bound
+     * */
+    public NioHttpServer(InetSocketAddress address, int eventLoopCount, int maxConnections, int maxRequestBytes, long idleTimeoutMillis, IHttpHandler handler) throws IOException {
+        this(address, eventLoopCount, maxConnections, maxRequestBytes, idleTimeoutMillis, handler, null);
+    }
+
+    /**
+     * Binds the server socket, the server accepts connections once started.
+     * @param workers calls the handler, so it can block without stalling the event loops. A request it rejects is answered with a 503. Null to call it on the event loops
+     * @see #NioHttpServer(InetSocketAddress, int, int, int, long, IHttpHandler)
+     * */
+    public NioHttpServer(InetSocketAddress address, int eventLoopCount, int maxConnections, int maxRequestBytes, long idleTimeoutMillis, IHttpHandler handler,
+                         Executor workers) throws IOException {
+        if (eventLoopCount <= 0 || maxConnections <= 0 || maxRequestBytes <= 0 || idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("eventLoopCount, maxConnections, maxRequestBytes and idleTimeoutMillis must be positive");
+        }
+        this.handler = handler;
+        this.workers = workers;
+        this.maxConnections = maxConnections;
+        this.maxRequestBytes = maxRequestBytes;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+        }
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+    }
+
+    /**
+     * Starts the acceptor and the event loop threads.
+     * @param threadFactory creates the threads, so their names and daemon status are configurable
+     * @throws IllegalStateException if the server was already started
+     * */
+    public synchronized void start(ThreadFactory threadFactory) throws IllegalStateException {
+        if (!threads.isEmpty()) {
+            throw new IllegalStateException("The server is already started");
+        }
+        isRunning = true;
+        for (EventLoop eventLoop : eventLoops) {
+            threads.add(threadFactory.newThread(eventLoop::run));
+        }
+        threads.add(threadFactory.newThread(this::accept));
+        threads.forEach(Thread::start);
+    }
+
+    /**
+     * @return the port the server listens on
+     * */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return the number of open connections
+     * */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the number of handled requests
+     * */
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    /**
+     * Stops accepting, closes every connection and waits for the threads to end.
+     * */
+    @Override
+    public void close() throws IOException {
+        isRunning = false;
+        serverChannel.close();
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (isRunning) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.warn("Could not accept a connection", e);
+                continue;
+            }
+            if (connectionCount.incrementAndGet() > maxConnections) {
+                connectionCount.decrementAndGet();
+                closeQuietly(channel);
+                continue;
+            }
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                connectionCount.decrementAndGet();
+                closeQuietly(channel);
+                continue;
+            }
+            EventLoop eventLoop = eventLoops[next];
+            next = (next + 1) % eventLoops.length;
+            eventLoop.accepted.add(channel);
+            eventLoop.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            //nothing left to do with it
+        }
+    }
+
+    /**
+     * A selector thread and the connections registered with it. Only the event loop thread touches its connections.
+     * */
+    private class EventLoop {
+        final Selector selector;
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        //the responses of the workers, written on the event loop
+        final Queue<Runnable> handled = new ConcurrentLinkedQueue<>();
+        long lastIdleCheck = System.currentTimeMillis();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void run() {
+            try {
+                while (isRunning) {
+                    selector.select(Math.max(1, Math.min(idleTimeoutMillis, 1000)));
+                    registerAccepted();
+                    writeHandled();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            LOG.debug("Closing the connection after an error: {}", e.toString());
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    closeIdle();
+                }
+            } catch (IOException e) {
+                LOG.error("The event loop failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                accepted.forEach(channel -> {
+                    connectionCount.decrementAndGet();
+                    closeQuietly(channel);
+                });
+                closeQuietly(selector);
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (ClosedChannelException e) {
+                    connectionCount.decrementAndGet();
+                }
+            }
+        }
+
+        private void writeHandled() {
+            Runnable response;
+            while ((response = handled.poll()) != null) {
+                response.run();
+            }
+        }
+
+        private void closeIdle() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < Math.min(idleTimeoutMillis, 1000)) {
+                return;
+            }
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (now - connection.lastActivity > idleTimeoutMillis) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A parse failure that is answered with its status and closes the connection.
+     * */
+    private static class BadRequestException extends Exception {
+        final int status;
+
+        BadRequestException(int status, String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /**
+     * The state of a single connection: the read buffer (in write mode) and the response that is not completely written yet.
+     * */
+    private class Connection {
+        final SocketChannel channel;
+        final EventLoop eventLoop;
+        SelectionKey key;
+        ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        ByteBuffer output;
+        boolean isClosingAfterWrite;
+        //a request of the connection is with the workers
+        boolean isHandling;
+        boolean isClosed;
+        long lastActivity = System.currentTimeMillis();
+
+        Connection(SocketChannel channel, EventLoop eventLoop) {
+            this.channel = channel;
+            this.eventLoop = eventLoop;
+        }
+
+        void onReadable() throws IOException {
+            if (!input.hasRemaining() && !growInput()) {
+                respondAndClose(HttpStatus.PAYLOAD_TOO_LARGE.value());
+                return;
+            }
+            int read = channel.read(input);
+            if (read < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            process();
+        }
+
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (flush()) {
+                process();
+            }
+        }
+
+        /**
+         * Handles every complete request in the read buffer, as long as the responses can be written right away.
+         * */
+        void process() throws IOException {
+            while (output == null && !isClosingAfterWrite && !isHandling && !isClosed) {
+                input.flip();
+                HttpRequest request;
+                try {
+                    request = parse();
+                } catch (BadRequestException e) {
+                    input.clear();
+                    respondAndClose(e.status);
+                    return;
+                }
+                input.compact();
+                if (request == null) {
+                    return;
+                }
+                requestCount.increment();
+                if (workers == null) {
+                    write(handle(request), !request.isKeepAlive());
+                } else {
+                    handOver(request);
+                }
+            }
+        }
+
+        /**
+         * Stops reading and has the workers handle the request, its response is written when the event loop is back to it.
+         * */
+        void handOver(HttpRequest request) throws IOException {
+            isHandling = true;
+            key.interestOps(0);
+            try {
+                workers.execute(() -> {
+                    HttpResponse response = handle(request);
+                    eventLoop.handled.add(() -> onHandled(response, !request.isKeepAlive()));
+                    eventLoop.selector.wakeup();
+                });
+            } catch (RejectedExecutionException e) {
+                isHandling = false;
+                respondAndClose(HttpStatus.SERVICE_UNAVAILABLE.value());
+            }
+        }
+
+        void onHandled(HttpResponse response, boolean isClosing) {
+            isHandling = false;
+            if (isClosed) {
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            try {
+                write(response, isClosing);
+                if (output == null) {
+                    //the pipelined requests that arrived before the response
+                    process();
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.debug("Closing the connection after an error: {}", e.toString());
+                close();
+            }
+        }
+
+        /**
+         * Parses the request at the position of the (flipped) read buffer and moves the position after it.
+         * @return null if the request is not complete yet, the position is left as it was then
+         * */
+        HttpRequest parse() throws BadRequestException {
+            int start = input.position();
+            int headerEnd = indexOf(input, start, HEADER_END);
+            if (headerEnd < 0) {
+                return null;
+            }
+            String head = new String(input.array(), start, headerEnd - start, StandardCharsets.ISO_8859_1);
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new BadRequestException(HttpStatus.BAD_REQUEST.value(), "Malformed request line");
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new BadRequestException(HttpStatus.BAD_REQUEST.value(), "Malformed header");
+                }
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+            if (headers.containsKey("transfer-encoding")) {
+                throw new BadRequestException(HttpStatus.NOT_IMPLEMENTED.value(), "Only bodies with a Content-Length are supported");
+            }
+            int contentLength = parseContentLength(headers.get("content-length"));
+            int bodyStart = headerEnd + HEADER_END.length;
+            if (bodyStart - start + contentLength > maxRequestBytes) {
+                throw new BadRequestException(HttpStatus.PAYLOAD_TOO_LARGE.value(), "Request too large");
+            }
+            if (input.limit() - bodyStart < contentLength) {
+                return null;
+            }
+            byte[] body = new byte[contentLength];
+            System.arraycopy(input.array(), bodyStart, body, 0, contentLength);
+            input.position(bodyStart + contentLength);
+            String target = requestLine[1];
+            int queryStart = target.indexOf('?');
+            String connection = headers.getOrDefault("connection", "");
+            boolean isKeepAlive = requestLine[2].equals("HTTP/1.0") ? connection.equalsIgnoreCase("keep-alive") : !connection.equalsIgnoreCase("close");
+            return new HttpRequest(requestLine[0], queryStart < 0 ? target : target.substring(0, queryStart),
+                    queryStart < 0 ? null : target.substring(queryStart + 1), headers, body, isKeepAlive);
+        }
+
+        private int parseContentLength(String contentLength) throws BadRequestException {
+            if (contentLength == null) {
+                return 0;
+            }
+            try {
+                int length = Integer.parseInt(contentLength);
+                if (length >= 0) {
+                    return length;
+                }
+            } catch (NumberFormatException e) {
+                //answered below
+            }
+            throw new BadRequestException(HttpStatus.BAD_REQUEST.value(), "Invalid Content-Length");
+        }
+
+        void write(HttpResponse response, boolean isClosing) throws IOException {
+            isClosingAfterWrite = isClosing;
+            output = encode(response, isClosing);
+            flush();
+        }
+
+        /**
+         * @return true if the whole response is written
+         * */
+        boolean flush() throws IOException {
+            channel.write(output);
+            if (output.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return false;
+            }
+            output = null;
+            if (isClosingAfterWrite) {
+                close();
+                return false;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            return true;
+        }
+
+        void respondAndClose(int status) throws IOException {
+            write(HttpResponse.of(status), true);
+        }
+
+        boolean growInput() {
+            if (input.capacity() >= maxRequestBytes) {
+                return false;
+            }
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(input.capacity() * 2, maxRequestBytes));
+            input.flip();
+            grown.put(input);
+            input = grown;
+            return true;
+        }
+
+        void close() {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            connectionCount.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    private HttpResponse handle(HttpRequest request) {
+        try {
+            return handler.handle(request);
+        } catch (RuntimeException e) {
+            LOG.error("The request {} {} failed", request.getMethod(), request.getPath(), e);
+            return HttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR.value());
+        }
+    }
+
+    private static ByteBuffer encode(HttpResponse response, boolean isClosing) {
+        HttpStatus status = HttpStatus.valueOf(response.getStatus());
+        StringBuilder head = new StringBuilder(128)
+                .append("HTTP/1.1 ").append(status.value()).append(' ').append(status.getReasonPhrase()).append("\r\n");
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.getBody().length).append("\r\n");
+        if (isClosing) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        byte[] headBytes = head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer buffer = ByteBuffer.allocate(headBytes.length + response.getBody().length);
+        buffer.put(headBytes).put(response.getBody());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, byte[] pattern) {
+        byte[] array = buffer.array();
+        int last = buffer.limit() - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (array[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,279 @@
+package com.n26.atrposki.utils.limits;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Admission control: a limit on the concurrent calls that adapts to their latency (AIMD, like the TCP congestion window), with a bounded queue of waiting callers.
+ * <p>
+ * A call that completes within the target latency while the limit is in use (at least half of it in flight) adds 1/limit to the limit, so the limit grows by one per limit calls.
+ * A slower call multiplies the limit by backoffRatio, but only once per round: calls admitted before the previous decrease don't decrease it again,
+ * otherwise a single stall would collapse the limit to its minimum. The limit stays within minLimit and maxLimit.
+ * <p>
+ * A caller over the limit waits for a free slot at most maxWait, and only if fewer than maxQueued callers wait already. Callers that can't wait
+ * ({@link #tryAcquire()}, for example on an event loop) are rejected right away. Rejected callers are advised to retry after retryAfterMillis.
+ * <p>
+ * Under the limit nothing takes a lock: a call is admitted with a compare and set of the calls in flight and the limit is a double in an atomic long.
+ * The lock and its condition are only for the callers that queue, and a release takes the lock only to wake them up.
+ * A caller that arrives while others wait can take a freed slot before them.
+ * */
+public class AdaptiveConcurrencyLimiter {
+    /**
+     * Why a call was not admitted.
+     * */
+    public enum Rejection {
+        /** over the limit and no room in the queue, or the caller can't wait */
+        OVER_LIMIT,
+        /** waited the longest wait in the queue without getting a slot */
+        TIMED_OUT
+    }
+
+    private final double minLimit;
+    private final double maxLimit;
+    private final long targetLatencyNanos;
+    private final double backoffRatio;
+    private final int maxQueued;
+    private final long maxWaitNanos;
+    private final long retryAfterMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder overLimit = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final AtomicLong limitBits;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime());
+    //changed under the lock, read without it by the releases
+    private volatile int queued;
+
+    /**
+     * @param initialLimit        the limit to start with, clamped to minLimit and maxLimit
+     * @param targetLatencyMillis calls slower than this decrease the limit
+     * @param backoffRatio        what the limit is multiplied by on a decrease, between 0 and 1
+     * @param maxQueued           the most callers that wait for a slot at a time, 0 for no queue
+     * @param maxWaitMillis       the longest a caller waits for a slot
+     * @param retryAfterMillis    how long rejected callers are advised to wait before they retry
+     * @throws IllegalArgumentException if minLimit is less than 1, maxLimit less than minLimit, backoffRatio not in (0,1) or a length is negative
+     * */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, long targetLatencyMillis, double backoffRatio,
+                                      int maxQueued, long maxWaitMillis, long retryAfterMillis) throws IllegalArgumentException {
+        if (minLimit < 1 || maxLimit < minLimit || backoffRatio <= 0 || backoffRatio >= 1 || targetLatencyMillis < 0 || maxQueued < 0 || maxWaitMillis < 0 || retryAfterMillis < 0) {
+            throw new IllegalArgumentException("Invalid admission limits");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limitBits = new AtomicLong(Double.doubleToRawLongBits(Math.max(minLimit, Math.min(maxLimit, initialLimit))));
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        this.backoffRatio = backoffRatio;
+        this.maxQueued = maxQueued;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return a limiter that admits every call
+     * */
+    public static AdaptiveConcurrencyLimiter unlimited() {
+        return new AdaptiveConcurrencyLimiter(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE / 1_000_000, 0.5, 0, 0, 0);
+    }
+
+    /**
+     * Admits the call if it is under the limit, without waiting.
+     * @return the permit, to be released when the call completes if it is admitted
+     * */
+    public Permit tryAcquire() {
+        return acquire(false);
+    }
+
+    /**
+     * Admits the call if it is under the limit, or waits for a slot if there is room in the queue.
+     * @return the permit, to be released when the call completes if it is admitted
+     * */
+    public Permit acquire() {
+        return acquire(true);
+    }
+
+    public double getLimit() {
+        return Double.longBitsToDouble(limitBits.get());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return queued;
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * @return the number of rejected calls with the given reason
+     * */
+    public long getRejectedCount(Rejection rejection) {
+        return rejection == Rejection.OVER_LIMIT ? overLimit.sum() : timedOut.sum();
+    }
+
+    /**
+     * @return how long rejected callers are advised to wait, in whole seconds rounded up (the unit of a Retry-After header)
+     * */
+    public long getRetryAfterSeconds() {
+        return (retryAfterMillis + 999) / 1000;
+    }
+
+    private Permit acquire(boolean mayWait) {
+        if (tryAdmit()) {
+            return admitted();
+        }
+        if (!mayWait || maxQueued == 0 || maxWaitNanos == 0) {
+            overLimit.increment();
+            return new Permit(this, Rejection.OVER_LIMIT, 0);
+        }
+        lock.lock();
+        try {
+            if (queued >= maxQueued) {
+                overLimit.increment();
+                return new Permit(this, Rejection.OVER_LIMIT, 0);
+            }
+            //queued before the next try, so a release either sees the waiter or frees the slot before the try
+            queued++;
+            try {
+                long remainingNanos = maxWaitNanos;
+                while (!tryAdmit()) {
+                    if (remainingNanos <= 0) {
+                        timedOut.increment();
+                        return new Permit(this, Rejection.TIMED_OUT, 0);
+                    }
+                    remainingNanos = released.awaitNanos(remainingNanos);
+                }
+                return admitted();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                timedOut.increment();
+                return new Permit(this, Rejection.TIMED_OUT, 0);
+            } finally {
+                queued--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a slot if the calls in flight are under the limit.
+     * */
+    private boolean tryAdmit() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (long) getLimit()) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private Permit admitted() {
+        admitted.increment();
+        return new Permit(this, null, System.nanoTime());
+    }
+
+    private void release(long startNanos, long latencyNanos) {
+        double limit = getLimit();
+        boolean isLimitInUse = inFlight.getAndDecrement() * 2 >= limit;
+        double newLimit = limit;
+        if (latencyNanos > targetLatencyNanos) {
+            long lastDecrease = lastDecreaseNanos.get();
+            //once per round: only the first slow call admitted after the previous decrease decreases it
+            if (startNanos - lastDecrease >= 0 && lastDecreaseNanos.compareAndSet(lastDecrease, System.nanoTime())) {
+                newLimit = updateLimit(current -> Math.max(minLimit, current * backoffRatio));
+            }
+        } else if (isLimitInUse) {
+            newLimit = updateLimit(current -> Math.min(maxLimit, current + 1 / current));
+        }
+        if (queued > 0) {
+            lock.lock();
+            try {
+                if ((long) newLimit > (long) limit) {
+                    released.signalAll();
+                } else {
+                    released.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return the updated limit
+     * */
+    private double updateLimit(DoubleUnaryOperator update) {
+        while (true) {
+            long current = limitBits.get();
+            double updated = update.applyAsDouble(Double.longBitsToDouble(current));
+            if (limitBits.compareAndSet(current, Double.doubleToRawLongBits(updated))) {
+                return updated;
+            }
+        }
+    }
+
+    /**
+     * The outcome of an admission. An admitted permit has to be released exactly once, when the call completes, rejected permits need no release.
+     * */
+    public static final class Permit {
+        private final AdaptiveConcurrencyLimiter limiter;
+        private final Rejection rejection;
+        private final long startNanos;
+        private boolean isReleased;
+
+        private Permit(AdaptiveConcurrencyLimiter limiter, Rejection rejection, long startNanos) {
+            this.limiter = limiter;
+            this.rejection = rejection;
+            this.startNanos = startNanos;
+        }
+
+        public boolean isAdmitted() {
+            return rejection == null;
+        }
+
+        /**
+         * @return why the call was not admitted, null if it was
+         * */
+        public Rejection getRejection() {
+            return rejection;
+        }
+
+        /**
+         * Releases the slot with the time since the admission as the latency of the call.
+         * */
+        public void release() {
+            release(System.nanoTime() - startNanos);
+        }
+
+        /**
+         * Releases the slot with the given latency of the call. Does nothing for a rejected or already released permit.
+         * */
+        public void release(long latencyNanos) {
+            if (!isAdmitted() || isReleased) {
+                return;
+            }
+            isReleased = true;
+            limiter.release(startNanos, latencyNanos);
+        }
+    }
+}
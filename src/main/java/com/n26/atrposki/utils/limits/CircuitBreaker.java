@@ -0,0 +1,99 @@
+package com.n26.atrposki.utils.limits;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling something that keeps failing.
+ * <p>
+ * The breaker is closed (calls are allowed) until failureThreshold calls in a row fail, then it opens and allows no calls for openMillis.
+ * After that it is half open and allows a single trial call: if it succeeds the breaker closes, if it fails the breaker opens again.
+ * All the methods are thread safe.
+ * */
+public class CircuitBreaker {
+    /**
+     * The states of a breaker.
+     * */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean isTrialAllowed;
+    private long openedCount;
+
+    /**
+     * @param failureThreshold the number of failures in a row that open the breaker
+     * @param openMillis       how long the breaker stays open before it allows a trial call
+     * @throws IllegalArgumentException if failureThreshold is not positive or openMillis is negative
+     * */
+    public CircuitBreaker(int failureThreshold, long openMillis) throws IllegalArgumentException {
+        if (failureThreshold <= 0 || openMillis < 0) {
+            throw new IllegalArgumentException("failureThreshold must be positive and openMillis non negative");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    }
+
+    /**
+     * @return true if a call is allowed now. A half open breaker allows only one call until its result is known
+     * */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+            state = State.HALF_OPEN;
+            isTrialAllowed = true;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                boolean isAllowed = isTrialAllowed;
+                isTrialAllowed = false;
+                return isAllowed;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records a successful call, which closes the breaker.
+     * */
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Records a failed call, which opens the breaker if it was the trial call or the failureThreshold-th failure in a row.
+     * */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAtNanos = System.nanoTime();
+            openedCount++;
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return how many times the breaker opened
+     * */
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+}
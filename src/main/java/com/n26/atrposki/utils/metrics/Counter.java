@@ -0,0 +1,46 @@
+package com.n26.atrposki.utils.metrics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter. Incrementing it is a {@link LongAdder} increment, so it is cheap enough for the hot path even under contention.
+ * */
+public class Counter implements IMetric {
+    private final String name;
+    private final String help;
+    private final LongAdder value = new LongAdder();
+
+    public Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        MetricsRegistry.writeHeader(out, name, help, "counter");
+        out.append(name).append(' ').append(value.sum()).append('\n');
+    }
+}
@@ -0,0 +1,41 @@
+package com.n26.atrposki.utils.metrics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A metric whose value is read from a supplier when it is exposed, so it costs nothing until it is scraped.
+ * It is exposed as a gauge, or as a counter for values that only grow.
+ * */
+public class Gauge implements IMetric {
+    private final String name;
+    private final String help;
+    private final String type;
+    private final DoubleSupplier value;
+
+    /**
+     * @param type gauge or counter
+     * */
+    public Gauge(String name, String help, String type, DoubleSupplier value) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.value = value;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        MetricsRegistry.writeHeader(out, name, help, type);
+        out.append(name).append(' ').append(MetricsRegistry.format(value.getAsDouble())).append('\n');
+    }
+}
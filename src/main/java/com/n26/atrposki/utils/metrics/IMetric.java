@@ -0,0 +1,19 @@
+package com.n26.atrposki.utils.metrics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+/**
+ * A metric that can be exposed in the Prometheus text format.
+ * */
+public interface IMetric {
+    String getName();
+
+    /**
+     * Appends the HELP and TYPE lines and the samples of this metric.
+     * */
+    void writeTo(StringBuilder out);
+}
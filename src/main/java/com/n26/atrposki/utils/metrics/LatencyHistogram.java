@@ -0,0 +1,84 @@
+package com.n26.atrposki.utils.metrics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with fixed buckets from a microsecond to ten seconds (1, 2.5, 5 steps per decade), exposed in seconds.
+ * Recording is a search over {@value #BUCKET_COUNT} bounds and two {@link LongAdder} increments, no locks and no allocation.
+ * */
+public class LatencyHistogram implements IMetric {
+    private static final long[] BOUNDS_NANOS = {
+            1_000, 2_500, 5_000,
+            10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000,
+            1_000_000, 2_500_000, 5_000_000,
+            10_000_000, 25_000_000, 50_000_000,
+            100_000_000, 250_000_000, 500_000_000,
+            1_000_000_000, 2_500_000_000L, 5_000_000_000L,
+            10_000_000_000L};
+    private static final int BUCKET_COUNT = 22;
+
+    private final String name;
+    private final String help;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos the duration in nanoseconds
+     * */
+    public void record(long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT && nanos > BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time since startNanos (a {@link System#nanoTime()} value).
+     * */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void writeTo(StringBuilder out) {
+        MetricsRegistry.writeHeader(out, name, help, "histogram");
+        long cumulative = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            cumulative += buckets[i].sum();
+            String bound = i < BUCKET_COUNT ? MetricsRegistry.format(BOUNDS_NANOS[i] / 1e9) : "+Inf";
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(name).append("_sum ").append(MetricsRegistry.format(sumNanos.sum() / 1e9)).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,79 @@
+package com.n26.atrposki.utils.metrics;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+/**
+ * An in process registry of metrics that renders them in the Prometheus text exposition format (version 0.0.4).
+ * Metrics are registered once, when the instrumented components are created, and read only when the registry is scraped.
+ * */
+public class MetricsRegistry {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final List<IMetric> metrics = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public LatencyHistogram latencyHistogram(String name, String help) {
+        return register(new LatencyHistogram(name, help));
+    }
+
+    public Gauge gauge(String name, String help, DoubleSupplier value) {
+        return register(new Gauge(name, help, "gauge", value));
+    }
+
+    /**
+     * Registers a counter whose value is kept elsewhere, for example a count the instrumented component already has.
+     * */
+    public Gauge counter(String name, String help, DoubleSupplier value) {
+        return register(new Gauge(name, help, "counter", value));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a metric with the same name is already registered
+     * */
+    public synchronized <TMetric extends IMetric> TMetric register(TMetric metric) throws IllegalArgumentException {
+        for (IMetric registered : metrics) {
+            if (registered.getName().equals(metric.getName())) {
+                throw new IllegalArgumentException("A metric named " + metric.getName() + " is already registered");
+            }
+        }
+        metrics.add(metric);
+        return metric;
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text format
+     * */
+    public String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (IMetric metric : metrics) {
+            metric.writeTo(out);
+        }
+        return out.toString();
+    }
+
+    static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,215 @@
+package com.n26.atrposki.utils.sketch;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A mergeable quantile sketch: a histogram with logarithmic (HDR style) buckets of the absolute value of the recorded values.
+ * <p>
+ * The bucket i holds the values in (MIN_MAGNITUDE*gamma^(i-1), MIN_MAGNITUDE*gamma^i] where gamma = (1+RELATIVE_ERROR)/(1-RELATIVE_ERROR).
+ * A quantile is answered with the value in the middle of its bucket, so for values with an absolute value between MIN_MAGNITUDE and MAX_MAGNITUDE
+ * the returned quantile is within RELATIVE_ERROR (1%) of a recorded value of the right rank.
+ * Values smaller than MIN_MAGNITUDE (a cent) are counted as zero and values bigger than MAX_MAGNITUDE are counted in the last bucket.
+ * <p>
+ * Memory is bounded: the buckets are allocated lazily in pages of {@value #PAGE_SIZE} counters, a page only when a value lands in it.
+ * Amounts that span a few orders of magnitude need a handful of pages, the worst case is all the pages of both signs (about 27kb).
+ * <p>
+ * Recording is lock free (a single atomic increment), merging reads the counters of the other histogram and adds them to this one.
+ * Like the striped accumulators, reads concurrent with writes are not atomic snapshots.
+ * <p>
+ * {@link #writeTo(DataOutput)} encodes only the non zero buckets, so a histogram can be stored or sent for about the size of its distinct amounts.
+ * */
+public class LogHistogram {
+    public static final double RELATIVE_ERROR = 0.01;
+    public static final double MIN_MAGNITUDE = 0.01;
+    public static final double MAX_MAGNITUDE = 1e12;
+    private static final double GAMMA = (1 + RELATIVE_ERROR) / (1 - RELATIVE_ERROR);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final int PAGE_SHIFT = 6;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int BUCKET_COUNT = (int) Math.ceil(Math.log(MAX_MAGNITUDE / MIN_MAGNITUDE) / LOG_GAMMA) + 1;
+    private static final int PAGE_COUNT = (BUCKET_COUNT + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+
+    private final AtomicReferenceArray<AtomicLongArray> positivePages = new AtomicReferenceArray<>(PAGE_COUNT);
+    private final AtomicReferenceArray<AtomicLongArray> negativePages = new AtomicReferenceArray<>(PAGE_COUNT);
+    private final LongAdder zeroCount = new LongAdder();
+
+    /**
+     * Counts the value in its bucket. This method is lock free.
+     * */
+    public void record(double value) {
+        double magnitude = Math.abs(value);
+        if (magnitude < MIN_MAGNITUDE) {
+            zeroCount.increment();
+            return;
+        }
+        int index = indexOf(magnitude);
+        page(value > 0 ? positivePages : negativePages, index >>> PAGE_SHIFT).getAndIncrement(index & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Adds the counts of the other histogram to this one. Only the pages the other histogram allocated are visited.
+     * */
+    public void merge(LogHistogram other) {
+        mergePages(positivePages, other.positivePages);
+        mergePages(negativePages, other.negativePages);
+        zeroCount.add(other.zeroCount.sum());
+    }
+
+    /**
+     * @return the number of recorded values
+     * */
+    public long getCount() {
+        return zeroCount.sum() + count(positivePages) + count(negativePages);
+    }
+
+    /**
+     * @param quantile between 0 and 1, for example 0.95
+     * @return the value at the quantile (nearest rank) within {@link #RELATIVE_ERROR} or NaN if nothing was recorded
+     * @throws IllegalArgumentException if the quantile is not between 0 and 1
+     * */
+    public double getValueAtQuantile(double quantile) throws IllegalArgumentException {
+        if (!(quantile >= 0 && quantile <= 1)) {
+            throw new IllegalArgumentException("quantile must be between 0 and 1");
+        }
+        long count = getCount();
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        for (int index = BUCKET_COUNT - 1; index >= 0; index--) {
+            rank -= countAt(negativePages, index);
+            if (rank <= 0) {
+                return -valueOf(index);
+            }
+        }
+        rank -= zeroCount.sum();
+        if (rank <= 0) {
+            return 0;
+        }
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            rank -= countAt(positivePages, index);
+            if (rank <= 0) {
+                return valueOf(index);
+            }
+        }
+        //only reachable if values were recorded while iterating, the highest bucket is the best answer then
+        return valueOf(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Writes the zero count and then the number of non zero buckets followed by a (signed index, count) pair for each of them,
+     * where the index is negative for the buckets of the negative values.
+     * Nothing may be recorded while the histogram is written, a live histogram should be merged into a copy first.
+     * */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeLong(zeroCount.sum());
+        output.writeInt(countNonZero(positivePages) + countNonZero(negativePages));
+        writeNonZero(output, positivePages, 1);
+        writeNonZero(output, negativePages, -1);
+    }
+
+    /**
+     * @return a histogram read from the format of {@link #writeTo(DataOutput)}
+     * @throws IOException if the input can not be read or is not a histogram of this resolution
+     * */
+    public static LogHistogram readFrom(DataInput input) throws IOException {
+        LogHistogram histogram = new LogHistogram();
+        histogram.zeroCount.add(input.readLong());
+        int buckets = input.readInt();
+        for (int i = 0; i < buckets; i++) {
+            int signedIndex = input.readInt();
+            long count = input.readLong();
+            int index = Math.abs(signedIndex) - 1;
+            if (index < 0 || index >= BUCKET_COUNT || count < 0) {
+                throw new IOException("Not a histogram bucket: " + signedIndex);
+            }
+            page(signedIndex > 0 ? histogram.positivePages : histogram.negativePages, index >>> PAGE_SHIFT).getAndAdd(index & (PAGE_SIZE - 1), count);
+        }
+        return histogram;
+    }
+
+    private static int indexOf(double magnitude) {
+        int index = (int) Math.ceil(Math.log(magnitude / MIN_MAGNITUDE) / LOG_GAMMA);
+        return Math.min(Math.max(index, 0), BUCKET_COUNT - 1);
+    }
+
+    private static double valueOf(int index) {
+        return MIN_MAGNITUDE * Math.pow(GAMMA, index) * 2 / (1 + GAMMA);
+    }
+
+    private static AtomicLongArray page(AtomicReferenceArray<AtomicLongArray> pages, int pageIndex) {
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page != null) {
+            return page;
+        }
+        //losing the race is fine, the winners page is used
+        pages.compareAndSet(pageIndex, null, new AtomicLongArray(PAGE_SIZE));
+        return pages.get(pageIndex);
+    }
+
+    private static long countAt(AtomicReferenceArray<AtomicLongArray> pages, int index) {
+        AtomicLongArray page = pages.get(index >>> PAGE_SHIFT);
+        return page == null ? 0 : page.get(index & (PAGE_SIZE - 1));
+    }
+
+    private static long count(AtomicReferenceArray<AtomicLongArray> pages) {
+        long count = 0;
+        for (int pageIndex = 0; pageIndex < PAGE_COUNT; pageIndex++) {
+            AtomicLongArray page = pages.get(pageIndex);
+            if (page != null) {
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    count += page.get(i);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int countNonZero(AtomicReferenceArray<AtomicLongArray> pages) {
+        int nonZero = 0;
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            if (countAt(pages, index) != 0) {
+                nonZero++;
+            }
+        }
+        return nonZero;
+    }
+
+    private static void writeNonZero(DataOutput output, AtomicReferenceArray<AtomicLongArray> pages, int sign) throws IOException {
+        for (int index = 0; index < BUCKET_COUNT; index++) {
+            long count = countAt(pages, index);
+            if (count != 0) {
+                //shifted by one so the sign of the first bucket is kept
+                output.writeInt(sign * (index + 1));
+                output.writeLong(count);
+            }
+        }
+    }
+
+    private static void mergePages(AtomicReferenceArray<AtomicLongArray> target, AtomicReferenceArray<AtomicLongArray> source) {
+        for (int pageIndex = 0; pageIndex < PAGE_COUNT; pageIndex++) {
+            AtomicLongArray sourcePage = source.get(pageIndex);
+            if (sourcePage == null) {
+                continue;
+            }
+            AtomicLongArray targetPage = page(target, pageIndex);
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                long count = sourcePage.get(i);
+                if (count != 0) {
+                    targetPage.getAndAdd(i, count);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.n26.atrposki.utils.striped;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import static java.lang.Double.doubleToRawLongBits;
+import static java.lang.Double.longBitsToDouble;
+
+/**
+ * A single stripe of a {@link StripedStatisticsAccumulator}. The doubles are kept as raw long bits so they can be updated by CAS.
+ * The padding fields keep two cells from sharing a cache line, otherwise striping would still contend on the hardware level.
+ * */
+class Cell {
+    private static final AtomicLongFieldUpdater<Cell> SUM = AtomicLongFieldUpdater.newUpdater(Cell.class, "sumBits");
+    private static final AtomicLongFieldUpdater<Cell> COUNT = AtomicLongFieldUpdater.newUpdater(Cell.class, "count");
+    private static final AtomicLongFieldUpdater<Cell> MIN = AtomicLongFieldUpdater.newUpdater(Cell.class, "minBits");
+    private static final AtomicLongFieldUpdater<Cell> MAX = AtomicLongFieldUpdater.newUpdater(Cell.class, "maxBits");
+
+    long p0, p1, p2, p3, p4, p5, p6;
+    volatile long sumBits = doubleToRawLongBits(0.0);
+    volatile long count;
+    volatile long minBits = doubleToRawLongBits(Double.POSITIVE_INFINITY);
+    volatile long maxBits = doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+    long q0, q1, q2, q3, q4, q5, q6;
+
+    /**
+     * @return true if any of the CAS operations had to be retried, meaning the cell is contended
+     * */
+    boolean add(double value) {
+        return add(value, 1, value, value);
+    }
+
+    /**
+     * Adds an aggregate of several values at once.
+     * @return true if any of the CAS operations had to be retried, meaning the cell is contended
+     * */
+    boolean add(double sum, long count, double min, double max) {
+        boolean isContended = false;
+        long current;
+        while (!SUM.compareAndSet(this, current = sumBits, doubleToRawLongBits(longBitsToDouble(current) + sum))) {
+            isContended = true;
+        }
+        while (min < longBitsToDouble(current = minBits) && !MIN.compareAndSet(this, current, doubleToRawLongBits(min))) {
+            isContended = true;
+        }
+        while (max > longBitsToDouble(current = maxBits) && !MAX.compareAndSet(this, current, doubleToRawLongBits(max))) {
+            isContended = true;
+        }
+        while (!COUNT.compareAndSet(this, current = this.count, current + count)) {
+            isContended = true;
+        }
+        return isContended;
+    }
+
+    void visit(StripedStatisticsAccumulator.CellVisitor visitor) {
+        long currentCount = count;
+        if (currentCount > 0) {
+            visitor.visit(longBitsToDouble(sumBits), currentCount, longBitsToDouble(minBits), longBitsToDouble(maxBits));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.n26.atrposki.utils.striped;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock free accumulator of sum, count, min and max of doubles, striped in the spirit of {@link java.util.concurrent.atomic.LongAdder}.
+ * <p>
+ * Writers start by updating a single base cell. As soon as a writer observes contention (a failed CAS) the accumulator is striped into
+ * cells indexed by the writing thread, doubling the number of cells on contention up to the number of available processors.
+ * Reads merge the cells on demand.
+ * <p>
+ * Like LongAdder, a read concurrent with writes is not an atomic snapshot: it contains all the writes that completed before it started and
+ * may contain some of the values of in flight writes (for example a value counted in the sum but not yet in the count).
+ * */
+public class StripedStatisticsAccumulator {
+    private static final int MAX_CELLS = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+    private static final AtomicReferenceFieldUpdater<StripedStatisticsAccumulator, Cell[]> CELLS =
+            AtomicReferenceFieldUpdater.newUpdater(StripedStatisticsAccumulator.class, Cell[].class, "cells");
+
+    @FunctionalInterface
+    public interface CellVisitor {
+        void visit(double sum, long count, double min, double max);
+    }
+
+    private final Cell base = new Cell();
+    private volatile Cell[] cells;
+
+    /**
+     * Accumulates the value. This method is lock free.
+     * */
+    public void add(double value) {
+        Cell[] cs = cells;
+        if (cs == null) {
+            if (base.add(value)) {
+                grow(null);
+            }
+            return;
+        }
+        boolean isContended = cs[indexOfCurrentThread(cs.length)].add(value);
+        if (isContended && cs.length < MAX_CELLS) {
+            grow(cs);
+        }
+    }
+
+    /**
+     * Accumulates an aggregate of several values, for example one that was restored or received from elsewhere. This method is lock free.
+     * */
+    public void add(double sum, long count, double min, double max) {
+        Cell[] cs = cells;
+        Cell cell = cs == null ? base : cs[indexOfCurrentThread(cs.length)];
+        if (cell.add(sum, count, min, max) && (cs == null || cs.length < MAX_CELLS)) {
+            grow(cs);
+        }
+    }
+
+    /**
+     * Calls the visitor for every non empty cell. Merging is left to the caller so it can be done into its own (immutable) types without intermediate objects.
+     * */
+    public void forEachCell(CellVisitor visitor) {
+        base.visit(visitor);
+        Cell[] cs = cells;
+        if (cs != null) {
+            for (Cell cell : cs) {
+                cell.visit(visitor);
+            }
+        }
+    }
+
+    private void grow(Cell[] expected) {
+        int length = expected == null ? 2 : expected.length << 1;
+        Cell[] grown = new Cell[Math.min(length, Math.max(2, MAX_CELLS))];
+        int copied = expected == null ? 0 : expected.length;
+        if (expected != null) {
+            System.arraycopy(expected, 0, grown, 0, copied);
+        }
+        for (int i = copied; i < grown.length; i++) {
+            grown[i] = new Cell();
+        }
+        //losing the race is fine, someone else already grew the cells
+        CELLS.compareAndSet(this, expected, grown);
+    }
+
+    private static int indexOfCurrentThread(int length) {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & (length - 1);
+    }
+}
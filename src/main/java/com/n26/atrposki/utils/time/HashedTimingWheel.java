@@ -0,0 +1,178 @@
+package com.n26.atrposki.utils.time;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A hashed timing wheel (Varghese and Lauck) for cheap scheduling of many timeouts with a coarse resolution.
+ * <p>
+ * Time is split in ticks of tickDuration miliseconds and the wheel has wheelSize slots, a timeout is put in the slot of its deadline tick
+ * and is skipped on every visit of the slot until its deadline tick is reached (deadlines further than a rotation away). Scheduling is O(1) and lock free: timeouts are queued and only moved
+ * into their slot by the thread that drives the wheel, so the slots themselves are never touched concurrently.
+ * <p>
+ * The wheel is driven by calling {@link #advance(long)}. That is either done by the wheels own worker thread ({@link #start(ThreadFactory)}),
+ * whose thread is configured by the passed thread factory, or by any other thread that already ticks (a test, an event loop etc.).
+ * Tasks run on the driving thread, so they are expected to be short. Task exceptions are logged and do not stop the wheel.
+ * */
+public class HashedTimingWheel implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+    private final long tickDuration;
+    private final Queue<Timeout>[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final ITimeService timeService;
+    private final AtomicReference<Thread> worker = new AtomicReference<>();
+    private long lastTick;
+    private volatile boolean isRunning;
+
+    /**
+     * @param tickDuration the resolution of the wheel in miliseconds
+     * @param wheelSize    number of slots, rounded up to a power of two
+     * @param timeService  the clock the wheel starts at and that the worker thread advances with
+     * @throws IllegalArgumentException if tickDuration or wheelSize are not positive
+     * */
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(long tickDuration, int wheelSize, ITimeService timeService) throws IllegalArgumentException {
+        if (tickDuration <= 0 || wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("tickDuration and wheelSize must be positive");
+        }
+        int size = Integer.highestOneBit(wheelSize) == wheelSize ? wheelSize : Integer.highestOneBit(wheelSize) << 1;
+        this.tickDuration = tickDuration;
+        this.wheel = new Queue[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.timeService = timeService;
+        this.lastTick = toTick(timeService.getUtcNow());
+    }
+
+    /**
+     * Schedules the task to run on the first tick at or after the deadline. This method is thread safe and lock free.
+     * @param deadlineTimestamp utc timestamp in miliseconds
+     * @param task              the task to run
+     * */
+    public void schedule(long deadlineTimestamp, Runnable task) {
+        pending.add(new Timeout(deadlineTimestamp, task));
+    }
+
+    /**
+     * Moves the wheel up to nowTimestamp, running every task whose deadline passed.
+     * Only one thread may drive the wheel at a time.
+     * @param nowTimestamp utc now in miliseconds
+     * @return the number of tasks that ran
+     * */
+    public int advance(long nowTimestamp) {
+        long nowTick = toTick(nowTimestamp);
+        int ran = 0;
+        transferPending();
+        //if the driver fell behind by more than a rotation every slot is visited once, which is enough since deadlines are checked against now
+        long fromTick = Math.max(lastTick + 1, nowTick - wheel.length + 1);
+        for (long tick = fromTick; tick <= nowTick; tick++) {
+            ran += expire(wheel[(int) (tick & mask)], nowTick);
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        return ran;
+    }
+
+    /**
+     * Starts a worker thread that advances the wheel once every tick.
+     * @param threadFactory creates the worker thread, so its name, priority and daemon status are configurable
+     * @throws IllegalStateException if the wheel was already started
+     * */
+    public void start(ThreadFactory threadFactory) throws IllegalStateException {
+        Thread thread = threadFactory.newThread(this::run);
+        if (!worker.compareAndSet(null, thread)) {
+            throw new IllegalStateException("The timing wheel is already started");
+        }
+        isRunning = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the worker thread, if any. Timeouts that did not expire are dropped.
+     * */
+    @Override
+    public void close() {
+        isRunning = false;
+        Thread thread = worker.get();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public long getTickDuration() {
+        return tickDuration;
+    }
+
+    private void run() {
+        while (isRunning) {
+            try {
+                long now = timeService.getUtcNow();
+                advance(now);
+                Thread.sleep(tickDuration - Math.floorMod(now, tickDuration));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("timing wheel tick failed", e);
+            }
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            timeout.deadlineTick = Math.max(toTick(timeout.deadline), lastTick + 1);
+            wheel[(int) (timeout.deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private int expire(Queue<Timeout> slot, long uptoTick) {
+        int ran = 0;
+        Iterator<Timeout> iterator = slot.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.deadlineTick > uptoTick) {
+                continue;
+            }
+            iterator.remove();
+            ran++;
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                LOG.error("timing wheel task failed", e);
+            }
+        }
+        return ran;
+    }
+
+    private long toTick(long timestamp) {
+        return Math.floorDiv(timestamp, tickDuration);
+    }
+
+    private static class Timeout {
+        final long deadline;
+        final Runnable task;
+        long deadlineTick;
+
+        Timeout(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter;
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter.Permit;
+import com.n26.atrposki.utils.limits.AdaptiveConcurrencyLimiter.Rejection;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AdaptiveConcurrencyLimiterTests {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    public void givenLimitReached_tryAcquire_rejectsUntilAPermitIsReleased(){
+        AdaptiveConcurrencyLimiter sut = new AdaptiveConcurrencyLimiter(2, 1, 10, 10, 0.5, 10, 1000, 1500);
+        Permit first = sut.tryAcquire();
+        Permit second = sut.tryAcquire();
+
+        Permit rejected = sut.tryAcquire();
+        first.release(FAST);
+
+        Assert.assertTrue(first.isAdmitted() && second.isAdmitted());
+        Assert.assertEquals(Rejection.OVER_LIMIT, rejected.getRejection());
+        Assert.assertTrue(sut.tryAcquire().isAdmitted());
+        Assert.assertEquals(3, sut.getAdmittedCount());
+        Assert.assertEquals(1, sut.getRejectedCount(Rejection.OVER_LIMIT));
+        Assert.assertEquals(2, sut.getRetryAfterSeconds());
+    }
+
+    @Test
+    public void givenLatencies_release_increasesAdditivelyAndDecreasesOncePerRound(){
+        AdaptiveConcurrencyLimiter sut = new AdaptiveConcurrencyLimiter(4, 1, 100, 10, 0.5, 0, 0, 1000);
+        for (int i = 0; i < 4; i++) {
+            acquireAll(sut, 4).forEach(permit -> permit.release(FAST));
+        }
+        Assert.assertTrue(sut.getLimit() > 5);
+
+        double beforeStall = sut.getLimit();
+        acquireAll(sut, (int) beforeStall).forEach(permit -> permit.release(SLOW));
+        Assert.assertEquals(beforeStall / 2, sut.getLimit(), 1e-9);
+
+        acquireAll(sut, 1).forEach(permit -> permit.release(SLOW));
+        Assert.assertEquals(beforeStall / 4, sut.getLimit(), 1e-9);
+    }
+
+    @Test
+    public void givenQueue_acquire_waitsForReleasedSlotOrTimesOut() throws Exception {
+        AdaptiveConcurrencyLimiter sut = new AdaptiveConcurrencyLimiter(1, 1, 1, 1000, 0.5, 1, 2000, 1000);
+        Permit held = sut.acquire();
+        CompletableFuture<Permit> waiting = CompletableFuture.supplyAsync(sut::acquire);
+        while (sut.getQueued() == 0) {
+            Thread.sleep(1);
+        }
+
+        Assert.assertEquals(Rejection.OVER_LIMIT, sut.acquire().getRejection());
+        held.release(FAST);
+        Permit admitted = waiting.get(2, TimeUnit.SECONDS);
+        Assert.assertTrue(admitted.isAdmitted());
+
+        AdaptiveConcurrencyLimiter impatient = new AdaptiveConcurrencyLimiter(1, 1, 1, 1000, 0.5, 1, 10, 1000);
+        impatient.acquire();
+        Assert.assertEquals(Rejection.TIMED_OUT, impatient.acquire().getRejection());
+    }
+
+    @Test
+    public void givenConcurrentCallersAndWaiters_acquire_neverExceedsTheLimitAndWakesEveryWaiter() throws Exception {
+        AdaptiveConcurrencyLimiter sut = new AdaptiveConcurrencyLimiter(4, 4, 4, 1000, 0.5, 8, 10_000, 1000);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread caller = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    Permit permit = sut.acquire();
+                    Assert.assertTrue(permit.isAdmitted());
+                    mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    running.decrementAndGet();
+                    permit.release(FAST);
+                }
+            });
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join(10_000);
+            Assert.assertFalse(caller.isAlive());
+        }
+
+        Assert.assertTrue(mostRunning.get() <= 4);
+        Assert.assertEquals(16_000, sut.getAdmittedCount());
+        Assert.assertEquals(0, sut.getInFlight());
+        Assert.assertEquals(0, sut.getQueued());
+    }
+
+    private static List<Permit> acquireAll(AdaptiveConcurrencyLimiter limiter, int count) {
+        List<Permit> permits = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Permit permit = limiter.tryAcquire();
+            Assert.assertTrue(permit.isAdmitted());
+            permits.add(permit);
+        }
+        return permits;
+    }
+}
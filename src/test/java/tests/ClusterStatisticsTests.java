@@ -0,0 +1,153 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.cluster.ClusterStatisticsService;
+import com.n26.atrposki.cluster.GlobalStatistics;
+import com.n26.atrposki.cluster.HttpPeerClient;
+import com.n26.atrposki.cluster.IPeerClient;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.ITimeService;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class ClusterStatisticsTests {
+
+    @Test
+    public void givenOnePeerUpAndOneDown_getStatistics_mergesTheAnsweringNodes() throws Exception {
+        AtomicLong now = new AtomicLong(100_000);
+        StatisticsService local = newStatisticsService(now, 1, 2);
+        StatisticsService remote = newStatisticsService(now, 3, 4, 10);
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(HttpPeerClient.BUCKETS_PATH, exchange -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            remote.exportBuckets().writeTo(body);
+            exchange.sendResponseHeaders(200, body.size());
+            try (OutputStream response = exchange.getResponseBody()) {
+                body.writeTo(response);
+            }
+        });
+        server.start();
+        String up = "http://localhost:" + server.getAddress().getPort();
+        ClusterStatisticsService cluster = new ClusterStatisticsService(local, timeService(now), new HttpPeerClient(500),
+                Arrays.asList(up, "http://localhost:1"), 250, 2000, 1000);
+        try {
+            GlobalStatistics statistics = cluster.getStatistics(StatisticsWindow.ONE_MINUTE);
+
+            assertEquals(2, statistics.getMergedNodes());
+            assertEquals(3, statistics.getTotalNodes());
+            assertEquals(5, statistics.getStatistics().getCount());
+            assertEquals(20, statistics.getStatistics().getSum(), 0.001);
+            assertEquals(1, statistics.getStatistics().getMin(), 0.001);
+            assertEquals(10, statistics.getStatistics().getMax(), 0.001);
+        } finally {
+            cluster.shutdown();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void givenPeerThatStopsAnswering_getStatistics_excludesItOnceItsBucketsAreTooStale() throws Exception {
+        AtomicLong now = new AtomicLong(100_000);
+        StatisticsService local = newStatisticsService(now, 1);
+        StatisticsService remote = newStatisticsService(now, 5);
+        IPeerClient peerClient = mock(IPeerClient.class);
+        when(peerClient.fetchBuckets("peer")).thenAnswer(x -> remote.exportBuckets()).thenThrow(new IOException("down"));
+        ClusterStatisticsService cluster = new ClusterStatisticsService(local, timeService(now), peerClient, Collections.singletonList("peer"), 100, 1000, 1000);
+        try {
+            assertEquals(2, cluster.getStatistics(StatisticsWindow.ONE_MINUTE).getStatistics().getCount());
+
+            now.addAndGet(500);
+            GlobalStatistics stale = cluster.getStatistics(StatisticsWindow.ONE_MINUTE);
+            assertEquals(2, stale.getMergedNodes());
+            assertEquals(500, stale.getStaleness());
+
+            now.addAndGet(1000);
+            GlobalStatistics excluded = cluster.getStatistics(StatisticsWindow.ONE_MINUTE);
+            assertEquals(1, excluded.getMergedNodes());
+            assertEquals(1, excluded.getStatistics().getCount());
+        } finally {
+            cluster.shutdown();
+        }
+    }
+
+    @Test
+    public void givenConcurrentReadersAndAPeerThatHangs_getStatistics_fetchesItOnceAndWaitsOneTimeout() throws Exception {
+        AtomicLong now = new AtomicLong(100_000);
+        StatisticsService local = newStatisticsService(now, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger fetches = new AtomicInteger();
+        IPeerClient peerClient = peer -> {
+            fetches.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("down");
+        };
+        ClusterStatisticsService cluster = new ClusterStatisticsService(local, timeService(now), peerClient, Collections.singletonList("peer"), 100, 1000, 200);
+        ExecutorService readers = Executors.newFixedThreadPool(4);
+        try {
+            long start = System.nanoTime();
+            List<Future<GlobalStatistics>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(readers.submit(() -> cluster.getStatistics(StatisticsWindow.ONE_MINUTE)));
+            }
+            for (Future<GlobalStatistics> result : results) {
+                assertEquals(1, result.get().getMergedNodes());
+            }
+
+            assertTrue("the readers waited for each other", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 600);
+            assertEquals(1, fetches.get());
+        } finally {
+            release.countDown();
+            readers.shutdownNow();
+            cluster.shutdown();
+        }
+    }
+
+    private static StatisticsService newStatisticsService(AtomicLong now, double... amounts) {
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L);
+        StatisticsService statisticsService = new StatisticsService(timeService(now), handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        for (int i = 0; i < amounts.length; i++) {
+            statisticsService.onTransactionMade(new TimedEvent<>(i, new Transaction(amounts[i], now.get() - 1000 * i)));
+        }
+        return statisticsService;
+    }
+
+    private static ITimeService timeService(AtomicLong now) {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> now.get());
+        return timeService;
+    }
+}
@@ -0,0 +1,78 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.SynchronousEventDispatcher;
+import com.n26.atrposki.utils.events.TimedEvent;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.junit.Assert.*;
+
+public class ColumnarEventHistoryTests {
+
+    @Test
+    public void givenEventsOverManySegments_cursor_readsThemInOrder() {
+        ColumnarEventHistory<Transaction> sut = newHistory(4);
+        for (int i = 0; i < 10; i++) {
+            sut.add(new TimedEvent<>(i, new Transaction(i * 2, 1000 + i)));
+        }
+
+        ColumnarEventHistory.Cursor cursor = sut.cursor();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(cursor.next());
+            assertEquals(i, cursor.getLogicalTime());
+            assertEquals(1000 + i, cursor.getTimestamp());
+            assertEquals(i * 2, cursor.getValue(), 0.001);
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void givenCountRetention_whenMoreEventsArePublished_oldestAreEvictedAcrossSegments() {
+        ILogicalyTimedEventHandler<Transaction> handler = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(
+                EventRetentionPolicy.byCount(3), new SynchronousEventDispatcher<>(), newHistory(2));
+
+        for (int i = 0; i < 7; i++) {
+            handler.publish(new Transaction(i, 1000 + i));
+        }
+
+        assertEquals(3, handler.getRetainedCount());
+        assertEquals(4, handler.getEvictedCount());
+        assertEquals(asList(4.0, 5.0, 6.0), handler.getHistory().stream().map(x -> x.getEvent().getAmount()).collect(toList()));
+    }
+
+    @Test
+    public void givenConcurrentPublishers_allEventsAreRetainedOnce() {
+        ColumnarEventHistory<Transaction> history = newHistory(16);
+        ILogicalyTimedEventHandler<Transaction> handler = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(
+                EventRetentionPolicy.unbounded(), new SynchronousEventDispatcher<>(), history);
+
+        IntStream.range(0, 10_000).parallel().forEach(i -> handler.publish(new Transaction(i, i)));
+
+        List<Long> logicalTimes = new ArrayList<>();
+        ColumnarEventHistory.Cursor cursor = history.cursor();
+        while (cursor.next()) {
+            logicalTimes.add(cursor.getLogicalTime());
+        }
+        assertEquals(10_000, logicalTimes.stream().distinct().count());
+    }
+
+    private static ColumnarEventHistory<Transaction> newHistory(int segmentSize) {
+        return new ColumnarEventHistory<>(segmentSize, Transaction::getTimestamp, Transaction::getAmount, Transaction::new);
+    }
+}
@@ -0,0 +1,50 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.statistics.CompensatedStatistics;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class CompensatedStatisticsTests {
+
+    @Test
+    public void givenManySmallAmounts_getSum_isCompensated() {
+        CompensatedStatistics sut = new CompensatedStatistics();
+        double[] amounts = new double[1_000_000];
+        Arrays.fill(amounts, 0.1);
+
+        sut.acceptAll(amounts, 0, amounts.length);
+
+        assertEquals(100_000.0, sut.getSum(), 0.0);
+        assertEquals(1_000_000, sut.getCount());
+    }
+
+    @Test
+    public void givenChunksAggregatedInParallel_combine_givesTheSequentialResult() {
+        CompensatedStatistics sequential = new CompensatedStatistics();
+        IntStream.rangeClosed(1, 100_000).forEach(i -> sequential.accept(i * 0.01));
+
+        CompensatedStatistics parallel = IntStream.rangeClosed(1, 100_000).boxed().parallel()
+                .collect(CompensatedStatistics.summarizing(i -> i * 0.01));
+
+        assertEquals(sequential.getSum(), parallel.getSum(), 1e-9);
+        assertEquals(sequential.getCount(), parallel.getCount());
+        assertEquals(0.01, parallel.getMin(), 0.0);
+        assertEquals(1_000, parallel.getMax(), 0.0);
+    }
+
+    @Test
+    public void givenNoValues_toAggregateStatistics_isAllZero() {
+        assertEquals(new AggregateStatistics(), new CompensatedStatistics().toAggregateStatistics());
+    }
+}
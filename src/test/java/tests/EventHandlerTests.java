@@ -7,6 +7,7 @@ package tests;
  */
 
 import com.n26.atrposki.utils.events.AggregateException;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
 import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
 import com.n26.atrposki.utils.events.ILogicalyTimedEventHandler;
 import com.n26.atrposki.utils.events.TimedEvent;
@@ -15,6 +16,10 @@ import org.junit.Test;
 import java.util.Collection;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
@@ -117,6 +122,33 @@ public class EventHandlerTests {
         event.publish(msg);
     }
 
+    @Test
+    public void givenCountRetention_whenMoreEventsArePublished_oldestAreEvicted(){
+        ILogicalyTimedEventHandler<Object> event = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.byCount(2));
+        event.publish(1);
+        event.publish(2);
+        event.publish(3);
+
+        assertEquals(2, event.getRetainedCount());
+        assertEquals(1, event.getEvictedCount());
+        assertEquals(asList(2, 3), event.getHistory().stream().map(TimedEvent::getEvent).collect(toList()));
+    }
+
+    @Test
+    public void givenAgeRetention_whenEventsGetOld_theyAreEvictedOnNextPublish(){
+        AtomicLong now = new AtomicLong(1000);
+        ILogicalyTimedEventHandler<Long> event = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(
+                new EventRetentionPolicy<Long>(EventRetentionPolicy.UNBOUNDED, 100, x -> x, now::get));
+        event.publish(950l);
+        event.publish(990l);
+        now.set(1060);
+        event.publish(1060l);
+
+        assertEquals(2, event.getRetainedCount());
+        assertEquals(1, event.getEvictedCount());
+        assertEquals(990l, (long) event.getHistory().get(0).getEvent());
+    }
+
     private ILogicalyTimedEventHandler<Object> createSUT() {
         return new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>();
     }
@@ -0,0 +1,74 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimingWheelTests {
+    long start = 1_000_000;
+
+    @Test
+    public void givenScheduledTasks_whenWheelAdvances_onlyDueTasksRun() {
+        HashedTimingWheel sut = new HashedTimingWheel(100, 8, () -> start);
+        List<Integer> ran = new ArrayList<>();
+        sut.schedule(start + 150, () -> ran.add(1));
+        sut.schedule(start + 450, () -> ran.add(2));
+
+        sut.advance(start + 200);
+        assertEquals(asList(1), ran);
+
+        sut.advance(start + 500);
+        assertEquals(asList(1, 2), ran);
+    }
+
+    @Test
+    public void givenDeadlineFurtherThanARotation_taskRunsOnlyWhenDue() {
+        HashedTimingWheel sut = new HashedTimingWheel(100, 4, () -> start);
+        List<Integer> ran = new ArrayList<>();
+        sut.schedule(start + 1_000, () -> ran.add(1));
+
+        sut.advance(start + 500);
+        assertTrue("task ran a rotation too early", ran.isEmpty());
+
+        sut.advance(start + 1_000);
+        assertEquals(asList(1), ran);
+    }
+
+    @Test
+    public void givenDriverFellBehindManyRotations_allDueTasksRun() {
+        HashedTimingWheel sut = new HashedTimingWheel(100, 4, () -> start);
+        List<Integer> ran = new ArrayList<>();
+        sut.schedule(start + 100, () -> ran.add(1));
+        sut.schedule(start + 5_000, () -> ran.add(2));
+        sut.schedule(start + 50_000, () -> ran.add(3));
+
+        sut.advance(start + 10_000);
+
+        assertEquals(2, ran.size());
+    }
+
+    @Test
+    public void givenFailingTask_wheelKeepsRunningOtherTasks() {
+        HashedTimingWheel sut = new HashedTimingWheel(100, 4, () -> start);
+        List<Integer> ran = new ArrayList<>();
+        sut.schedule(start + 100, () -> {
+            throw new IllegalStateException();
+        });
+        sut.schedule(start + 100, () -> ran.add(1));
+
+        assertEquals(2, sut.advance(start + 100));
+        assertEquals(asList(1), ran);
+    }
+}
@@ -0,0 +1,113 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.transactions.IngestionWatermark;
+import com.n26.atrposki.transactions.IngestionWatermark.Admission;
+import com.n26.atrposki.transactions.TransactionBatchResultDTO;
+import com.n26.atrposki.transactions.TransactionDTO;
+import com.n26.atrposki.transactions.TransactionsService;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.mockito.Mockito.*;
+
+public class IngestionWatermarkTests {
+    private static final long LATENESS = 60000;
+    private static final long MAX_FUTURE = 10000;
+
+    @Test
+    public void givenExpiredAndFarFutureTransactions_admit_dropsThem(){
+        AtomicLong now = new AtomicLong(100000);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        IngestionWatermark sut = new IngestionWatermark(timeService(now), handler, null, LATENESS, 0, MAX_FUTURE, 10);
+
+        Assert.assertEquals(Admission.DROPPED, sut.admit(new Transaction(1, now.get() - LATENESS - 1)));
+        Assert.assertEquals(Admission.CURRENT, sut.admit(new Transaction(1, now.get() - LATENESS)));
+        Assert.assertEquals(Admission.CURRENT, sut.admit(new Transaction(1, now.get())));
+        Assert.assertEquals(Admission.DROPPED, sut.admit(new Transaction(1, now.get() + MAX_FUTURE + 1)));
+        Assert.assertEquals(now.get() - LATENESS, sut.getWatermark());
+        Assert.assertEquals(0, sut.getParkedCount());
+    }
+
+    @Test
+    public void givenFutureTransactions_promoteDue_publishesThemInTimestampOrderOnceCurrent(){
+        AtomicLong now = new AtomicLong(100000);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        IngestionWatermark sut = new IngestionWatermark(timeService(now), handler, null, LATENESS, 0, MAX_FUTURE, 10);
+
+        Assert.assertEquals(Admission.PARKED, sut.admit(new Transaction(3, 103000)));
+        Assert.assertEquals(Admission.PARKED, sut.admit(new Transaction(1, 101000)));
+        Assert.assertEquals(Admission.PARKED, sut.admit(new Transaction(2, 102000)));
+        Assert.assertEquals(0, sut.promoteDue());
+        Assert.assertTrue(handler.getHistory().isEmpty());
+
+        now.set(102000);
+        Assert.assertEquals(2, sut.promoteDue());
+        Assert.assertEquals(1, sut.getParkedCount());
+        Assert.assertEquals(Arrays.asList(1.0, 2.0), handler.getHistory().stream().map(x -> x.getEvent().getAmount()).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void givenFarFutureTransaction_createTransaction_isNotInTheWindow(){
+        AtomicLong now = new AtomicLong(100000);
+        ITimeService timeService = timeService(now);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        IngestionWatermark watermark = new IngestionWatermark(timeService, handler, null, LATENESS, 0, MAX_FUTURE, 10);
+        TransactionsService sut = new TransactionsService(handler, timeService, 1000, watermark);
+
+        Assert.assertFalse(sut.createTransaction(new TransactionDTO(1.0, now.get() + MAX_FUTURE + 1)));
+        Assert.assertTrue(sut.createTransaction(new TransactionDTO(1.0, now.get() + 1000)));
+        Assert.assertTrue(handler.getHistory().isEmpty());
+    }
+
+    @Test
+    public void givenFullParkingBuffer_admit_dropsFutureTransactions(){
+        AtomicLong now = new AtomicLong(100000);
+        IngestionWatermark sut = new IngestionWatermark(timeService(now), new TransactionMadeEventHandler(), null, LATENESS, 0, MAX_FUTURE, 1);
+
+        Assert.assertEquals(Admission.PARKED, sut.admit(new Transaction(1, 101000)));
+        Assert.assertEquals(Admission.DROPPED, sut.admit(new Transaction(1, 101000)));
+        Assert.assertEquals(1, sut.getParkedCount());
+    }
+
+    @Test
+    public void givenWatermark_createTransactions_publishesOnlyCurrentRecords(){
+        AtomicLong now = new AtomicLong(100000);
+        ITimeService timeService = timeService(now);
+        TransactionMadeEventHandler handler = spy(new TransactionMadeEventHandler());
+        IngestionWatermark watermark = new IngestionWatermark(timeService, handler, null, LATENESS, 0, MAX_FUTURE, 10);
+        TransactionsService sut = new TransactionsService(handler, timeService, 1000, watermark);
+        String body = "{\"amount\":1.0,\"timestamp\":1}\n{\"amount\":2.0,\"timestamp\":99000}\n{\"amount\":3.0,\"timestamp\":105000}\n";
+
+        TransactionBatchResultDTO result = sut.createTransactions(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        boolean isInWindow = sut.createTransaction(new TransactionDTO(4.0, 1));
+
+        Assert.assertEquals(2, result.getAccepted());
+        Assert.assertEquals(1, result.getDropped());
+        Assert.assertFalse("a dropped transaction was reported as in the window", isInWindow);
+        Assert.assertEquals(1, handler.getHistory().size());
+        Assert.assertEquals(2.0, handler.getHistory().get(0).getEvent().getAmount(), 0);
+        verify(handler, never()).publish(any(Transaction.class));
+        Assert.assertEquals(1, watermark.getParkedCount());
+    }
+
+    private static ITimeService timeService(AtomicLong now) {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> now.get());
+        return timeService;
+    }
+}
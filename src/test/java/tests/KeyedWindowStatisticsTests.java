@@ -0,0 +1,79 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.KeyedStatisticsService;
+import com.n26.atrposki.statistics.KeyedWindowStatistics;
+import com.n26.atrposki.statistics.PartialStatistics;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class KeyedWindowStatisticsTests {
+
+    @Test
+    public void givenTransactionsOfSeveralKeys_getPartialStatistics_returnsOnlyTheOnesOfTheKeyInTheWindow() {
+        KeyedWindowStatistics sut = new KeyedWindowStatistics(60, 1000);
+        long now = 1_000_000;
+        sut.add(7, now - 100, 10, now);
+        sut.add(7, now - 30_000, 5, now);
+        sut.add(8, now - 100, 100, now);
+        assertFalse(sut.add(7, now - 60_000, 1000, now));
+        assertFalse(sut.add(7, now + 1000, 1000, now));
+
+        assertEquals(new PartialStatistics(15, 2, 5, 10), sut.getPartialStatistics(7, now));
+        assertEquals(new PartialStatistics(10, 1, 10, 10), sut.getPartialStatistics(7, now + 30_000));
+        assertTrue(sut.getPartialStatistics(9, now).isEmpty());
+    }
+
+    @Test
+    public void givenManyKeysInOneSegment_evictIdle_removesTheIdleOnesAndKeepsTheOthersReachable() {
+        KeyedWindowStatistics sut = new KeyedWindowStatistics(10, 1000, 1);
+        long now = 1_000_000;
+        for (long key = 0; key < 5000; key++) {
+            long timestamp = key % 2 == 0 ? now - 9_000 : now;
+            sut.add(key, timestamp, key, now);
+        }
+        assertEquals(5000, sut.size());
+
+        assertEquals(0, sut.evictIdle(now + 500));
+        assertEquals(2500, sut.evictIdle(now + 1000));
+
+        assertEquals(2500, sut.size());
+        for (long key = 0; key < 5000; key++) {
+            PartialStatistics statistics = sut.getPartialStatistics(key, now + 1000);
+            assertEquals(Long.toString(key), key % 2 == 0 ? 0 : 1, statistics.getCount());
+        }
+        assertEquals(2500, sut.evictIdle(now + 10_000));
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void givenKeyedAndUnkeyedTransactions_keyedStatisticsService_aggregatesTheKeyedOnes() {
+        AtomicLong now = new AtomicLong(1_000_000);
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> now.get());
+        KeyedStatisticsService sut = new KeyedStatisticsService(timeService, mock(TransactionMadeEventHandler.class), new KeyedWindowStatistics(60, 1000));
+        sut.onTransactionMade(new TimedEvent<>(0, new Transaction(4, now.get(), 42)));
+        sut.onTransactionMade(new TimedEvent<>(1, new Transaction(6, now.get(), 42)));
+        sut.onTransactionMade(new TimedEvent<>(2, new Transaction(100, now.get())));
+
+        assertEquals(new AggregateStatistics(10.0, 5.0, 6.0, 4.0, 2L), sut.getStatistics(42));
+
+        now.addAndGet(60_000);
+        assertEquals(1, sut.evictIdleKeys());
+        assertEquals(0, sut.getStatistics(42).getCount());
+    }
+}
@@ -0,0 +1,59 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.sketch.LogHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LogHistogramTests {
+
+    @Test
+    public void givenUniformAmounts_getValueAtQuantile_isWithinTheRelativeError() {
+        LogHistogram sut = new LogHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            sut.record(i);
+        }
+
+        assertEquals(10_000, sut.getCount());
+        assertEquals(5_000, sut.getValueAtQuantile(0.5), 5_000 * LogHistogram.RELATIVE_ERROR);
+        assertEquals(9_500, sut.getValueAtQuantile(0.95), 9_500 * LogHistogram.RELATIVE_ERROR);
+        assertEquals(9_900, sut.getValueAtQuantile(0.99), 9_900 * LogHistogram.RELATIVE_ERROR);
+    }
+
+    @Test
+    public void givenSplitHistograms_merge_givesTheQuantilesOfTheWhole() {
+        LogHistogram first = new LogHistogram();
+        LogHistogram second = new LogHistogram();
+        for (int i = 1; i <= 1_000; i++) {
+            (i % 2 == 0 ? first : second).record(i);
+        }
+
+        first.merge(second);
+
+        assertEquals(1_000, first.getCount());
+        assertEquals(500, first.getValueAtQuantile(0.5), 500 * LogHistogram.RELATIVE_ERROR);
+    }
+
+    @Test
+    public void givenNegativeZeroAndPositiveAmounts_quantilesAreOrderedBySignedValue() {
+        LogHistogram sut = new LogHistogram();
+        sut.record(-100);
+        sut.record(0);
+        sut.record(100);
+
+        assertEquals(-100, sut.getValueAtQuantile(0), 1);
+        assertEquals(0, sut.getValueAtQuantile(0.5), 0.001);
+        assertEquals(100, sut.getValueAtQuantile(1), 1);
+    }
+
+    @Test
+    public void givenNothingRecorded_getValueAtQuantile_isNaN() {
+        assertTrue(Double.isNaN(new LogHistogram().getValueAtQuantile(0.5)));
+    }
+}
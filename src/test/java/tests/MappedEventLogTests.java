@@ -0,0 +1,227 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.IEventLog;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.LogSyncPolicy;
+import com.n26.atrposki.utils.events.MappedEventLog;
+import com.n26.atrposki.utils.events.SynchronousEventDispatcher;
+import com.n26.atrposki.utils.events.TimedEvent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class MappedEventLogTests {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenEventsOverManySegments_whenReopened_replaysThemAfterTheLogicalTime() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MappedEventLog<Transaction> log = newLog(directory, LogSyncPolicy.NONE, () -> 0);
+        for (int i = 0; i < 10; i++) {
+            log.append(new TimedEvent<>(i, new Transaction(i * 2, 1000 + i)));
+        }
+        assertEquals(3, log.getSegmentCount());
+        log.close();
+
+        MappedEventLog<Transaction> reopened = newLog(directory, LogSyncPolicy.NONE, () -> 0);
+        List<Long> logicalTimes = new ArrayList<>();
+        long visited = reopened.replay(4, (logicalTime, timestamp, value) -> {
+            assertEquals(1000 + logicalTime, timestamp);
+            assertEquals(logicalTime * 2, value, 0.001);
+            logicalTimes.add(logicalTime);
+        });
+
+        assertEquals(9, reopened.getLastLogicalTime());
+        assertEquals(5, visited);
+        assertEquals(asList(5L, 6L, 7L, 8L, 9L), logicalTimes);
+    }
+
+    @Test
+    public void givenHighestLogicalTimeAppendedBeforeSlowerPublishers_whenReopened_findsItInTheOlderSegment() {
+        Path directory = folder.getRoot().toPath();
+        MappedEventLog<Transaction> log = newLog(directory, LogSyncPolicy.NONE, () -> 0);
+        for (long logicalTime : new long[]{0, 1, 2, 5, 3, 4}) {
+            log.append(new TimedEvent<>(logicalTime, new Transaction(1, 1000)));
+        }
+        log.close();
+
+        assertEquals(5, newLog(directory, LogSyncPolicy.NONE, () -> 0).getLastLogicalTime());
+        //the segments of the previous starts are empty
+        assertEquals(5, newLog(directory, LogSyncPolicy.NONE, () -> 0).getLastLogicalTime());
+    }
+
+    @Test
+    public void givenTornRecord_replay_skipsIt() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MappedEventLog<Transaction> log = newLog(directory, LogSyncPolicy.ALWAYS, () -> 0);
+        for (int i = 0; i < 3; i++) {
+            log.append(new TimedEvent<>(i, new Transaction(i, 1000 + i)));
+        }
+        log.close();
+        File segment = directory.resolve(String.format("%020d.wal", 0)).toFile();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            //the value of the second record
+            file.seek(MappedEventLog.RECORD_SIZE + 16);
+            file.write(0x7F);
+        }
+
+        List<Long> logicalTimes = new ArrayList<>();
+        newLog(directory, LogSyncPolicy.NONE, () -> 0).replay(-1, (logicalTime, timestamp, value) -> logicalTimes.add(logicalTime));
+
+        assertEquals(asList(0L, 2L), logicalTimes);
+    }
+
+    @Test
+    public void givenSegmentsClosedBeforeTheRetention_deleteOutOfRetention_deletesOnlyThem() {
+        long[] now = {0};
+        MappedEventLog<Transaction> log = newLog(folder.getRoot().toPath(), LogSyncPolicy.PERIODIC, () -> now[0]);
+        for (int i = 0; i < 9; i++) {
+            //the first segment is closed at 1000 and the second one at 2000
+            now[0] = (i / 4) * 1000;
+            log.append(new TimedEvent<>(i, new Transaction(i, now[0])));
+        }
+        log.sync();
+        now[0] = 1000 + 60_000 + 1;
+
+        assertEquals(1, log.deleteOutOfRetention());
+        assertEquals(2, log.getSegmentCount());
+        assertEquals(2, folder.getRoot().list().length);
+        assertEquals(5, log.replay(-1, (logicalTime, timestamp, value) -> { }));
+    }
+
+    @Test
+    public void givenHandlerWithLog_whenRestarted_continuesTheLogicalTime() {
+        Path directory = folder.getRoot().toPath();
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> handler = newHandler(newLog(directory, LogSyncPolicy.PERIODIC, () -> 0));
+        handler.publish(new Transaction(1, 1000));
+        handler.publishAll(asList(new Transaction(2, 1001), new Transaction(3, 1002)));
+        handler.shutdown(100);
+
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> restarted = newHandler(newLog(directory, LogSyncPolicy.PERIODIC, () -> 0));
+        TimedEvent<Transaction> event = restarted.publishUnsafely(new Transaction(4, 1003));
+
+        assertEquals(3, event.getLogicalTime());
+        double[] sum = {0};
+        restarted.shutdown(100);
+        assertEquals(4, newLog(directory, LogSyncPolicy.NONE, () -> 0).replay(-1, (logicalTime, timestamp, value) -> sum[0] += value));
+        assertEquals(10, sum[0], 0.001);
+    }
+
+    @Test
+    public void givenFailingLog_publish_stillDispatchesTheEventsAndCountsTheFailedAppends() throws Exception {
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> handler = newHandler(new RecordingLog() {
+            @Override
+            public void append(TimedEvent<Transaction> event) {
+                throw new UncheckedIOException(new IOException("No space left on device"));
+            }
+
+            @Override
+            public void appendAll(List<TimedEvent<Transaction>> events) {
+                throw new IllegalStateException("The event log is closed");
+            }
+        });
+        List<Long> dispatched = new ArrayList<>();
+        handler.subscribe(x -> dispatched.add(x.getLogicalTime()));
+
+        handler.publishUnsafely(new Transaction(1, 1000));
+        handler.publishAllUnsafely(asList(new Transaction(2, 1001), new Transaction(3, 1002)));
+
+        assertEquals(asList(0L, 1L, 2L), dispatched);
+        assertEquals(3, handler.getFailedAppendCount());
+    }
+
+    @Test
+    public void givenPublishInProgress_shutdown_closesTheLogOnlyAfterItsAppend() throws Exception {
+        CountDownLatch appending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingLog log = new RecordingLog() {
+            @Override
+            public void append(TimedEvent<Transaction> event) {
+                appending.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                super.append(event);
+            }
+        };
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> handler = newHandler(log);
+        Thread publisher = new Thread(() -> handler.publish(new Transaction(1, 1000)));
+        publisher.start();
+        assertTrue(appending.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Boolean> shutdown = CompletableFuture.supplyAsync(() -> handler.shutdown(5000));
+        Thread.sleep(50);
+        assertFalse("the log was closed during an append", log.calls.contains("close"));
+        release.countDown();
+
+        assertTrue(shutdown.get(5, TimeUnit.SECONDS));
+        assertEquals(asList("append", "close"), log.calls);
+        assertEquals(0, handler.getFailedAppendCount());
+    }
+
+    private static MappedEventLog<Transaction> newLog(Path directory, LogSyncPolicy syncPolicy, LongSupplier clock) {
+        return new MappedEventLog<>(directory, 4, Transaction::getTimestamp, Transaction::getAmount, syncPolicy, 100, 60_000, clock);
+    }
+
+    private static InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Transaction> newHandler(IEventLog<Transaction> log) {
+        return new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.unbounded(), new SynchronousEventDispatcher<>(),
+                new ColumnarEventHistory<>(Transaction::getTimestamp, Transaction::getAmount, Transaction::new), log);
+    }
+
+    private static class RecordingLog implements IEventLog<Transaction> {
+        final List<String> calls = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void append(TimedEvent<Transaction> event) {
+            calls.add("append");
+        }
+
+        @Override
+        public void appendAll(List<TimedEvent<Transaction>> events) {
+            events.forEach(this::append);
+        }
+
+        @Override
+        public long getLastLogicalTime() {
+            return -1;
+        }
+
+        @Override
+        public long replay(long afterLogicalTime, RecordVisitor visitor) {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            calls.add("close");
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.metrics.Counter;
+import com.n26.atrposki.utils.metrics.LatencyHistogram;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTests {
+
+    @Test
+    public void givenRegisteredMetrics_scrape_writesThePrometheusTextFormat() {
+        MetricsRegistry sut = new MetricsRegistry();
+        Counter counter = sut.counter("requests_total", "Number of requests");
+        LatencyHistogram histogram = sut.latencyHistogram("request_duration_seconds", "Request duration");
+        sut.gauge("queue_size", "Queue size", () -> 3);
+        counter.increment();
+        histogram.record(2_000);
+        histogram.record(2_000_000_000L);
+
+        String scraped = sut.scrape();
+
+        assertTrue(scraped.contains("# TYPE requests_total counter\nrequests_total 1\n"));
+        assertTrue(scraped.contains("request_duration_seconds_bucket{le=\"1.0E-6\"} 0\n"));
+        assertTrue(scraped.contains("request_duration_seconds_bucket{le=\"2.5E-6\"} 1\n"));
+        assertTrue(scraped.contains("request_duration_seconds_bucket{le=\"+Inf\"} 2\n"));
+        assertTrue(scraped.contains("request_duration_seconds_count 2\n"));
+        assertTrue(scraped.contains("# TYPE queue_size gauge\nqueue_size 3.0\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenADuplicateName_register_throws() {
+        MetricsRegistry sut = new MetricsRegistry();
+        sut.counter("requests_total", "Number of requests");
+        sut.counter("requests_total", "Number of requests");
+    }
+
+    @Test
+    public void givenAnEventHandlerWithMetrics_publish_recordsPublishAndListenerDurations() {
+        MetricsRegistry registry = new MetricsRegistry();
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> handler = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.byCount(1));
+        handler.registerMetrics(registry, "events");
+        handler.subscribe(x -> {});
+        handler.subscribe(x -> {});
+
+        handler.publish(new Object());
+        handler.publish(new Object());
+
+        String scraped = registry.scrape();
+        assertTrue(scraped.contains("events_publish_duration_seconds_count 2\n"));
+        assertTrue(scraped.contains("events_listener_duration_seconds_count 4\n"));
+        assertTrue(scraped.contains("events_history_retained 1.0\n"));
+        assertTrue(scraped.contains("events_history_evicted_total 1.0\n"));
+    }
+}
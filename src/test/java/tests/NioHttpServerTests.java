@@ -0,0 +1,198 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.endpoints.NioApiHandler;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsSnapshot;
+import com.n26.atrposki.transactions.TransactionDTO;
+import com.n26.atrposki.transactions.TransactionsService;
+import com.n26.atrposki.utils.http.HttpResponse;
+import com.n26.atrposki.utils.http.IHttpHandler;
+import com.n26.atrposki.utils.http.NioHttpServer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class NioHttpServerTests {
+
+    @Test
+    public void givenPipelinedRequestsOnAKeepAliveConnection_server_answersThemInOrder() throws Exception {
+        IHttpHandler echo = request -> HttpResponse.of(200, "text/plain", (request.getMethod() + " " + request.getPath()).getBytes(StandardCharsets.UTF_8));
+        try (NioHttpServer server = startServer(echo, 1000); Socket socket = connect(server)) {
+            write(socket, "GET /first?x=1 HTTP/1.1\r\nHost: a\r\n\r\nPOST /second HTTP/1.1\r\nContent-Length: 3\r\n\r\nabc");
+
+            assertEquals("200|GET /first", readResponse(socket.getInputStream()));
+            assertEquals("200|POST /second", readResponse(socket.getInputStream()));
+            write(socket, "GET /third HTTP/1.1\r\nConnection: close\r\n\r\n");
+            assertEquals("200|GET /third", readResponse(socket.getInputStream()));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+    }
+
+    @Test
+    public void givenTheApiAdapter_server_answersLikeTheApiController() throws Exception {
+        TransactionsService transactionsService = mock(TransactionsService.class);
+        when(transactionsService.createTransaction(new TransactionDTO(12.5, 10))).thenReturn(true);
+        when(transactionsService.createTransaction(new TransactionDTO(1, 1))).thenReturn(false);
+        StatisticsService statisticsService = mock(StatisticsService.class);
+        StatisticsSnapshot snapshot = new StatisticsSnapshot(3, new AggregateStatistics(), new ObjectMapper());
+        when(statisticsService.getSnapshot()).thenReturn(snapshot);
+        NioApiHandler handler = new NioApiHandler(transactionsService, statisticsService, new ObjectMapper());
+        try (NioHttpServer server = startServer(handler, 1000); Socket socket = connect(server)) {
+            write(socket, post("{\"amount\":12.5,\"timestamp\":10}"));
+            assertEquals("201|", readResponse(socket.getInputStream()));
+            write(socket, post("{\"timestamp\":1,\"amount\":\"1\"}"));
+            assertEquals("204|", readResponse(socket.getInputStream()));
+            write(socket, post("{\"amount\":"));
+            assertEquals("400|", readResponse(socket.getInputStream()));
+            write(socket, "GET /api/statistics/latest HTTP/1.1\r\n\r\n");
+            assertEquals("200|" + new String(snapshot.getJson(), StandardCharsets.UTF_8), readResponse(socket.getInputStream()));
+            write(socket, "GET /api/statistics/latest HTTP/1.1\r\nIf-None-Match: " + snapshot.getETag(false) + "\r\n\r\n");
+            assertEquals("304|", readResponse(socket.getInputStream()));
+            write(socket, "GET /api/unknown HTTP/1.1\r\n\r\n");
+            assertEquals("404|", readResponse(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void givenManyKeepAliveConnections_server_servesThemAllWithTwoEventLoops() throws Exception {
+        IHttpHandler ok = request -> HttpResponse.of(200, "text/plain", "ok".getBytes(StandardCharsets.UTF_8));
+        List<Socket> sockets = new ArrayList<>();
+        try (NioHttpServer server = startServer(ok, 1000)) {
+            for (int i = 0; i < 300; i++) {
+                sockets.add(connect(server));
+            }
+            for (int round = 0; round < 2; round++) {
+                for (Socket socket : sockets) {
+                    write(socket, "GET / HTTP/1.1\r\n\r\n");
+                }
+                for (Socket socket : sockets) {
+                    assertEquals("200|ok", readResponse(socket.getInputStream()));
+                }
+            }
+            assertEquals(300, server.getConnectionCount());
+            assertEquals(600, server.getRequestCount());
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void givenOversizedOrChunkedRequest_server_refusesItAndCloses() throws Exception {
+        IHttpHandler ok = request -> HttpResponse.of(200);
+        try (NioHttpServer server = startServer(ok, 64)) {
+            try (Socket socket = connect(server)) {
+                write(socket, "POST / HTTP/1.1\r\nContent-Length: 1000\r\n\r\n");
+                assertEquals("413|", readResponse(socket.getInputStream()));
+                assertEquals(-1, socket.getInputStream().read());
+            }
+            try (Socket socket = connect(server)) {
+                write(socket, "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+                assertEquals("501|", readResponse(socket.getInputStream()));
+            }
+        }
+    }
+
+    @Test
+    public void givenHandlerThatBlocksOnTheWorkers_server_keepsServingTheOtherConnectionsOfTheEventLoop() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        IHttpHandler handler = request -> {
+            if (request.getPath().equals("/blocking")) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return HttpResponse.of(200, "text/plain", request.getPath().getBytes(StandardCharsets.UTF_8));
+        };
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        NioHttpServer server = new NioHttpServer(new InetSocketAddress("localhost", 0), 1, 1000, 1000, 10_000, handler, workers);
+        server.start(runnable -> new Thread(runnable, "http-nio-test"));
+        try (Socket blocked = connect(server); Socket other = connect(server)) {
+            write(blocked, "GET /blocking HTTP/1.1\r\n\r\nGET /after HTTP/1.1\r\n\r\n");
+            write(other, "GET /other HTTP/1.1\r\n\r\n");
+
+            assertEquals("200|/other", readResponse(other.getInputStream()));
+            release.countDown();
+            assertEquals("200|/blocking", readResponse(blocked.getInputStream()));
+            assertEquals("200|/after", readResponse(blocked.getInputStream()));
+        } finally {
+            server.close();
+            workers.shutdownNow();
+        }
+    }
+
+    private static NioHttpServer startServer(IHttpHandler handler, int maxRequestBytes) throws IOException {
+        NioHttpServer server = new NioHttpServer(new InetSocketAddress("localhost", 0), 2, 1000, maxRequestBytes, 10_000, handler);
+        server.start(runnable -> {
+            Thread thread = new Thread(runnable, "http-nio-test");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return server;
+    }
+
+    private static Socket connect(NioHttpServer server) throws IOException {
+        Socket socket = new Socket("localhost", server.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static String post(String body) {
+        return "POST /api/transactions/ HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    private static void write(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * @return the status and the body of the next response, separated by |
+     * */
+    private static String readResponse(InputStream input) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString("ISO-8859-1").endsWith("\r\n\r\n")) {
+            int read = input.read();
+            if (read < 0) {
+                throw new IOException("Connection closed before the end of the response: " + head);
+            }
+            head.write(read);
+        }
+        String[] lines = head.toString("ISO-8859-1").split("\r\n");
+        int contentLength = 0;
+        for (String line : lines) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        byte[] body = new byte[contentLength];
+        new DataInputStream(input).readFully(body);
+        return lines[0].split(" ")[1] + "|" + new String(body, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,217 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.StatisticsCheckpoint;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.IEventLog;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.ParallelEventDispatcher;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelEventDispatcherTests {
+
+    @Test
+    public void givenConcurrentPublishers_everyListenerSeesAllEventsInLogicalTimeOrder() throws InterruptedException {
+        ParallelEventDispatcher<Object> dispatcher = new ParallelEventDispatcher<>(4, 1000, 5, 1000, 100000);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(dispatcher);
+        List<Long> first = Collections.synchronizedList(new ArrayList<>());
+        List<Long> second = Collections.synchronizedList(new ArrayList<>());
+        sut.subscribe(x -> first.add(x.getLogicalTime()));
+        sut.subscribe(x -> second.add(x.getLogicalTime()));
+
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread publisher = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    sut.publish(i);
+                }
+            });
+            publisher.start();
+            publishers.add(publisher);
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals(4000, first.size());
+        assertEquals(4000, second.size());
+        for (int i = 0; i < 4000; i++) {
+            assertEquals(i, (long) first.get(i));
+            assertEquals(i, (long) second.get(i));
+        }
+    }
+
+    @Test
+    public void givenAHangingListener_theOtherListeners_getTheEventsAndTheHangingCallIsInterrupted() throws InterruptedException {
+        ParallelEventDispatcher<Object> dispatcher = new ParallelEventDispatcher<>(2, 100, 5, 1000, 100);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(dispatcher);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        CountDownLatch handled = new CountDownLatch(3);
+        sut.subscribe(x -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        sut.subscribe(x -> handled.countDown());
+
+        sut.publish(1);
+        sut.publish(2);
+        sut.publish(3);
+
+        assertTrue("the other listener was held up", handled.await(50, TimeUnit.MILLISECONDS));
+        assertTrue("the hanging call was not interrupted", interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals(3, dispatcher.getTimedOutCount());
+        assertEquals(3, dispatcher.getFailedCount());
+    }
+
+    @Test
+    public void givenAFailingListener_afterTheBreakerFailures_itsEventsAreShedAndDeliveredFromTheHistoryAfterTheBreakerTime() throws InterruptedException {
+        ParallelEventDispatcher<Object> dispatcher = new ParallelEventDispatcher<>(1, 1000, 2, 100, 100);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(dispatcher);
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        sut.subscribe(x -> {
+            if (x.getLogicalTime() < 2) {
+                throw new IllegalStateException("failing listener");
+            }
+            handled.add(x.getLogicalTime());
+        });
+
+        sut.publish(1);
+        sut.publish(2);
+        waitForFailures(dispatcher, 2);
+        sut.publish(3);
+        sut.publish(4);
+
+        assertTrue(handled.isEmpty());
+        assertEquals(0, dispatcher.getPendingCount());
+        assertEquals(2, dispatcher.getShedCount());
+        assertEquals(1, dispatcher.getOpenBreakerCount());
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals("the shed events were not delivered", Arrays.asList(2L, 3L), handled);
+        assertEquals(0, dispatcher.getOpenBreakerCount());
+        assertEquals(0, dispatcher.getLostCount());
+    }
+
+    @Test
+    public void givenAFullMailbox_publish_doesNotWaitAndTheListenerCatchesUpFromTheHistory() throws InterruptedException {
+        ParallelEventDispatcher<Object> dispatcher = new ParallelEventDispatcher<>(1, 5000, 5, 1000, 2);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(dispatcher);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        sut.subscribe(x -> {
+            release.await();
+            handled.add(x.getLogicalTime());
+        });
+
+        Thread publisher = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                sut.publish(i);
+            }
+        });
+        publisher.start();
+        publisher.join(5000);
+
+        assertFalse("the publisher waited for the listener", publisher.isAlive());
+        assertTrue(dispatcher.getShedCount() > 0);
+        release.countDown();
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), handled);
+    }
+
+    @Test
+    public void givenShedEventsEvictedFromTheHistory_theListenerCatchesUp_andTheyAreCountedLost() throws InterruptedException {
+        ParallelEventDispatcher<Object> dispatcher = new ParallelEventDispatcher<>(1, 5000, 5, 1000, 1);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.byCount(2), dispatcher);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        sut.subscribe(x -> {
+            entered.countDown();
+            release.await();
+            handled.add(x.getLogicalTime());
+        });
+
+        sut.publish(0);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        //1 is queued, 2 to 5 are shed and only 4 and 5 are still retained
+        for (int i = 1; i < 6; i++) {
+            sut.publish(i);
+        }
+        release.countDown();
+
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals(Arrays.asList(0L, 1L, 4L, 5L), handled);
+        assertEquals(4, dispatcher.getShedCount());
+        assertEquals(2, dispatcher.getLostCount());
+    }
+
+    @Test
+    public void givenTheBreakerOfTheStatisticsOpened_createCheckpoint_containsTheShedEvents() throws Exception {
+        AtomicBoolean isClockFailing = new AtomicBoolean();
+        ITimeService timeService = () -> {
+            if (isClockFailing.get()) {
+                throw new IllegalStateException("clock failed");
+            }
+            return System.currentTimeMillis();
+        };
+        ParallelEventDispatcher<Transaction> dispatcher = new ParallelEventDispatcher<>(2, 1000, 1, 100, 100);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler(new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.unbounded(), dispatcher,
+                new ColumnarEventHistory<>(Transaction::getTimestamp, Transaction::getAmount, Transaction::new), IEventLog.none()));
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        long now = System.currentTimeMillis();
+
+        isClockFailing.set(true);
+        handler.publish(new Transaction(1, now));
+        waitForFailures(dispatcher, 1);
+        isClockFailing.set(false);
+        handler.publish(new Transaction(2, now));
+        handler.publish(new Transaction(3, now));
+        assertEquals(1, dispatcher.getOpenBreakerCount());
+        assertEquals(2, dispatcher.getShedCount());
+
+        StatisticsCheckpoint checkpoint = statisticsService.createCheckpoint(5000).orElseThrow(IllegalStateException::new);
+        assertEquals(2, checkpoint.getLastLogicalTime());
+        assertEquals(2, checkpoint.getTransactionCount());
+        assertEquals(2, statisticsService.getStatistics().getCount());
+        handler.shutdown();
+    }
+
+    private static void waitForFailures(ParallelEventDispatcher<?> dispatcher, long failures) throws InterruptedException {
+        for (int i = 0; i < 500 && dispatcher.getFailedCount() < failures; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> createSUT(ParallelEventDispatcher<Object> dispatcher) {
+        return new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.unbounded(), dispatcher);
+    }
+}
@@ -0,0 +1,95 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.PartialStatistics;
+import com.n26.atrposki.statistics.RangeStatistics;
+import com.n26.atrposki.statistics.RangeStatisticsIndex;
+import com.n26.atrposki.statistics.RangeStatisticsService;
+import com.n26.atrposki.statistics.TieredStatistics;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.mockito.Mockito.*;
+
+public class RangeStatisticsIndexTests {
+    @Test
+    public void givenRandomTransactions_getPartialStatistics_matchesFullScanOfRetainedBuckets(){
+        int bucketCount = 100;
+        long bucketLength = 10;
+        RangeStatisticsIndex sut = new RangeStatisticsIndex(bucketCount, bucketLength);
+        Random random = new Random(42);
+        List<long[]> transactions = new ArrayList<>();
+        long now = 5000;
+        for (int i = 0; i < 3000; i++) {
+            //time moves on, so the ring wraps around several times
+            now += random.nextInt(3);
+            long timestamp = now - random.nextInt(1500);
+            long amount = random.nextInt(1000) - 200;
+            if (sut.add(timestamp, amount, now)) {
+                transactions.add(new long[]{timestamp, amount});
+            }
+        }
+
+        long oldest = sut.getRetainedFrom(now);
+        for (int i = 0; i < 200; i++) {
+            long from = now - random.nextInt(1500);
+            long to = from + random.nextInt(1500);
+            PartialStatistics expected = PartialStatistics.EMPTY;
+            for (long[] transaction : transactions) {
+                if (transaction[0] >= Math.max(oldest, Math.floorDiv(from, bucketLength) * bucketLength) && transaction[0] < (Math.floorDiv(to, bucketLength) + 1) * bucketLength) {
+                    expected = expected.merge(PartialStatistics.of(transaction[1]));
+                }
+            }
+
+            PartialStatistics actual = sut.getPartialStatistics(from, to, now);
+
+            Assert.assertEquals(expected.getCount(), actual.getCount());
+            Assert.assertEquals(expected.getSum(), actual.getSum(), 1e-6);
+            Assert.assertEquals(expected.getMin(), actual.getMin(), 0);
+            Assert.assertEquals(expected.getMax(), actual.getMax(), 0);
+        }
+    }
+
+    @Test
+    public void givenTimeMovedPastRetention_getPartialStatistics_isEmpty(){
+        RangeStatisticsIndex sut = new RangeStatisticsIndex(10, 1000);
+
+        Assert.assertTrue(sut.add(5000, 3, 5000));
+        Assert.assertFalse(sut.add(6000, 3, 5000));
+        Assert.assertFalse(sut.add(-5000, 3, 5000));
+        Assert.assertEquals(1, sut.getPartialStatistics(0, 20000, 14999).getCount());
+
+        Assert.assertTrue(sut.getPartialStatistics(0, 20000, 15000).isEmpty());
+    }
+
+    @Test
+    public void givenRangeBeyondRetention_getStatistics_reportsCoveredRange(){
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenReturn(100500l);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        RangeStatisticsService sut = new RangeStatisticsService(timeService, handler, new TieredStatistics(Collections.singletonList(new RangeStatisticsIndex(60, 1000)), 0));
+        handler.publish(new Transaction(4, 50000));
+        handler.publish(new Transaction(6, 99999));
+
+        RangeStatistics statistics = sut.getStatistics(0, 200000);
+
+        Assert.assertEquals(41000, statistics.getFrom());
+        Assert.assertEquals(100999, statistics.getTo());
+        Assert.assertEquals(1000, statistics.getResolution());
+        Assert.assertEquals(2, statistics.getStatistics().getCount());
+        Assert.assertEquals(10, statistics.getStatistics().getSum(), 0);
+    }
+}
@@ -0,0 +1,84 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.RingBufferEventDispatcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferEventDispatcherTests {
+
+    @Test
+    public void givenSlowListener_publish_returnsBeforeTheListenerRuns() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch handled = new CountDownLatch(1);
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(4);
+        sut.subscribe(x -> {
+            release.await();
+            handled.countDown();
+        });
+
+        sut.publish(new Object());
+
+        assertEquals("listener ran on the publishers thread", 1, handled.getCount());
+        release.countDown();
+        assertTrue("listener was never called", handled.await(5, TimeUnit.SECONDS));
+        sut.shutdown(1000);
+    }
+
+    @Test
+    public void givenConcurrentPublishersAndASmallRing_everyListenerSeesAllEventsInLogicalTimeOrder() throws InterruptedException {
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(8);
+        List<Long> first = Collections.synchronizedList(new ArrayList<>());
+        List<Long> second = Collections.synchronizedList(new ArrayList<>());
+        sut.subscribe(x -> first.add(x.getLogicalTime()));
+        sut.subscribe(x -> second.add(x.getLogicalTime()));
+
+        List<Thread> publishers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread publisher = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    sut.publish(i);
+                }
+            });
+            publisher.start();
+            publishers.add(publisher);
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+
+        assertTrue("dispatcher did not drain", sut.shutdown(5000));
+        assertEquals(4000, first.size());
+        assertEquals(4000, second.size());
+        for (int i = 0; i < 4000; i++) {
+            assertEquals(i, (long) first.get(i));
+            assertEquals(i, (long) second.get(i));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenShutDownHandler_publishUnsafely_isRejected() {
+        InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> sut = createSUT(4);
+        sut.shutdown(1000);
+        sut.publishUnsafely(new Object());
+    }
+
+    private InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<Object> createSUT(int capacity) {
+        return new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.unbounded(), new RingBufferEventDispatcher<>(capacity));
+    }
+}
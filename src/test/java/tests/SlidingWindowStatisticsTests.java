@@ -0,0 +1,134 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Percentiles;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.statistics.SlidingWindowStatistics;
+import com.n26.atrposki.utils.sketch.LogHistogram;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SlidingWindowStatisticsTests {
+    long now = 1_000_000;
+
+    @Test
+    public void givenTransactionsInDifferentBuckets_getStatistics_mergesAllOfThem() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics();
+        sut.add(new Transaction(2, now), now);
+        sut.add(new Transaction(4, now - 1_000), now);
+        sut.add(new Transaction(6, now - 59_000), now);
+
+        AggregateStatistics statistics = sut.getStatistics(now);
+
+        assertEquals(3, statistics.getCount());
+        assertEquals(12, statistics.getSum(), 0.001);
+        assertEquals(4, statistics.getAverage(), 0.001);
+        assertEquals(2, statistics.getMin(), 0.001);
+        assertEquals(6, statistics.getMax(), 0.001);
+    }
+
+    @Test
+    public void givenTransactionOutsideOfTheWindow_add_ignoresIt() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics();
+
+        assertFalse("too old transaction was added", sut.add(new Transaction(2, now - 60_000), now));
+        assertFalse("future transaction was added", sut.add(new Transaction(2, now + 1_000), now));
+        assertEquals(new AggregateStatistics(), sut.getStatistics(now));
+        assertEquals(0, sut.getAppliedCount());
+    }
+
+    @Test
+    public void whenTheWindowSlides_expiredBucketsAreNotMerged() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics();
+        sut.add(new Transaction(2, now - 30_000), now);
+        sut.add(new Transaction(4, now), now);
+
+        AggregateStatistics statistics = sut.getStatistics(now + 30_000);
+
+        assertEquals(1, statistics.getCount());
+        assertEquals(4, statistics.getSum(), 0.001);
+    }
+
+    @Test
+    public void whenABucketIsReusedForANewerPeriod_oldValuesAreDropped() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics();
+        sut.add(new Transaction(2, now), now);
+        long minuteLater = now + 60_000;
+        sut.add(new Transaction(4, minuteLater), minuteLater);
+
+        AggregateStatistics statistics = sut.getStatistics(minuteLater);
+
+        assertEquals(1, statistics.getCount());
+        assertEquals(4, statistics.getMax(), 0.001);
+        assertEquals(2, sut.getAppliedCount());
+    }
+
+    @Test
+    public void whenTransactionIsAdded_windowIsDirtyUntilChangesAreConsumed() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics();
+        assertFalse(sut.consumeChanges());
+
+        sut.add(new Transaction(2, now), now);
+
+        assertTrue(sut.consumeChanges());
+        assertFalse(sut.consumeChanges());
+    }
+
+    @Test
+    public void givenALongRing_getStatisticsOfAWindow_mergesRollupsAndEdgeBucketsOfThatWindowOnly() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics(3600, 1000);
+        long unalignedNow = 7_230_500;
+        for (int secondsAgo = 0; secondsAgo < 3600; secondsAgo++) {
+            sut.add(new Transaction(secondsAgo, unalignedNow - secondsAgo * 1000), unalignedNow);
+        }
+
+        assertEquals(10, sut.getStatistics(unalignedNow, 10_000).getCount());
+        assertEquals(300, sut.getStatistics(unalignedNow, 300_000).getCount());
+        AggregateStatistics hour = sut.getStatistics(unalignedNow, 3_600_000);
+        assertEquals(3600, hour.getCount());
+        assertEquals(3599 * 3600 / 2, hour.getSum(), 0.001);
+        assertEquals(3599, hour.getMax(), 0.001);
+        assertEquals(sut.getStatistics(unalignedNow), hour);
+    }
+
+    @Test
+    public void whenACachedRollupIsWrittenTo_itIsMergedAgain() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics(3600, 1000);
+        long now = 7_260_000;
+        sut.add(new Transaction(2, now - 120_000), now);
+        assertEquals(1, sut.getStatistics(now, 3_600_000).getCount());
+
+        sut.add(new Transaction(4, now - 119_000), now);
+
+        AggregateStatistics hour = sut.getStatistics(now, 3_600_000);
+        assertEquals(2, hour.getCount());
+        assertEquals(4, hour.getMax(), 0.001);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenAWindowLongerThanTheRing_getStatistics_throws() {
+        new SlidingWindowStatistics().getStatistics(now, 120_000);
+    }
+
+    @Test
+    public void givenTransactionsInBucketsAndRollups_getStatistics_addsTheirPercentiles() {
+        SlidingWindowStatistics sut = new SlidingWindowStatistics(3600, 1000);
+        long now = 7_230_000;
+        for (int i = 1; i <= 1000; i++) {
+            sut.add(new Transaction(i, now - (i % 600) * 1000), now);
+        }
+
+        Percentiles percentiles = sut.getStatistics(now, 600_000).getPercentiles();
+
+        assertEquals(500, percentiles.getP50(), 500 * LogHistogram.RELATIVE_ERROR);
+        assertEquals(950, percentiles.getP95(), 950 * LogHistogram.RELATIVE_ERROR);
+        assertEquals(990, percentiles.getP99(), 990 * LogHistogram.RELATIVE_ERROR);
+    }
+}
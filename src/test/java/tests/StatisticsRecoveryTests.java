@@ -0,0 +1,210 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.StatisticsCheckpoint;
+import com.n26.atrposki.statistics.StatisticsCheckpointStore;
+import com.n26.atrposki.statistics.StatisticsRecoveryService;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.utils.events.ColumnarEventHistory;
+import com.n26.atrposki.utils.events.EventRetentionPolicy;
+import com.n26.atrposki.utils.events.InMemmoryThreadSafeLogicalyTimedEventHandlerImpl;
+import com.n26.atrposki.utils.events.LogSyncPolicy;
+import com.n26.atrposki.utils.events.MappedEventLog;
+import com.n26.atrposki.utils.events.SynchronousEventDispatcher;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.metrics.MetricsRegistry;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
+import com.n26.atrposki.utils.time.ITimeService;
+import com.n26.atrposki.utils.time.TimeServiceImpl;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class StatisticsRecoveryTests {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void givenCheckpointAndLoggedTail_whenRestarted_recoversTheSameStatistics() throws Exception {
+        Path logDirectory = folder.newFolder("log").toPath();
+        StatisticsCheckpointStore store = new StatisticsCheckpointStore(folder.newFolder("checkpoints").toPath(), 2);
+        ITimeService timeService = new TimeServiceImpl();
+        long now = timeService.getUtcNow();
+
+        MappedEventLog<Transaction> log = newLog(logDirectory);
+        TransactionMadeEventHandler handler = newHandler(log);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, new AtomicLongWrapper());
+        StatisticsRecoveryService recovery = new StatisticsRecoveryService(statisticsService, log, store, 60_000, 1000);
+        for (int i = 1; i <= 5; i++) {
+            handler.publish(new Transaction(i, now - i));
+        }
+        assertTrue(recovery.checkpoint());
+        for (int i = 6; i <= 8; i++) {
+            handler.publish(new Transaction(i, now - i));
+        }
+        AggregateStatistics expected = statisticsService.getStatistics();
+        handler.shutdown();
+
+        MappedEventLog<Transaction> reopenedLog = newLog(logDirectory);
+        TransactionMadeEventHandler restartedHandler = newHandler(reopenedLog);
+        StatisticsService restartedService = new StatisticsService(timeService, restartedHandler, new AtomicLongWrapper());
+        StatisticsRecoveryService restartedRecovery = new StatisticsRecoveryService(restartedService, reopenedLog, store, 60_000, 1000);
+
+        assertFalse(restartedRecovery.isReady());
+        assertEquals(3, restartedRecovery.recover());
+        assertEquals(expected, restartedService.getStatistics());
+    }
+
+    @Test
+    public void givenTransactionsOnTheWayAtTheCut_createCheckpoint_containsThemOnce() throws Exception {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> 10_000L);
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        //no transaction at construction, logical times 0 to 4 at the cut
+        when(handler.getLogicalTime()).thenReturn(-1L, 4L);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(1, 9_000)));
+        statisticsService.onTransactionMade(new TimedEvent<>(1, new Transaction(2, 9_000)));
+        statisticsService.onTransactionMade(new TimedEvent<>(3, new Transaction(4, 9_500)));
+
+        CompletableFuture<Optional<StatisticsCheckpoint>> checkpoint = CompletableFuture.supplyAsync(() -> {
+            try {
+                return statisticsService.createCheckpoint(5000);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Thread.sleep(50);
+        statisticsService.onTransactionMade(new TimedEvent<>(2, new Transaction(3, 9_000)));
+        statisticsService.onTransactionMade(new TimedEvent<>(4, new Transaction(5, 9_500)));
+
+        StatisticsCheckpoint created = checkpoint.get().orElseThrow(IllegalStateException::new);
+        assertEquals(4, created.getLastLogicalTime());
+        assertEquals(5, created.getTransactionCount());
+        assertEquals(15, created.getBuckets().stream().mapToDouble(x -> x.getStatistics().getSum()).sum(), 0.001);
+    }
+
+    @Test
+    public void givenTransactionThatNeverArrives_createCheckpoint_timesOut() throws Exception {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> 10_000L);
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L, 1L);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(1, 9_000)));
+
+        assertFalse(statisticsService.createCheckpoint(20).isPresent());
+    }
+
+    @Test
+    public void givenTransactionThatNeverArrives_createCheckpoint_afterTheAbandonedOneSucceeds() throws Exception {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> 10_000L);
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L, 1L, 3L);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(1, 9_000)));
+        assertFalse(statisticsService.createCheckpoint(20).isPresent());
+
+        statisticsService.onTransactionMade(new TimedEvent<>(3, new Transaction(4, 9_000)));
+        statisticsService.onTransactionMade(new TimedEvent<>(2, new Transaction(3, 9_000)));
+
+        StatisticsCheckpoint created = statisticsService.createCheckpoint(20).orElseThrow(IllegalStateException::new);
+        assertEquals(3, created.getLastLogicalTime());
+        assertEquals(3, created.getTransactionCount());
+    }
+
+    @Test
+    public void givenFailingListenerCall_createCheckpoint_doesNotWaitForIt() throws Exception {
+        AtomicBoolean isClockFailing = new AtomicBoolean();
+        ITimeService timeService = () -> {
+            if (isClockFailing.get()) {
+                throw new IllegalStateException("clock failed");
+            }
+            return 10_000L;
+        };
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L, 1L);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(1, 9_000)));
+        isClockFailing.set(true);
+        try {
+            statisticsService.onTransactionMade(new TimedEvent<>(1, new Transaction(2, 9_000)));
+            fail("the listener call did not fail");
+        } catch (IllegalStateException expected) {
+        }
+        isClockFailing.set(false);
+
+        StatisticsCheckpoint created = statisticsService.createCheckpoint(20).orElseThrow(IllegalStateException::new);
+        assertEquals(1, created.getLastLogicalTime());
+        assertEquals(1, created.getTransactionCount());
+    }
+
+    @Test
+    public void givenTransactionMissingBehindMoreThanTheMaxAhead_createCheckpoint_doesNotWaitForIt() throws Exception {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> 10_000L);
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L, 70_000L);
+        StatisticsService statisticsService = new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+        //logical time 0 never arrives
+        for (int i = 1; i <= 70_000; i++) {
+            statisticsService.onTransactionMade(new TimedEvent<>(i, new Transaction(1, 9_000)));
+        }
+
+        StatisticsCheckpoint created = statisticsService.createCheckpoint(20).orElseThrow(IllegalStateException::new);
+        assertEquals(70_000, created.getTransactionCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void givenCheckpointsDisabled_createCheckpoint_throws() throws Exception {
+        ITimeService timeService = new TimeServiceImpl();
+        StatisticsService statisticsService = new StatisticsService(timeService, new TransactionMadeEventHandler(), new AtomicLongWrapper(),
+                new HashedTimingWheel(100, 64, timeService), "1m", false, new MetricsRegistry(), new ObjectMapper());
+
+        statisticsService.createCheckpoint(20);
+    }
+
+    @Test
+    public void givenCorruptNewestCheckpoint_loadLatest_fallsBackToTheOlderOne() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        StatisticsCheckpointStore store = new StatisticsCheckpointStore(directory, 2);
+        store.save(new StatisticsCheckpoint(3, 1000, 0, Collections.emptyList()));
+        Path newest = store.save(new StatisticsCheckpoint(7, 1000, 0, Collections.emptyList()));
+        byte[] bytes = Files.readAllBytes(newest);
+        bytes[bytes.length - 1] ^= 1;
+        Files.write(newest, bytes);
+
+        assertEquals(3, store.loadLatest().orElseThrow(IllegalStateException::new).getLastLogicalTime());
+    }
+
+    private static MappedEventLog<Transaction> newLog(Path directory) {
+        return new MappedEventLog<>(directory, 1024, Transaction::getTimestamp, Transaction::getAmount, LogSyncPolicy.NONE, 100, 60_000, System::currentTimeMillis);
+    }
+
+    private static TransactionMadeEventHandler newHandler(MappedEventLog<Transaction> log) {
+        return new TransactionMadeEventHandler(new InMemmoryThreadSafeLogicalyTimedEventHandlerImpl<>(EventRetentionPolicy.unbounded(), new SynchronousEventDispatcher<>(),
+                new ColumnarEventHistory<>(Transaction::getTimestamp, Transaction::getAmount, Transaction::new), log));
+    }
+}
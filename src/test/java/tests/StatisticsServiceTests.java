@@ -6,20 +6,30 @@ package tests;
  *
  */
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.n26.atrposki.domain.AggregateStatistics;
+import com.n26.atrposki.domain.Percentiles;
 import com.n26.atrposki.domain.Transaction;
 import com.n26.atrposki.domain.TransactionMadeEventHandler;
 import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsSnapshot;
+import com.n26.atrposki.statistics.StatisticsWindow;
 import com.n26.atrposki.utils.events.TimedEvent;
 import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
 import com.n26.atrposki.utils.testableAtomics.IAtomicLong;
+import com.n26.atrposki.utils.time.HashedTimingWheel;
 import com.n26.atrposki.utils.time.ITimeService;
 import com.n26.atrposki.utils.time.TimeServiceImpl;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
@@ -74,22 +84,30 @@ public class StatisticsServiceTests {
     }
 
     @Test
-    public void givenAnEventWithOlderEventsLogicalTime_WhenEventHandlerTimeIsLaterAsIsLastUpdateTime_AggregateStatisticsIsNotUpdated() {
-        long laterLogicalTime = 1000;
-        long earlierLogicalTime = 10;
-        List<TimedEvent<Transaction>> events = asList(new TimedEvent<>(earlierLogicalTime, new Transaction(1, 1)));
-
-        TransactionMadeEventHandler madeEventHandler = mock(TransactionMadeEventHandler.class);
-        when(madeEventHandler.getLogicalTime()).thenAnswer(x -> laterLogicalTime);
-        when(madeEventHandler.getHistory()).thenAnswer(x -> events);
+    public void givenNoTransactionsSinceLastRead_getStatistics_doesNotMergeAgain() {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> anyLong);
         AggregateStatistics statistics = new AggregateStatistics();
-        StatisticsService statisticsService = new StatisticsService(new TimeServiceImpl(), madeEventHandler, statistics, new AtomicLongWrapper(laterLogicalTime));
+        StatisticsService statisticsService = new StatisticsService(timeService, new TransactionMadeEventHandler(), statistics, new AtomicLongWrapper(0));
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(anyDouble, anyLong)));
 
-        long firstUpdate = statisticsService.onTransactionMade(null);
+        AggregateStatistics firstRead = statisticsService.getStatistics();
+        AggregateStatistics secondRead = statisticsService.getStatistics();
 
+        assertNotSame("statistics were not merged", statistics, firstRead);
+        assertSame("statistics were merged again without changes", firstRead, secondRead);
+    }
 
-        assertEquals(firstUpdate, laterLogicalTime);
-        assertSame("statistics were altered", statisticsService.getStatistics(), statistics);
+    @Test
+    public void givenAnEvent_onTransactionMade_doesNotPublishStatisticsUntilTheyAreRead() {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> anyLong);
+        StatisticsService statisticsService = new StatisticsService(timeService, new TransactionMadeEventHandler(), new AggregateStatistics(), new AtomicLongWrapper(5));
+
+        long publishedTime = statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(anyDouble, anyLong)));
+
+        assertEquals(5, publishedTime);
+        assertEquals(6, statisticsService.refreshStatistics());
     }
 
     @Test
@@ -136,28 +154,112 @@ public class StatisticsServiceTests {
     }
 
     @Test
-    public void givenEarlyEventHandlerLogicalTime_WhenLastUpdateTimeIsLater_AggregateStatisticsIsNotUpdated() {
-        long laterLogicalTime = 1000;
-        long earlierLogicalTime = 10;
-        List<Long> reverseOrdersOfEventTImes = asList(laterLogicalTime, earlierLogicalTime);
-        List<TimedEvent<Transaction>> events = asList(new TimedEvent<>(earlierLogicalTime, new Transaction(1, 1)),
-                new TimedEvent<>(laterLogicalTime, new Transaction(1, 1)));
-        Iterator<Long> getTimesAnswerItterator = reverseOrdersOfEventTImes.iterator();
+    public void givenSeveralEvents_getStatistics_returnsMergedStatistics() {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x -> 10_000l);
+        StatisticsService statisticsService = new StatisticsService(timeService, new TransactionMadeEventHandler(), new AggregateStatistics(), new AtomicLongWrapper(0));
 
-        TransactionMadeEventHandler madeEventHandler = mock(TransactionMadeEventHandler.class);
-        when(madeEventHandler.getLogicalTime()).thenAnswer(x -> getTimesAnswerItterator.next());
-        when(madeEventHandler.getHistory()).thenAnswer(x -> events);
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(1, 9_000)));
+        statisticsService.onTransactionMade(new TimedEvent<>(1, new Transaction(3, 10_000)));
 
-        AggregateStatistics statistics = new AggregateStatistics();
-        StatisticsService statisticsService = new StatisticsService(new TimeServiceImpl(), madeEventHandler, statistics, new AtomicLongWrapper(laterLogicalTime));
+        assertEquals(2, statisticsService.getStatistics().getCount());
+        assertEquals(4, statisticsService.getStatistics().getSum(), 0.001);
+        assertEquals(1, statisticsService.getStatistics().getMin(), 0.001);
+        assertEquals(3, statisticsService.getStatistics().getMax(), 0.001);
+    }
+
+    @Test
+    public void givenNoNewTransactions_whenBucketExpires_statisticsAreRefreshedByTheTimingWheel() {
+        AtomicLong now = new AtomicLong(10_000);
+        ITimeService timeService = now::get;
+        HashedTimingWheel timingWheel = new HashedTimingWheel(100, 64, timeService);
+        TransactionMadeEventHandler transactionMadeEventHandler = new TransactionMadeEventHandler();
+        StatisticsService statisticsService = new StatisticsService(timeService, transactionMadeEventHandler, new AtomicLongWrapper(), timingWheel, "1m,1h");
+        transactionMadeEventHandler.publish(new Transaction(anyDouble, 10_000));
+        assertEquals(1, statisticsService.getStatistics().getCount());
+
+        now.set(70_000);
+        timingWheel.advance(now.get());
+
+        assertEquals(new AggregateStatistics(), statisticsService.getStatistics());
+    }
+
+    @Test
+    public void givenConfiguredWindows_getStatisticsOfAWindow_onlyMergesItsTransactions() {
+        AtomicLong now = new AtomicLong(7_200_000);
+        ITimeService timeService = now::get;
+        TransactionMadeEventHandler transactionMadeEventHandler = new TransactionMadeEventHandler();
+        StatisticsService statisticsService = new StatisticsService(timeService, transactionMadeEventHandler, StatisticsWindow.parseAll("10s,1m,5m,1h"), new AtomicLongWrapper());
+        transactionMadeEventHandler.publish(new Transaction(1, now.get()));
+        transactionMadeEventHandler.publish(new Transaction(2, now.get() - 30_000));
+        transactionMadeEventHandler.publish(new Transaction(3, now.get() - 240_000));
+        transactionMadeEventHandler.publish(new Transaction(4, now.get() - 3_000_000));
 
-        long firstUpdate = statisticsService.onTransactionMade(null);
-        assertNotSame("update of statistics was not made", statisticsService.getStatistics(), statistics);
-        assertEquals("last update time is not updated properly", laterLogicalTime, firstUpdate);
-        AggregateStatistics secondStatistics = statisticsService.getStatistics();
-        long secondUpdate = statisticsService.onTransactionMade(null);
-        assertEquals("last update time is not update properly ", laterLogicalTime, secondUpdate);
-        assertSame(secondStatistics, statisticsService.getStatistics());
+        assertEquals(1, statisticsService.getStatistics(statisticsService.findWindow("10s").get()).getCount());
+        assertEquals(2, statisticsService.getStatistics(statisticsService.findWindow("1m").get()).getCount());
+        assertEquals(3, statisticsService.getStatistics(statisticsService.findWindow("5m").get()).getCount());
+        AggregateStatistics hour = statisticsService.getStatistics(statisticsService.findWindow("1h").get());
+        assertEquals(4, hour.getCount());
+        assertEquals(10, hour.getSum(), 0.001);
+        assertFalse(statisticsService.findWindow("2m").isPresent());
     }
 
+    @Test
+    public void givenAColumnarHistory_scanStatistics_scansItsCursor() {
+        TransactionMadeEventHandler transactionMadeEventHandler = new TransactionMadeEventHandler();
+        StatisticsService statisticsService = new StatisticsService(new TimeServiceImpl(), transactionMadeEventHandler, new AggregateStatistics(), new AtomicLongWrapper());
+        transactionMadeEventHandler.publish(new Transaction(1, 100));
+        transactionMadeEventHandler.publish(new Transaction(3, 200));
+        transactionMadeEventHandler.publish(new Transaction(5, 300));
+
+        AggregateStatistics statistics = statisticsService.scanStatistics(transactionMadeEventHandler.openHistoryCursor(), 150, 300);
+
+        assertEquals(new AggregateStatistics(8.0, 4.0, 5.0, 3.0, 2l), statistics);
+    }
+
+    @Test
+    public void whenStatisticsAreRefreshed_snapshotVersionAndETagChange() {
+        TransactionMadeEventHandler transactionMadeEventHandler = new TransactionMadeEventHandler();
+        StatisticsService statisticsService = new StatisticsService(new TimeServiceImpl(), transactionMadeEventHandler, new AtomicLongWrapper());
+        StatisticsSnapshot before = statisticsService.getSnapshot();
+        assertSame("unchanged statistics were published again", before, statisticsService.getSnapshot());
+
+        transactionMadeEventHandler.publish(new Transaction(anyDouble, System.currentTimeMillis()));
+        StatisticsSnapshot after = statisticsService.getSnapshot();
+
+        assertTrue(after.getVersion() > before.getVersion());
+        assertNotEquals(before.getETag(false), after.getETag(false));
+        assertNotEquals(after.getETag(false), after.getETag(true));
+        assertSame("the payload was encoded again", after.getJson(), after.getJson());
+    }
+
+    @Test
+    public void givenASnapshot_itsPayloadsEncodeTheStatistics() throws Exception {
+        AggregateStatistics statistics = new AggregateStatistics(6.0, 2.0, 3.0, 1.0, 3l, new Percentiles(2, 3, 3));
+        StatisticsSnapshot sut = new StatisticsSnapshot(7, statistics, new ObjectMapper());
+
+        assertEquals(new ObjectMapper().writeValueAsString(statistics), new String(sut.getJson(), StandardCharsets.UTF_8));
+        ByteBuffer binary = ByteBuffer.wrap(sut.getBinary());
+        assertEquals(7, binary.getLong());
+        assertEquals(6.0, binary.getDouble(), 0.0);
+        assertEquals(2.0, binary.getDouble(), 0.0);
+        assertEquals(3.0, binary.getDouble(), 0.0);
+        assertEquals(1.0, binary.getDouble(), 0.0);
+        assertEquals(3, binary.getLong());
+        assertEquals(1, binary.get());
+        assertEquals(2.0, binary.getDouble(), 0.0);
+    }
+
+    @Test
+    public void givenTheApplicationObjectMapper_getSnapshot_encodesTheJsonWithIt() throws Exception {
+        ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        TransactionMadeEventHandler transactionMadeEventHandler = new TransactionMadeEventHandler();
+        StatisticsService statisticsService = new StatisticsService(new TimeServiceImpl(), transactionMadeEventHandler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper(), objectMapper);
+        transactionMadeEventHandler.publish(new Transaction(anyDouble, System.currentTimeMillis()));
+
+        StatisticsSnapshot snapshot = statisticsService.getSnapshot();
+        String json = objectMapper.writeValueAsString(snapshot.getStatistics());
+        assertEquals(json, new String(snapshot.getJson(), StandardCharsets.UTF_8));
+        assertTrue(new String(snapshot.getEventStreamFrame(), StandardCharsets.UTF_8).endsWith("data: " + json + "\n\n"));
+    }
 }
@@ -0,0 +1,235 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.statistics.IStatisticsStreamSink;
+import com.n26.atrposki.statistics.StatisticsService;
+import com.n26.atrposki.statistics.StatisticsStreamService;
+import com.n26.atrposki.statistics.StatisticsWindow;
+import com.n26.atrposki.utils.events.TimedEvent;
+import com.n26.atrposki.utils.testableAtomics.AtomicLongWrapper;
+import com.n26.atrposki.utils.time.ITimeService;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class StatisticsStreamTests {
+    private static final long NOW = 1_000_000;
+
+    @Test
+    public void givenTwoSubscribers_publish_sendsTheSameEncodedFrameOncePerVersion() {
+        StatisticsService statisticsService = newStatisticsService();
+        StatisticsStreamService sut = new StatisticsStreamService(statisticsService, Runnable::run, 0, 60_000, 10);
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+        sut.subscribe(first, 0);
+        sut.subscribe(second, 0);
+
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(5, NOW)));
+        sut.publish();
+        sut.publish();
+
+        assertEquals(1, first.frames.size());
+        assertSame(first.frames.get(0), second.frames.get(0));
+        String frame = new String(first.frames.get(0), StandardCharsets.UTF_8);
+        assertTrue(frame, frame.startsWith("id: ") && frame.contains("event: statistics\ndata: {\"sum\":5.0") && frame.endsWith("}\n\n"));
+
+        statisticsService.onTransactionMade(new TimedEvent<>(1, new Transaction(7, NOW)));
+        sut.publish();
+        assertEquals(2, second.frames.size());
+    }
+
+    @Test
+    public void givenSlowSubscriber_publish_sendsItOnlyTheLatestStatisticsOnceItCatchesUp() throws Exception {
+        StatisticsService statisticsService = newStatisticsService();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        StatisticsStreamService sut = new StatisticsStreamService(statisticsService, sender, 0, 60_000, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink() {
+            @Override
+            public void send(byte[] frame) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                super.send(frame);
+            }
+        };
+        sut.subscribe(slow, 0);
+        try {
+            sut.publish();
+            for (int i = 1; i <= 5; i++) {
+                statisticsService.onTransactionMade(new TimedEvent<>(i, new Transaction(i, NOW)));
+                sut.publish();
+            }
+            release.countDown();
+            awaitIdle(sender);
+            sut.publish();
+            awaitIdle(sender);
+
+            assertEquals(2, slow.frames.size());
+            assertTrue(new String(slow.frames.get(1), StandardCharsets.UTF_8).contains("\"sum\":15.0"));
+        } finally {
+            sender.shutdownNow();
+        }
+    }
+
+    @Test
+    public void givenFailingSubscriberOrLongInterval_publish_dropsTheFailingOneAndCoalescesTheOther() {
+        StatisticsService statisticsService = newStatisticsService();
+        StatisticsStreamService sut = new StatisticsStreamService(statisticsService, Runnable::run, 0, 60_000, 2);
+        RecordingSink hourly = new RecordingSink();
+        RecordingSink failing = new RecordingSink() {
+            @Override
+            public void send(byte[] frame) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        sut.subscribe(hourly, TimeUnit.HOURS.toMillis(1));
+        sut.subscribe(failing, 0);
+        assertFalse(sut.subscribe(new RecordingSink(), 0));
+
+        sut.publish();
+        statisticsService.onTransactionMade(new TimedEvent<>(0, new Transaction(5, NOW)));
+        sut.publish();
+
+        assertEquals(1, hourly.frames.size());
+        assertTrue(failing.isClosed);
+        assertEquals(1, sut.getSubscriberCount());
+    }
+
+    @Test
+    public void givenStalledSubscriber_publish_closesItAfterTheWriteTimeoutSoTheOthersGetTheirFrames() throws Exception {
+        StatisticsService statisticsService = newStatisticsService();
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        StatisticsStreamService sut = new StatisticsStreamService(statisticsService, sender, 0, 60_000, 10, 50);
+        CountDownLatch stalled = new CountDownLatch(1);
+        RecordingSink stalling = new RecordingSink() {
+            @Override
+            public void send(byte[] frame) throws IOException {
+                try {
+                    stalled.countDown();
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+        RecordingSink healthy = new RecordingSink();
+        sut.subscribe(stalling, 0);
+        try {
+            sut.publish();
+            assertTrue(stalled.await(5, TimeUnit.SECONDS));
+            sut.subscribe(healthy, 0);
+            sut.publish();
+            Thread.sleep(100);
+            sut.publish();
+            awaitIdle(sender);
+
+            assertTrue(stalling.isClosed);
+            assertEquals(1, sut.getSubscriberCount());
+            assertEquals(1, healthy.frames.size());
+        } finally {
+            sender.shutdownNow();
+        }
+    }
+
+    @Test
+    public void givenStalledSubscriberThatHoldsItsMonitorLikeTheEmitter_publish_doesNotWaitForItAndItsSenderClosesIt() throws Exception {
+        StatisticsService statisticsService = newStatisticsService();
+        ExecutorService sender = Executors.newFixedThreadPool(2);
+        StatisticsStreamService sut = new StatisticsStreamService(statisticsService, sender, 0, 60_000, 10, 50);
+        CountDownLatch stalled = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        //like ResponseBodyEmitter, send and complete are synchronized on the sink, and the write ignores interrupts
+        RecordingSink stalling = new RecordingSink() {
+            @Override
+            public synchronized void send(byte[] frame) {
+                stalled.countDown();
+                boolean isReleased = false;
+                while (!isReleased) {
+                    try {
+                        isReleased = release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+
+            @Override
+            public synchronized void close() {
+                super.close();
+            }
+        };
+        RecordingSink healthy = new RecordingSink();
+        sut.subscribe(stalling, 0);
+        try {
+            sut.publish();
+            assertTrue(stalled.await(5, TimeUnit.SECONDS));
+            sut.subscribe(healthy, 0);
+            Thread.sleep(100);
+            CompletableFuture.runAsync(sut::publish).get(1, TimeUnit.SECONDS);
+
+            assertEquals(1, sut.getSubscriberCount());
+            assertFalse("the sink was closed during its write", stalling.isClosed);
+            for (int i = 0; i < 500 && healthy.frames.isEmpty(); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, healthy.frames.size());
+
+            release.countDown();
+            for (int i = 0; i < 500 && !stalling.isClosed; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue("the sender did not close the sink after its write", stalling.isClosed);
+        } finally {
+            release.countDown();
+            sender.shutdownNow();
+        }
+    }
+
+    private static void awaitIdle(ExecutorService sender) throws Exception {
+        sender.submit(() -> { }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static StatisticsService newStatisticsService() {
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenReturn(NOW);
+        TransactionMadeEventHandler handler = mock(TransactionMadeEventHandler.class);
+        when(handler.getLogicalTime()).thenReturn(-1L);
+        return new StatisticsService(timeService, handler, Collections.singletonList(StatisticsWindow.ONE_MINUTE), new AtomicLongWrapper());
+    }
+
+    private static class RecordingSink implements IStatisticsStreamSink {
+        final List<byte[]> frames = new CopyOnWriteArrayList<>();
+        volatile boolean isClosed;
+
+        @Override
+        public void send(byte[] frame) throws IOException {
+            frames.add(frame);
+        }
+
+        @Override
+        public void close() {
+            isClosed = true;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.utils.striped.StripedStatisticsAccumulator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class StripedStatisticsAccumulatorTests {
+
+    @Test
+    public void givenConcurrentWriters_mergedCells_containEveryValue() throws InterruptedException {
+        StripedStatisticsAccumulator sut = new StripedStatisticsAccumulator();
+        int threads = 8;
+        int perThread = 10_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            Thread writer = new Thread(() -> {
+                awaitQuietly(start);
+                for (int i = 1; i <= perThread; i++) {
+                    sut.add(i + offset);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        double[] merged = {0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        sut.forEachCell((sum, count, min, max) -> {
+            merged[0] += sum;
+            merged[1] += count;
+            merged[2] = Math.min(merged[2], min);
+            merged[3] = Math.max(merged[3], max);
+        });
+
+        double expectedSum = 0;
+        for (int t = 0; t < threads; t++) {
+            expectedSum += (double) perThread * (perThread + 1) / 2 + (double) t * perThread;
+        }
+        assertEquals(expectedSum, merged[0], 0.001);
+        assertEquals(threads * perThread, (long) merged[1]);
+        assertEquals(1, merged[2], 0.001);
+        assertEquals(perThread + threads - 1, merged[3], 0.001);
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
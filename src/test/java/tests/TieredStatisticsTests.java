@@ -0,0 +1,138 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.n26.atrposki.statistics.PartialStatistics;
+import com.n26.atrposki.statistics.RangeStatistics;
+import com.n26.atrposki.statistics.TieredStatistics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TieredStatisticsTests {
+    @Test
+    public void givenCompactionAndLateTransactions_getStatistics_matchesFullScanOfCoveredRange(){
+        TieredStatistics sut = new TieredStatistics(TieredStatistics.parseTiers("10ms:1s,100ms:10s,1s:100s"), 20);
+        Random random = new Random(7);
+        List<long[]> transactions = new ArrayList<>();
+        long now = 100000;
+        for (int i = 0; i < 6000; i++) {
+            now += 10;
+            sut.compact(now);
+            long timestamp = now - (random.nextInt(10) == 0 ? random.nextInt(20000) : random.nextInt(50));
+            long amount = random.nextInt(1000) - 200;
+            if (sut.add(timestamp, amount, now)) {
+                transactions.add(new long[]{timestamp, amount});
+            }
+        }
+
+        for (int i = 0; i < 300; i++) {
+            long from = now - random.nextInt(110000);
+            long to = from + random.nextInt(110000);
+            RangeStatistics actual = sut.getStatistics(from, to, now);
+            PartialStatistics expected = PartialStatistics.EMPTY;
+            for (long[] transaction : transactions) {
+                if (transaction[0] >= actual.getFrom() && transaction[0] <= actual.getTo()) {
+                    expected = expected.merge(PartialStatistics.of(transaction[1]));
+                }
+            }
+
+            Assert.assertEquals(expected.getCount(), actual.getStatistics().getCount());
+            Assert.assertEquals(expected.getSum(), actual.getStatistics().getSum(), 1e-6);
+            Assert.assertTrue(actual.getFrom() <= Math.max(from, now - 100000) + actual.getResolution());
+        }
+    }
+
+    @Test
+    public void givenRangesOfDifferentAge_getStatistics_reportsResolutionOfCoarsestTierUsed(){
+        TieredStatistics sut = new TieredStatistics(TieredStatistics.parseTiers("10ms:1s,100ms:10s,1s:100s"), 20);
+        long now = 100000;
+        sut.compact(now);
+        sut.add(now - 500, 1, now);
+        sut.add(now - 5000, 2, now);
+        sut.add(now - 50000, 4, now);
+
+        Assert.assertEquals(10, sut.getStatistics(now - 900, now, now).getResolution());
+        Assert.assertEquals(100, sut.getStatistics(now - 9000, now, now).getResolution());
+        RangeStatistics all = sut.getStatistics(0, now, now);
+        Assert.assertEquals(1000, all.getResolution());
+        Assert.assertEquals(7, all.getStatistics().getSum(), 0);
+        Assert.assertEquals(now - 100000 + 1000, all.getFrom());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void givenTierThatDoesNotRetainABucketOfTheNext_constructor_throws(){
+        new TieredStatistics(TieredStatistics.parseTiers("1s:1m,1m:1h"), 5000);
+    }
+
+    @Test
+    public void givenStatisticsLockedByAQueryOrCompaction_addOfCurrentBucket_doesNotWait() throws Exception {
+        TieredStatistics sut = new TieredStatistics(TieredStatistics.parseTiers("1s:2m,1m:1h"), 5000);
+        long now = 100000;
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        new Thread(() -> {
+            synchronized (sut) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }).start();
+        locked.await();
+
+        try {
+            Assert.assertTrue(CompletableFuture.supplyAsync(() -> sut.add(now - 10, 5, now)).get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        Assert.assertEquals(5, sut.getStatistics(now - 1000, now, now).getStatistics().getSum(), 0);
+    }
+
+    @Test
+    public void givenConcurrentWritersDuringCompaction_getStatistics_countsEveryTransaction() throws Exception {
+        TieredStatistics sut = new TieredStatistics(TieredStatistics.parseTiers("10ms:1s,100ms:10s,1s:100s"), 20);
+        AtomicLong now = new AtomicLong(100000);
+        AtomicLong added = new AtomicLong();
+        int threads = 4;
+        int perThread = 20000;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                Random random = new Random();
+                for (int i = 0; i < perThread; i++) {
+                    long current = now.get();
+                    if (sut.add(current - random.nextInt(60), 1, current)) {
+                        added.incrementAndGet();
+                    }
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        while (writers.stream().anyMatch(Thread::isAlive)) {
+            sut.compact(now.addAndGet(1));
+            sut.getStatistics(now.get() - 100, now.get(), now.get());
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        long end = now.get();
+        Assert.assertTrue(end - 100000 < 50000);
+        Assert.assertEquals(added.get(), sut.getStatistics(0, end, end).getStatistics().getCount());
+    }
+}
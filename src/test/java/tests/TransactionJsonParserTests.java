@@ -0,0 +1,85 @@
+package tests;
+/*
+ * @author aleksandartrposki@gmail.com
+ * @since 05.05.18
+ *
+ *
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.n26.atrposki.domain.Transaction;
+import com.n26.atrposki.endpoints.TransactionDTOHttpMessageConverter;
+import com.n26.atrposki.transactions.TransactionDTO;
+import com.n26.atrposki.transactions.TransactionJsonParser;
+import org.junit.Test;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.mock.http.MockHttpInputMessage;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class TransactionJsonParserTests {
+
+    @Test
+    public void givenTheCommonShape_parse_readsAmountAndTimestamp() {
+        assertEquals(new TransactionDTO(12.3, 1478192204000L), parse("{\"amount\":12.3,\"timestamp\":1478192204000}"));
+        assertEquals(new TransactionDTO(-0.5, 7), parse(" {\n \"timestamp\" : 7 ,\t\"amount\": -5e-1 } "));
+        assertEquals(new TransactionDTO(1e22, 0), parse("{\"amount\":1E22,\"timestamp\":0}"));
+        assertEquals(new TransactionDTO(2, 3, 42), parse("{\"key\":42,\"amount\":2,\"timestamp\":3}"));
+    }
+
+    @Test
+    public void givenOtherShapesOrMalformedJson_parse_returnsFalse() {
+        String[] notParsed = {
+                "", "{}", "[]", "{\"amount\":1}",
+                "{\"amount\":1,\"timestamp\":2,\"currency\":\"EUR\"}",
+                "{\"amount\":1,\"key\":4}",
+                "{\"amount\":1,\"timestamp\":2,\"key\":\"4\"}",
+                "{\"amount\":1,\"amount\":2,\"timestamp\":2}",
+                "{\"amount\":\"1\",\"timestamp\":2}",
+                "{\"amount\":1,\"timestamp\":2.5}",
+                "{\"amount\":01,\"timestamp\":2}",
+                "{\"amount\":1.,\"timestamp\":2}",
+                "{\"amount\":1,\"timestamp\":2",
+                "{\"amount\":1,\"timestamp\":2}}",
+                "{\"amount\":123456789012345678901,\"timestamp\":2}",
+                "{\"amount\":1e400,\"timestamp\":2}",
+                "{\"amount\":1,\"timestamp\":99999999999999999999}"};
+        for (String json : notParsed) {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            assertFalse(json, TransactionJsonParser.parse(bytes, 0, bytes.length, new TransactionDTO()));
+        }
+    }
+
+    @Test
+    public void givenAShapeTheParserDoesNotHandle_converter_fallsBackToJackson() throws Exception {
+        TransactionDTOHttpMessageConverter sut = new TransactionDTOHttpMessageConverter(new ObjectMapper());
+
+        TransactionDTO transaction = sut.read(TransactionDTO.class, new MockHttpInputMessage("{\"amount\":\"12.5\",\"timestamp\":3}".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(new TransactionDTO(12.5, 3), transaction);
+    }
+
+    @Test
+    public void givenANullKey_converter_readsATransactionWithoutKey() throws Exception {
+        TransactionDTOHttpMessageConverter sut = new TransactionDTOHttpMessageConverter(new ObjectMapper());
+
+        TransactionDTO transaction = sut.read(TransactionDTO.class, new MockHttpInputMessage("{\"amount\":12.5,\"timestamp\":3,\"key\":null}".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(Transaction.NO_KEY, transaction.getKey());
+        assertEquals(new TransactionDTO(12.5, 3), transaction);
+    }
+
+    @Test(expected = HttpMessageNotReadableException.class)
+    public void givenMalformedJson_converter_throwsNotReadable() throws Exception {
+        new TransactionDTOHttpMessageConverter(new ObjectMapper()).read(TransactionDTO.class, new MockHttpInputMessage("{\"amount\":".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static TransactionDTO parse(String json) {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        TransactionDTO transaction = new TransactionDTO();
+        assertTrue(json, TransactionJsonParser.parse(bytes, 0, bytes.length, transaction));
+        return transaction;
+    }
+}
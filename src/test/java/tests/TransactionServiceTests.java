@@ -8,6 +8,7 @@ package tests;
 
 import com.n26.atrposki.domain.Transaction;
 import com.n26.atrposki.domain.TransactionMadeEventHandler;
+import com.n26.atrposki.transactions.TransactionBatchResultDTO;
 import com.n26.atrposki.transactions.TransactionDTO;
 import com.n26.atrposki.transactions.TransactionsService;
 import com.n26.atrposki.utils.events.TimedEvent;
@@ -16,6 +17,11 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.omg.IOP.TransactionService;
 
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
 import static com.n26.atrposki.utils.time.ITimeService.MILISECONDS_IN_MINUTE;
 import static org.mockito.Mockito.*;
 
@@ -49,6 +55,62 @@ public class TransactionServiceTests {
         verify(handler).publish(eq(new Transaction(anyAmount,anyTimeStamp)));
     }
 
+    @Test
+    public void givenNdjsonBatch_createTransactions_publishesValidRecordsAndCountsRejected(){
+        long now = 100000;
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x->now);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        TransactionsService sut = new TransactionsService(handler,timeService,2);
+        String body = "{\"amount\":1.5,\"timestamp\":" + now + "}\n"
+                + "{\"amount\":2,\"timestamp\":1,\"unknown\":{\"nested\":[1,2]}}\n"
+                + "{\"amount\":\"abc\",\"timestamp\":" + now + "}\n"
+                + "{\"timestamp\":" + now + "}\n"
+                + "{\"amount\":3,\"timestamp\":" + now + "}\n";
+
+        TransactionBatchResultDTO result = sut.createTransactions(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(new TransactionBatchResultDTO(3, 2, 2), result);
+        Assert.assertEquals(3, handler.getHistory().size());
+        Assert.assertEquals(new Transaction(3, now), handler.getHistory().get(2).getEvent());
+    }
+
+    @Test
+    public void givenJsonArrayBatchWithSyntaxError_createTransactions_keepsTheRecordsBeforeTheError(){
+        long now = 100000;
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x->now);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        TransactionsService sut = new TransactionsService(handler,timeService);
+        String body = "[{\"amount\":1.5,\"timestamp\":" + now + "}, 7, {\"amount\":1.5,";
+
+        TransactionBatchResultDTO result = sut.createTransactions(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(new TransactionBatchResultDTO(1, 1, 2), result);
+        Assert.assertEquals(1, handler.getHistory().size());
+    }
+
+    @Test
+    public void givenFailingListener_createTransactions_countsTheRecordsAsAcceptedAndKeepsThemPublished(){
+        long now = 100000;
+        ITimeService timeService = mock(ITimeService.class);
+        when(timeService.getUtcNow()).thenAnswer(x->now);
+        TransactionMadeEventHandler handler = new TransactionMadeEventHandler();
+        List<Transaction> handled = new ArrayList<>();
+        handler.subscribe(event -> {
+            throw new IllegalStateException("failing listener");
+        });
+        handler.subscribe(event -> handled.add(event.getEvent()));
+        TransactionsService sut = new TransactionsService(handler,timeService);
+        String body = "[{\"amount\":1.5,\"timestamp\":" + now + "},{\"amount\":2,\"timestamp\":" + now + "}]";
+
+        TransactionBatchResultDTO result = sut.createTransactions(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+
+        Assert.assertEquals(new TransactionBatchResultDTO(2, 2, 0), result);
+        Assert.assertEquals(2, handler.getHistory().size());
+        Assert.assertEquals(2, handled.size());
+    }
+
     private void testResponse(long now,long transactionTimestamp, boolean expectedVal) {
         Double anyAmount = 12.0;
         ITimeService timeService = mock(ITimeService.class);